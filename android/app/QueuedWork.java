@@ -94,9 +94,11 @@ public class QueuedWork {
     /**
      * Lazily create a handler on a separate thread.
      *
+     * <p>Messages posted directly to the handler are not waited for by {@link #waitToFinish}.
+     *
      * @return the handler
      */
-    private static Handler getHandler() {
+    static Handler getHandler() {
         synchronized (sLock) {
             if (sHandler == null) {
                 HandlerThread handlerThread = new HandlerThread("queued-work-looper",
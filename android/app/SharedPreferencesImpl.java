@@ -20,6 +20,7 @@ import android.annotation.Nullable;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -37,11 +38,17 @@ import libcore.io.IoUtils;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,6 +57,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
 
 final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
@@ -59,12 +67,43 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * Whether preferences are persisted to an append-only binary log rather than by rewriting
+     * the whole XML file on every commit. See {@link #writeToLog}.
+     */
+    private static final boolean USE_LOG_BY_DEFAULT =
+            SystemProperties.getBoolean("persist.sys.sharedprefs_log", false);
+
+    /** Log files start with this magic number ("SPLG"), a version and the snapshot size. */
+    private static final int LOG_MAGIC = 0x53504c47;
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_HEADER_BYTES = 16;
+
+    /**
+     * The log is compacted once the records appended after its snapshot take up more than this
+     * and more than the snapshot itself.
+     */
+    private static final long MIN_LOG_BYTES_BEFORE_COMPACTION = 16 * 1024;
+
+    private static final byte LOG_OP_PUT = 1;
+    private static final byte LOG_OP_REMOVE = 2;
+    private static final byte LOG_OP_CLEAR = 3;
+
+    private static final byte LOG_TYPE_STRING = 1;
+    private static final byte LOG_TYPE_INT = 2;
+    private static final byte LOG_TYPE_LONG = 3;
+    private static final byte LOG_TYPE_FLOAT = 4;
+    private static final byte LOG_TYPE_BOOLEAN = 5;
+    private static final byte LOG_TYPE_STRING_SET = 6;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mLogFile;
+    private final boolean mUseLog;
     private final int mMode;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
@@ -103,9 +142,36 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /** Edits committed to memory but not yet appended to the log, in commit order. */
+    @GuardedBy("mLock")
+    private final ArrayList<LogRecord> mPendingLogRecords = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private boolean mLogCompactionScheduled;
+
+    /** Size of the log file, and of the snapshot at its start written by the last compaction. */
+    @GuardedBy("mWritingToDiskLock")
+    private long mLogBytes;
+    @GuardedBy("mWritingToDiskLock")
+    private long mLogSnapshotBytes;
+
+    /** Set if the log must be rewritten before anything can be appended to it. */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mLogNeedsCompaction;
+
+    /** Number of times the log was replaced, so a compaction can tell it raced with another. */
+    @GuardedBy("mWritingToDiskLock")
+    private int mLogCompactions;
+
     SharedPreferencesImpl(File file, int mode) {
+        this(file, mode, USE_LOG_BY_DEFAULT);
+    }
+
+    SharedPreferencesImpl(File file, int mode, boolean useLog) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mLogFile = makeLogFile(file);
+        mUseLog = useLog;
         mMode = mode;
         mLoaded = false;
         mMap = null;
@@ -144,17 +210,24 @@ final class SharedPreferencesImpl implements SharedPreferences {
         StructStat stat = null;
         Throwable thrown = null;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
-                BufferedInputStream str = null;
-                try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16 * 1024);
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
-                } catch (Exception e) {
-                    Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
-                } finally {
-                    IoUtils.closeQuietly(str);
+            // Once written, the log supersedes the XML file, regardless of whether this instance
+            // writes the log; the first write in XML mode then migrates the contents back.
+            if (mLogFile.exists()) {
+                stat = Os.stat(mLogFile.getPath());
+                map = readLogFile();
+            } else {
+                stat = Os.stat(mFile.getPath());
+                if (mFile.canRead()) {
+                    BufferedInputStream str = null;
+                    try {
+                        str = new BufferedInputStream(
+                                new FileInputStream(mFile), 16 * 1024);
+                        map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
+                    } finally {
+                        IoUtils.closeQuietly(str);
+                    }
                 }
             }
         } catch (ErrnoException e) {
@@ -195,6 +268,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeLogFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".log");
+    }
+
+    /** Returns the file whose metadata tells whether the preferences changed on disk. */
+    private File getDataFile() {
+        return mUseLog ? mLogFile : mFile;
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -223,7 +305,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(getDataFile().getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -500,10 +582,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
                 // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                if (mDiskWritesInFlight > 0 && !mUseLog) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
-                    // modifying it.
+                    // modifying it. Log writes only need the
+                    // edits themselves, so they don't own it.
                     // noinspection unchecked
                     mMap = new HashMap<String, Object>(mMap);
                 }
@@ -523,6 +606,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (mUseLog) {
+                                mPendingLogRecords.add(new LogRecord(LOG_OP_CLEAR, null, null));
+                            }
                         }
                         mClear = false;
                     }
@@ -538,6 +624,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 continue;
                             }
                             mapToWriteToDisk.remove(k);
+                            if (mUseLog) {
+                                mPendingLogRecords.add(new LogRecord(LOG_OP_REMOVE, k, null));
+                            }
                         } else {
                             if (mapToWriteToDisk.containsKey(k)) {
                                 Object existingValue = mapToWriteToDisk.get(k);
@@ -546,6 +635,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 }
                             }
                             mapToWriteToDisk.put(k, v);
+                            if (mUseLog) {
+                                mPendingLogRecords.add(new LogRecord(LOG_OP_PUT, k, v));
+                            }
                         }
 
                         changesMade = true;
@@ -639,7 +731,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 @Override
                 public void run() {
                     synchronized (mWritingToDiskLock) {
-                        writeToFile(mcr, isFromSyncCommit);
+                        if (mUseLog) {
+                            writeToLog(mcr);
+                        } else {
+                            writeToFile(mcr, isFromSyncCommit);
+                        }
                     }
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
@@ -801,6 +897,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
+            // The XML file now holds everything; drop any log this was migrated from.
+            mLogFile.delete();
 
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
@@ -844,4 +942,445 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * A single edit to be appended to the log. {@code key} is null for {@link #LOG_OP_CLEAR}
+     * and {@code value} is only set for {@link #LOG_OP_PUT}.
+     */
+    private static final class LogRecord {
+        final byte op;
+        final String key;
+        final Object value;
+
+        LogRecord(byte op, String key, Object value) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Persists the edits committed to memory since the last write by appending them to the log.
+     *
+     * <p>The log starts with a snapshot of all the preferences, written by
+     * {@link #compactLogLocked}, followed by one record per put, remove or clear. All edits
+     * pending at the time of the write are appended together, so a write for an older
+     * {@link MemoryCommitResult} may find that a later one already persisted its edits. Once
+     * the appended records outgrow the snapshot, a compaction is scheduled on the
+     * {@link QueuedWork} thread outside of the queued work. It only holds mWritingToDiskLock to
+     * swap in the new log, see {@link #compactLogInBackground}, so
+     * {@link QueuedWork#waitToFinish} does not wait for the snapshot to be written.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToLog(MemoryCommitResult mcr) {
+        if (mDiskStateGeneration >= mcr.memoryStateGeneration) {
+            mcr.setDiskWriteResult(false, true);
+            return;
+        }
+
+        // Without a log to append to (e.g. when migrating from XML), start with a snapshot.
+        final boolean compact = mLogNeedsCompaction || !mLogFile.exists();
+        final long generation;
+        ArrayList<LogRecord> records = null;
+        Map<String, Object> snapshot = null;
+        synchronized (mLock) {
+            generation = mCurrentMemoryStateGeneration;
+            if (compact) {
+                snapshot = new HashMap<>(mMap);
+            } else {
+                records = new ArrayList<>(mPendingLogRecords);
+            }
+            mPendingLogRecords.clear();
+        }
+
+        final boolean success = compact ? compactLogLocked(snapshot) : appendToLogLocked(records);
+        if (success) {
+            mDiskStateGeneration = generation;
+            if (mLogBytes - mLogSnapshotBytes
+                    > Math.max(MIN_LOG_BYTES_BEFORE_COMPACTION, mLogSnapshotBytes)) {
+                scheduleLogCompaction();
+            }
+        } else {
+            // The edits are still in mMap; rewrite everything on the next write.
+            mLogNeedsCompaction = true;
+        }
+        mcr.setDiskWriteResult(success, success);
+    }
+
+    private void scheduleLogCompaction() {
+        synchronized (mLock) {
+            if (mLogCompactionScheduled) {
+                return;
+            }
+            mLogCompactionScheduled = true;
+        }
+        QueuedWork.getHandler().post(this::compactLogInBackground);
+    }
+
+    /**
+     * Compacts the log without holding mWritingToDiskLock while the snapshot is written, so that
+     * writes, and {@link QueuedWork#waitToFinish} waiting for them, are not held up by it.
+     *
+     * <p>The snapshot is taken together with the size of the log. Appends made while it is
+     * written are copied after it before it replaces the log. They may repeat edits that the
+     * snapshot already holds, but replaying the latest edits again over a snapshot leaves the
+     * same preferences. If the log was replaced or failed meanwhile, the snapshot is dropped.
+     */
+    private void compactLogInBackground() {
+        final Map<String, Object> snapshot;
+        final long logBytes;
+        final int logCompactions;
+        synchronized (mWritingToDiskLock) {
+            synchronized (mLock) {
+                mLogCompactionScheduled = false;
+                snapshot = new HashMap<>(mMap);
+            }
+            if (mLogNeedsCompaction) {
+                // The next write compacts the log anyway.
+                return;
+            }
+            logBytes = mLogBytes;
+            logCompactions = mLogCompactions;
+        }
+
+        final File tmpFile = new File(mLogFile.getPath() + ".compact");
+        final long startTime = System.currentTimeMillis();
+        final long snapshotBytes = writeLogSnapshot(tmpFile, snapshot);
+        final long writeDuration = System.currentTimeMillis() - startTime;
+        if (snapshotBytes < 0) {
+            return;
+        }
+
+        synchronized (mWritingToDiskLock) {
+            if (mLogNeedsCompaction || mLogCompactions != logCompactions) {
+                tmpFile.delete();
+                return;
+            }
+            RandomAccessFile log = null;
+            FileOutputStream str = null;
+            try {
+                final byte[] appended = new byte[(int) (mLogBytes - logBytes)];
+                if (appended.length > 0) {
+                    log = new RandomAccessFile(mLogFile, "r");
+                    log.seek(logBytes);
+                    log.readFully(appended);
+                    str = new FileOutputStream(tmpFile, true);
+                    str.write(appended);
+                    FileUtils.sync(str);
+                }
+                if (!installLogLocked(tmpFile, snapshotBytes + appended.length, snapshotBytes)) {
+                    return;
+                }
+                recordSyncTime(writeDuration);
+            } catch (IOException e) {
+                Log.w(TAG, "compactLog: Got exception:", e);
+                tmpFile.delete();
+            } finally {
+                IoUtils.closeQuietly(log);
+                IoUtils.closeQuietly(str);
+            }
+        }
+    }
+
+    /** Appends the given edits to the log and syncs it. */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean appendToLogLocked(ArrayList<LogRecord> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        FileOutputStream str = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final int count = records.size();
+            for (int i = 0; i < count; i++) {
+                final LogRecord record = records.get(i);
+                writeLogRecord(out, record.op, record.key, record.value);
+            }
+            out.flush();
+
+            str = new FileOutputStream(mLogFile, true);
+            bytes.writeTo(str);
+            final long writeTime = System.currentTimeMillis();
+            FileUtils.sync(str);
+            recordSyncTime(System.currentTimeMillis() - writeTime);
+            mLogBytes += bytes.size();
+            updateStatLocked(mLogFile);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "appendToLog: Got exception:", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+    }
+
+    /**
+     * Atomically replaces the log with a snapshot of the given preferences, and removes the XML
+     * file the preferences may have been migrated from.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean compactLogLocked(Map<String, Object> snapshot) {
+        final File tmpFile = new File(mLogFile.getPath() + ".tmp");
+        final long writeTime = System.currentTimeMillis();
+        final long snapshotBytes = writeLogSnapshot(tmpFile, snapshot);
+        if (snapshotBytes < 0) {
+            return false;
+        }
+        recordSyncTime(System.currentTimeMillis() - writeTime);
+        return installLogLocked(tmpFile, snapshotBytes, snapshotBytes);
+    }
+
+    /**
+     * Writes and syncs a log holding only a snapshot of the given preferences to the given file.
+     * This does not touch the current log, and so needs no lock.
+     *
+     * @return the size of the snapshot, or -1 if it could not be written.
+     */
+    private long writeLogSnapshot(File file, Map<String, Object> snapshot) {
+        FileOutputStream str = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<String, Object> e : snapshot.entrySet()) {
+                writeLogRecord(out, LOG_OP_PUT, e.getKey(), e.getValue());
+            }
+            out.flush();
+            final long snapshotBytes = LOG_HEADER_BYTES + bytes.size();
+
+            str = createFileOutputStream(file);
+            if (str == null) {
+                return -1;
+            }
+            final DataOutputStream header = new DataOutputStream(str);
+            header.writeInt(LOG_MAGIC);
+            header.writeInt(LOG_VERSION);
+            header.writeLong(snapshotBytes);
+            header.flush();
+            bytes.writeTo(str);
+            FileUtils.sync(str);
+            str.close();
+            str = null;
+
+            ContextImpl.setFilePermissionsFromMode(file.getPath(), mMode, 0);
+            return snapshotBytes;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "compactLog: Got exception:", e);
+            IoUtils.closeQuietly(str);
+            file.delete();
+            return -1;
+        }
+    }
+
+    /**
+     * Replaces the log with the given file, written by {@link #writeLogSnapshot}, and removes the
+     * XML file the preferences may have been migrated from.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean installLogLocked(File file, long logBytes, long snapshotBytes) {
+        if (!file.renameTo(mLogFile)) {
+            Log.e(TAG, "Couldn't rename " + file + " to " + mLogFile);
+            file.delete();
+            return false;
+        }
+        mLogBytes = logBytes;
+        mLogSnapshotBytes = snapshotBytes;
+        mLogNeedsCompaction = false;
+        mLogCompactions++;
+        updateStatLocked(mLogFile);
+
+        // The log now holds everything; drop the XML file it may have been migrated from.
+        mFile.delete();
+        mBackupFile.delete();
+        return true;
+    }
+
+    /**
+     * Reads the preferences from the log by replaying its records. A truncated or corrupt
+     * record, e.g. from a crash in the middle of an append, ends the log; everything after it
+     * is dropped by compacting the log on the next write.
+     */
+    private Map<String, Object> readLogFile() throws IOException {
+        final byte[] bytes = IoUtils.readFileAsByteArray(mLogFile.getPath());
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final HashMap<String, Object> map = new HashMap<>();
+        boolean complete = false;
+        long snapshotBytes = 0;
+        try {
+            if (in.readInt() != LOG_MAGIC || in.readInt() != LOG_VERSION) {
+                throw new IOException("Unrecognized log header");
+            }
+            snapshotBytes = in.readLong();
+            final CRC32 crc = new CRC32();
+            int offset = LOG_HEADER_BYTES;
+            while (offset < bytes.length) {
+                final int length = in.readInt();
+                if (length < 0 || length > bytes.length - offset - 8) {
+                    break;
+                }
+                crc.reset();
+                crc.update(bytes, offset + 4, length);
+                final DataInputStream record =
+                        new DataInputStream(new ByteArrayInputStream(bytes, offset + 4, length));
+                in.skipBytes(length);
+                if ((int) crc.getValue() != in.readInt()) {
+                    break;
+                }
+                applyLogRecord(record, map);
+                offset += length + 8;
+            }
+            complete = offset == bytes.length;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot fully read " + mLogFile.getAbsolutePath(), e);
+        }
+        synchronized (mWritingToDiskLock) {
+            mLogBytes = bytes.length;
+            mLogSnapshotBytes = snapshotBytes;
+            mLogNeedsCompaction = !complete;
+        }
+        return map;
+    }
+
+    private static void applyLogRecord(DataInputStream in, Map<String, Object> map)
+            throws IOException {
+        final byte op = in.readByte();
+        switch (op) {
+            case LOG_OP_PUT: {
+                final String key = readLogString(in);
+                map.put(key, readLogValue(in));
+                break;
+            }
+            case LOG_OP_REMOVE:
+                map.remove(readLogString(in));
+                break;
+            case LOG_OP_CLEAR:
+                map.clear();
+                break;
+            default:
+                throw new IOException("Unknown log op " + op);
+        }
+    }
+
+    /**
+     * Writes one framed record: its length, its contents and a CRC32 of its contents.
+     */
+    private static void writeLogRecord(DataOutputStream out, byte op, String key, Object value)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(op);
+        if (op != LOG_OP_CLEAR) {
+            writeLogString(record, key);
+        }
+        if (op == LOG_OP_PUT) {
+            writeLogValue(record, value);
+        }
+        record.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeLogValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(LOG_TYPE_STRING);
+            writeLogString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(LOG_TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LOG_TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(LOG_TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(LOG_TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            final Set<String> set = (Set<String>) value;
+            out.writeByte(LOG_TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (String s : set) {
+                writeLogString(out, s);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported preference value " + value);
+        }
+    }
+
+    private static Object readLogValue(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case LOG_TYPE_STRING:
+                return readLogString(in);
+            case LOG_TYPE_INT:
+                return in.readInt();
+            case LOG_TYPE_LONG:
+                return in.readLong();
+            case LOG_TYPE_FLOAT:
+                return in.readFloat();
+            case LOG_TYPE_BOOLEAN:
+                return in.readBoolean();
+            case LOG_TYPE_STRING_SET: {
+                final int size = in.readInt();
+                final HashSet<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(readLogString(in));
+                }
+                return set;
+            }
+            default:
+                throw new IOException("Unknown log value type " + type);
+        }
+    }
+
+    // Unlike DataOutputStream#writeUTF, not limited to 64K. Keys and the elements of string sets
+    // may be null, as in the XML file; a null string is written as a length of -1.
+    private static void writeLogString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLogString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid log string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void updateStatLocked(File file) {
+        try {
+            final StructStat stat = Os.stat(file.getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            }
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+    }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void recordSyncTime(long fsyncDuration) {
+        mSyncTimes.add((int) fsyncDuration);
+        mNumSync++;
+
+        if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+            mSyncTimes.log(TAG, "Time required to fsync " + mLogFile + ": ");
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks that the log backed format of {@link SharedPreferencesImpl} reads back what was written.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesLogTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDir = new File(context.getCacheDir(), "shared-prefs-log-test");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        mFile = new File(mDir, "prefs.xml");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void nullKeyAndNullSetElement_roundTrip() {
+        final Set<String> set = new HashSet<>(Arrays.asList("a", null));
+        // The first commit writes a snapshot, the second appends to it.
+        assertTrue(open().edit().putString(null, "value").commit());
+        assertTrue(open().edit().putStringSet("set", set).commit());
+
+        final SharedPreferences prefs = open();
+        assertEquals("value", prefs.getString(null, null));
+        assertEquals(set, prefs.getStringSet("set", null));
+    }
+
+    private SharedPreferences open() {
+        return new SharedPreferencesImpl(mFile, Context.MODE_PRIVATE, true /*useLog*/);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Compares the XML and log backed formats of {@link SharedPreferencesImpl} on a file of about
+ * 200KB: the latency of committing a single change, and the time to load the file.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SharedPreferencesPerfTest {
+    private static final int ENTRY_COUNT = 2000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDir = new File(context.getFilesDir(), "shared-prefs-perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        mFile = new File(mDir, "prefs.xml");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeCommit_xml() {
+        commit(false);
+    }
+
+    @Test
+    public void timeCommit_log() {
+        commit(true);
+    }
+
+    @Test
+    public void timeLoad_xml() {
+        load(false);
+    }
+
+    @Test
+    public void timeLoad_log() {
+        load(true);
+    }
+
+    private void commit(boolean useLog) {
+        final SharedPreferences prefs = populate(useLog);
+        int i = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            prefs.edit().putInt("key" + (i % ENTRY_COUNT), i).commit();
+            i++;
+        }
+    }
+
+    private void load(boolean useLog) {
+        populate(useLog);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // getAll() blocks until the file has been loaded.
+            new SharedPreferencesImpl(mFile, Context.MODE_PRIVATE, useLog).getAll();
+        }
+    }
+
+    private SharedPreferences populate(boolean useLog) {
+        final SharedPreferences prefs =
+                new SharedPreferencesImpl(mFile, Context.MODE_PRIVATE, useLog);
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            editor.putString("string" + i, "value of a typical preference string " + i);
+            editor.putInt("key" + i, i);
+        }
+        editor.commit();
+        return prefs;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.servertransaction;
+
+import android.app.ClientTransactionHandler;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Slog;
+
+import java.util.ArrayList;
+
+/**
+ * Non-ordered broadcasts to receivers registered at runtime in the client, delivered in order.
+ * <p>
+ * As with {@link android.app.IApplicationThread#scheduleRegisteredReceiver}, the receivers are
+ * called on the binder thread that receives the transaction, in {@link #preExecute}, so that
+ * delivery stays ordered with other one-way calls to the client.
+ * @hide
+ */
+public class RegisteredReceiversItem extends ClientTransactionItem {
+
+    private static final String TAG = "RegisteredReceiversItem";
+
+    private int mProcessState;
+    private final ArrayList<Delivery> mDeliveries = new ArrayList<>();
+
+    @Override
+    public void preExecute(ClientTransactionHandler client, IBinder token) {
+        client.updateProcessState(mProcessState, false);
+        final int size = mDeliveries.size();
+        for (int i = 0; i < size; i++) {
+            final Delivery delivery = mDeliveries.get(i);
+            try {
+                delivery.receiver.performReceive(delivery.intent, delivery.resultCode,
+                        delivery.data, delivery.extras, false /* ordered */, delivery.sticky,
+                        delivery.sendingUser);
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Failed delivering " + delivery.intent, e);
+            }
+        }
+    }
+
+    @Override
+    public void execute(ClientTransactionHandler client, IBinder token,
+            PendingTransactionActions pendingActions) {
+        // Receivers were already called in preExecute().
+    }
+
+    /** Add a broadcast to deliver after those already added. */
+    public void addDelivery(IIntentReceiver receiver, Intent intent, int resultCode, String data,
+            Bundle extras, boolean sticky, int sendingUser) {
+        final Delivery delivery = new Delivery();
+        delivery.receiver = receiver;
+        delivery.intent = intent;
+        delivery.resultCode = resultCode;
+        delivery.data = data;
+        delivery.extras = extras;
+        delivery.sticky = sticky;
+        delivery.sendingUser = sendingUser;
+        mDeliveries.add(delivery);
+    }
+
+    /** Get the number of broadcasts to deliver. */
+    public int getDeliveryCount() {
+        return mDeliveries.size();
+    }
+
+
+    // ObjectPoolItem implementation
+
+    private RegisteredReceiversItem() {}
+
+    /** Obtain an instance with no deliveries, for a client in the given process state. */
+    public static RegisteredReceiversItem obtain(int processState) {
+        RegisteredReceiversItem instance = ObjectPool.obtain(RegisteredReceiversItem.class);
+        if (instance == null) {
+            instance = new RegisteredReceiversItem();
+        }
+        instance.mProcessState = processState;
+
+        return instance;
+    }
+
+    @Override
+    public void recycle() {
+        mProcessState = 0;
+        mDeliveries.clear();
+        ObjectPool.recycle(this);
+    }
+
+
+    // Parcelable implementation
+
+    /** Write to Parcel. */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mProcessState);
+        final int size = mDeliveries.size();
+        dest.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            final Delivery delivery = mDeliveries.get(i);
+            dest.writeStrongBinder(delivery.receiver.asBinder());
+            dest.writeTypedObject(delivery.intent, flags);
+            dest.writeInt(delivery.resultCode);
+            dest.writeString(delivery.data);
+            dest.writeBundle(delivery.extras);
+            dest.writeBoolean(delivery.sticky);
+            dest.writeInt(delivery.sendingUser);
+        }
+    }
+
+    /** Read from Parcel. */
+    private RegisteredReceiversItem(Parcel in) {
+        mProcessState = in.readInt();
+        final int size = in.readInt();
+        mDeliveries.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            final Delivery delivery = new Delivery();
+            delivery.receiver = IIntentReceiver.Stub.asInterface(in.readStrongBinder());
+            delivery.intent = in.readTypedObject(Intent.CREATOR);
+            delivery.resultCode = in.readInt();
+            delivery.data = in.readString();
+            delivery.extras = in.readBundle(getClass().getClassLoader());
+            delivery.sticky = in.readBoolean();
+            delivery.sendingUser = in.readInt();
+            mDeliveries.add(delivery);
+        }
+    }
+
+    public static final Creator<RegisteredReceiversItem> CREATOR =
+            new Creator<RegisteredReceiversItem>() {
+        public RegisteredReceiversItem createFromParcel(Parcel in) {
+            return new RegisteredReceiversItem(in);
+        }
+
+        public RegisteredReceiversItem[] newArray(int size) {
+            return new RegisteredReceiversItem[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "RegisteredReceiversItem{processState=" + mProcessState
+                + ",deliveries=" + mDeliveries.size() + "}";
+    }
+
+    /** A broadcast to a single receiver. */
+    private static class Delivery {
+        IIntentReceiver receiver;
+        Intent intent;
+        int resultCode;
+        String data;
+        Bundle extras;
+        boolean sticky;
+        int sendingUser;
+    }
+}
@@ -1038,11 +1038,20 @@ public class PackageParser {
 
     /**
      * Returns the cache key for a specificied {@code packageFile} and {@code flags}.
+     *
+     * <p>The key includes a hash of the directory containing the package, so that packages
+     * sharing a file name in different partitions (e.g. /system/app/Foo and /product/app/Foo)
+     * don't keep evicting each other's entries.
      */
     private String getCacheKey(File packageFile, int flags) {
         StringBuilder sb = new StringBuilder(packageFile.getName());
         sb.append('-');
         sb.append(flags);
+        final String parent = packageFile.getAbsoluteFile().getParent();
+        if (parent != null) {
+            sb.append('-');
+            sb.append(Integer.toHexString(parent.hashCode()));
+        }
 
         return sb.toString();
     }
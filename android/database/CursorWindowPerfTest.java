@@ -16,11 +16,13 @@
 
 package android.database;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -47,6 +49,13 @@ public class CursorWindowPerfTest {
 
     private static SQLiteDatabase sDatabase;
 
+    private static final String LARGE_DB_NAME = DB_NAME + "_large";
+    private static final int LARGE_ROW_COUNT = 100000;
+    // Moves taking longer than this are counted as stalls of the reader.
+    private static final long STALL_THRESHOLD_NANOS = 100 * 1000;
+
+    private static SQLiteDatabase sLargeDatabase;
+
     @BeforeClass
     public static void setup() {
         getContext().deleteDatabase(DB_NAME);
@@ -60,11 +69,29 @@ public class CursorWindowPerfTest {
             sDatabase.execSQL(insert, helper.createItem(0));
         }
 
+        // A result set spanning many windows, in WAL mode so that windows can be prefetched.
+        getContext().deleteDatabase(LARGE_DB_NAME);
+        sLargeDatabase = getContext().openOrCreateDatabase(LARGE_DB_NAME,
+                Context.MODE_PRIVATE | Context.MODE_ENABLE_WRITE_AHEAD_LOGGING, null);
+        sLargeDatabase.execSQL("CREATE TABLE Large (_ID INTEGER PRIMARY KEY, COL_A INTEGER, "
+                + "COL_B TEXT)");
+        sLargeDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < LARGE_ROW_COUNT; i++) {
+                sLargeDatabase.execSQL("INSERT INTO Large VALUES (?, ?, ?)",
+                        new Object[] { i, i, "A value long enough to fill windows quickly " + i });
+            }
+            sLargeDatabase.setTransactionSuccessful();
+        } finally {
+            sLargeDatabase.endTransaction();
+        }
     }
 
     @AfterClass
     public static void teardown() {
         getContext().deleteDatabase(DB_NAME);
+        sLargeDatabase.close();
+        getContext().deleteDatabase(LARGE_DB_NAME);
     }
 
     @Test
@@ -87,6 +114,70 @@ public class CursorWindowPerfTest {
         loadRowFromCursorWindow(TableHelper.USER, false);
     }
 
+    @Test
+    public void iterateLarge() {
+        iterateLargeResultSet(0, false);
+    }
+
+    @Test
+    public void iterateLarge_prefetch() {
+        iterateLargeResultSet(0, true);
+    }
+
+    @Test
+    public void iterateLarge_512KWindow() {
+        iterateLargeResultSet(512 * 1024, false);
+    }
+
+    @Test
+    public void iterateLarge_512KWindowPrefetch() {
+        iterateLargeResultSet(512 * 1024, true);
+    }
+
+    /**
+     * Iterates over {@link #LARGE_ROW_COUNT} rows, and reports the longest move to the next
+     * row and the total time per iteration spent in moves that stalled the reader, which are
+     * the moves past the end of a window that had to wait for the query.
+     */
+    private void iterateLargeResultSet(long windowSizeBytes, boolean prefetch) {
+        long maxStallNanos = 0;
+        long totalStallNanos = 0;
+        int iterations = 0;
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sLargeDatabase.rawQuery(
+                    "SELECT _ID, COL_A, COL_B FROM Large ORDER BY _ID", null)) {
+                SQLiteCursor sqLiteCursor = (SQLiteCursor) cursor;
+                sqLiteCursor.setWindowSize(windowSizeBytes);
+                sqLiteCursor.setPrefetchWindows(prefetch);
+
+                int i = 0;
+                while (true) {
+                    final long start = System.nanoTime();
+                    if (!cursor.moveToNext()) {
+                        break;
+                    }
+                    final long moveNanos = System.nanoTime() - start;
+                    if (moveNanos >= STALL_THRESHOLD_NANOS) {
+                        totalStallNanos += moveNanos;
+                        maxStallNanos = Math.max(maxStallNanos, moveNanos);
+                    }
+                    assertEquals(i, cursor.getInt(1));
+                    cursor.getString(2);
+                    i++;
+                }
+                assertEquals(LARGE_ROW_COUNT, i);
+            }
+            iterations++;
+        }
+
+        Bundle status = new Bundle();
+        status.putLong("max_stall_us", maxStallNanos / 1000);
+        status.putLong("stall_us_per_iteration", totalStallNanos / 1000 / Math.max(iterations, 1));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
     private void loadRowFromCursorWindow(TableHelper helper, boolean doubleRef) {
         try (Cursor cursor = sDatabase.rawQuery(helper.readSql(), new String[0])) {
             TableHelper.CursorReader reader = helper.createReader(cursor);
@@ -19,6 +19,9 @@ package android.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDebug;
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
+import android.os.Bundle;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -31,6 +34,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
@@ -47,11 +51,14 @@ public class SQLiteDatabasePerfTest {
     // TODO b/64262688 Add Concurrency tests to compare WAL vs DELETE read/write
     private static final String DB_NAME = "dbperftest";
     private static final int DEFAULT_DATASET_SIZE = 1000;
+    private static final int CONCURRENT_READER_COUNT = 6;
 
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
     private SQLiteDatabase mDatabase;
     private Context mContext;
+    private final ArrayList<Thread> mBackgroundReaders = new ArrayList<>();
+    private volatile boolean mStopBackgroundReaders;
 
     @Before
     public void setUp() {
@@ -67,6 +74,7 @@ public class SQLiteDatabasePerfTest {
 
     @After
     public void tearDown() {
+        stopBackgroundReaders();
         mDatabase.close();
         mContext.deleteDatabase(DB_NAME);
     }
@@ -91,6 +99,39 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    /**
+     * Measures a select in WAL mode while {@link #CONCURRENT_READER_COUNT} other threads run
+     * selects of their own, and reports how long reads waited for a connection and how often
+     * they were routed to a connection that had the statement prepared.
+     */
+    @Test
+    public void testSelectConcurrent() {
+        mDatabase.enableWriteAheadLogging();
+        insertT1TestDataSet();
+        startBackgroundReaders(CONCURRENT_READER_COUNT);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+
+        Random rnd = new Random(0);
+        while (state.keepRunning()) {
+            selectRandomRow(rnd);
+        }
+
+        stopBackgroundReaders();
+        for (ConnectionPoolStats stats : SQLiteDebug.getConnectionPoolStats()) {
+            if (mDatabase.getPath().equals(stats.dbName)) {
+                Bundle status = new Bundle();
+                status.putInt("connection_pool_size", stats.connectionPoolSize);
+                status.putLong("acquired_connections", stats.acquiredConnectionCount);
+                status.putLong("wait_time_ms", stats.totalWaitTimeMillis);
+                status.putLongArray("wait_time_histogram", stats.waitTimeHistogram);
+                status.putLong("routing_hits", stats.statementRoutingHits);
+                status.putLong("routing_misses", stats.statementRoutingMisses);
+                InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+            }
+        }
+    }
+
     @Test
     public void testSelectMultipleRows() {
         insertT1TestDataSet();
@@ -246,6 +287,41 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    private void selectRandomRow(Random rnd) {
+        int index = rnd.nextInt(DEFAULT_DATASET_SIZE);
+        try (Cursor cursor = mDatabase.rawQuery("SELECT _ID, COL_A, COL_B, COL_C FROM T1 "
+                + "WHERE _ID=?", new String[]{String.valueOf(index)})) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(index, cursor.getInt(0));
+        }
+    }
+
+    private void startBackgroundReaders(int count) {
+        mStopBackgroundReaders = false;
+        for (int t = 0; t < count; t++) {
+            final Random rnd = new Random(t + 1);
+            Thread thread = new Thread(() -> {
+                while (!mStopBackgroundReaders) {
+                    selectRandomRow(rnd);
+                }
+            });
+            thread.start();
+            mBackgroundReaders.add(thread);
+        }
+    }
+
+    private void stopBackgroundReaders() {
+        mStopBackgroundReaders = true;
+        for (Thread thread : mBackgroundReaders) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mBackgroundReaders.clear();
+    }
+
     private void insertT1TestDataSet() {
         insertT1TestDataSet(DEFAULT_DATASET_SIZE);
     }
@@ -35,6 +35,7 @@ import dalvik.system.CloseGuard;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Map;
 
 
@@ -103,6 +104,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // The SQL of the statements in the prepared statement cache, so that the pool can route
+    // statements to this connection without touching the order or the hit counts of the cache.
+    private final HashSet<String> mCachedSql = new HashSet<String>();
+
     // The recent operations log.
     private final OperationLog mRecentOperations;
 
@@ -458,10 +463,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mOnlyAllowReadOnlyOperations = readOnly;
     }
 
-    // Called by SQLiteConnectionPool only.
+    // Called by SQLiteConnectionPool only, while the connection is not acquired.
     // Returns true if the prepared statement cache contains the specified SQL.
     boolean isPreparedStatementInCache(String sql) {
-        return mPreparedStatementCache.get(sql) != null;
+        return mCachedSql.contains(sql);
     }
 
     /**
@@ -908,6 +913,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             statement = obtainPreparedStatement(sql, statementPtr, numParameters, type, readOnly);
             if (!skipCache && isCacheable(type)) {
                 mPreparedStatementCache.put(sql, statement);
+                mCachedSql.add(sql);
                 statement.mInCache = true;
             }
         } catch (RuntimeException ex) {
@@ -1273,6 +1279,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         @Override
         protected void entryRemoved(boolean evicted, String key,
                 PreparedStatement oldValue, PreparedStatement newValue) {
+            if (newValue == null) {
+                mCachedSql.remove(key);
+            }
             oldValue.mInCache = false;
             if (!oldValue.mInUse) {
                 finalizePreparedStatement(oldValue);
@@ -16,6 +16,7 @@
 
 package android.database.sqlite;
 
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.Handler;
@@ -84,12 +85,24 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Number of acquisitions of non-primary connections after which the pool decides whether
+    // to grow or shrink, when it may grow past its configured size.
+    private static final int ADAPTIVE_SIZING_WINDOW = 64;
+
+    // The pool grows by one connection when, over a window, readers waited this long on
+    // average, or one in four of them had to wait at all.
+    private static final long ADAPTIVE_SIZING_GROW_WAIT_MILLIS = 1;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
+    // The current size of the pool, between the configured size and the size it may grow to
+    // while readers are waiting for connections.
     private int mMaxConnectionPoolSize;
+    private int mMinConnectionPoolSize;
+    private int mAdaptiveMaxConnectionPoolSize;
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -106,6 +119,27 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
 
+    // Statistics about acquiring connections, reported through SQLiteDebug.
+    @GuardedBy("mLock")
+    private long mAcquiredConnectionCount;
+    @GuardedBy("mLock")
+    private long mTotalWaitTimeMillis;
+    @GuardedBy("mLock")
+    private final long[] mWaitTimeHistogram =
+            new long[ConnectionPoolStats.WAIT_TIME_HISTOGRAM_BUCKETS];
+    @GuardedBy("mLock")
+    private long mStatementRoutingHits;
+    @GuardedBy("mLock")
+    private long mStatementRoutingMisses;
+
+    // The non-primary acquisitions of the current adaptive sizing window.
+    @GuardedBy("mLock")
+    private int mSizingWindowAcquisitions;
+    @GuardedBy("mLock")
+    private int mSizingWindowWaits;
+    @GuardedBy("mLock")
+    private long mSizingWindowWaitTimeMillis;
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -496,6 +530,27 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Collects statistics about waiting for connections and routing statements to them.
+     *
+     * @param statsList The list to populate.
+     */
+    public void collectConnectionPoolStats(ArrayList<ConnectionPoolStats> statsList) {
+        synchronized (mLock) {
+            final ConnectionPoolStats stats = new ConnectionPoolStats();
+            stats.dbName = mConfiguration.path;
+            stats.connectionPoolSize = mMaxConnectionPoolSize;
+            stats.minConnectionPoolSize = mMinConnectionPoolSize;
+            stats.maxConnectionPoolSize = mAdaptiveMaxConnectionPoolSize;
+            stats.acquiredConnectionCount = mAcquiredConnectionCount;
+            stats.totalWaitTimeMillis = mTotalWaitTimeMillis;
+            stats.waitTimeHistogram = mWaitTimeHistogram.clone();
+            stats.statementRoutingHits = mStatementRoutingHits;
+            stats.statementRoutingMisses = mStatementRoutingMisses;
+            statsList.add(stats);
+        }
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -697,6 +752,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
+                onConnectionAcquiredLocked(wantPrimaryConnection, false, 0);
                 return connection;
             }
 
@@ -765,6 +821,8 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            onConnectionAcquiredLocked(wantPrimaryConnection, true,
+                                    SystemClock.uptimeMillis() - waiter.mStartTime);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -965,9 +1023,11 @@ public final class SQLiteConnectionPool implements Closeable {
                 if (connection.isPreparedStatementInCache(sql)) {
                     mAvailableNonPrimaryConnections.remove(i);
                     finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+                    mStatementRoutingHits += 1;
                     return connection;
                 }
             }
+            mStatementRoutingMisses += 1;
         }
         if (availableCount > 0) {
             // Otherwise, just grab the next one.
@@ -1034,18 +1094,64 @@ public final class SQLiteConnectionPool implements Closeable {
         return (connectionFlags & CONNECTION_FLAG_INTERACTIVE) != 0 ? 1 : 0;
     }
 
+    // Can't throw.
+    @GuardedBy("mLock")
+    private void onConnectionAcquiredLocked(boolean wantPrimaryConnection, boolean waited,
+            long waitMillis) {
+        mAcquiredConnectionCount += 1;
+        mTotalWaitTimeMillis += waitMillis;
+        mWaitTimeHistogram[Math.min(64 - Long.numberOfLeadingZeros(waitMillis),
+                ConnectionPoolStats.WAIT_TIME_HISTOGRAM_BUCKETS - 1)] += 1;
+
+        if (wantPrimaryConnection || mAdaptiveMaxConnectionPoolSize <= mMinConnectionPoolSize) {
+            return;
+        }
+        mSizingWindowAcquisitions += 1;
+        mSizingWindowWaitTimeMillis += waitMillis;
+        if (waited) {
+            mSizingWindowWaits += 1;
+        }
+        if (mSizingWindowAcquisitions < ADAPTIVE_SIZING_WINDOW) {
+            return;
+        }
+
+        final boolean grow = mSizingWindowWaitTimeMillis
+                >= ADAPTIVE_SIZING_GROW_WAIT_MILLIS * mSizingWindowAcquisitions
+                || mSizingWindowWaits * 4 >= mSizingWindowAcquisitions;
+        if (grow && mMaxConnectionPoolSize < mAdaptiveMaxConnectionPoolSize) {
+            mMaxConnectionPoolSize += 1;
+            // Let waiters open the new connection.
+            wakeConnectionWaitersLocked();
+        } else if (mSizingWindowWaits == 0 && mMaxConnectionPoolSize > mMinConnectionPoolSize) {
+            mMaxConnectionPoolSize -= 1;
+            closeExcessConnectionsAndLogExceptionsLocked();
+        }
+        resetSizingWindowLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void resetSizingWindowLocked() {
+        mSizingWindowAcquisitions = 0;
+        mSizingWindowWaits = 0;
+        mSizingWindowWaitTimeMillis = 0;
+    }
+
     private void setMaxConnectionPoolSizeLocked() {
         if (!mConfiguration.isInMemoryDb()
                 && (mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
-            mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mMinConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mAdaptiveMaxConnectionPoolSize = SQLiteGlobal.getWALMaxConnectionPoolSize();
         } else {
             // We don't actually need to always restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
             // with other journal modes. However, we should always keep pool size of 1 for in-memory
             // databases since every :memory: db is separate from another.
             // For now, enabling connection pooling and using WAL are the same thing in the API.
-            mMaxConnectionPoolSize = 1;
+            mMinConnectionPoolSize = 1;
+            mAdaptiveMaxConnectionPoolSize = 1;
         }
+        mMaxConnectionPoolSize = mMinConnectionPoolSize;
+        resetSizingWindowLocked();
     }
 
     /**
@@ -1110,7 +1216,15 @@ public final class SQLiteConnectionPool implements Closeable {
         synchronized (mLock) {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
-            printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            printer.println("  Max connections: " + mMaxConnectionPoolSize
+                    + " (adaptive " + mMinConnectionPoolSize + "-"
+                    + mAdaptiveMaxConnectionPoolSize + ")");
+            printer.println("  Acquired connections: " + mAcquiredConnectionCount
+                    + ", total wait time: " + mTotalWaitTimeMillis + " ms");
+            printer.println("  Wait time histogram (<upper_bound_ms>=<acquisitions>):"
+                    + ConnectionPoolStats.histogramToString(mWaitTimeHistogram));
+            printer.println("  Statement routing: " + mStatementRoutingHits + " hits, "
+                    + mStatementRoutingMisses + " misses");
             printer.println("  Total execution time: " + mTotalExecutionTimeCounter);
             printer.println("  Configuration: openFlags=" + mConfiguration.openFlags
                     + ", useCompatibilityWal=" + mConfiguration.useCompatibilityWal()
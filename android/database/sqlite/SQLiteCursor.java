@@ -16,9 +16,11 @@
 
 package android.database.sqlite;
 
+import android.annotation.BytesLong;
 import android.database.AbstractWindowedCursor;
 import android.database.CursorWindow;
 import android.database.DatabaseUtils;
+import android.os.AsyncTask;
 import android.os.StrictMode;
 import android.util.Log;
 
@@ -26,6 +28,9 @@ import com.android.internal.util.Preconditions;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Cursor implementation that exposes results from a query on a
@@ -65,6 +70,21 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     /** Controls fetching of rows relative to requested position **/
     private boolean mFillWindowForwardOnly;
 
+    /** The size in bytes of the windows this cursor creates, 0 for the default size */
+    private long mWindowSizeBytes;
+
+    /** True if the window must be recreated because the window size was changed */
+    private boolean mWindowSizeChanged;
+
+    /** Controls filling the rows after the window on a background thread ahead of the reader */
+    private boolean mPrefetchWindows;
+
+    /** The fill of the window after the current one, running or done, or null if none */
+    private PrefetchTask mPrefetchTask;
+
+    /** A window no longer in use, kept to be filled by the next prefetch */
+    private CursorWindow mSpareWindow;
+
     /**
      * Execute a query and provide access to its result set through a Cursor
      * interface. For a query such as: {@code SELECT name, birth, phone FROM
@@ -125,7 +145,9 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         // Make sure the row at newPosition is present in the window
         if (mWindow == null || newPosition < mWindow.getStartPosition() ||
                 newPosition >= (mWindow.getStartPosition() + mWindow.getNumRows())) {
-            fillWindow(newPosition);
+            if (!takePrefetchedWindow(newPosition)) {
+                fillWindow(newPosition);
+            }
         }
 
         return true;
@@ -140,7 +162,15 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     }
 
     private void fillWindow(int requiredPos) {
-        clearOrCreateWindow(getDatabase().getPath());
+        if (mWindowSizeChanged) {
+            mWindowSizeChanged = false;
+            closeWindow();
+        }
+        if (mWindow == null) {
+            mWindow = createWindow();
+        } else {
+            mWindow.clear();
+        }
         try {
             Preconditions.checkArgumentNonnegative(requiredPos,
                     "requiredPos cannot be negative, but was " + requiredPos);
@@ -164,6 +194,114 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             closeWindow();
             throw ex;
         }
+        startPrefetch();
+    }
+
+    private CursorWindow createWindow() {
+        final String name = getDatabase().getPath();
+        return mWindowSizeBytes > 0 ? new CursorWindow(name, mWindowSizeBytes)
+                : new CursorWindow(name);
+    }
+
+    /**
+     * Starts filling the rows after the window into a second window on a background thread,
+     * if prefetching is enabled and there are more rows.
+     */
+    private void startPrefetch() {
+        if (!mPrefetchWindows || mPrefetchTask != null || mWindow == null
+                || mCount == NO_COUNT || mWindow.getNumRows() == 0) {
+            return;
+        }
+        final int startPos = mWindow.getStartPosition() + mWindow.getNumRows();
+        if (startPos >= mCount) {
+            return;
+        }
+        // The background thread reads through a connection of its own, which only works
+        // alongside this thread's connection in WAL mode, and does not see the changes of a
+        // transaction in progress on this thread.
+        final SQLiteDatabase db = getDatabase();
+        if (!db.isWriteAheadLoggingEnabled() || db.isDbLockedByCurrentThread()) {
+            return;
+        }
+
+        CursorWindow window = mSpareWindow;
+        mSpareWindow = null;
+        if (window == null) {
+            window = createWindow();
+        }
+        final PrefetchTask task = new PrefetchTask(mQuery, window, startPos);
+        try {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // The pool is saturated by the app; read the rows when they are needed instead.
+            recycleWindow(window);
+            return;
+        }
+        mPrefetchTask = task;
+    }
+
+    /**
+     * Makes the prefetched window the current one if it holds the row at requiredPos, waiting
+     * for it to be filled if needed, and starts prefetching the next one. If the fill has not
+     * started yet, e.g. because the pool is busy with other tasks of the app, it is abandoned so
+     * that the caller fills the window itself rather than waiting behind those tasks.
+     *
+     * @return True if the window now holds the row at requiredPos.
+     */
+    private boolean takePrefetchedWindow(int requiredPos) {
+        final PrefetchTask task = mPrefetchTask;
+        if (task == null) {
+            return false;
+        }
+        mPrefetchTask = null;
+        if (requiredPos < task.mStartPos
+                || requiredPos >= task.mStartPos + Math.max(mCursorWindowCapacity, 1)) {
+            // The reader moved somewhere else than the next rows.
+            task.cancel();
+            return false;
+        }
+
+        if (task.abandonIfNotStarted()) {
+            recycleWindow(task.mWindow);
+            return false;
+        }
+        task.await();
+        final CursorWindow window = task.mWindow;
+        if (task.mException != null
+                || requiredPos >= window.getStartPosition() + window.getNumRows()) {
+            if (task.mException != null && Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Failed to prefetch rows from " + task.mStartPos, task.mException);
+            }
+            recycleWindow(window);
+            return false;
+        }
+        recycleWindow(mWindow);
+        mWindow = window;
+        startPrefetch();
+        return true;
+    }
+
+    private void recycleWindow(CursorWindow window) {
+        if (window == null) {
+            return;
+        }
+        if (mSpareWindow == null && !mWindowSizeChanged) {
+            window.clear();
+            mSpareWindow = window;
+        } else {
+            window.close();
+        }
+    }
+
+    private void discardPrefetchedWindows() {
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel();
+            mPrefetchTask = null;
+        }
+        if (mSpareWindow != null) {
+            mSpareWindow.close();
+            mSpareWindow = null;
+        }
     }
 
     @Override
@@ -206,6 +344,13 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         mDriver.cursorDeactivated();
     }
 
+    /** @hide */
+    @Override
+    protected void onDeactivateOrClose() {
+        discardPrefetchedWindows();
+        super.onDeactivateOrClose();
+    }
+
     @Override
     public void close() {
         super.close();
@@ -226,6 +371,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                 return false;
             }
 
+            discardPrefetchedWindows();
             if (mWindow != null) {
                 mWindow.clear();
             }
@@ -246,6 +392,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
     @Override
     public void setWindow(CursorWindow window) {
+        discardPrefetchedWindows();
         super.setWindow(window);
         mCount = NO_COUNT;
     }
@@ -271,6 +418,44 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         mFillWindowForwardOnly = fillWindowForwardOnly;
     }
 
+    /**
+     * Sets the size of the windows this cursor fills with rows, instead of the size used for
+     * all cursors. A larger window moves across a large result set in fewer queries, a smaller
+     * one uses less memory for a cursor that is only partly read.
+     *
+     * <p>The new size takes effect the next time the cursor fills a window.
+     *
+     * @param windowSizeBytes Size of the windows in bytes, or 0 for the default size.
+     */
+    public void setWindowSize(@BytesLong long windowSizeBytes) {
+        Preconditions.checkArgumentNonnegative(windowSizeBytes,
+                "windowSizeBytes cannot be negative");
+        if (windowSizeBytes != mWindowSizeBytes) {
+            mWindowSizeBytes = windowSizeBytes;
+            mWindowSizeChanged = true;
+            discardPrefetchedWindows();
+        }
+    }
+
+    /**
+     * Controls filling the rows after the current window into a second window on a background
+     * thread, so that moving forward past the end of the window does not have to wait for the
+     * query to run again from that row.
+     *
+     * <p>Rows are only prefetched for databases in write-ahead logging mode, and not while the
+     * calling thread holds a transaction. Moving anywhere else than the rows after the window
+     * fills the window as usual.
+     *
+     * @param prefetchWindows if true, rows are prefetched ahead of the cursor. Default value is
+     * false.
+     */
+    public void setPrefetchWindows(boolean prefetchWindows) {
+        mPrefetchWindows = prefetchWindows;
+        if (!prefetchWindows) {
+            discardPrefetchedWindows();
+        }
+    }
+
     /**
      * Release the native resources, if they haven't been released yet.
      */
@@ -295,4 +480,76 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             super.finalize();
         }
     }
+
+    /**
+     * Fills a window with the rows from a position on a background thread. Does not reference
+     * the cursor, so that a cursor that was not closed can still be finalized.
+     */
+    private static final class PrefetchTask implements Runnable {
+        final SQLiteQuery mQuery;
+        final CursorWindow mWindow;
+        final int mStartPos;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        // Claimed by run() when the fill starts, or by abandonIfNotStarted() before that.
+        final AtomicBoolean mClaimed = new AtomicBoolean();
+        volatile boolean mCancelled;
+        // Published by mDone.
+        RuntimeException mException;
+
+        PrefetchTask(SQLiteQuery query, CursorWindow window, int startPos) {
+            mQuery = query;
+            mWindow = window;
+            mStartPos = startPos;
+        }
+
+        @Override
+        public void run() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                // Abandoned; nobody waits for it.
+                return;
+            }
+            try {
+                if (!mCancelled) {
+                    mQuery.fillWindow(mWindow, mStartPos, mStartPos, false);
+                }
+            } catch (RuntimeException ex) {
+                // Includes the window or the query having been closed by cancel().
+                mException = ex;
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        /**
+         * Makes sure the fill never starts, unless it already has. If this returns true, the
+         * task no longer uses its window.
+         */
+        boolean abandonIfNotStarted() {
+            return mClaimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Gives up the window. A fill in progress keeps its own reference to the window and
+         * the query until it is done.
+         */
+        void cancel() {
+            mCancelled = true;
+            mWindow.close();
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
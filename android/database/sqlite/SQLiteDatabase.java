@@ -27,6 +27,7 @@ import android.database.DatabaseErrorHandler;
 import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.Looper;
@@ -2145,6 +2146,22 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Collect statistics about acquiring connections for all open databases in the current
+     * process.
+     */
+    static ArrayList<ConnectionPoolStats> getConnectionPoolStats() {
+        ArrayList<ConnectionPoolStats> statsList = new ArrayList<ConnectionPoolStats>();
+        for (SQLiteDatabase db : getActiveDatabases()) {
+            synchronized (db.mLock) {
+                if (db.mConnectionPoolLocked != null) {
+                    db.mConnectionPoolLocked.collectConnectionPoolStats(statsList);
+                }
+            }
+        }
+        return statsList;
+    }
+
     private static ArrayList<SQLiteDatabase> getActiveDatabases() {
         ArrayList<SQLiteDatabase> databases = new ArrayList<SQLiteDatabase>();
         synchronized (sActiveDatabases) {
@@ -146,6 +146,91 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * Contains statistics about acquiring the connections of a database: how long sessions
+     * waited for one, and how often a statement was routed to a connection that already had
+     * it prepared.
+     * @hide
+     */
+    public static class ConnectionPoolStats {
+        /**
+         * Number of buckets of {@link #waitTimeHistogram}. Bucket {@code i} counts acquisitions
+         * that waited less than 2^i milliseconds (and at least 2^(i-1)), the last bucket counts
+         * all longer waits.
+         */
+        public static final int WAIT_TIME_HISTOGRAM_BUCKETS = 16;
+
+        /** name of the database */
+        public String dbName;
+
+        /** the number of connections the pool may currently open */
+        public int connectionPoolSize;
+
+        /** the configured pool size, which the pool shrinks back to when readers stop waiting */
+        public int minConnectionPoolSize;
+
+        /** the size the pool may grow to while readers are waiting for connections */
+        public int maxConnectionPoolSize;
+
+        /** the number of connections acquired */
+        public long acquiredConnectionCount;
+
+        /** the total time spent waiting for connections */
+        public long totalWaitTimeMillis;
+
+        /** the number of acquisitions per wait time, see {@link #WAIT_TIME_HISTOGRAM_BUCKETS} */
+        public long[] waitTimeHistogram;
+
+        /**
+         * the number of times a statement could choose among several connections and found
+         * one that had it in its prepared statement cache
+         */
+        public long statementRoutingHits;
+
+        /**
+         * the number of times a statement could choose among several connections and found
+         * none that had it in its prepared statement cache
+         */
+        public long statementRoutingMisses;
+
+        /** Formats a histogram as " <upper_bound>=<count>..." skipping empty buckets. */
+        static String histogramToString(long[] histogram) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] == 0) {
+                    continue;
+                }
+                sb.append(' ');
+                if (i == histogram.length - 1) {
+                    sb.append("inf");
+                } else {
+                    sb.append(1L << i);
+                }
+                sb.append('=').append(histogram[i]);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return dbName + ": poolSize=" + connectionPoolSize
+                    + " (" + minConnectionPoolSize + "-" + maxConnectionPoolSize + ")"
+                    + ", acquired=" + acquiredConnectionCount
+                    + ", waitTimeMillis=" + totalWaitTimeMillis
+                    + ", waitTimeHistogram=[" + histogramToString(waitTimeHistogram).trim() + "]"
+                    + ", routingHits=" + statementRoutingHits
+                    + ", routingMisses=" + statementRoutingMisses;
+        }
+    }
+
+    /**
+     * Returns the connection pool stats of all databases open in the current process.
+     * @hide
+     */
+    public static ArrayList<ConnectionPoolStats> getConnectionPoolStats() {
+        return SQLiteDatabase.getConnectionPoolStats();
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
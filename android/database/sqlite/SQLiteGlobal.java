@@ -137,6 +137,16 @@ public final class SQLiteGlobal {
         return Math.max(2, value);
     }
 
+    /**
+     * Gets the size a connection pool in WAL mode may grow to while readers are waiting for
+     * connections, at least {@link #getWALConnectionPoolSize}.
+     */
+    public static int getWALMaxConnectionPoolSize() {
+        int value = SystemProperties.getInt("debug.sqlite.wal.max_poolsize",
+                2 * getWALConnectionPoolSize());
+        return Math.max(getWALConnectionPoolSize(), value);
+    }
+
     /**
      * The default number of milliseconds that SQLite connection is allowed to be idle before it
      * is closed and removed from the pool.
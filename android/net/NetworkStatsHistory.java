@@ -20,8 +20,10 @@ import static android.net.NetworkStats.IFACE_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readFixedLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readFullLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeFixedLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLongArray;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.ParcelUtils.readLongArray;
@@ -205,6 +207,42 @@ public class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Read history written by {@link #writeColumnsToStream(DataOutputStream)},
+     * which doesn't record its bucket duration or size.
+     */
+    public static NetworkStatsHistory readColumnsFromStream(DataInputStream in,
+            long bucketDuration, int bucketCount) throws IOException {
+        if (bucketCount < 0) throw new ProtocolException("negative bucket count");
+        final NetworkStatsHistory history = new NetworkStatsHistory(bucketDuration, 0);
+        history.bucketStart = readFixedLongArray(in, bucketCount);
+        history.activeTime = readFixedLongArray(in, bucketCount);
+        history.rxBytes = readFixedLongArray(in, bucketCount);
+        history.rxPackets = readFixedLongArray(in, bucketCount);
+        history.txBytes = readFixedLongArray(in, bucketCount);
+        history.txPackets = readFixedLongArray(in, bucketCount);
+        history.operations = readFixedLongArray(in, bucketCount);
+        history.bucketCount = bucketCount;
+        history.totalBytes = total(history.rxBytes) + total(history.txBytes);
+        return history;
+    }
+
+    /**
+     * Write all buckets as fixed-width {@code long} columns, in the order
+     * bucketStart, activeTime, rxBytes, rxPackets, txBytes, txPackets and
+     * operations, so that any bucket value can be found without parsing.
+     * Missing fields are written as zeros.
+     */
+    public void writeColumnsToStream(DataOutputStream out) throws IOException {
+        writeFixedLongArray(out, bucketStart, bucketCount);
+        writeFixedLongArray(out, activeTime, bucketCount);
+        writeFixedLongArray(out, rxBytes, bucketCount);
+        writeFixedLongArray(out, rxPackets, bucketCount);
+        writeFixedLongArray(out, txBytes, bucketCount);
+        writeFixedLongArray(out, txPackets, bucketCount);
+        writeFixedLongArray(out, operations, bucketCount);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -745,6 +783,33 @@ public class NetworkStatsHistory implements Parcelable {
             return values;
         }
 
+        /**
+         * Read {@code size} values written by
+         * {@link #writeFixedLongArray(DataOutputStream, long[], int)}.
+         */
+        public static long[] readFixedLongArray(DataInputStream in, int size)
+                throws IOException {
+            final long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = in.readLong();
+            }
+            return values;
+        }
+
+        /**
+         * Write the first {@code size} values without any length prefix,
+         * writing zeros when values are missing.
+         */
+        public static void writeFixedLongArray(DataOutputStream out, long[] values, int size)
+                throws IOException {
+            if (values != null && size > values.length) {
+                throw new IllegalArgumentException("size larger than length");
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeLong(values != null ? values[i] : 0L);
+            }
+        }
+
         /**
          * Read variable-length {@link Long} using protobuf-style approach.
          */
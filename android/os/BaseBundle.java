@@ -43,6 +43,8 @@ public class BaseBundle {
     // Keep them in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
     private static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
     private static final int BUNDLE_MAGIC_NATIVE = 0x4C444E44; // 'B' 'N' 'D' 'N'
+    // Written by Java only, with the length of each value before it, so that it can be skipped.
+    private static final int BUNDLE_MAGIC_LAZY = 0x4C444E4C; // 'L' 'N' 'D' 'L'
 
     /**
      * Flag indicating that this Bundle is okay to "defuse." That is, it's okay
@@ -96,6 +98,17 @@ public class BaseBundle {
      */
     private boolean mParcelledByNative;
 
+    /**
+     * Whether {@link #mParcelledData} has the length of each value before it, allowing values
+     * to be left parcelled as {@link LazyValue}s until they are read.
+     */
+    private boolean mParcelledLazily;
+
+    /**
+     * Whether {@link #mMap} may hold {@link LazyValue}s.
+     */
+    private boolean mHasLazyValues;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -229,7 +242,8 @@ public class BaseBundle {
         synchronized (this) {
             final Parcel source = mParcelledData;
             if (source != null) {
-                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative);
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative,
+                        mParcelledLazily, /*deferValues=*/ false);
             } else {
                 if (DEBUG) {
                     Log.d(TAG, "unparcel "
@@ -237,11 +251,68 @@ public class BaseBundle {
                             + ": no parcelled data");
                 }
             }
+            if (mHasLazyValues) {
+                for (int i = mMap.size() - 1; i >= 0; i--) {
+                    final Object value = mMap.valueAt(i);
+                    if (value instanceof LazyValue) {
+                        resolveValueAt(i, (LazyValue) value);
+                    }
+                }
+                mHasLazyValues = false;
+            }
         }
     }
 
+    /**
+     * Like {@link #unparcel}, but if the underlying data were parcelled lazily, only reads
+     * their keys, leaving each value as a {@link LazyValue} until it is read with
+     * {@link #getValue}.
+     */
+    /* package */ void unparcelLazily() {
+        synchronized (this) {
+            final Parcel source = mParcelledData;
+            if (source != null) {
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative,
+                        mParcelledLazily, /*deferValues=*/ true);
+            }
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, reading it from the underlying data if
+     * they were parcelled lazily and it was not read yet.
+     */
+    /* package */ final Object getValue(String key) {
+        unparcelLazily();
+        final int i = mMap.indexOfKey(key);
+        if (i < 0) {
+            return null;
+        }
+        final Object value = mMap.valueAt(i);
+        if (value instanceof LazyValue) {
+            return resolveValueAt(i, (LazyValue) value);
+        }
+        return value;
+    }
+
+    private Object resolveValueAt(int i, LazyValue lazyValue) {
+        Object value;
+        try {
+            value = lazyValue.read(mClassLoader);
+        } catch (BadParcelableException e) {
+            if (sShouldDefuse) {
+                Log.w(TAG, "Failed to parse Bundle value, but defusing quietly", e);
+                value = null;
+            } else {
+                throw e;
+            }
+        }
+        mMap.setValueAt(i, value);
+        return value;
+    }
+
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel,
-            boolean parcelledByNative) {
+            boolean parcelledByNative, boolean parcelledLazily, boolean deferValues) {
         if (LOG_DEFUSABLE && sShouldDefuse && (mFlags & FLAG_DEFUSABLE) == 0) {
             Slog.wtf(TAG, "Attempting to unparcel a Bundle while in transit; this may "
                     + "clobber all data inside!", new Throwable());
@@ -259,6 +330,7 @@ public class BaseBundle {
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledLazily = false;
             return;
         }
 
@@ -277,8 +349,12 @@ public class BaseBundle {
             map.erase();
             map.ensureCapacity(count);
         }
+        // Deferred values still point into the parcel, so it must not be recycled.
+        final boolean deferred = parcelledLazily && deferValues && count > 0;
         try {
-            if (parcelledByNative) {
+            if (parcelledLazily) {
+                parcelledData.readArrayMapLazilyInternal(map, count, mClassLoader, deferValues);
+            } else if (parcelledByNative) {
                 // If it was parcelled by native code, then the array map keys aren't sorted
                 // by their hash codes, so use the safe (slow) one.
                 parcelledData.readArrayMapSafelyInternal(map, count, mClassLoader);
@@ -296,11 +372,13 @@ public class BaseBundle {
             }
         } finally {
             mMap = map;
-            if (recycleParcel) {
+            if (recycleParcel && !deferred) {
                 recycleParcel(parcelledData);
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledLazily = false;
+            mHasLazyValues |= deferred;
         }
         if (DEBUG) {
             Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -347,7 +425,7 @@ public class BaseBundle {
      * @return the number of mappings as an int.
      */
     public int size() {
-        unparcel();
+        unparcelLazily();
         return mMap.size();
     }
 
@@ -355,7 +433,7 @@ public class BaseBundle {
      * Returns true if the mapping of this Bundle is empty, false otherwise.
      */
     public boolean isEmpty() {
-        unparcel();
+        unparcelLazily();
         return mMap.isEmpty();
     }
 
@@ -421,17 +499,22 @@ public class BaseBundle {
                 if (from.isEmptyParcel()) {
                     mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
                     mParcelledByNative = false;
+                    mParcelledLazily = false;
                 } else {
                     mParcelledData = Parcel.obtain();
                     mParcelledData.appendFrom(from.mParcelledData, 0,
                             from.mParcelledData.dataSize());
                     mParcelledData.setDataPosition(0);
                     mParcelledByNative = from.mParcelledByNative;
+                    mParcelledLazily = from.mParcelledLazily;
                 }
             } else {
                 mParcelledData = null;
                 mParcelledByNative = false;
+                mParcelledLazily = false;
             }
+            // LazyValues are shared: each read of one creates new objects, like a deep copy.
+            mHasLazyValues = from.mHasLazyValues;
 
             if (from.mMap != null) {
                 if (!deep) {
@@ -501,7 +584,7 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        unparcel();
+        unparcelLazily();
         return mMap.containsKey(key);
     }
 
@@ -513,8 +596,7 @@ public class BaseBundle {
      */
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -523,7 +605,7 @@ public class BaseBundle {
      * @param key a String key
      */
     public void remove(String key) {
-        unparcel();
+        unparcelLazily();
         mMap.remove(key);
     }
 
@@ -554,7 +636,7 @@ public class BaseBundle {
      * @return a Set of String keys
      */
     public Set<String> keySet() {
-        unparcel();
+        unparcelLazily();
         return mMap.keySet();
     }
 
@@ -566,7 +648,7 @@ public class BaseBundle {
      * @param value a boolean
      */
     public void putBoolean(@Nullable String key, boolean value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -578,7 +660,7 @@ public class BaseBundle {
      * @param value a byte
      */
     void putByte(@Nullable String key, byte value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -590,7 +672,7 @@ public class BaseBundle {
      * @param value a char
      */
     void putChar(@Nullable String key, char value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -602,7 +684,7 @@ public class BaseBundle {
      * @param value a short
      */
     void putShort(@Nullable String key, short value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -614,7 +696,7 @@ public class BaseBundle {
      * @param value an int
      */
     public void putInt(@Nullable String key, int value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -626,7 +708,7 @@ public class BaseBundle {
      * @param value a long
      */
     public void putLong(@Nullable String key, long value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -638,7 +720,7 @@ public class BaseBundle {
      * @param value a float
      */
     void putFloat(@Nullable String key, float value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -650,7 +732,7 @@ public class BaseBundle {
      * @param value a double
      */
     public void putDouble(@Nullable String key, double value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -662,7 +744,7 @@ public class BaseBundle {
      * @param value a String, or null
      */
     public void putString(@Nullable String key, @Nullable String value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -674,7 +756,7 @@ public class BaseBundle {
      * @param value a CharSequence, or null
      */
     void putCharSequence(@Nullable String key, @Nullable CharSequence value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -686,7 +768,7 @@ public class BaseBundle {
      * @param value an ArrayList<Integer> object, or null
      */
     void putIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -698,7 +780,7 @@ public class BaseBundle {
      * @param value an ArrayList<String> object, or null
      */
     void putStringArrayList(@Nullable String key, @Nullable ArrayList<String> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -710,7 +792,7 @@ public class BaseBundle {
      * @param value an ArrayList<CharSequence> object, or null
      */
     void putCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -722,7 +804,7 @@ public class BaseBundle {
      * @param value a Serializable object, or null
      */
     void putSerializable(@Nullable String key, @Nullable Serializable value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -734,7 +816,7 @@ public class BaseBundle {
      * @param value a boolean array object, or null
      */
     public void putBooleanArray(@Nullable String key, @Nullable boolean[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -746,7 +828,7 @@ public class BaseBundle {
      * @param value a byte array object, or null
      */
     void putByteArray(@Nullable String key, @Nullable byte[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -758,7 +840,7 @@ public class BaseBundle {
      * @param value a short array object, or null
      */
     void putShortArray(@Nullable String key, @Nullable short[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -770,7 +852,7 @@ public class BaseBundle {
      * @param value a char array object, or null
      */
     void putCharArray(@Nullable String key, @Nullable char[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -782,7 +864,7 @@ public class BaseBundle {
      * @param value an int array object, or null
      */
     public void putIntArray(@Nullable String key, @Nullable int[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -794,7 +876,7 @@ public class BaseBundle {
      * @param value a long array object, or null
      */
     public void putLongArray(@Nullable String key, @Nullable long[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -806,7 +888,7 @@ public class BaseBundle {
      * @param value a float array object, or null
      */
     void putFloatArray(@Nullable String key, @Nullable float[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -818,7 +900,7 @@ public class BaseBundle {
      * @param value a double array object, or null
      */
     public void putDoubleArray(@Nullable String key, @Nullable double[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -830,7 +912,7 @@ public class BaseBundle {
      * @param value a String array object, or null
      */
     public void putStringArray(@Nullable String key, @Nullable String[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -842,7 +924,7 @@ public class BaseBundle {
      * @param value a CharSequence array object, or null
      */
     void putCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -854,7 +936,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key) {
-        unparcel();
+        unparcelLazily();
         if (DEBUG) Log.d(TAG, "Getting boolean in "
                 + Integer.toHexString(System.identityHashCode(this)));
         return getBoolean(key, false);
@@ -891,8 +973,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -912,7 +993,7 @@ public class BaseBundle {
      * @return a byte value
      */
     byte getByte(String key) {
-        unparcel();
+        unparcelLazily();
         return getByte(key, (byte) 0);
     }
 
@@ -925,8 +1006,7 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -946,7 +1026,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key) {
-        unparcel();
+        unparcelLazily();
         return getChar(key, (char) 0);
     }
 
@@ -959,8 +1039,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -980,7 +1059,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key) {
-        unparcel();
+        unparcelLazily();
         return getShort(key, (short) 0);
     }
 
@@ -993,8 +1072,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1014,7 +1092,7 @@ public class BaseBundle {
      * @return an int value
      */
     public int getInt(String key) {
-        unparcel();
+        unparcelLazily();
         return getInt(key, 0);
     }
 
@@ -1027,8 +1105,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1048,7 +1125,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key) {
-        unparcel();
+        unparcelLazily();
         return getLong(key, 0L);
     }
 
@@ -1061,8 +1138,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1082,7 +1158,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key) {
-        unparcel();
+        unparcelLazily();
         return getFloat(key, 0.0f);
     }
 
@@ -1095,8 +1171,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1116,7 +1191,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key) {
-        unparcel();
+        unparcelLazily();
         return getDouble(key, 0.0);
     }
 
@@ -1129,8 +1204,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1152,8 +1226,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1188,8 +1261,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1224,8 +1296,7 @@ public class BaseBundle {
      */
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1247,8 +1318,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1270,8 +1340,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1293,8 +1362,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1316,8 +1384,7 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1339,8 +1406,7 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1362,8 +1428,7 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1385,8 +1450,7 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1408,8 +1472,7 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1431,8 +1494,7 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1454,8 +1516,7 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1477,8 +1538,7 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1500,8 +1560,7 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1523,8 +1582,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1558,7 +1616,8 @@ public class BaseBundle {
                 } else {
                     int length = mParcelledData.dataSize();
                     parcel.writeInt(length);
-                    parcel.writeInt(mParcelledByNative ? BUNDLE_MAGIC_NATIVE : BUNDLE_MAGIC);
+                    parcel.writeInt(mParcelledByNative ? BUNDLE_MAGIC_NATIVE
+                            : mParcelledLazily ? BUNDLE_MAGIC_LAZY : BUNDLE_MAGIC);
                     parcel.appendFrom(mParcelledData, 0, length);
                 }
                 return;
@@ -1571,12 +1630,13 @@ public class BaseBundle {
             parcel.writeInt(0);
             return;
         }
+        final boolean lazily = shouldParcelLazily();
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // dummy, will hold length
-        parcel.writeInt(BUNDLE_MAGIC);
+        parcel.writeInt(lazily ? BUNDLE_MAGIC_LAZY : BUNDLE_MAGIC);
 
         int startPos = parcel.dataPosition();
-        parcel.writeArrayMapInternal(map);
+        parcel.writeArrayMapInternal(map, lazily);
         int endPos = parcel.dataPosition();
 
         // Backpatch length
@@ -1586,6 +1646,15 @@ public class BaseBundle {
         parcel.setDataPosition(endPos);
     }
 
+    /**
+     * Whether {@link #writeToParcelInner} writes the length of each value before it, so that
+     * the reader can leave the values it does not need parcelled. The native
+     * PersistableBundle does not support this.
+     */
+    boolean shouldParcelLazily() {
+        return false;
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1606,13 +1675,15 @@ public class BaseBundle {
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
             mParcelledByNative = false;
+            mParcelledLazily = false;
             return;
         }
 
         final int magic = parcel.readInt();
         final boolean isJavaBundle = magic == BUNDLE_MAGIC;
         final boolean isNativeBundle = magic == BUNDLE_MAGIC_NATIVE;
-        if (!isJavaBundle && !isNativeBundle) {
+        final boolean isLazyBundle = magic == BUNDLE_MAGIC_LAZY;
+        if (!isJavaBundle && !isNativeBundle && !isLazyBundle) {
             throw new IllegalStateException("Bad magic number for Bundle: 0x"
                     + Integer.toHexString(magic));
         }
@@ -1621,7 +1692,8 @@ public class BaseBundle {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
             // unparcel right away.
             synchronized (this) {
-                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle);
+                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle,
+                        isLazyBundle, /*deferValues=*/ false);
             }
             return;
         }
@@ -1640,6 +1712,7 @@ public class BaseBundle {
 
         mParcelledData = p;
         mParcelledByNative = isNativeBundle;
+        mParcelledLazily = isLazyBundle;
     }
 
     /** {@hide} */
@@ -1686,4 +1759,65 @@ public class BaseBundle {
         }
         pw.decreaseIndent();
     }
+
+    /**
+     * A value of a Bundle parcelled lazily that was not read yet: the bytes
+     * {@link Parcel#writeValue} wrote for it, left in the Parcel the Bundle was read from.
+     * Written as is when the Bundle is parcelled again.
+     */
+    static final class LazyValue {
+        private final Parcel mSource;
+        private final int mOffset;
+        private final int mLength;
+
+        LazyValue(Parcel source, int offset, int length) {
+            mSource = source;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Reads the value, creating new objects every time.
+         *
+         * @throws BadParcelableException if the value does not take exactly its declared length.
+         */
+        Object read(ClassLoader loader) {
+            synchronized (mSource) {
+                mSource.setDataPosition(mOffset);
+                final Object value = mSource.readValue(loader);
+                final int read = mSource.dataPosition() - mOffset;
+                if (read != mLength) {
+                    throw new BadParcelableException("Lazy value read " + read
+                            + " bytes, declared " + mLength);
+                }
+                return value;
+            }
+        }
+
+        /**
+         * Whether the value may hold file descriptors. Parcels cannot tell which part of them
+         * holds a file descriptor, so this is true if any part of the source does.
+         */
+        boolean hasFileDescriptors() {
+            synchronized (mSource) {
+                return mSource.hasFileDescriptors();
+            }
+        }
+
+        /** Writes the value as {@link Parcel#writeValue} would. */
+        void writeTo(Parcel dest) {
+            synchronized (mSource) {
+                dest.appendFrom(mSource, mOffset, mLength);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "LazyValue{" + mLength + " bytes}";
+        }
+    }
 }
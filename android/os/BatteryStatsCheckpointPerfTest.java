@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BatteryStatsImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures checkpointing {@link BatteryStatsImpl} with 2000 uids, of which 20 are updated between
+ * checkpoints, as full snapshots and as deltas, and reports the bytes written per checkpoint.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BatteryStatsCheckpointPerfTest {
+    private static final int UID_COUNT = 2000;
+    private static final int UIDS_PER_CHECKPOINT = 20;
+    private static final int DELTAS_TO_REPLAY = 20;
+    private static final String[] TAGS = { "perftest.a", "perftest.b", "perftest.c" };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private BatteryStatsImpl mStats;
+    private int mNextUid;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "batterystats-perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        mStats = new BatteryStatsImpl(mDir, new Handler(Looper.getMainLooper()), null, null);
+        synchronized (mStats) {
+            for (int i = 0; i < UID_COUNT; i++) {
+                updateNextUidLocked();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeCheckpoint_snapshot() {
+        timeCheckpoint(false);
+    }
+
+    @Test
+    public void timeCheckpoint_delta() {
+        timeCheckpoint(true);
+    }
+
+    @Test
+    public void timeRead_snapshotAndDeltas() {
+        synchronized (mStats) {
+            mStats.setDeltaCheckpointsEnabledLocked(true);
+            mStats.writeSyncLocked();
+            for (int i = 0; i < DELTAS_TO_REPLAY; i++) {
+                for (int j = 0; j < UIDS_PER_CHECKPOINT; j++) {
+                    updateNextUidLocked();
+                }
+                mStats.writeAsyncLocked();
+            }
+        }
+        mStats.commitPendingDataToDisk();
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mStats) {
+                mStats.readLocked();
+            }
+        }
+    }
+
+    private void timeCheckpoint(boolean deltas) {
+        synchronized (mStats) {
+            mStats.setDeltaCheckpointsEnabledLocked(deltas);
+            // Starts the delta file, if deltas are enabled.
+            mStats.writeSyncLocked();
+        }
+
+        final long startBytes;
+        synchronized (mStats) {
+            startBytes = mStats.getCheckpointBytesWrittenLocked();
+        }
+        int checkpoints = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            synchronized (mStats) {
+                for (int i = 0; i < UIDS_PER_CHECKPOINT; i++) {
+                    updateNextUidLocked();
+                }
+            }
+            state.resumeTiming();
+
+            synchronized (mStats) {
+                mStats.writeAsyncLocked();
+            }
+            // Returns once the checkpoint is on disk, whether this thread or the background
+            // thread wrote it.
+            mStats.commitPendingDataToDisk();
+            checkpoints++;
+        }
+
+        final Bundle status = new Bundle();
+        synchronized (mStats) {
+            status.putLong("bytes_per_checkpoint",
+                    (mStats.getCheckpointBytesWrittenLocked() - startBytes)
+                            / Math.max(checkpoints, 1));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private void updateNextUidLocked() {
+        final int uid = Process.FIRST_APPLICATION_UID + mNextUid;
+        mNextUid = (mNextUid + 1) % UID_COUNT;
+        for (String tag : TAGS) {
+            mStats.noteJobStartLocked(tag, uid);
+            mStats.noteJobFinishLocked(tag, uid, 0);
+            mStats.noteSyncStartLocked(tag, uid);
+            mStats.noteSyncFinishLocked(tag, uid);
+        }
+    }
+}
@@ -29,6 +29,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.assertNull;
 
 
@@ -42,6 +44,8 @@ public class BinderCallsStatsPerfTest {
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
     private BinderCallsStats mBinderCallsStats;
+    private final ArrayList<Thread> mBackgroundCallers = new ArrayList<>();
+    private volatile boolean mStopBackgroundCallers;
 
     @Before
     public void setUp() {
@@ -50,6 +54,7 @@ public class BinderCallsStatsPerfTest {
 
     @After
     public void tearDown() {
+        stopBackgroundCallers();
     }
 
     @Test
@@ -75,4 +80,62 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    @Test
+    public void timeCallSessionSampled() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        mBinderCallsStats.setSamplingInterval(100);
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+    }
+
+    /**
+     * Measures a call while other binder threads are making calls too, which with a single
+     * lock would contend on every call.
+     */
+    @Test
+    public void timeCallSessionContended() {
+        startBackgroundCallers(3);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+    }
+
+    private void startBackgroundCallers(int count) {
+        mStopBackgroundCallers = false;
+        for (int t = 0; t < count; t++) {
+            Thread thread = new Thread(() -> {
+                Binder b = new Binder();
+                int i = 0;
+                while (!mStopBackgroundCallers) {
+                    BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+                    mBinderCallsStats.callEnded(s);
+                    i++;
+                }
+            });
+            thread.start();
+            mBackgroundCallers.add(thread);
+        }
+    }
+
+    private void stopBackgroundCallers() {
+        mStopBackgroundCallers = true;
+        for (Thread thread : mBackgroundCallers) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mBackgroundCallers.clear();
+    }
 }
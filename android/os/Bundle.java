@@ -236,6 +236,26 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         return bundle;
     }
 
+    private static volatile boolean sParcelLazily = false;
+
+    /**
+     * Set global variable indicating that Bundles parcelled in this process
+     * should write the length of each value before it, so that the process
+     * reading them only unparcels the values it actually gets, and parcels
+     * the others again as they were.  Bundles written either way can be read
+     * by any process.
+     *
+     * @hide
+     */
+    public static void setParcelLazily(boolean parcelLazily) {
+        sParcelLazily = parcelLazily;
+    }
+
+    @Override
+    boolean shouldParcelLazily() {
+        return sParcelLazily;
+    }
+
     /**
      * Clones the current Bundle. The internal map is cloned, but the keys and
      * values to which it refers are copied by reference.
@@ -326,7 +346,13 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                 // It's been unparcelled, so we need to walk the map
                 for (int i=mMap.size()-1; i>=0; i--) {
                     Object obj = mMap.valueAt(i);
-                    if (obj instanceof Parcelable) {
+                    if (obj instanceof LazyValue) {
+                        // Not read yet; ask the parcel it will be read from.
+                        if (((LazyValue) obj).hasFileDescriptors()) {
+                            fdFound = true;
+                            break;
+                        }
+                    } else if (obj instanceof Parcelable) {
                         if ((((Parcelable)obj).describeContents()
                                 & Parcelable.CONTENTS_FILE_DESCRIPTOR) != 0) {
                             fdFound = true;
@@ -498,7 +524,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Parcelable object, or null
      */
     public void putParcelable(@Nullable String key, @Nullable Parcelable value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -511,7 +537,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Size object, or null
      */
     public void putSize(@Nullable String key, @Nullable Size value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -523,7 +549,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a SizeF object, or null
      */
     public void putSizeF(@Nullable String key, @Nullable SizeF value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -536,7 +562,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value an array of Parcelable objects, or null
      */
     public void putParcelableArray(@Nullable String key, @Nullable Parcelable[] value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -551,14 +577,14 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putParcelableArrayList(@Nullable String key,
             @Nullable ArrayList<? extends Parcelable> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
     /** {@hide} */
     public void putParcelableList(String key, List<? extends Parcelable> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -573,7 +599,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putSparseParcelableArray(@Nullable String key,
             @Nullable SparseArray<? extends Parcelable> value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -695,7 +721,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Bundle object, or null
      */
     public void putBundle(@Nullable String key, @Nullable Bundle value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -714,7 +740,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value an IBinder object, or null
      */
     public void putBinder(@Nullable String key, @Nullable IBinder value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -730,7 +756,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Deprecated
     public void putIBinder(@Nullable String key, @Nullable IBinder value) {
-        unparcel();
+        unparcelLazily();
         mMap.put(key, value);
     }
 
@@ -874,8 +900,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Size getSize(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -894,8 +919,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -914,8 +938,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Bundle getBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -937,8 +960,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -960,8 +982,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -983,8 +1004,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1007,8 +1027,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1156,8 +1175,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public IBinder getBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1183,8 +1201,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+/**
+ * Checks that the lazy Bundle format rejects a value whose declared length does not match the
+ * bytes it takes, which would otherwise show a lazy and an eager reader different entries.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BundleLazyParcelTest {
+    // Keep in sync with BaseBundle.BUNDLE_MAGIC_LAZY.
+    private static final int BUNDLE_MAGIC_LAZY = 0x4C444E4C;
+
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+    }
+
+    @Test
+    public void lazilyParcelledBundle_roundTrips() {
+        final Bundle bundle = new Bundle();
+        bundle.putString("a", "x");
+        bundle.putInt("c", 3);
+        Bundle.setParcelLazily(true);
+        try {
+            mParcel.writeBundle(bundle);
+        } finally {
+            Bundle.setParcelLazily(false);
+        }
+        mParcel.setDataPosition(0);
+        final Bundle read = mParcel.readBundle();
+        assertEquals("x", read.getString("a"));
+        assertEquals(3, read.getInt("c"));
+    }
+
+    @Test
+    public void unreadValueWithFileDescriptor_reportsFileDescriptors() throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try {
+            final Bundle bundle = new Bundle();
+            bundle.putString("a", "x");
+            bundle.putParcelable("fd", pipe[0]);
+            Bundle.setParcelLazily(true);
+            try {
+                mParcel.writeBundle(bundle);
+            } finally {
+                Bundle.setParcelLazily(false);
+            }
+            mParcel.setDataPosition(0);
+            final Bundle read = mParcel.readBundle();
+            // Reads the keys, leaving the descriptor unread.
+            assertEquals("x", read.getString("a"));
+            assertTrue(read.hasFileDescriptors());
+        } finally {
+            pipe[0].close();
+            pipe[1].close();
+        }
+    }
+
+    @Test
+    public void mismatchedLength_lazyRead_throws() {
+        writeSmugglingBundle();
+        mParcel.setDataPosition(0);
+        final Bundle bundle = mParcel.readBundle();
+        try {
+            bundle.getString("a");
+            fail("Expected BadParcelableException");
+        } catch (BadParcelableException expected) {
+        }
+    }
+
+    @Test
+    public void mismatchedLength_eagerRead_throws() {
+        writeSmugglingBundle();
+        mParcel.setDataPosition(0);
+        final Bundle bundle = mParcel.readBundle();
+        try {
+            bundle.unparcel();
+            fail("Expected BadParcelableException");
+        } catch (BadParcelableException expected) {
+        }
+    }
+
+    @Test
+    public void lengthPastEnd_throws() {
+        final int lengthPos = beginBundle(1);
+        mParcel.writeString("a");
+        mParcel.writeInt(1 << 20);
+        mParcel.writeValue("x");
+        endBundle(lengthPos);
+
+        mParcel.setDataPosition(0);
+        final Bundle bundle = mParcel.readBundle();
+        try {
+            bundle.getString("a");
+            fail("Expected BadParcelableException");
+        } catch (BadParcelableException expected) {
+        }
+    }
+
+    /**
+     * Writes a lazy Bundle with the entries "a" and "c", where the declared length of "a" also
+     * covers an entry "b": skipping by the declared length finds "a" and "c", while reading the
+     * values one after the other finds "a" and "b".
+     */
+    private void writeSmugglingBundle() {
+        final int lengthPos = beginBundle(2);
+        mParcel.writeString("a");
+        final int valueLengthPos = mParcel.dataPosition();
+        mParcel.writeInt(-1);
+        final int valueStart = mParcel.dataPosition();
+        mParcel.writeValue("x");
+        writeEntry("b", "hidden");
+        backpatchLength(valueLengthPos, valueStart);
+        writeEntry("c", "visible");
+        endBundle(lengthPos);
+    }
+
+    private int beginBundle(int count) {
+        final int lengthPos = mParcel.dataPosition();
+        mParcel.writeInt(-1);
+        mParcel.writeInt(BUNDLE_MAGIC_LAZY);
+        mParcel.writeInt(count);
+        return lengthPos;
+    }
+
+    private void endBundle(int lengthPos) {
+        backpatchLength(lengthPos, lengthPos + 8);
+    }
+
+    private void writeEntry(String key, String value) {
+        mParcel.writeString(key);
+        final int lengthPos = mParcel.dataPosition();
+        mParcel.writeInt(-1);
+        mParcel.writeValue(value);
+        backpatchLength(lengthPos, lengthPos + 4);
+    }
+
+    private void backpatchLength(int lengthPos, int start) {
+        final int end = mParcel.dataPosition();
+        mParcel.setDataPosition(lengthPos);
+        mParcel.writeInt(end - start);
+        mParcel.setDataPosition(end);
+    }
+}
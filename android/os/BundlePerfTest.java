@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/**
+ * Measures reading a single value from a parcelled Bundle of 500 entries, and parcelling it
+ * again, with the Bundle written as before, which unparcels every value on first access, and
+ * written with {@link Bundle#setParcelLazily}, which only unparcels the value read.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    private static final int ENTRY_COUNT = 500;
+    private static final String KEY_READ = "key250";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mParcel;
+    private Parcel mOut;
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+        mOut = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        Bundle.setParcelLazily(false);
+        mParcel.recycle();
+        mOut.recycle();
+    }
+
+    @Test
+    public void timeReadOneValue_eager() {
+        timeReadOneValue(false, false);
+    }
+
+    @Test
+    public void timeReadOneValue_lazy() {
+        timeReadOneValue(true, false);
+    }
+
+    @Test
+    public void timeReadOneValueAndReparcel_eager() {
+        timeReadOneValue(false, true);
+    }
+
+    @Test
+    public void timeReadOneValueAndReparcel_lazy() {
+        timeReadOneValue(true, true);
+    }
+
+    private void timeReadOneValue(boolean lazily, boolean reparcel) {
+        Bundle.setParcelLazily(lazily);
+        mParcel.writeBundle(createBundle());
+        Bundle.setParcelLazily(false);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            final Bundle bundle = mParcel.readBundle();
+            assertEquals("value250", bundle.getString(KEY_READ));
+            if (reparcel) {
+                mOut.setDataPosition(0);
+                mOut.writeBundle(bundle);
+            }
+        }
+    }
+
+    /**
+     * Returns a Bundle of {@link #ENTRY_COUNT} strings, ints, arrays, Parcelables and nested
+     * Bundles, as found in the extras of an Intent or a saved instance state.
+     */
+    private static Bundle createBundle() {
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            final String key = "key" + i;
+            switch (i % 5) {
+                case 0:
+                    bundle.putString(key, "value" + i);
+                    break;
+                case 1:
+                    bundle.putInt(key, i);
+                    break;
+                case 2:
+                    bundle.putLongArray(key, new long[] { i, i * 2, i * 3, i * 4 });
+                    break;
+                case 3:
+                    bundle.putParcelable(key, new ParcelUuid(new UUID(i, i)));
+                    break;
+                case 4:
+                    final Bundle nested = new Bundle();
+                    nested.putString("name", "nested" + i);
+                    nested.putStringArray("values", new String[] { "a" + i, "b" + i });
+                    bundle.putBundle(key, nested);
+                    break;
+            }
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.KernelCpuProcReader;
+import com.android.internal.os.KernelUidCpuActiveTimeReader;
+import com.android.internal.os.KernelUidCpuClusterTimeReader;
+import com.android.internal.os.KernelUidCpuFreqTimeReader;
+import com.android.internal.os.KernelUidTimeStore;
+import com.android.internal.os.PowerProfile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Measures the per-uid kernel cpu time readers reading synthetic proc files with 5000 uids, each
+ * read finding new times for every uid, and iterating over the stored times with a cursor.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelUidCpuTimeReaderPerfTest {
+    private static final int UID_COUNT = 5000;
+    private static final int[] CLUSTER_FREQ_COUNTS = { 12, 16 };
+    private static final int[] CLUSTER_CORE_COUNTS = { 4, 4 };
+    private static final int CORE_COUNT = 8;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private int mFreqCount;
+    private int mGeneration;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "uid-cpu-perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        for (int count : CLUSTER_FREQ_COUNTS) {
+            mFreqCount += count;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeReadDelta_freqTimes() throws IOException {
+        final File file = new File(mDir, "time_in_state");
+        final KernelUidCpuFreqTimeReader reader = createFreqTimeReader(file);
+        timeReadDelta(file, mFreqCount, null, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeReadDelta_activeTimes() throws IOException {
+        final File file = new File(mDir, "concurrent_active_time");
+        final KernelCpuProcReader procReader = new KernelCpuProcReader(file.getPath());
+        procReader.setThrottleInterval(0);
+        final KernelUidCpuActiveTimeReader reader = new KernelUidCpuActiveTimeReader(procReader);
+        reader.setThrottleInterval(0);
+        timeReadDelta(file, CORE_COUNT, null, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeReadDelta_clusterTimes() throws IOException {
+        final File file = new File(mDir, "concurrent_policy_time");
+        final KernelCpuProcReader procReader = new KernelCpuProcReader(file.getPath());
+        procReader.setThrottleInterval(0);
+        final KernelUidCpuClusterTimeReader reader =
+                new KernelUidCpuClusterTimeReader(procReader);
+        reader.setThrottleInterval(0);
+        timeReadDelta(file, CORE_COUNT, CLUSTER_CORE_COUNTS, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeIterateFreqTimes_cursor() throws IOException {
+        final File file = new File(mDir, "time_in_state");
+        final KernelUidCpuFreqTimeReader reader = createFreqTimeReader(file);
+        writeProcFile(file, mFreqCount, null);
+        reader.readDelta(null);
+        final KernelUidTimeStore times = reader.getAllUidCpuFreqTimeMs();
+        assertEquals(UID_COUNT, times.size());
+
+        long total = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final KernelUidTimeStore.Cursor cursor = times.cursor();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < mFreqCount; i++) {
+                    total += cursor.getTime(i);
+                }
+            }
+        }
+        if (total < 0) {
+            throw new AssertionError();
+        }
+    }
+
+    private void timeReadDelta(File file, int valuesPerUid, int[] header, Runnable readDelta)
+            throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            writeProcFile(file, valuesPerUid, header);
+            state.resumeTiming();
+
+            readDelta.run();
+        }
+    }
+
+    private KernelUidCpuFreqTimeReader createFreqTimeReader(File file) throws IOException {
+        final KernelCpuProcReader procReader = new KernelCpuProcReader(file.getPath());
+        procReader.setThrottleInterval(0);
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader(procReader);
+        reader.setThrottleInterval(0);
+
+        // The first line of /proc/uid_time_in_state, listing the freqs of each cluster.
+        final StringBuilder freqs = new StringBuilder("uid:");
+        for (int count : CLUSTER_FREQ_COUNTS) {
+            for (int i = 1; i <= count; i++) {
+                freqs.append(' ').append(i * 100000);
+            }
+        }
+        reader.readFreqs(new BufferedReader(new StringReader(freqs.toString())),
+                new PowerProfile(InstrumentationRegistry.getTargetContext()));
+        return reader;
+    }
+
+    /**
+     * Writes a binary uid cpu time proc file, with the times of every uid higher than in the
+     * previous file written.
+     */
+    private void writeProcFile(File file, int valuesPerUid, int[] header) throws IOException {
+        final int headerSize = header != null ? header.length : 0;
+        final ByteBuffer buf = ByteBuffer.allocate(
+                (1 + headerSize + UID_COUNT * (1 + valuesPerUid)) * Integer.BYTES)
+                .order(ByteOrder.nativeOrder());
+        buf.putInt(header != null ? header.length : valuesPerUid);
+        for (int i = 0; i < headerSize; i++) {
+            buf.putInt(header[i]);
+        }
+        mGeneration++;
+        for (int uid = 0; uid < UID_COUNT; uid++) {
+            buf.putInt(Process.FIRST_APPLICATION_UID + uid);
+            for (int i = 0; i < valuesPerUid; i++) {
+                buf.putInt(mGeneration * (i + 1));
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buf.array());
+        }
+    }
+}
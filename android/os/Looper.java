@@ -88,6 +88,11 @@ public final class Looper {
      */
     private long mSlowDeliveryThresholdMs;
 
+    /**
+     * If set, told about every message dispatched, with how long it waited and how long it took.
+     */
+    private Observer mObserver;
+
     /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -175,6 +180,7 @@ public final class Looper {
             }
 
             final long traceTag = me.mTraceTag;
+            final Observer observer = me.mObserver;
             long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
             long slowDeliveryThresholdMs = me.mSlowDeliveryThresholdMs;
             if (thresholdOverride > 0) {
@@ -184,7 +190,8 @@ public final class Looper {
             final boolean logSlowDelivery = (slowDeliveryThresholdMs > 0) && (msg.when > 0);
             final boolean logSlowDispatch = (slowDispatchThresholdMs > 0);
 
-            final boolean needStartTime = logSlowDelivery || logSlowDispatch;
+            final boolean needStartTime = logSlowDelivery || logSlowDispatch
+                    || observer != null;
             final boolean needEndTime = logSlowDispatch;
 
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
@@ -192,16 +199,24 @@ public final class Looper {
             }
 
             final long dispatchStart = needStartTime ? SystemClock.uptimeMillis() : 0;
+            final long dispatchStartNanos = observer != null ? System.nanoTime() : 0;
             final long dispatchEnd;
+            final long dispatchNanos;
             try {
                 // 处理消息
                 msg.target.dispatchMessage(msg);
                 dispatchEnd = needEndTime ? SystemClock.uptimeMillis() : 0;
+                dispatchNanos = observer != null ? System.nanoTime() - dispatchStartNanos : 0;
             } finally {
                 if (traceTag != 0) {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (observer != null) {
+                observer.messageDispatched(msg,
+                        msg.when > 0 ? Math.max(dispatchStart - msg.when, 0) : 0,
+                        dispatchNanos / 1000);
+            }
             if (logSlowDelivery) {
                 if (slowDeliveryDetected) {
                     if ((dispatchStart - msg.when) <= 10) {
@@ -309,6 +324,20 @@ public final class Looper {
         mSlowDeliveryThresholdMs = slowDeliveryThresholdMs;
     }
 
+    /**
+     * Set an observer told about every message this looper dispatches, or null to stop.
+     * Must be called on the looper thread, or before it starts looping.
+     * {@hide}
+     */
+    public void setObserver(@Nullable Observer observer) {
+        mObserver = observer;
+    }
+
+    /** {@hide} */
+    public @Nullable Observer getObserver() {
+        return mObserver;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -401,4 +430,20 @@ public final class Looper {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
+
+    /**
+     * Told by a {@link Looper} about the messages it dispatches, on the looper thread.
+     * {@hide}
+     */
+    public interface Observer {
+        /**
+         * Called after a message was dispatched without throwing, before it is recycled.
+         *
+         * @param msg The message, still holding its target, callback and what.
+         * @param queueDelayMs How long after its {@link Message#getWhen() when} the dispatch
+         *         started, or 0 for messages sent to the front of the queue.
+         * @param dispatchMicros How long the dispatch took.
+         */
+        void messageDispatched(Message msg, long queueDelayMs, long dispatchMicros);
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertTrue;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.LooperStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures dispatching a batch of {@link #MESSAGE_COUNT} messages of 20 different whats on a
+ * {@link HandlerThread}, without an observer and with {@link LooperStats} observing the looper.
+ * The difference divided by {@link #MESSAGE_COUNT} is the overhead per message.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LooperObserverPerfTest {
+    private static final int MESSAGE_COUNT = 1000;
+    private static final int WHAT_COUNT = 20;
+    private static final int MSG_DONE = -1;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile CountDownLatch mDone;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("LooperObserverPerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DONE) {
+                    mDone.countDown();
+                }
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void timeDispatch_noObserver() throws Exception {
+        timeDispatch(null);
+    }
+
+    @Test
+    public void timeDispatch_looperStats() throws Exception {
+        timeDispatch(new LooperStats());
+    }
+
+    private void timeDispatch(LooperStats stats) throws Exception {
+        if (stats != null) {
+            stats.attach(mThread.getLooper());
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mDone = new CountDownLatch(1);
+            // Queue the whole batch before timing, so only dispatching is measured.
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            mHandler.post(() -> {
+                blocked.countDown();
+                awaitUninterruptibly(release);
+            });
+            blocked.await();
+            for (int i = 0; i < MESSAGE_COUNT - 1; i++) {
+                mHandler.sendEmptyMessage(i % WHAT_COUNT);
+            }
+            mHandler.sendEmptyMessage(MSG_DONE);
+            state.resumeTiming();
+
+            release.countDown();
+            assertTrue(mDone.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting.
+            }
+        }
+    }
+}
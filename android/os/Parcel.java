@@ -17,11 +17,14 @@
 package android.os;
 
 import android.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.ExceptionUtils;
 import android.util.Log;
+import android.util.MathUtils;
 import android.util.Size;
 import android.util.SizeF;
 import android.util.SparseArray;
@@ -46,6 +49,7 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -209,6 +213,26 @@ public final class Parcel {
 
     private ArrayMap<Class, Object> mClassCookies;
 
+    /**
+     * Byte arrays and blobs of at least this many bytes are written to a {@link SharedMemory}
+     * region, passed as a file descriptor, instead of being copied into the parcel. Negative
+     * when disabled.
+     */
+    private int mSharedMemoryThreshold = -1;
+
+    /**
+     * Byte arrays and blobs the sender wrote to a {@link SharedMemory} region are only read
+     * from it if they are at most this many bytes. Negative when disabled, in which case they
+     * are skipped and read as null arrays, as native code does.
+     */
+    private int mSharedMemoryReadLimit = -1;
+
+    /**
+     * Written instead of the length of a byte array or blob held in a {@link SharedMemory}
+     * region. Never a valid length, and read as a null array by native code.
+     */
+    private static final int SHARED_MEMORY_LENGTH = -2;
+
     private RuntimeException mStack;
 
     /**
@@ -407,6 +431,8 @@ public final class Parcel {
     public final void recycle() {
         if (DEBUG_RECYCLE) mStack = null;
         freeBuffer();
+        mSharedMemoryThreshold = -1;
+        mSharedMemoryReadLimit = -1;
 
         final Parcel[] pool;
         if (mOwnsNativeParcelObject) {
@@ -525,6 +551,40 @@ public final class Parcel {
         nativeRestoreAllowFds(mNativePtr, lastValue);
     }
 
+    /**
+     * Makes {@link #writeByteArray} and {@link #writeBlob} write arrays of at least the given
+     * number of bytes to a {@link SharedMemory} region, passed as a file descriptor, instead of
+     * copying them into the parcel, as long as the parcel allows file descriptors. This keeps
+     * large payloads out of the binder buffer. They are read back as usual, or without copying
+     * with {@link #readBlobAsBuffer}, by a parcel that {@link #setSharedMemoryReadLimit allows
+     * it}. Only use this when the parcel is read by Java code.
+     *
+     * @param threshold The minimum size in bytes of the arrays to write to shared memory, or
+     *         a negative number to copy all arrays into the parcel, as by default.
+     * @hide
+     */
+    public final void setSharedMemoryThreshold(int threshold) {
+        mSharedMemoryThreshold = threshold;
+    }
+
+    /**
+     * Makes the byte array and blob readers read arrays that the sender wrote to a
+     * {@link SharedMemory} region, see {@link #setSharedMemoryThreshold}, as long as they are
+     * at most the given number of bytes. Larger arrays are rejected with a
+     * {@link BadParcelableException}.
+     * <p>
+     * The size of such an array is not bounded by the binder buffer, and is chosen by the
+     * sender, so only raise this for senders that are trusted, or to a size the reader is
+     * prepared to allocate.
+     *
+     * @param limit The maximum size in bytes of the arrays to read from shared memory, or a
+     *         negative number to skip them and read null arrays instead, as by default.
+     * @hide
+     */
+    public final void setSharedMemoryReadLimit(int limit) {
+        mSharedMemoryReadLimit = limit;
+    }
+
     /**
      * Returns the raw bytes of the parcel.
      *
@@ -632,6 +692,9 @@ public final class Parcel {
             return;
         }
         Arrays.checkOffsetAndCount(b.length, offset, len);
+        if (writeToSharedMemory(b, offset, len)) {
+            return;
+        }
         nativeWriteByteArray(mNativePtr, b, offset, len);
     }
 
@@ -661,9 +724,109 @@ public final class Parcel {
             return;
         }
         Arrays.checkOffsetAndCount(b.length, offset, len);
+        if (writeToSharedMemory(b, offset, len)) {
+            return;
+        }
         nativeWriteBlob(mNativePtr, b, offset, len);
     }
 
+    /**
+     * Writes the given bytes to a new {@link SharedMemory} region, and the region to the
+     * parcel, if {@link #setSharedMemoryThreshold} asks for it and the parcel allows file
+     * descriptors.
+     *
+     * @return Whether the bytes were written, false if they must be copied into the parcel.
+     */
+    private boolean writeToSharedMemory(byte[] b, int offset, int len) {
+        if (mSharedMemoryThreshold < 0 || len < mSharedMemoryThreshold || len == 0) {
+            return false;
+        }
+        final boolean allowFds = pushAllowFds(false);
+        restoreAllowFds(allowFds);
+        if (!allowFds) {
+            return false;
+        }
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("Parcel", len);
+            final ByteBuffer buffer = memory.mapReadWrite();
+            buffer.put(b, offset, len);
+            SharedMemory.unmap(buffer);
+            memory.setProtect(OsConstants.PROT_READ);
+            writeInt(SHARED_MEMORY_LENGTH);
+            writeInt(len);
+            memory.writeToParcel(this, 0);
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to write " + len + " bytes to shared memory, copying them", e);
+            return false;
+        } finally {
+            if (memory != null) {
+                memory.close();
+            }
+        }
+    }
+
+    /**
+     * Whether the next byte array or blob was written to shared memory. Only parcels with
+     * file descriptors are checked, to keep others from paying for it.
+     */
+    private boolean isInSharedMemory() {
+        if (!hasFileDescriptors()) {
+            return false;
+        }
+        final int pos = dataPosition();
+        final boolean inSharedMemory = readInt() == SHARED_MEMORY_LENGTH;
+        setDataPosition(pos);
+        return inSharedMemory;
+    }
+
+    /**
+     * Reads a byte array or blob written to shared memory, returning a read-only mapping of it,
+     * or null if {@link #setSharedMemoryReadLimit} does not allow reading it. The region is
+     * unmapped when the buffer is garbage collected.
+     */
+    private ByteBuffer readFromSharedMemory() {
+        readInt(); // SHARED_MEMORY_LENGTH
+        final int len = readInt();
+        final SharedMemory memory = SharedMemory.CREATOR.createFromParcel(this);
+        try {
+            if (mSharedMemoryReadLimit < 0) {
+                return null;
+            }
+            // Both the length and the region are chosen by the sender: check them before
+            // mapping or allocating anything.
+            if (len < 0 || len > mSharedMemoryReadLimit) {
+                throw new BadParcelableException("Shared memory array of " + len
+                        + " bytes exceeds the limit of " + mSharedMemoryReadLimit);
+            }
+            if (memory.getSize() < len) {
+                throw new BadParcelableException("Shared memory of " + memory.getSize()
+                        + " bytes can't hold " + len);
+            }
+            return memory.map(OsConstants.PROT_READ, 0, len);
+        } catch (ErrnoException e) {
+            throw new BadParcelableException(e);
+        } finally {
+            memory.close();
+        }
+    }
+
+    /**
+     * Reads a byte array or blob written to shared memory into a new byte array, or returns
+     * null as {@link #readFromSharedMemory} does.
+     */
+    private byte[] copyFromSharedMemory() {
+        final ByteBuffer buffer = readFromSharedMemory();
+        if (buffer == null) {
+            return null;
+        }
+        final byte[] b = new byte[buffer.remaining()];
+        buffer.get(b);
+        SharedMemory.unmap(buffer);
+        return b;
+    }
+
     /**
      * Write an integer value into the parcel at the current dataPosition(),
      * growing dataCapacity() if needed.
@@ -847,6 +1010,18 @@ public final class Parcel {
      * growing dataCapacity() if needed.  The Map keys must be String objects.
      */
     /* package */ void writeArrayMapInternal(ArrayMap<String, Object> val) {
+        writeArrayMapInternal(val, false);
+    }
+
+    /**
+     * Flatten an ArrayMap into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.  The Map keys must be String objects.
+     * If {@code lengthPrefixed}, the length of each value is written before
+     * it, for {@link #readArrayMapLazilyInternal}.  Values that are still
+     * parcelled ({@link BaseBundle.LazyValue}) are copied as is.
+     */
+    /* package */ void writeArrayMapInternal(ArrayMap<String, Object> val,
+            boolean lengthPrefixed) {
         if (val == null) {
             writeInt(-1);
             return;
@@ -864,7 +1039,24 @@ public final class Parcel {
         for (int i=0; i<N; i++) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             writeString(val.keyAt(i));
-            writeValue(val.valueAt(i));
+            final Object value = val.valueAt(i);
+            if (value instanceof BaseBundle.LazyValue) {
+                final BaseBundle.LazyValue lazyValue = (BaseBundle.LazyValue) value;
+                if (lengthPrefixed) {
+                    writeInt(lazyValue.getLength());
+                }
+                lazyValue.writeTo(this);
+            } else if (lengthPrefixed) {
+                final int lengthPos = dataPosition();
+                writeInt(-1); // dummy, will hold length
+                writeValue(value);
+                final int endPos = dataPosition();
+                setDataPosition(lengthPos);
+                writeInt(endPos - lengthPos - 4);
+                setDataPosition(endPos);
+            } else {
+                writeValue(value);
+            }
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Write #" + i + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString(val.keyAt(i) != null ? val.keyAt(i).hashCode() : 0)
@@ -2212,6 +2404,9 @@ public final class Parcel {
      * Read and return a byte[] object from the parcel.
      */
     public final byte[] createByteArray() {
+        if (isInSharedMemory()) {
+            return copyFromSharedMemory();
+        }
         return nativeCreateByteArray(mNativePtr);
     }
 
@@ -2220,6 +2415,21 @@ public final class Parcel {
      * given byte array.
      */
     public final void readByteArray(byte[] val) {
+        if (isInSharedMemory()) {
+            final ByteBuffer buffer = readFromSharedMemory();
+            final boolean valid = buffer != null && val != null
+                    && buffer.remaining() == val.length;
+            if (valid) {
+                buffer.get(val);
+            }
+            if (buffer != null) {
+                SharedMemory.unmap(buffer);
+            }
+            if (!valid) {
+                throw new RuntimeException("bad array lengths");
+            }
+            return;
+        }
         boolean valid = nativeReadByteArray(mNativePtr, val, (val != null) ? val.length : 0);
         if (!valid) {
             throw new RuntimeException("bad array lengths");
@@ -2232,9 +2442,27 @@ public final class Parcel {
      * {@SystemApi}
      */
     public final byte[] readBlob() {
+        if (isInSharedMemory()) {
+            return copyFromSharedMemory();
+        }
         return nativeReadBlob(mNativePtr);
     }
 
+    /**
+     * Read a blob of data from the parcel and return it as a read-only
+     * ByteBuffer.  If it was written to shared memory, as asked by
+     * {@link #setSharedMemoryThreshold}, and {@link #setSharedMemoryReadLimit} allows reading
+     * it, the buffer maps it without copying.
+     * {@hide}
+     */
+    public final ByteBuffer readBlobAsBuffer() {
+        if (isInSharedMemory()) {
+            return readFromSharedMemory();
+        }
+        final byte[] b = nativeReadBlob(mNativePtr);
+        return b != null ? ByteBuffer.wrap(b).asReadOnlyBuffer() : null;
+    }
+
     /**
      * Read and return a String[] object from the parcel.
      * {@hide}
@@ -3036,6 +3264,50 @@ public final class Parcel {
         outVal.validate();
     }
 
+    /**
+     * Reads an ArrayMap written by {@link #writeArrayMapInternal} with the
+     * length of each value before it.  If {@code deferValues}, the values are
+     * skipped and put in the map as {@link BaseBundle.LazyValue}s, which keep
+     * pointing into this parcel.
+     */
+    /* package */ void readArrayMapLazilyInternal(ArrayMap outVal, int N,
+        ClassLoader loader, boolean deferValues) {
+        if (DEBUG_ARRAY_MAP) {
+            RuntimeException here =  new RuntimeException("here");
+            here.fillInStackTrace();
+            Log.d(TAG, "Reading lazily " + N + " ArrayMap entries", here);
+        }
+        while (N > 0) {
+            String key = readString();
+            int length = readInt();
+            if (length < 0) {
+                throw new BadParcelableException("Bad length " + length + " for key " + key);
+            }
+            Object value;
+            int offset = dataPosition();
+            int end = MathUtils.addOrThrow(offset, length);
+            if (end > dataSize()) {
+                throw new BadParcelableException("Length " + length + " of key " + key
+                        + " is past the end of the parcel");
+            }
+            if (deferValues) {
+                value = new BaseBundle.LazyValue(this, offset, length);
+                setDataPosition(end);
+            } else {
+                value = readValue(loader);
+                // The value must take exactly the declared length, or lazy and eager readers
+                // of the same bytes would see different entries.
+                if (dataPosition() != end) {
+                    throw new BadParcelableException("Value of key " + key + " read "
+                            + (dataPosition() - offset) + " bytes, declared " + length);
+                }
+            }
+            outVal.append(key, value);
+            N--;
+        }
+        outVal.validate();
+    }
+
     /* package */ void readArrayMapSafelyInternal(ArrayMap outVal, int N,
         ClassLoader loader) {
         if (DEBUG_ARRAY_MAP) {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures writing a payload of 64 KB to 8 MB to a Parcel and reading it back: copied into the
+ * parcel as before, written to shared memory as {@link Parcel#setSharedMemoryThreshold} asks
+ * and read back as {@link Parcel#setSharedMemoryReadLimit} allows, and written to shared memory
+ * then read without copying with {@link Parcel#readBlobAsBuffer}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParcelSharedMemoryPerfTest {
+    private static final int SHARED_MEMORY_THRESHOLD = 32 * 1024;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+        mParcel = null;
+    }
+
+    @Test
+    public void timeByteArray_64K_copy() {
+        timeByteArray(64 * 1024, false);
+    }
+
+    @Test
+    public void timeByteArray_64K_sharedMemory() {
+        timeByteArray(64 * 1024, true);
+    }
+
+    @Test
+    public void timeByteArray_512K_copy() {
+        timeByteArray(512 * 1024, false);
+    }
+
+    @Test
+    public void timeByteArray_512K_sharedMemory() {
+        timeByteArray(512 * 1024, true);
+    }
+
+    @Test
+    public void timeByteArray_8M_copy() {
+        timeByteArray(8 * 1024 * 1024, false);
+    }
+
+    @Test
+    public void timeByteArray_8M_sharedMemory() {
+        timeByteArray(8 * 1024 * 1024, true);
+    }
+
+    @Test
+    public void timeBlob_64K_copy() {
+        timeBlob(64 * 1024, false);
+    }
+
+    @Test
+    public void timeBlob_64K_sharedMemoryView() {
+        timeBlob(64 * 1024, true);
+    }
+
+    @Test
+    public void timeBlob_512K_copy() {
+        timeBlob(512 * 1024, false);
+    }
+
+    @Test
+    public void timeBlob_512K_sharedMemoryView() {
+        timeBlob(512 * 1024, true);
+    }
+
+    @Test
+    public void timeBlob_8M_copy() {
+        timeBlob(8 * 1024 * 1024, false);
+    }
+
+    @Test
+    public void timeBlob_8M_sharedMemoryView() {
+        timeBlob(8 * 1024 * 1024, true);
+    }
+
+    private void timeByteArray(int size, boolean sharedMemory) {
+        final byte[] payload = createPayload(size);
+        mParcel.setSharedMemoryThreshold(sharedMemory ? SHARED_MEMORY_THRESHOLD : -1);
+        mParcel.setSharedMemoryReadLimit(sharedMemory ? size : -1);
+        byte[] read = null;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataSize(0);
+            mParcel.writeByteArray(payload);
+            mParcel.setDataPosition(0);
+            read = mParcel.createByteArray();
+        }
+        assertEquals(size, read.length);
+    }
+
+    private void timeBlob(int size, boolean sharedMemory) {
+        final byte[] payload = createPayload(size);
+        mParcel.setSharedMemoryThreshold(sharedMemory ? SHARED_MEMORY_THRESHOLD : -1);
+        mParcel.setSharedMemoryReadLimit(sharedMemory ? size : -1);
+        int read = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataSize(0);
+            mParcel.writeBlob(payload);
+            mParcel.setDataPosition(0);
+            if (sharedMemory) {
+                final ByteBuffer buffer = mParcel.readBlobAsBuffer();
+                read = buffer.remaining();
+                SharedMemory.unmap(buffer);
+            } else {
+                read = mParcel.readBlob().length;
+            }
+        }
+        assertEquals(size, read);
+    }
+
+    private static byte[] createPayload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+}
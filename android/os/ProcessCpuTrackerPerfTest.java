@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.ProcStatReader;
+import com.android.internal.os.ProcessCpuTracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Performance tests for {@link ProcessCpuTracker}, sampling a fake procfs with 600 processes of
+ * 4 threads each, so that the numbers don't depend on what runs on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProcessCpuTrackerPerfTest {
+    private static final int PROCESS_COUNT = 600;
+    private static final int THREADS_PER_PROCESS = 4;
+    private static final int FIRST_PID = 1000;
+
+    private static final int[] PROCESS_STATS_FORMAT = new int[] {
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM | Process.PROC_PARENS,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG,    // 10: minor faults
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG,    // 12: major faults
+        Process.PROC_SPACE_TERM,
+        Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG,    // 14: utime
+        Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG,    // 15: stime
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mProcRoot;
+    private long mTicks;
+
+    @Before
+    public void setUp() throws IOException {
+        mProcRoot = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "fake-proc");
+        FileUtils.deleteContentsAndDir(mProcRoot);
+        mProcRoot.mkdirs();
+        FileUtils.stringToFile(new File(mProcRoot, "stat"),
+                "cpu  4705 356 584 3699176 23060 0 277 0 0 0\n"
+                + "cpu0 1393 280 347 925149 5850 0 224 0 0 0\n");
+        FileUtils.stringToFile(new File(mProcRoot, "loadavg"), "0.75 0.35 0.25 1/25 1747\n");
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            final int pid = FIRST_PID + i * (THREADS_PER_PROCESS + 1);
+            final File procDir = new File(mProcRoot, Integer.toString(pid));
+            final File taskDir = new File(procDir, "task");
+            taskDir.mkdirs();
+            FileUtils.stringToFile(new File(procDir, "cmdline"), "com.android.perftests.p" + i);
+            writeStat(new File(procDir, "stat"), pid, 0);
+            for (int t = 1; t <= THREADS_PER_PROCESS; t++) {
+                final File threadDir = new File(taskDir, Integer.toString(pid + t));
+                threadDir.mkdirs();
+                writeStat(new File(threadDir, "stat"), pid + t, 0);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mProcRoot);
+    }
+
+    @Test
+    public void timeUpdate_idle() {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(true, mProcRoot.getPath());
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            tracker.update();
+        }
+        assertEquals(PROCESS_COUNT, tracker.countStats());
+    }
+
+    @Test
+    public void timeUpdate_idle_skipIdleProcesses() {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(true, mProcRoot.getPath());
+        tracker.setSkipIdleProcesses(true);
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            tracker.update();
+        }
+        assertEquals(PROCESS_COUNT, tracker.countStats());
+    }
+
+    @Test
+    public void timeUpdate_tenPercentBusy() throws IOException {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(true, mProcRoot.getPath());
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int busy = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            for (int i = 0; i < PROCESS_COUNT / 10; i++) {
+                final int pid = FIRST_PID + busy * (THREADS_PER_PROCESS + 1);
+                writeStat(new File(new File(mProcRoot, Integer.toString(pid)), "stat"), pid,
+                        ++mTicks);
+                busy = (busy + 1) % PROCESS_COUNT;
+            }
+            state.resumeTiming();
+
+            tracker.update();
+        }
+    }
+
+    @Test
+    public void timeReadProcessStat_readProcFile() {
+        final String statFile = new File(mProcRoot, FIRST_PID + "/stat").getPath();
+        final long[] stats = new long[4];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Process.readProcFile(statFile, PROCESS_STATS_FORMAT, null, stats, null);
+        }
+    }
+
+    @Test
+    public void timeReadProcessStat_procStatReader() throws IOException {
+        final String statFile = new File(mProcRoot, FIRST_PID + "/stat").getPath();
+        final ProcStatReader reader = new ProcStatReader(mProcRoot.getPath());
+        final long[] stats = new long[ProcStatReader.PROCESS_STAT_COUNT];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readProcessStat(statFile, stats);
+        }
+        assertTrue(reader.readProcessStat(statFile, stats));
+        assertEquals("p" + FIRST_PID, reader.getProcessName());
+
+        // A stat file cut off before the vsize field is rejected.
+        final File truncatedFile = new File(mProcRoot, "truncated_stat");
+        FileUtils.stringToFile(truncatedFile, FIRST_PID + " (p" + FIRST_PID + ") S 1 "
+                + FIRST_PID + " 0 0 -1 4194624 1210 0 3 0 0 12 0 0 20 0 5 0 2187");
+        assertFalse(reader.readProcessStat(truncatedFile.getPath(), stats));
+    }
+
+    private static void writeStat(File file, int pid, long utime) throws IOException {
+        FileUtils.stringToFile(file, pid + " (p" + pid + ") S 1 " + pid + " 0 0 -1 4194624 "
+                + "1210 0 3 0 " + utime + " 12 0 0 20 0 5 0 2187 1538031616 12345 "
+                + "18446744073709551615 1 1 0 0 0 0 4612 1 1073775864 0 0 0 17 2 0 0 0 0 0\n");
+    }
+}
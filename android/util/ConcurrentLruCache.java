@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A variant of {@link LruCache} for caches that are accessed from many threads at once.
+ *
+ * <p>{@link LruCache} serializes every {@link LruCache#get} and {@link LruCache#put} on a
+ * single monitor. This cache instead splits its entries by key hash into independently locked
+ * segments, so that threads only contend when they access keys of the same segment.
+ *
+ * <p>Like {@link LruCache}, the cache is bounded by the sum of the {@link #sizeOf sizes} of its
+ * entries, which is shared by all segments, so a single large entry may use most of the cache.
+ * Eviction is approximately least-recently-used: each segment keeps its entries in access
+ * order, and the cache evicts whichever segment's least recently used entry was accessed
+ * earliest. Access times are only as precise as the last write to the cache, which keeps
+ * {@link #get} from writing to any state shared between segments.
+ *
+ * <p>{@link #create} and {@link #entryRemoved} behave as in {@link LruCache}, and are called
+ * without holding any lock. Unlike {@link LruCache}, synchronizing on the cache does not make
+ * multiple operations atomic.
+ *
+ * <p>This class does not allow null to be used as a key or value.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    /** Beyond this, more segments mostly cost more time to find an entry to evict. */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] mSegments;
+    private final int mSegmentMask;
+
+    /** Sum of the sizes of the entries of all segments. */
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile int mMaxSize;
+
+    /** Advanced by every write; entries are stamped with it when accessed. */
+    private final AtomicLong mClock = new AtomicLong();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param maxSize see {@link #ConcurrentLruCache(int)}.
+     * @param concurrencyLevel the expected number of threads accessing the cache at once. The
+     *     number of segments is the smallest power of two that is at least this, up to
+     *     {@value #MAX_SEGMENTS}.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize, int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        mMaxSize = maxSize;
+        int segmentCount = 1;
+        while (segmentCount < Math.min(concurrencyLevel, MAX_SEGMENTS)) {
+            segmentCount <<= 1;
+        }
+        mSegments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment<>();
+        }
+        mSegmentMask = segmentCount - 1;
+    }
+
+    /**
+     * Sets the size of the cache.
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is marked as
+     * the most recently used entry of its segment. This returns null if a
+     * value is not cached and cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        Node<V> mapNode;
+        synchronized (segment) {
+            mapNode = segment.map.get(key);
+            if (mapNode != null) {
+                mapNode.stamp = mClock.get();
+                segment.hitCount++;
+                return mapNode.value;
+            }
+            segment.missCount++;
+        }
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Node<V> createdNode = new Node<>(createdValue, safeSizeOf(key, createdValue),
+                mClock.incrementAndGet());
+        synchronized (segment) {
+            segment.createCount++;
+            mapNode = segment.map.putIfAbsent(key, createdNode);
+            if (mapNode == null) {
+                mSize.addAndGet(createdNode.size);
+            }
+        }
+
+        if (mapNode != null) {
+            entryRemoved(false, key, createdValue, mapNode.value);
+            return mapNode.value;
+        } else {
+            trimToSize(mMaxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is marked as the most
+     * recently used entry of its segment.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> node = new Node<>(value, safeSizeOf(key, value), mClock.incrementAndGet());
+        Node<V> previous;
+        synchronized (segment) {
+            segment.putCount++;
+            previous = segment.map.put(key, node);
+            mSize.addAndGet(previous != null ? node.size - previous.size : node.size);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(mMaxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Evicts entries until the size of the cache is at most {@code maxSize}.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *     to evict even 0-sized elements.
+     */
+    private void trimToSize(int maxSize) {
+        while (true) {
+            final int size = mSize.get();
+            if (size < 0) {
+                throw new IllegalStateException(getClass().getName()
+                        + ".sizeOf() is reporting inconsistent results!");
+            }
+            if (size <= maxSize) {
+                break;
+            }
+
+            final Segment<K, V> victim = findEvictionSegment();
+            if (victim == null) {
+                // Entries were removed concurrently since the size was read.
+                break;
+            }
+
+            K key;
+            Node<V> node;
+            synchronized (victim) {
+                final Iterator<Map.Entry<K, Node<V>>> it = victim.map.entrySet().iterator();
+                if (!it.hasNext()) {
+                    continue;
+                }
+                final Map.Entry<K, Node<V>> toEvict = it.next();
+                key = toEvict.getKey();
+                node = toEvict.getValue();
+                it.remove();
+                mSize.addAndGet(-node.size);
+                victim.evictionCount++;
+            }
+
+            entryRemoved(true, key, node.value, null);
+        }
+    }
+
+    /**
+     * Returns the segment whose least recently used entry was accessed earliest, or null if all
+     * segments are empty.
+     */
+    private Segment<K, V> findEvictionSegment() {
+        Segment<K, V> victim = null;
+        long victimStamp = Long.MAX_VALUE;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                final Iterator<Node<V>> it = segment.map.values().iterator();
+                if (!it.hasNext()) {
+                    continue;
+                }
+                final long stamp = it.next().stamp;
+                if (victim == null || stamp < victimStamp) {
+                    victim = segment;
+                    victimStamp = stamp;
+                }
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        Node<V> previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                mSize.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return mSize.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.hitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.missCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.createCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.putCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed as far as access times are
+     * tracked. Segments are copied one at a time, so the copy is not atomic.
+     */
+    public final Map<K, V> snapshot() {
+        final ArrayList<Map.Entry<K, Node<V>>> entries = new ArrayList<>();
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                for (Map.Entry<K, Node<V>> e : segment.map.entrySet()) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(e));
+                }
+            }
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.getValue().stamp,
+                b.getValue().stamp));
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            snapshot.put(entries.get(i).getKey(), entries.get(i).getValue().value);
+        }
+        return snapshot;
+    }
+
+    @Override public final String toString() {
+        int hitCount = hitCount();
+        int missCount = missCount();
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,segments=%d,hits=%d,misses=%d,"
+                + "hitRate=%d%%]", mMaxSize, mSegments.length, hitCount, missCount, hitPercent);
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        // Spread the hash so that keys with poor low bits still use all segments.
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return mSegments[h & mSegmentMask];
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final int size;
+        /** Value of the cache clock when this entry was last accessed, guarded by its segment. */
+        long stamp;
+
+        Node(V value, int size, long stamp) {
+            this.value = value;
+            this.size = size;
+            this.stamp = stamp;
+        }
+    }
+
+    /** A part of the cache, locked by synchronizing on it. */
+    private static final class Segment<K, V> {
+        @GuardedBy("this")
+        final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(0, 0.75f, true);
+
+        @GuardedBy("this")
+        int putCount;
+        @GuardedBy("this")
+        int createCount;
+        @GuardedBy("this")
+        int evictionCount;
+        @GuardedBy("this")
+        int hitCount;
+        @GuardedBy("this")
+        int missCount;
+    }
+}
@@ -59,4 +59,25 @@ class ContainerHelpers {
         }
         return ~lo;  // value not present
     }
+
+    // Spreads keys such as consecutive uids or pids over the slots of a hash table whose length
+    // is a power of two, as used by IntIntHashMap and the like.
+    static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int hash(long key) {
+        return hash((int) (key ^ (key >>> 32)));
+    }
+
+    // Returns the length of a hash table for the given number of mappings: a power of two, at
+    // least twice that number, so that probe sequences stay short.
+    static int hashTableLength(int size) {
+        int length = 8;
+        while (length < size * 2) {
+            length <<= 1;
+        }
+        return length;
+    }
 }
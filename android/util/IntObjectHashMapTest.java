@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntObjectHashMapTest {
+    @Test
+    public void collidingKeys() {
+        final int[] keys = collidingKeys(6);
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>(8);
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], String.valueOf(i));
+        }
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(String.valueOf(i), map.get(keys[i]));
+        }
+        // Replacing a value in the middle of the probe chain does not add a mapping.
+        map.put(keys[3], "30");
+        assertEquals(keys.length, map.size());
+        assertEquals("30", map.get(keys[3]));
+    }
+
+    @Test
+    public void deleteInMiddleOfProbeChain() {
+        final int[] keys = collidingKeys(6);
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>(8);
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], String.valueOf(i));
+        }
+        map.delete(keys[2]);
+        assertEquals(keys.length - 1, map.size());
+        assertTrue(map.indexOfKey(keys[2]) < 0);
+        assertNull(map.get(keys[2]));
+        // The keys after the deleted one in the chain were moved back and are still found.
+        for (int i = 0; i < keys.length; i++) {
+            if (i != 2) {
+                assertEquals(String.valueOf(i), map.get(keys[i]));
+            }
+        }
+        // The freed slot is reused.
+        map.put(keys[2], "20");
+        assertEquals(keys.length, map.size());
+        assertEquals("20", map.get(keys[2]));
+    }
+
+    @Test
+    public void removeAtWhileIteratingByIndex() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put((i), String.valueOf(i));
+        }
+        // removeAt() moves the last mapping to the index, so iterate backwards.
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.keyAt(i) % 2 == 0) {
+                map.removeAt(i);
+            }
+        }
+        assertEquals(50, map.size());
+        for (int i = 0; i < 100; i++) {
+            if (i % 2 == 0) {
+                assertTrue(map.indexOfKey((i)) < 0);
+            } else {
+                assertEquals(String.valueOf(i), map.get((i)));
+            }
+        }
+    }
+
+    @Test
+    public void growsAcrossRehash() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>(0);
+        for (int i = 0; i < 1000; i++) {
+            map.put((i), String.valueOf(i));
+            assertEquals(i + 1, map.size());
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), map.get((i)));
+        }
+        assertTrue(map.indexOfKey((1000)) < 0);
+    }
+
+    @Test
+    public void indexOfKeyAfterDeletes() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        final Map<Integer, String> expected = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Keys from a small range, so that deletes hit existing mappings.
+            final int key = random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                map.delete(key);
+                expected.remove(key);
+            } else {
+                map.put(key, String.valueOf(i));
+                expected.put(key, String.valueOf(i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int k = 0; k < 300; k++) {
+            final int key = (k);
+            final int index = map.indexOfKey(key);
+            if (expected.containsKey(key)) {
+                assertTrue(index >= 0);
+                assertEquals(key, map.keyAt(index));
+                assertEquals(expected.get(key), map.valueAt(index));
+            } else {
+                assertTrue(index < 0);
+            }
+        }
+    }
+
+    /**
+     * Returns keys whose home slot is the same in a table of the length a map created for 8
+     * mappings uses, so that they form a single probe chain.
+     */
+    private static int[] collidingKeys(int count) {
+        final int mask = ContainerHelpers.hashTableLength(8) - 1;
+        final int[] keys = new int[count];
+        final int home = ContainerHelpers.hash(0) & mask;
+        int found = 0;
+        for (int key = 0; found < count; key++) {
+            if ((ContainerHelpers.hash(key) & mask) == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import libcore.util.EmptyArray;
+
+import java.util.Arrays;
+
+/**
+ * LongLongHashMaps map longs to longs, like {@link LongSparseLongArray}, but find keys by hashing
+ * instead of binary search.  Lookups take constant time, and adding or removing a mapping does
+ * not move the others, however many there are, so that they suit containers holding thousands
+ * of items, such as those keyed by uid or pid, where a LongSparseLongArray gets slow.  Like
+ * LongSparseLongArray, they avoid auto-boxing keys and values and need no extra entry object for
+ * each mapping.
+ *
+ * <p>The mappings are kept in arrays with no gaps, and a separate open-addressing table using
+ * linear probing holds the index of the mapping of each key.</p>
+ *
+ * <p>It is possible to iterate over the items in this container without allocating, using
+ * {@link #keyAt(int)} and {@link #valueAt(int)} with indices from <code>0</code> to
+ * <code>size()-1</code>.  Unlike with LongSparseLongArray, the keys are not in any particular
+ * order, and removing a mapping moves the last one to its index.</p>
+ *
+ * @hide
+ */
+public class LongLongHashMap implements Cloneable {
+    // Slots hold the index + 1 of the mapping whose key was hashed there, or 0 if empty.
+    private int[] mTable;
+    private long[] mKeys;
+    private long[] mValues;
+    private int mSize;
+
+    /**
+     * Creates a new LongLongHashMap containing no mappings.
+     */
+    public LongLongHashMap() {
+        this(10);
+    }
+
+    /**
+     * Creates a new LongLongHashMap containing no mappings that will not
+     * require any additional memory allocation to store the specified
+     * number of mappings.  If you supply an initial capacity of 0, the
+     * map will be initialized with a light-weight representation
+     * not requiring any additional array allocations.
+     */
+    public LongLongHashMap(int initialCapacity) {
+        if (initialCapacity == 0) {
+            mTable = EmptyArray.INT;
+            mKeys = EmptyArray.LONG;
+            mValues = EmptyArray.LONG;
+        } else {
+            mTable = new int[ContainerHelpers.hashTableLength(initialCapacity)];
+            mKeys = ArrayUtils.newUnpaddedLongArray(initialCapacity);
+            mValues = new long[mKeys.length];
+        }
+        mSize = 0;
+    }
+
+    @Override
+    public LongLongHashMap clone() {
+        LongLongHashMap clone = null;
+        try {
+            clone = (LongLongHashMap) super.clone();
+            clone.mTable = mTable.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or <code>0</code>
+     * if no such mapping has been made.
+     */
+    public long get(long key) {
+        return get(key, 0L);
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or the specified value
+     * if no such mapping has been made.
+     */
+    public long get(long key, long valueIfKeyNotFound) {
+        final int i = indexOfKey(key);
+
+        if (i < 0) {
+            return valueIfKeyNotFound;
+        } else {
+            return mValues[i];
+        }
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(long key) {
+        if (mSize == 0) {
+            return;
+        }
+        final int slot = findSlot(key);
+
+        if (slot >= 0) {
+            removeAt(mTable[slot] - 1, slot);
+        }
+    }
+
+    /**
+     * Removes the mapping at the given index, moving the last mapping to that index.
+     */
+    public void removeAt(int index) {
+        removeAt(index, findSlot(mKeys[index]));
+    }
+
+    private void removeAt(int index, int slot) {
+        clearSlot(slot);
+        final int last = mSize - 1;
+        if (index != last) {
+            mTable[findSlot(mKeys[last])] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mSize = last;
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(long key, long value) {
+        int slot = mSize > 0 ? findSlot(key) : -1;
+
+        if (slot >= 0) {
+            mValues[mTable[slot] - 1] = value;
+        } else {
+            if (mTable.length < (mSize + 1) * 2) {
+                rehash(ContainerHelpers.hashTableLength(mSize + 1));
+                slot = findSlot(key);
+            } else if (mSize == 0) {
+                slot = findSlot(key);
+            }
+
+            mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+            mValues = GrowingArrayUtils.append(mValues, mSize, value);
+            mSize++;
+            mTable[~slot] = mSize;
+        }
+    }
+
+    /**
+     * Returns the number of key-value mappings that this LongLongHashMap
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * LongLongHashMap stores.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * LongLongHashMap stores.
+     */
+    public long valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, sets a new
+     * value for the <code>index</code>th key-value mapping that this
+     * LongLongHashMap stores.
+     */
+    public void setValueAt(int index, long value) {
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(long key) {
+        if (mSize == 0) {
+            return -1;
+        }
+        final int slot = findSlot(key);
+        return slot >= 0 ? mTable[slot] - 1 : -1;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     */
+    public int indexOfValue(long value) {
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this LongLongHashMap.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Returns the slot of the table holding the index of the given key, or, if there is none,
+     * the complement of the empty slot where it would go.  The table must not be empty.
+     */
+    private int findSlot(long key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int slot = ContainerHelpers.hash(key) & mask;
+        while (true) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return ~slot;
+            }
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Empties the given slot, moving back the entries that follow it in the same probe
+     * sequence so that none of them is left after an empty slot.
+     */
+    private void clearSlot(int slot) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            final int home = ContainerHelpers.hash(mKeys[table[next] - 1]) & mask;
+            // The entry can fill the hole if the hole is between its home slot and its slot.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private void rehash(int length) {
+        final int[] table = new int[length];
+        final int mask = length - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = ContainerHelpers.hash(mKeys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            long key = keyAt(i);
+            buffer.append(key);
+            buffer.append('=');
+            long value = valueAt(i);
+            buffer.append(value);
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.apk;
+
+import static org.junit.Assume.assumeNotNull;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares serial and parallel chunk digesting when verifying the integrity of large APKs signed
+ * with APK Signature Scheme v2 and v3.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ApkSignatureVerifierPerfTest {
+    private static final String[] APK_DIRS = {
+            "/system/app", "/system/priv-app", "/product/app", "/product/priv-app"
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @After
+    public void tearDown() {
+        ApkSigningBlockUtils.setParallelDigestEnabled(true);
+    }
+
+    @Test
+    public void timeVerifyV2_serial() throws Exception {
+        verifyV2(false);
+    }
+
+    @Test
+    public void timeVerifyV2_parallel() throws Exception {
+        verifyV2(true);
+    }
+
+    @Test
+    public void timeVerifyV3_serial() throws Exception {
+        verifyV3(false);
+    }
+
+    @Test
+    public void timeVerifyV3_parallel() throws Exception {
+        verifyV3(true);
+    }
+
+    private void verifyV2(boolean parallel) throws Exception {
+        final String apk = findLargestApk(false);
+        assumeNotNull(apk);
+        ApkSigningBlockUtils.setParallelDigestEnabled(parallel);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            ApkSignatureSchemeV2Verifier.verify(apk);
+        }
+    }
+
+    private void verifyV3(boolean parallel) throws Exception {
+        final String apk = findLargestApk(true);
+        assumeNotNull(apk);
+        ApkSigningBlockUtils.setParallelDigestEnabled(parallel);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            ApkSignatureSchemeV3Verifier.verify(apk);
+        }
+    }
+
+    /**
+     * Returns the largest preinstalled APK signed with the requested scheme, or {@code null} if
+     * none could be found. Large APKs are the ones for which parallel digesting kicks in.
+     */
+    private static String findLargestApk(boolean v3) throws IOException {
+        String largest = null;
+        long largestSize = 0;
+        for (String dir : APK_DIRS) {
+            File[] packageDirs = new File(dir).listFiles();
+            if (packageDirs == null) {
+                continue;
+            }
+            for (File packageDir : packageDirs) {
+                File[] files = packageDir.isDirectory()
+                        ? packageDir.listFiles() : new File[] {packageDir};
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (!file.getName().endsWith(".apk") || file.length() <= largestSize) {
+                        continue;
+                    }
+                    String path = file.getAbsolutePath();
+                    boolean signed = v3
+                            ? ApkSignatureSchemeV3Verifier.hasSignature(path)
+                            : ApkSignatureSchemeV2Verifier.hasSignature(path);
+                    if (signed) {
+                        largest = path;
+                        largestSize = file.length();
+                    }
+                }
+            }
+        }
+        return largest;
+    }
+}
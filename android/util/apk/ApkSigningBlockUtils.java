@@ -31,8 +31,16 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.PSSParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class for an APK Signature Scheme using the APK Signing Block.
@@ -216,80 +224,155 @@ final class ApkSigningBlockUtils {
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
         }
 
-        byte[] chunkContentPrefix = new byte[5];
-        chunkContentPrefix[0] = (byte) 0xa5;
-        int chunkIndex = 0;
-        MessageDigest[] mds = new MessageDigest[digestAlgorithms.length];
+        if (sParallelDigestEnabled && totalChunkCount >= PARALLEL_DIGEST_MIN_CHUNK_COUNT
+                && MAX_DIGEST_THREADS > 1) {
+            computeChunkDigestsInParallel(digestAlgorithms, contents, digestsOfChunks,
+                    totalChunkCount);
+        } else {
+            computeChunkDigestsSerially(digestAlgorithms, contents, digestsOfChunks);
+        }
+
+        byte[][] result = new byte[digestAlgorithms.length][];
         for (int i = 0; i < digestAlgorithms.length; i++) {
-            String jcaAlgorithmName =
-                    getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithms[i]);
+            int digestAlgorithm = digestAlgorithms[i];
+            byte[] input = digestsOfChunks[i];
+            String jcaAlgorithmName = getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithm);
+            MessageDigest md;
             try {
-                mds[i] = MessageDigest.getInstance(jcaAlgorithmName);
+                md = MessageDigest.getInstance(jcaAlgorithmName);
             } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
             }
+            byte[] output = md.digest(input);
+            result[i] = output;
         }
-        // TODO: Compute digests of chunks in parallel when beneficial. This requires some research
-        // into how to parallelize (if at all) based on the capabilities of the hardware on which
-        // this code is running and based on the size of input.
-        DataDigester digester = new MultipleDigestDataDigester(mds);
+        return result;
+    }
+
+    /**
+     * Computes the digest of every chunk of {@code contents} on the calling thread, writing each
+     * chunk digest into its slot of {@code digestsOfChunks}.
+     */
+    private static void computeChunkDigestsSerially(
+            int[] digestAlgorithms,
+            DataSource[] contents,
+            byte[][] digestsOfChunks) throws DigestException {
+        ChunkDigester chunkDigester = new ChunkDigester(digestAlgorithms, digestsOfChunks);
+        int chunkIndex = 0;
         int dataSourceIndex = 0;
         for (DataSource input : contents) {
             long inputOffset = 0;
             long inputRemaining = input.size();
             while (inputRemaining > 0) {
                 int chunkSize = (int) Math.min(inputRemaining, CHUNK_SIZE_BYTES);
-                setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
-                for (int i = 0; i < mds.length; i++) {
-                    mds[i].update(chunkContentPrefix);
-                }
-                try {
-                    input.feedIntoDataDigester(digester, inputOffset, chunkSize);
-                } catch (IOException e) {
-                    throw new DigestException(
-                            "Failed to digest chunk #" + chunkIndex + " of section #"
-                                    + dataSourceIndex,
-                            e);
-                }
-                for (int i = 0; i < digestAlgorithms.length; i++) {
-                    int digestAlgorithm = digestAlgorithms[i];
-                    byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
-                    int expectedDigestSizeBytes =
-                            getContentDigestAlgorithmOutputSizeBytes(digestAlgorithm);
-                    MessageDigest md = mds[i];
-                    int actualDigestSizeBytes =
-                            md.digest(
-                                    concatenationOfChunkCountAndChunkDigests,
-                                    5 + chunkIndex * expectedDigestSizeBytes,
-                                    expectedDigestSizeBytes);
-                    if (actualDigestSizeBytes != expectedDigestSizeBytes) {
-                        throw new RuntimeException(
-                                "Unexpected output size of " + md.getAlgorithm() + " digest: "
-                                        + actualDigestSizeBytes);
-                    }
-                }
+                chunkDigester.digestChunk(input, dataSourceIndex, inputOffset, chunkSize,
+                        chunkIndex);
                 inputOffset += chunkSize;
                 inputRemaining -= chunkSize;
                 chunkIndex++;
             }
             dataSourceIndex++;
         }
+    }
 
-        byte[][] result = new byte[digestAlgorithms.length][];
-        for (int i = 0; i < digestAlgorithms.length; i++) {
-            int digestAlgorithm = digestAlgorithms[i];
-            byte[] input = digestsOfChunks[i];
-            String jcaAlgorithmName = getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithm);
-            MessageDigest md;
+    /**
+     * Computes the digest of every chunk of {@code contents} using the shared digest worker pool.
+     *
+     * <p>Chunks are handed out to workers through a shared counter so that a slow chunk (e.g. one
+     * whose pages are not yet in the page cache) does not hold up the others. Each chunk digest is
+     * written at the offset determined by its global chunk index, so the result is identical to
+     * {@link #computeChunkDigestsSerially} regardless of the order in which chunks complete.
+     */
+    private static void computeChunkDigestsInParallel(
+            int[] digestAlgorithms,
+            final DataSource[] contents,
+            final byte[][] digestsOfChunks,
+            final int totalChunkCount) throws DigestException {
+        // Flatten the chunk layout so that workers can map a chunk index to its data source and
+        // offset without walking the data sources.
+        final int[] chunkDataSourceIndex = new int[totalChunkCount];
+        final long[] chunkOffset = new long[totalChunkCount];
+        final int[] chunkSize = new int[totalChunkCount];
+        int chunkIndex = 0;
+        for (int dataSourceIndex = 0; dataSourceIndex < contents.length; dataSourceIndex++) {
+            long inputOffset = 0;
+            long inputRemaining = contents[dataSourceIndex].size();
+            while (inputRemaining > 0) {
+                int size = (int) Math.min(inputRemaining, CHUNK_SIZE_BYTES);
+                chunkDataSourceIndex[chunkIndex] = dataSourceIndex;
+                chunkOffset[chunkIndex] = inputOffset;
+                chunkSize[chunkIndex] = size;
+                inputOffset += size;
+                inputRemaining -= size;
+                chunkIndex++;
+            }
+        }
+
+        final AtomicInteger nextChunkIndex = new AtomicInteger();
+        int workerCount = Math.min(MAX_DIGEST_THREADS,
+                totalChunkCount / PARALLEL_DIGEST_MIN_CHUNKS_PER_THREAD);
+        List<Future<Void>> workers = new ArrayList<>(workerCount);
+        ThreadPoolExecutor executor = getDigestExecutor();
+        for (int i = 0; i < workerCount; i++) {
+            final ChunkDigester chunkDigester =
+                    new ChunkDigester(digestAlgorithms, digestsOfChunks);
+            workers.add(executor.submit(() -> {
+                int index;
+                while ((index = nextChunkIndex.getAndIncrement()) < totalChunkCount) {
+                    int dataSourceIndex = chunkDataSourceIndex[index];
+                    chunkDigester.digestChunk(contents[dataSourceIndex], dataSourceIndex,
+                            chunkOffset[index], chunkSize[index], index);
+                }
+                return null;
+            }));
+        }
+
+        DigestException failure = null;
+        for (Future<Void> worker : workers) {
             try {
-                md = MessageDigest.getInstance(jcaAlgorithmName);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
+                worker.get();
+            } catch (InterruptedException e) {
+                // Stop handing out chunks to the remaining workers and give up.
+                nextChunkIndex.set(totalChunkCount);
+                Thread.currentThread().interrupt();
+                throw new DigestException("Interrupted while computing digests of chunks", e);
+            } catch (ExecutionException e) {
+                nextChunkIndex.set(totalChunkCount);
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (failure == null) {
+                    failure = (cause instanceof DigestException)
+                            ? (DigestException) cause
+                            : new DigestException("Failed to digest chunks", cause);
+                }
             }
-            byte[] output = md.digest(input);
-            result[i] = output;
         }
-        return result;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getDigestExecutor() {
+        if (sDigestExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sDigestExecutor = new ThreadPoolExecutor(MAX_DIGEST_THREADS, MAX_DIGEST_THREADS,
+                    DIGEST_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "apk-digest-" + threadCount.incrementAndGet()));
+            // Verification is bursty (installs, boot scans); don't keep idle threads around.
+            sDigestExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sDigestExecutor;
+    }
+
+    /**
+     * Enables or disables computing chunk digests of large APKs in parallel. Intended for
+     * benchmarking and testing; parallel digesting is enabled by default.
+     */
+    static void setParallelDigestEnabled(boolean enabled) {
+        sParallelDigestEnabled = enabled;
     }
 
     /**
@@ -408,6 +491,28 @@ final class ApkSigningBlockUtils {
 
     private static final int CHUNK_SIZE_BYTES = 1024 * 1024;
 
+    /**
+     * Minimum number of 1 MB chunks for which chunk digests are computed in parallel. Below this
+     * the cost of handing chunks to worker threads outweighs the gain.
+     */
+    private static final int PARALLEL_DIGEST_MIN_CHUNK_COUNT = 32;
+
+    /** Minimum number of chunks each digest worker thread should get to process. */
+    private static final int PARALLEL_DIGEST_MIN_CHUNKS_PER_THREAD = 8;
+
+    /**
+     * Upper bound on the number of threads computing chunk digests. Chunk digesting is bound by
+     * both CPU and memory bandwidth, so more threads than this do not help in practice.
+     */
+    private static final int MAX_DIGEST_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final long DIGEST_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    private static volatile boolean sParallelDigestEnabled = true;
+
+    private static ThreadPoolExecutor sDigestExecutor;
+
     static final int SIGNATURE_RSA_PSS_WITH_SHA256 = 0x0101;
     static final int SIGNATURE_RSA_PSS_WITH_SHA512 = 0x0102;
     static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
@@ -778,6 +883,69 @@ final class ApkSigningBlockUtils {
         }
     }
 
+    /**
+     * Computes digests of individual chunks and stores them into the per-algorithm concatenation
+     * of chunk digests. Not thread-safe: each thread digesting chunks needs its own instance, but
+     * instances may share {@code digestsOfChunks} as long as they digest distinct chunks.
+     */
+    private static class ChunkDigester {
+        private final int[] mDigestAlgorithms;
+        private final byte[][] mDigestsOfChunks;
+        private final MessageDigest[] mMds;
+        private final DataDigester mDigester;
+        private final byte[] mChunkContentPrefix = new byte[5];
+
+        ChunkDigester(int[] digestAlgorithms, byte[][] digestsOfChunks) {
+            mDigestAlgorithms = digestAlgorithms;
+            mDigestsOfChunks = digestsOfChunks;
+            mMds = new MessageDigest[digestAlgorithms.length];
+            for (int i = 0; i < digestAlgorithms.length; i++) {
+                String jcaAlgorithmName =
+                        getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithms[i]);
+                try {
+                    mMds[i] = MessageDigest.getInstance(jcaAlgorithmName);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
+                }
+            }
+            mDigester = new MultipleDigestDataDigester(mMds);
+            mChunkContentPrefix[0] = (byte) 0xa5;
+        }
+
+        void digestChunk(DataSource input, int dataSourceIndex, long inputOffset, int chunkSize,
+                int chunkIndex) throws DigestException {
+            setUnsignedInt32LittleEndian(chunkSize, mChunkContentPrefix, 1);
+            for (int i = 0; i < mMds.length; i++) {
+                mMds[i].update(mChunkContentPrefix);
+            }
+            try {
+                input.feedIntoDataDigester(mDigester, inputOffset, chunkSize);
+            } catch (IOException e) {
+                throw new DigestException(
+                        "Failed to digest chunk #" + chunkIndex + " of section #"
+                                + dataSourceIndex,
+                        e);
+            }
+            for (int i = 0; i < mDigestAlgorithms.length; i++) {
+                int digestAlgorithm = mDigestAlgorithms[i];
+                byte[] concatenationOfChunkCountAndChunkDigests = mDigestsOfChunks[i];
+                int expectedDigestSizeBytes =
+                        getContentDigestAlgorithmOutputSizeBytes(digestAlgorithm);
+                MessageDigest md = mMds[i];
+                int actualDigestSizeBytes =
+                        md.digest(
+                                concatenationOfChunkCountAndChunkDigests,
+                                5 + chunkIndex * expectedDigestSizeBytes,
+                                expectedDigestSizeBytes);
+                if (actualDigestSizeBytes != expectedDigestSizeBytes) {
+                    throw new RuntimeException(
+                            "Unexpected output size of " + md.getAlgorithm() + " digest: "
+                                    + actualDigestSizeBytes);
+                }
+            }
+        }
+    }
+
     /**
      * {@link DataDigester} that updates multiple {@link MessageDigest}s whenever data is fed.
      */
@@ -19,6 +19,14 @@ package android.util.proto;
 import android.annotation.TestApi;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 
 /**
@@ -37,6 +45,17 @@ import java.util.ArrayList;
 public final class EncodedBuffer {
     private static final String TAG = "EncodedBuffer";
 
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Maximum number of default size chunks kept for reuse by later buffers once
+     * {@link #release released}.
+     */
+    private static final int MAX_POOLED_CHUNKS = 32;
+
+    @GuardedBy("sChunkPool")
+    private static final ArrayList<byte[]> sChunkPool = new ArrayList<byte[]>();
+
     private final ArrayList<byte[]> mBuffers = new ArrayList<byte[]>();
 
     private final int mChunkSize;
@@ -103,10 +122,10 @@ public final class EncodedBuffer {
      */
     public EncodedBuffer(int chunkSize) {
         if (chunkSize <= 0) {
-            chunkSize = 8 * 1024;
+            chunkSize = DEFAULT_CHUNK_SIZE;
         }
         mChunkSize = chunkSize;
-        mWriteBuffer = new byte[mChunkSize];
+        mWriteBuffer = obtainChunk();
         mBuffers.add(mWriteBuffer);
         mBufferCount = 1;
     }
@@ -115,6 +134,55 @@ public final class EncodedBuffer {
     // Buffer management.
     //
 
+    /**
+     * Return a chunk from the pool if there is one of the right size, or a new one.
+     * Pooled chunks are not zeroed; only data that has been written is ever read.
+     */
+    private byte[] obtainChunk() {
+        if (mChunkSize == DEFAULT_CHUNK_SIZE) {
+            synchronized (sChunkPool) {
+                final int size = sChunkPool.size();
+                if (size > 0) {
+                    return sChunkPool.remove(size - 1);
+                }
+            }
+        }
+        return new byte[mChunkSize];
+    }
+
+    /**
+     * Give the chunks back to the pool so that other buffers can reuse them.
+     * This buffer can not be used anymore afterwards.
+     */
+    public void release() {
+        if (mChunkSize == DEFAULT_CHUNK_SIZE) {
+            synchronized (sChunkPool) {
+                for (int i = 0; i < mBufferCount && sChunkPool.size() < MAX_POOLED_CHUNKS; i++) {
+                    sChunkPool.add(mBuffers.get(i));
+                }
+            }
+        }
+        mBuffers.clear();
+        mBufferCount = 0;
+        mWriteBuffer = null;
+        mReadBuffer = null;
+    }
+
+    /**
+     * Discard all the data, keeping the chunks to write new data into.
+     */
+    public void clear() {
+        mWriteBuffer = mBuffers.get(0);
+        mWriteIndex = 0;
+        mWriteBufIndex = 0;
+
+        mReadBuffer = mWriteBuffer;
+        mReadBufIndex = 0;
+        mReadIndex = 0;
+        mReadLimit = -1;
+        mReadableSize = -1;
+    }
+
     /**
      * Rewind the read and write pointers, and record how much data was last written.
      */
@@ -248,7 +316,7 @@ public final class EncodedBuffer {
     private void nextWriteBuffer() {
         mWriteBufIndex++;
         if (mWriteBufIndex >= mBufferCount) {
-            mWriteBuffer = new byte[mChunkSize];
+            mWriteBuffer = obtainChunk();
             mBuffers.add(mWriteBuffer);
             mBufferCount++;
         } else {
@@ -583,6 +651,54 @@ public final class EncodedBuffer {
         return result;
     }
 
+    /**
+     * Write the first _size_ bytes of data to a stream, one chunk at a time, without
+     * copying them into a single array first.
+     */
+    public void writeTo(OutputStream stream, int size) throws IOException {
+        if (stream instanceof FileOutputStream) {
+            writeTo(((FileOutputStream) stream).getChannel(), size);
+            return;
+        }
+        int bufIndex = 0;
+        while (size > 0) {
+            final int amt = Math.min(size, mChunkSize);
+            stream.write(mBuffers.get(bufIndex), 0, amt);
+            size -= amt;
+            bufIndex++;
+        }
+    }
+
+    /**
+     * Write the first _size_ bytes of data to a channel without copying them into a
+     * single array first. Gathering channels, such as those of files, get all the
+     * chunks in as few writes as possible.
+     */
+    public void writeTo(WritableByteChannel channel, int size) throws IOException {
+        final int bufCount = (size + mChunkSize - 1) / mChunkSize;
+        final ByteBuffer[] buffers = new ByteBuffer[bufCount];
+        for (int i = 0; i < bufCount; i++) {
+            buffers[i] = ByteBuffer.wrap(mBuffers.get(i), 0,
+                    Math.min(size - (i * mChunkSize), mChunkSize));
+        }
+        if (channel instanceof GatheringByteChannel) {
+            final GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < bufCount) {
+                gathering.write(buffers, first, bufCount - first);
+                while (first < bufCount && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
     /**
      * Get the number of chunks allocated.
      */
@@ -24,6 +24,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Class to write to a protobuf stream.
@@ -35,10 +36,12 @@ import java.io.UnsupportedEncodingException;
  * The ID codes have type information embedded into them, so if you call
  * the incorrect function you will get an IllegalArgumentException.
  *
- * To retrieve the encoded protobuf stream, call getBytes().
+ * To retrieve the encoded protobuf stream, call getBytes(), or writeTo() to
+ * write it without copying it into a single array.
  *
- * TODO: Add a constructor that takes an OutputStream and write to that
- * stream as the top-level objects are finished.
+ * When constructed on top of an OutputStream, top-level objects are written to
+ * the stream as they are finished, once enough data is buffered, so that large
+ * protos are never held in memory all at once.
  *
  * @hide
  */
@@ -182,6 +185,12 @@ public final class ProtoOutputStream {
     public static final long FIELD_COUNT_REPEATED = 2L << FIELD_COUNT_SHIFT;
     public static final long FIELD_COUNT_PACKED = 5L << FIELD_COUNT_SHIFT;
 
+    /**
+     * When writing to a stream, finished top-level objects are written out once at
+     * least this much data is buffered.
+     */
+    private static final int STREAMING_FLUSH_THRESHOLD = 64 * 1024;
+
     /**
      * Our buffer.
      */
@@ -2213,6 +2222,16 @@ public final class ProtoOutputStream {
             // The object has no data.  Don't include it.
             mBuffer.rewindWriteTo(sizePos - getTagSizeFromToken(token));
         }
+
+        if (mDepth == 0 && mStream != null
+                && mBuffer.getWritePos() >= STREAMING_FLUSH_THRESHOLD) {
+            // Nothing in the buffer refers to anything before it anymore, so what
+            // has been written so far can be compacted and streamed out on its own.
+            writeCompactedToStream();
+            mBuffer.clear();
+            mCopyBegin = 0;
+            mCompacted = false;
+        }
     }
 
     /**
@@ -2450,6 +2469,30 @@ public final class ProtoOutputStream {
         return mBuffer.getBytes(mBuffer.getReadableSize());
     }
 
+    /**
+     * Finish the encoding of the data, and write the protobuf formatted data
+     * to the given file descriptor, without copying it into a single array.
+     *
+     * After this call, do not call any of the write* functions. The
+     * behavior is undefined.
+     */
+    public void writeTo(FileDescriptor fd) throws IOException {
+        writeTo(new FileOutputStream(fd).getChannel());
+    }
+
+    /**
+     * Finish the encoding of the data, and write the protobuf formatted data
+     * to the given channel, without copying it into a single array.
+     *
+     * After this call, do not call any of the write* functions. The
+     * behavior is undefined.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        compactIfNecessary();
+
+        mBuffer.writeTo(channel, mBuffer.getReadableSize());
+    }
+
     /**
      * If the buffer hasn't already had the nested object size fields compacted
      * and turned into an actual protobuf format, then do so.
@@ -2621,7 +2664,8 @@ public final class ProtoOutputStream {
      * have not had endObject called for them will not be written).  Whether this
      * writes objects that are closed if there are remaining open objects is
      * undefined (current implementation does not write it, future ones will).
-     * For now, can either call getBytes() or flush(), but not both.
+     * For now, can either call getBytes() or flush(), but not both: once flushed,
+     * the buffers are given back for other streams to reuse.
      */
     public void flush() {
         if (mStream == null) {
@@ -2636,14 +2680,25 @@ public final class ProtoOutputStream {
             // If we're compacted, we already wrote it finished.
             return;
         }
-        compactIfNecessary();
-        final byte[] data = mBuffer.getBytes(mBuffer.getReadableSize());
+        writeCompactedToStream();
         try {
-            mStream.write(data);
             mStream.flush();
         } catch (IOException ex) {
             throw new RuntimeException("Error flushing proto to stream", ex);
         }
+        mBuffer.release();
+    }
+
+    /**
+     * Compact everything written so far and write it to the output stream.
+     */
+    private void writeCompactedToStream() {
+        compactIfNecessary();
+        try {
+            mBuffer.writeTo(mStream, mBuffer.getReadableSize());
+        } catch (IOException ex) {
+            throw new RuntimeException("Error flushing proto to stream", ex);
+        }
     }
 
     /**
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.proto;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures writing a multi-megabyte proto, like a large dumpsys --proto or incident section,
+ * to a file descriptor: flattened with getBytes(), written with writeTo() and streamed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProtoOutputStreamPerfTest {
+    // About 4MB of encoded data.
+    private static final int ENTRY_COUNT = 50000;
+
+    private static final long ENTRIES = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    private static final long ENTRY_ID = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+    private static final long ENTRY_NAME = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    private static final long ENTRY_TIME = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private FileOutputStream mDevNull;
+
+    @Before
+    public void setUp() throws IOException {
+        mDevNull = new FileOutputStream("/dev/null");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDevNull.close();
+    }
+
+    @Test
+    public void timeGetBytes() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final ProtoOutputStream proto = new ProtoOutputStream();
+            writeEntries(proto);
+            mDevNull.write(proto.getBytes());
+        }
+    }
+
+    @Test
+    public void timeWriteTo() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final ProtoOutputStream proto = new ProtoOutputStream();
+            writeEntries(proto);
+            proto.writeTo(mDevNull.getFD());
+        }
+    }
+
+    @Test
+    public void timeStreaming() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final ProtoOutputStream proto = new ProtoOutputStream(mDevNull.getFD());
+            writeEntries(proto);
+            proto.flush();
+        }
+    }
+
+    private static void writeEntries(ProtoOutputStream proto) {
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            final long token = proto.start(ENTRIES);
+            proto.write(ENTRY_ID, i);
+            proto.write(ENTRY_NAME, "com.android.perftests.proto.entry.name");
+            proto.write(ENTRY_TIME, 1000000000L + i);
+            proto.end(token);
+        }
+    }
+}
@@ -38,6 +38,10 @@ import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
@@ -107,6 +111,35 @@ public class InvalidationTracker {
 
     AtomicBoolean mPendingRefresh = new AtomicBoolean(false);
 
+    // Refreshes requested less than this long after the last one started are delayed until it
+    // has elapsed, so a burst of transactions results in a single refresh.
+    private volatile long mCoalescingWindowMillis = 0;
+
+    // mClock.nanoTime() when the last refresh started, if one did.
+    private volatile long mLastRefreshNanos;
+    private volatile boolean mRefreshStarted;
+
+    /** Source of the time refreshes are coalesced by; replaced in tests. */
+    @VisibleForTesting
+    interface Clock {
+        long nanoTime();
+    }
+
+    @VisibleForTesting
+    Clock mClock = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // Used to delay refreshes, created the first time a refresh has to be delayed.
+    private static volatile ScheduledExecutorService sRefreshScheduler;
+
+    // Overrides sRefreshScheduler in tests.
+    @VisibleForTesting
+    ScheduledExecutorService mRefreshScheduler;
+
     private volatile boolean mInitialized = false;
 
     private volatile SupportSQLiteStatement mCleanupStatement;
@@ -312,6 +345,9 @@ public class InvalidationTracker {
                     return;
                 }
 
+                mLastRefreshNanos = mClock.nanoTime();
+                mRefreshStarted = true;
+
                 if (mDatabase.inTransaction()) {
                     // current thread is in a transaction. when it ends, it will invoke
                     // refreshRunnable again. mPendingRefresh is left as false on purpose
@@ -356,14 +392,16 @@ public class InvalidationTracker {
             Cursor cursor = mDatabase.query(SELECT_UPDATED_TABLES_SQL, mQueryArgs);
             //noinspection TryFinallyCanBeTryWithResources
             try {
-                while (cursor.moveToNext()) {
-                    final long version = cursor.getLong(0);
-                    final int tableId = cursor.getInt(1);
-
-                    mTableVersions[tableId] = version;
-                    hasUpdatedTable = true;
-                    // result is ordered so we can safely do this assignment
-                    mMaxVersion = version;
+                synchronized (mTableVersions) {
+                    while (cursor.moveToNext()) {
+                        final long version = cursor.getLong(0);
+                        final int tableId = cursor.getInt(1);
+
+                        mTableVersions[tableId] = version;
+                        hasUpdatedTable = true;
+                        // result is ordered so we can safely do this assignment
+                        mMaxVersion = version;
+                    }
                 }
             } finally {
                 cursor.close();
@@ -378,13 +416,108 @@ public class InvalidationTracker {
      * This method is automatically called when {@link RoomDatabase#endTransaction()} is called but
      * if you have another connection to the database or directly use {@link
      * SupportSQLiteDatabase}, you may need to call this manually.
+     * <p>
+     * If a {@link #setCoalescingWindow(long) coalescing window} is set and the last refresh
+     * started less than that long ago, the refresh is delayed until the window has elapsed.
      */
     @SuppressWarnings("WeakerAccess")
     public void refreshVersionsAsync() {
         // TODO we should consider doing this sync instead of async.
         if (mPendingRefresh.compareAndSet(false, true)) {
-            ArchTaskExecutor.getInstance().executeOnDiskIO(mRefreshRunnable);
+            final long delayMillis = mRefreshStarted
+                    ? mCoalescingWindowMillis - TimeUnit.NANOSECONDS.toMillis(
+                            mClock.nanoTime() - mLastRefreshNanos)
+                    : 0;
+            if (delayMillis > 0) {
+                getRefreshScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArchTaskExecutor.getInstance().executeOnDiskIO(mRefreshRunnable);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                ArchTaskExecutor.getInstance().executeOnDiskIO(mRefreshRunnable);
+            }
+        }
+    }
+
+    private ScheduledExecutorService getRefreshScheduler() {
+        if (mRefreshScheduler != null) {
+            return mRefreshScheduler;
+        }
+        if (sRefreshScheduler == null) {
+            synchronized (InvalidationTracker.class) {
+                if (sRefreshScheduler == null) {
+                    sRefreshScheduler = Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(@NonNull Runnable runnable) {
+                                    Thread thread = new Thread(runnable,
+                                            "room_invalidation_scheduler");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                }
+            }
+        }
+        return sRefreshScheduler;
+    }
+
+    /**
+     * Sets how long to wait after a refresh before running the next one.
+     * <p>
+     * Every write transaction refreshes the list of updated tables, re-querying the modification
+     * log and notifying the observers of the tables that changed. When transactions arrive faster
+     * than observers can re-run their queries, setting a window makes the tracker refresh at most
+     * once per window: all the tables updated within it are reported in a single
+     * {@link Observer#onInvalidated(Set)} call, at the cost of notifying up to
+     * {@code windowMillis} later. The default of 0 refreshes after every transaction.
+     *
+     * @param windowMillis The minimum time between two refreshes, in milliseconds.
+     */
+    public void setCoalescingWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis must not be negative: "
+                    + windowMillis);
+        }
+        mCoalescingWindowMillis = windowMillis;
+    }
+
+    /**
+     * Returns the coalescing window set with {@link #setCoalescingWindow(long)}, in milliseconds.
+     */
+    public long getCoalescingWindow() {
+        return mCoalescingWindowMillis;
+    }
+
+    /**
+     * Returns the version of the given tables as of the last refresh: the version of the last
+     * modification of any of them, or 0 if none has been modified since they were first observed.
+     * <p>
+     * Versions only increase, so an observer can record the version of its tables when it runs
+     * its query and skip re-running it when notified if the version has not changed since, for
+     * example because the notification was for changes it had already seen.
+     * <p>
+     * Only tables that have an {@link Observer} are tracked.
+     *
+     * @param tableNames The tables, case insensitive.
+     * @return The largest version of the given tables.
+     * @throws IllegalArgumentException If one of the tables is not part of the database.
+     */
+    public long getVersion(@NonNull String... tableNames) {
+        long version = 0;
+        synchronized (mTableVersions) {
+            for (String tableName : tableNames) {
+                Integer tableId = mTableIdLookup.get(tableName.toLowerCase(Locale.US));
+                if (tableId == null) {
+                    throw new IllegalArgumentException("There is no table with name "
+                            + tableName);
+                }
+                version = Math.max(version, mTableVersions[tableId]);
+            }
         }
+        return version;
     }
 
     /**
@@ -27,8 +27,10 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.database.Cursor;
@@ -46,6 +48,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -55,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -180,6 +184,71 @@ public class InvalidationTrackerTest {
         verify(mTaskExecutorRule.getTaskExecutor()).executeOnDiskIO(mTracker.mRefreshRunnable);
     }
 
+    @Test
+    public void refreshCoalesced() throws Exception {
+        when(mRoomDatabase.query(anyString(), any(Object[].class)))
+                .thenReturn(mock(Cursor.class));
+        final FakeClock clock = new FakeClock();
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        mTracker.mClock = clock;
+        mTracker.mRefreshScheduler = scheduler;
+        mTracker.setCoalescingWindow(200);
+
+        // The first refresh runs right away.
+        mTracker.refreshVersionsAsync();
+        verify(mTaskExecutorRule.getTaskExecutor()).executeOnDiskIO(mTracker.mRefreshRunnable);
+        drainTasks();
+
+        // Refreshes within the window are delayed until its end, as a single refresh.
+        reset(mTaskExecutorRule.getTaskExecutor());
+        clock.advanceMillis(50);
+        mTracker.refreshVersionsAsync();
+        mTracker.refreshVersionsAsync();
+        verify(mTaskExecutorRule.getTaskExecutor(), never())
+                .executeOnDiskIO(mTracker.mRefreshRunnable);
+        final ArgumentCaptor<Runnable> delayed = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(delayed.capture(), eq(150L), eq(TimeUnit.MILLISECONDS));
+
+        clock.advanceMillis(150);
+        delayed.getValue().run();
+        verify(mTaskExecutorRule.getTaskExecutor()).executeOnDiskIO(mTracker.mRefreshRunnable);
+        drainTasks();
+
+        // Once the window elapsed, the next refresh runs right away again.
+        reset(mTaskExecutorRule.getTaskExecutor());
+        clock.advanceMillis(200);
+        mTracker.refreshVersionsAsync();
+        verify(mTaskExecutorRule.getTaskExecutor()).executeOnDiskIO(mTracker.mRefreshRunnable);
+        verifyNoMoreInteractions(scheduler);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCoalescingWindow() {
+        mTracker.setCoalescingWindow(-1);
+    }
+
+    @Test
+    public void tableVersions() throws Exception {
+        assertThat(mTracker.getVersion("a", "B", "i"), is(0L));
+
+        setVersions(1, 0, 2, 1);
+        refreshSync();
+        assertThat(mTracker.getVersion("a"), is(1L));
+        assertThat(mTracker.getVersion("b"), is(2L));
+        assertThat(mTracker.getVersion("A", "b"), is(2L));
+        assertThat(mTracker.getVersion("i"), is(0L));
+
+        setVersions(3, 0);
+        refreshSync();
+        assertThat(mTracker.getVersion("a"), is(3L));
+        assertThat(mTracker.getVersion("B"), is(2L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tableVersionsBadTable() {
+        mTracker.getVersion("x");
+    }
+
     @Test
     public void observe1Table() throws Exception {
         LatchObserver observer = new LatchObserver(1, "a");
@@ -337,4 +406,17 @@ public class InvalidationTrackerTest {
             leak.add(arr);
         } while (leak.get((int) (Math.random() * leak.size())).get() != null);
     }
+
+    private static class FakeClock implements InvalidationTracker.Clock {
+        private long mNanos;
+
+        void advanceMillis(long millis) {
+            mNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
 }
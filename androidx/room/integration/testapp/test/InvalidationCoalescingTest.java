@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package androidx.room.integration.testapp.test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+import androidx.room.Room;
+import androidx.room.integration.testapp.TestDatabase;
+import androidx.room.integration.testapp.dao.UserDao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many queries {@link #OBSERVER_COUNT} observers of the User table re-run while the
+ * table is updated {@link #WRITES_PER_SECOND} times per second, with and without an
+ * {@link InvalidationTracker#setCoalescingWindow(long) invalidation coalescing window}.
+ * <p>
+ * Each observer re-runs its query when notified, unless the
+ * {@link InvalidationTracker#getVersion(String...) version} of the table is the one it last
+ * queried.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class InvalidationCoalescingTest {
+    private static final String TAG = "InvalidationCoalescing";
+
+    private static final int OBSERVER_COUNT = 50;
+    private static final int USER_COUNT = 100;
+    private static final int WRITES_PER_SECOND = 1000;
+    private static final long DURATION_MILLIS = 5000;
+    private static final long COALESCING_WINDOW_MILLIS = 100;
+
+    private TestDatabase mDb;
+    private UserDao mUserDao;
+
+    private final AtomicInteger mNotifications = new AtomicInteger();
+    private final AtomicInteger mQueries = new AtomicInteger();
+    private final AtomicInteger mSkippedQueries = new AtomicInteger();
+
+    @Before
+    public void createDb() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDb = Room.inMemoryDatabaseBuilder(context, TestDatabase.class).build();
+        mUserDao = mDb.getUserDao();
+        for (int i = 0; i < USER_COUNT; i++) {
+            mUserDao.insert(TestUtil.createUser(i));
+        }
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+    @Test
+    public void writeWithObservers_noCoalescing() throws InterruptedException {
+        writeWithObservers(0);
+    }
+
+    @Test
+    public void writeWithObservers_coalescing() throws InterruptedException {
+        writeWithObservers(COALESCING_WINDOW_MILLIS);
+
+        // Each refresh notifies every observer at most once.
+        final long maxRefreshes = DURATION_MILLIS / COALESCING_WINDOW_MILLIS + 2;
+        assertThat((long) mQueries.get(), lessThanOrEqualTo(maxRefreshes * OBSERVER_COUNT));
+    }
+
+    private void writeWithObservers(long coalescingWindowMillis) throws InterruptedException {
+        final InvalidationTracker tracker = mDb.getInvalidationTracker();
+        tracker.setCoalescingWindow(coalescingWindowMillis);
+        final List<QueryObserver> observers = new ArrayList<>();
+        for (int i = 0; i < OBSERVER_COUNT; i++) {
+            QueryObserver observer = new QueryObserver(tracker);
+            observers.add(observer);
+            tracker.addObserver(observer);
+        }
+        // Let the triggers be created before writing.
+        tracker.refreshVersionsAsync();
+        SystemClock.sleep(100);
+        mNotifications.set(0);
+        mQueries.set(0);
+        mSkippedQueries.set(0);
+
+        final long start = SystemClock.elapsedRealtime();
+        int writes = 0;
+        long now;
+        while ((now = SystemClock.elapsedRealtime()) - start < DURATION_MILLIS) {
+            final long due = (now - start) * WRITES_PER_SECOND / 1000;
+            if (writes < due) {
+                mUserDao.updateById(writes % USER_COUNT, "name" + writes);
+                writes++;
+            } else {
+                SystemClock.sleep(1);
+            }
+        }
+        final long writeMillis = SystemClock.elapsedRealtime() - start;
+        // Let the last refresh run.
+        SystemClock.sleep(coalescingWindowMillis + 500);
+
+        for (QueryObserver observer : observers) {
+            tracker.removeObserver(observer);
+        }
+
+        final Bundle status = new Bundle();
+        status.putLong("coalescing_window_ms", coalescingWindowMillis);
+        status.putLong("writes_per_second", writes * 1000L / writeMillis);
+        status.putInt("notifications", mNotifications.get());
+        status.putInt("queries", mQueries.get());
+        status.putInt("skipped_queries", mSkippedQueries.get());
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+        Log.i(TAG, "window=" + coalescingWindowMillis + "ms writes=" + writes
+                + " in " + writeMillis + "ms notifications=" + mNotifications.get()
+                + " queries=" + mQueries.get() + " skipped=" + mSkippedQueries.get());
+    }
+
+    /**
+     * Re-runs a query of the User table when notified, as a LiveData returned by a DAO would,
+     * unless it already saw the current version of the table.
+     */
+    private class QueryObserver extends InvalidationTracker.Observer {
+        private final InvalidationTracker mTracker;
+        private long mLastVersion = -1;
+
+        QueryObserver(InvalidationTracker tracker) {
+            super("User");
+            mTracker = tracker;
+        }
+
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            mNotifications.incrementAndGet();
+            final long version = mTracker.getVersion("User");
+            if (version == mLastVersion) {
+                mSkippedQueries.incrementAndGet();
+                return;
+            }
+            mLastVersion = version;
+            mUserDao.loadIds();
+            mQueries.incrementAndGet();
+        }
+    }
+}
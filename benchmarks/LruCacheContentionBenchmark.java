@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package benchmarks;
+
+import android.util.ConcurrentLruCache;
+import android.util.LruCache;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * How do LruCache and ConcurrentLruCache compare when many threads hit the cache at once?
+ *
+ * <p>Each thread performs {@code reps} operations on a shared cache, 90% gets and 10% puts over
+ * a key space twice the size of the cache, so that puts also evict. Puts are weighted, as for a
+ * cache of bitmaps.
+ */
+public class LruCacheContentionBenchmark {
+    private static final int CACHE_ENTRIES = 1024;
+    private static final int KEY_COUNT = CACHE_ENTRIES * 2;
+    private static final int MAX_WEIGHT = 16;
+
+    @Param({"1", "2", "4", "8", "16"}) int threads;
+
+    private Integer[] keys;
+    private int[][] operations;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        keys = new Integer[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = i;
+        }
+        // Precompute each thread's sequence of keys; a negative key is a put.
+        Random random = new Random(42);
+        operations = new int[threads][4096];
+        for (int[] sequence : operations) {
+            for (int i = 0; i < sequence.length; i++) {
+                int key = random.nextInt(KEY_COUNT);
+                sequence[i] = random.nextInt(10) == 0 ? -key - 1 : key;
+            }
+        }
+    }
+
+    public void timeLruCache(int reps) throws Exception {
+        final LruCache<Integer, byte[]> cache =
+                new LruCache<Integer, byte[]>(CACHE_ENTRIES * MAX_WEIGHT / 2) {
+                    @Override protected int sizeOf(Integer key, byte[] value) {
+                        return value.length;
+                    }
+                };
+        run(reps, new Cache() {
+            @Override public byte[] get(Integer key) {
+                return cache.get(key);
+            }
+            @Override public void put(Integer key, byte[] value) {
+                cache.put(key, value);
+            }
+        });
+    }
+
+    public void timeConcurrentLruCache(int reps) throws Exception {
+        final ConcurrentLruCache<Integer, byte[]> cache =
+                new ConcurrentLruCache<Integer, byte[]>(CACHE_ENTRIES * MAX_WEIGHT / 2) {
+                    @Override protected int sizeOf(Integer key, byte[] value) {
+                        return value.length;
+                    }
+                };
+        run(reps, new Cache() {
+            @Override public byte[] get(Integer key) {
+                return cache.get(key);
+            }
+            @Override public void put(Integer key, byte[] value) {
+                cache.put(key, value);
+            }
+        });
+    }
+
+    private interface Cache {
+        byte[] get(Integer key);
+        void put(Integer key, byte[] value);
+    }
+
+    private void run(final int reps, final Cache cache) throws Exception {
+        final byte[][] values = new byte[MAX_WEIGHT][];
+        for (int i = 0; i < MAX_WEIGHT; i++) {
+            values[i] = new byte[i + 1];
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int[] sequence = operations[t];
+            workers[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < reps; i++) {
+                        int op = sequence[i & (sequence.length - 1)];
+                        if (op < 0) {
+                            int key = -op - 1;
+                            cache.put(keys[key], values[key % MAX_WEIGHT]);
+                        } else {
+                            cache.get(keys[op]);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
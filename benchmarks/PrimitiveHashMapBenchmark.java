@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package benchmarks;
+
+import android.util.IntIntHashMap;
+import android.util.IntObjectHashMap;
+import android.util.LongLongHashMap;
+import android.util.LongObjectHashMap;
+import android.util.LongSparseArray;
+import android.util.LongSparseLongArray;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * How do the open-addressing primitive maps compare with the sparse arrays, and with the
+ * HashMap of {@link HashedCollectionsBenchmark}, as they grow? Keys are uid-like ints, or
+ * longs such as times, added in random order.
+ */
+public class PrimitiveHashMapBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"}) int size;
+
+    private int[] intKeys;
+    private long[] longKeys;
+    private final Object value = new Object();
+
+    private SparseIntArray sparseIntArray;
+    private IntIntHashMap intIntHashMap;
+    private SparseArray<Object> sparseArray;
+    private IntObjectHashMap<Object> intObjectHashMap;
+    private LongSparseLongArray longSparseLongArray;
+    private LongLongHashMap longLongHashMap;
+    private LongSparseArray<Object> longSparseArray;
+    private LongObjectHashMap<Object> longObjectHashMap;
+    private HashMap<Integer, Integer> hashMap;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        Random random = new Random(0);
+        intKeys = new int[size];
+        longKeys = new long[size];
+        for (int i = 0; i < size; ++i) {
+            intKeys[i] = 10000 + i;
+            longKeys[i] = 1500000000000L + i * 1000L;
+        }
+        for (int i = size - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int intKey = intKeys[i];
+            intKeys[i] = intKeys[j];
+            intKeys[j] = intKey;
+            long longKey = longKeys[i];
+            longKeys[i] = longKeys[j];
+            longKeys[j] = longKey;
+        }
+
+        sparseIntArray = new SparseIntArray();
+        intIntHashMap = new IntIntHashMap();
+        sparseArray = new SparseArray<>();
+        intObjectHashMap = new IntObjectHashMap<>();
+        longSparseLongArray = new LongSparseLongArray();
+        longLongHashMap = new LongLongHashMap();
+        longSparseArray = new LongSparseArray<>();
+        longObjectHashMap = new LongObjectHashMap<>();
+        hashMap = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            sparseIntArray.put(intKeys[i], i);
+            intIntHashMap.put(intKeys[i], i);
+            sparseArray.put(intKeys[i], value);
+            intObjectHashMap.put(intKeys[i], value);
+            longSparseLongArray.put(longKeys[i], i);
+            longLongHashMap.put(longKeys[i], i);
+            longSparseArray.put(longKeys[i], value);
+            longObjectHashMap.put(longKeys[i], value);
+            hashMap.put(intKeys[i], i);
+        }
+    }
+
+    // Filling a map with all the keys.
+
+    public void timeSparseIntArrayPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            SparseIntArray map = new SparseIntArray();
+            for (int i = 0; i < size; ++i) {
+                map.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeIntIntHashMapPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            IntIntHashMap map = new IntIntHashMap();
+            for (int i = 0; i < size; ++i) {
+                map.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeHashMapPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            HashMap<Integer, Integer> map = new HashMap<>();
+            for (int i = 0; i < size; ++i) {
+                map.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeSparseArrayPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            SparseArray<Object> map = new SparseArray<>();
+            for (int i = 0; i < size; ++i) {
+                map.put(intKeys[i], value);
+            }
+        }
+    }
+
+    public void timeIntObjectHashMapPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+            for (int i = 0; i < size; ++i) {
+                map.put(intKeys[i], value);
+            }
+        }
+    }
+
+    public void timeLongSparseLongArrayPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            LongSparseLongArray map = new LongSparseLongArray();
+            for (int i = 0; i < size; ++i) {
+                map.put(longKeys[i], i);
+            }
+        }
+    }
+
+    public void timeLongLongHashMapPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            LongLongHashMap map = new LongLongHashMap();
+            for (int i = 0; i < size; ++i) {
+                map.put(longKeys[i], i);
+            }
+        }
+    }
+
+    public void timeLongSparseArrayPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            LongSparseArray<Object> map = new LongSparseArray<>();
+            for (int i = 0; i < size; ++i) {
+                map.put(longKeys[i], value);
+            }
+        }
+    }
+
+    public void timeLongObjectHashMapPut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            LongObjectHashMap<Object> map = new LongObjectHashMap<>();
+            for (int i = 0; i < size; ++i) {
+                map.put(longKeys[i], value);
+            }
+        }
+    }
+
+    // Looking up every key.
+
+    public void timeSparseIntArrayGet(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sum += sparseIntArray.get(intKeys[i]);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeIntIntHashMapGet(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sum += intIntHashMap.get(intKeys[i]);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeHashMapGet(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sum += hashMap.get(intKeys[i]);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeSparseArrayGet(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sparseArray.get(intKeys[i]);
+            }
+        }
+    }
+
+    public void timeIntObjectHashMapGet(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                intObjectHashMap.get(intKeys[i]);
+            }
+        }
+    }
+
+    public void timeLongSparseLongArrayGet(int reps) {
+        long sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sum += longSparseLongArray.get(longKeys[i]);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeLongLongHashMapGet(int reps) {
+        long sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sum += longLongHashMap.get(longKeys[i]);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeLongSparseArrayGet(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                longSparseArray.get(longKeys[i]);
+            }
+        }
+    }
+
+    public void timeLongObjectHashMapGet(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                longObjectHashMap.get(longKeys[i]);
+            }
+        }
+    }
+
+    // Removing every key, then adding it back, as uids or pids come and go.
+
+    public void timeSparseIntArrayRemovePut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sparseIntArray.delete(intKeys[i]);
+                sparseIntArray.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeIntIntHashMapRemovePut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                intIntHashMap.delete(intKeys[i]);
+                intIntHashMap.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeSparseArrayRemovePut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                sparseArray.delete(intKeys[i]);
+                sparseArray.put(intKeys[i], value);
+            }
+        }
+    }
+
+    public void timeIntObjectHashMapRemovePut(int reps) {
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < size; ++i) {
+                intObjectHashMap.delete(intKeys[i]);
+                intObjectHashMap.put(intKeys[i], value);
+            }
+        }
+    }
+
+    // Iterating over all the mappings.
+
+    public void timeSparseIntArrayIterate(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < sparseIntArray.size(); ++i) {
+                sum += sparseIntArray.keyAt(i) + sparseIntArray.valueAt(i);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeIntIntHashMapIterate(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (int i = 0; i < intIntHashMap.size(); ++i) {
+                sum += intIntHashMap.keyAt(i) + intIntHashMap.valueAt(i);
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+
+    public void timeHashMapIterate(int reps) {
+        int sum = 0;
+        for (int r = 0; r < reps; ++r) {
+            for (HashMap.Entry<Integer, Integer> entry : hashMap.entrySet()) {
+                sum += entry.getKey() + entry.getValue();
+            }
+        }
+        if (sum == 42) System.out.println(sum);
+    }
+}
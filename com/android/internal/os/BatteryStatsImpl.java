@@ -106,6 +106,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -119,6 +120,7 @@ import java.util.Queue;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * All information we are collecting about things that can happen that impact
@@ -190,6 +192,8 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    // Delta checkpoints appended since the last snapshot written to mFile, see writeLocked().
+    private final File mDeltaFile;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -480,8 +484,11 @@ public class BatteryStatsImpl extends BatteryStats {
                 return;
             }
 
-            final SparseArray<long[]> allUidCpuFreqTimesMs =
+            final KernelUidTimeStore allUidCpuFreqTimesMs =
                     mKernelUidCpuFreqTimeReader.getAllUidCpuFreqTimeMs();
+            if (allUidCpuFreqTimesMs == null) {
+                return;
+            }
             // If the KernelSingleUidTimeReader has stale cpu times, then we shouldn't try to
             // compute deltas since it might result in mis-attributing cpu times to wrong states.
             if (mKernelSingleUidTimeReader.hasStaleData()) {
@@ -490,18 +497,18 @@ public class BatteryStatsImpl extends BatteryStats {
                 mPendingUids.clear();
                 return;
             }
-            for (int i = allUidCpuFreqTimesMs.size() - 1; i >= 0; --i) {
-                final int uid = allUidCpuFreqTimesMs.keyAt(i);
+            final KernelUidTimeStore.Cursor cursor = allUidCpuFreqTimesMs.cursor();
+            while (cursor.moveToNext()) {
+                final int uid = cursor.getUid();
                 final Uid u = getAvailableUidStatsLocked(mapUid(uid));
                 if (u == null) {
                     continue;
                 }
-                final long[] cpuTimesMs = allUidCpuFreqTimesMs.valueAt(i);
-                if (cpuTimesMs == null) {
-                    continue;
-                }
+                // The reader keeps the array as its last times.
+                final long[] cpuTimesMs = new long[allUidCpuFreqTimesMs.getWidth()];
+                cursor.copyTimes(cpuTimesMs);
                 final long[] deltaTimesMs = mKernelSingleUidTimeReader.computeDelta(
-                        uid, cpuTimesMs.clone());
+                        uid, cpuTimesMs);
                 if (onBattery && deltaTimesMs != null) {
                     final int procState;
                     final int idx = mPendingUids.indexOfKey(uid);
@@ -1048,6 +1055,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mDeltaFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -3710,6 +3718,10 @@ public class BatteryStatsImpl extends BatteryStats {
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
+            if (mCheckpointHistoryPos > mHistoryBufferLastPos) {
+                // The next delta checkpoint must rewrite the merged item too.
+                mCheckpointHistoryPos = mHistoryBufferLastPos;
+            }
             mHistoryBufferLastPos = -1;
             elapsedRealtimeMs = mHistoryLastWritten.time - mHistoryBaseTime;
             // If the last written history had a wakelock tag, we need to retain it.
@@ -3975,6 +3987,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
+        mCheckpointNeedsSnapshot = true;
     }
 
     @GuardedBy("this")
@@ -4743,6 +4756,7 @@ public class BatteryStatsImpl extends BatteryStats {
         Uid u = mUidStats.get(uid);
         if (u != null) {
             u.reportExcessiveCpuLocked(proc, overTime, usedTime);
+            u.mDirtySinceCheckpoint = true;
         }
     }
 
@@ -5553,6 +5567,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
                 uid.noteResetAudioLocked(elapsedRealtime);
+                uid.mDirtySinceCheckpoint = true;
             }
         }
     }
@@ -5570,6 +5585,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
                 uid.noteResetVideoLocked(elapsedRealtime);
+                uid.mDirtySinceCheckpoint = true;
             }
         }
     }
@@ -5669,6 +5685,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
                 uid.noteResetCameraLocked(elapsedRealtime);
+                uid.mDirtySinceCheckpoint = true;
             }
         }
     }
@@ -5686,6 +5703,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
                 uid.noteResetFlashlightLocked(elapsedRealtime);
+                uid.mDirtySinceCheckpoint = true;
             }
         }
     }
@@ -5771,6 +5789,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
                 uid.noteResetBluetoothScanLocked(elapsedRealtime);
+                uid.mDirtySinceCheckpoint = true;
             }
         }
     }
@@ -6719,6 +6738,12 @@ public class BatteryStatsImpl extends BatteryStats {
         int mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
         StopwatchTimer[] mProcessStateTimer;
 
+        /**
+         * Whether this uid was handed out for update since the last checkpoint, and so must be
+         * written to the next delta checkpoint.
+         */
+        boolean mDirtySinceCheckpoint;
+
         boolean mInForegroundService = false;
 
         BatchTimer mVibratorOnTimer;
@@ -10117,8 +10142,10 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mDeltaFile = new File(systemDir, "batterystats-delta.bin");
         } else {
             mFile = null;
+            mDeltaFile = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -10220,6 +10247,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mDeltaFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -10824,6 +10852,7 @@ public class BatteryStatsImpl extends BatteryStats {
         final long uptimeMillis = mClocks.uptimeMillis();
         final long elapsedRealtimeMillis = mClocks.elapsedRealtime();
         mStartCount = 0;
+        mCheckpointNeedsSnapshot = true;
         initTimes(uptimeMillis * 1000, elapsedRealtimeMillis * 1000);
         mScreenOnTimer.reset(false);
         mScreenDozeTimer.reset(false);
@@ -11206,6 +11235,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     if (scanTimeSinceMarkMs > 0) {
                         // Set the new mark so that next time we get new data since this point.
                         uid.mWifiScanTimer.setMark(elapsedRealtimeMs);
+                        uid.mDirtySinceCheckpoint = true;
 
                         long scanRxTimeSinceMarkMs = scanTimeSinceMarkMs;
                         long scanTxTimeSinceMarkMs = scanTimeSinceMarkMs;
@@ -11249,6 +11279,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     if (wifiLockTimeSinceMarkMs > 0) {
                         // Set the new mark so that next time we get new data since this point.
                         uid.mFullWifiLockTimer.setMark(elapsedRealtimeMs);
+                        uid.mDirtySinceCheckpoint = true;
 
                         final long myIdleTimeMs = (wifiLockTimeSinceMarkMs * idleTimeMs)
                                 / totalWifiLockTimeMs;
@@ -11636,6 +11667,7 @@ public class BatteryStatsImpl extends BatteryStats {
             if (scanTimeSinceMarkMs > 0) {
                 // Set the new mark so that next time we get new data since this point.
                 u.mBluetoothScanTimer.setMark(elapsedRealtimeMs);
+                u.mDirtySinceCheckpoint = true;
 
                 long scanTimeRxSinceMarkMs = scanTimeSinceMarkMs;
                 long scanTimeTxSinceMarkMs = scanTimeSinceMarkMs;
@@ -13179,6 +13211,7 @@ public class BatteryStatsImpl extends BatteryStats {
             u = new Uid(this, uid);
             mUidStats.put(uid, u);
         }
+        u.mDirtySinceCheckpoint = true;
         return u;
     }
 
@@ -13206,6 +13239,8 @@ public class BatteryStatsImpl extends BatteryStats {
         final int firstIndex = mUidStats.indexOfKey(firstUidForUser);
         final int lastIndex = mUidStats.indexOfKey(lastUidForUser);
         mUidStats.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        mCheckpointRemovedUids.add(firstUidForUser);
+        mCheckpointRemovedUids.add(lastUidForUser);
     }
 
     /**
@@ -13214,6 +13249,8 @@ public class BatteryStatsImpl extends BatteryStats {
     public void removeUidStatsLocked(int uid) {
         mUidStats.remove(uid);
         mPendingRemovedUids.add(new UidToRemove(uid, mClocks.elapsedRealtime()));
+        mCheckpointRemovedUids.add(uid);
+        mCheckpointRemovedUids.add(uid);
     }
 
     /**
@@ -13277,6 +13314,10 @@ public class BatteryStatsImpl extends BatteryStats {
                 = "external_stats_collection_rate_limit_ms";
         public static final String KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS
                 = "battery_level_collection_delay_ms";
+        public static final String KEY_DELTA_CHECKPOINTS
+                = "delta_checkpoints";
+        public static final String KEY_MAX_DELTA_CHECKPOINTS
+                = "max_delta_checkpoints";
 
         private static final boolean DEFAULT_TRACK_CPU_TIMES_BY_PROC_STATE = true;
         private static final boolean DEFAULT_TRACK_CPU_ACTIVE_CLUSTER_TIME = true;
@@ -13285,6 +13326,8 @@ public class BatteryStatsImpl extends BatteryStats {
         private static final long DEFAULT_UID_REMOVE_DELAY_MS = 5L * 60L * 1000L;
         private static final long DEFAULT_EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS = 600_000;
         private static final long DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS = 300_000;
+        private static final boolean DEFAULT_DELTA_CHECKPOINTS = false;
+        private static final int DEFAULT_MAX_DELTA_CHECKPOINTS = 30;
 
         public boolean TRACK_CPU_TIMES_BY_PROC_STATE = DEFAULT_TRACK_CPU_TIMES_BY_PROC_STATE;
         public boolean TRACK_CPU_ACTIVE_CLUSTER_TIME = DEFAULT_TRACK_CPU_ACTIVE_CLUSTER_TIME;
@@ -13295,6 +13338,8 @@ public class BatteryStatsImpl extends BatteryStats {
                 = DEFAULT_EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS;
         public long BATTERY_LEVEL_COLLECTION_DELAY_MS
                 = DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS;
+        public boolean DELTA_CHECKPOINTS = DEFAULT_DELTA_CHECKPOINTS;
+        public int MAX_DELTA_CHECKPOINTS = DEFAULT_MAX_DELTA_CHECKPOINTS;
 
         private ContentResolver mResolver;
         private final KeyValueListParser mParser = new KeyValueListParser(',');
@@ -13346,6 +13391,10 @@ public class BatteryStatsImpl extends BatteryStats {
                 BATTERY_LEVEL_COLLECTION_DELAY_MS = mParser.getLong(
                         KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS,
                         DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS);
+                DELTA_CHECKPOINTS = mParser.getBoolean(
+                        KEY_DELTA_CHECKPOINTS, DEFAULT_DELTA_CHECKPOINTS);
+                MAX_DELTA_CHECKPOINTS = mParser.getInt(
+                        KEY_MAX_DELTA_CHECKPOINTS, DEFAULT_MAX_DELTA_CHECKPOINTS);
             }
         }
 
@@ -13399,6 +13448,10 @@ public class BatteryStatsImpl extends BatteryStats {
             pw.println(EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS);
             pw.print(KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS); pw.print("=");
             pw.println(BATTERY_LEVEL_COLLECTION_DELAY_MS);
+            pw.print(KEY_DELTA_CHECKPOINTS); pw.print("=");
+            pw.println(DELTA_CHECKPOINTS);
+            pw.print(KEY_MAX_DELTA_CHECKPOINTS); pw.print("=");
+            pw.println(MAX_DELTA_CHECKPOINTS);
         }
     }
 
@@ -13450,9 +13503,48 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    // The delta file starts with a header identifying the snapshot it follows, then each delta
+    // checkpoint is appended as a record of (payload length, payload CRC32, payload).
+    private static final int DELTA_FILE_MAGIC = 0xBA75DE17;
+    private static final int DELTA_FILE_HEADER_SIZE = 16;
+    private static final int DELTA_RECORD_HEADER_SIZE = 8;
+
+    final Object mPendingWriteLock = new Object();
+    @GuardedBy("mPendingWriteLock")
     Parcel mPendingWrite = null;
+    // Whether the delta file is to be started over once mPendingWrite is committed.
+    @GuardedBy("mPendingWriteLock")
+    boolean mPendingWriteStartsDeltas;
+    // Deltas taken after mPendingWrite, or after the last committed snapshot if there is none.
+    @GuardedBy("mPendingWriteLock")
+    final ArrayList<Parcel> mPendingDeltaWrites = new ArrayList<>();
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    // Whether mDeltaFile follows the snapshot in mFile, so deltas can be appended to it. Cleared
+    // when a write fails, so that the next checkpoint is a snapshot.
+    private volatile boolean mDeltaFileValid;
+
+    // Set when the stats or the history are reset, which deltas can't express.
+    @GuardedBy("this")
+    private boolean mCheckpointNeedsSnapshot = true;
+    @GuardedBy("this")
+    private int mDeltaCheckpointsSinceSnapshot;
+    @GuardedBy("this")
+    private long mDeltaBytesSinceSnapshot;
+    @GuardedBy("this")
+    private long mLastSnapshotBytes;
+    @GuardedBy("this")
+    private long mCheckpointBytesWritten;
+    // Size of the history buffer, and index of the next history tag, at the last checkpoint; the
+    // next delta only carries the history added since.
+    @GuardedBy("this")
+    private int mCheckpointHistoryPos;
+    @GuardedBy("this")
+    private int mCheckpointHistoryTagIdx;
+    // Ranges of uids removed since the last checkpoint, as (first, last) pairs.
+    @GuardedBy("this")
+    private final IntArray mCheckpointRemovedUids = new IntArray();
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -13461,6 +13553,16 @@ public class BatteryStatsImpl extends BatteryStats {
         writeLocked(true);
     }
 
+    /**
+     * Checkpoints the stats to disk.
+     *
+     * By default every checkpoint is a full snapshot of the summary. With
+     * {@link Constants#KEY_DELTA_CHECKPOINTS}, asynchronous checkpoints instead append to the
+     * delta file the global stats, the history added since the previous checkpoint and only the
+     * uids updated since, which {@link #readLocked} replays over the last snapshot. A snapshot is
+     * still taken for synchronous writes, after {@link Constants#KEY_MAX_DELTA_CHECKPOINTS}
+     * deltas, once the deltas outgrow the snapshot, or when the stats were reset.
+     */
     void writeLocked(boolean sync) {
         if (mFile == null) {
             Slog.w("BatteryStats", "writeLocked: no file associated with this instance");
@@ -13471,14 +13573,14 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
-        mLastWriteTime = mClocks.elapsedRealtime();
-
-        if (mPendingWrite != null) {
-            mPendingWrite.recycle();
+        if (!sync && mConstants.DELTA_CHECKPOINTS && mDeltaFileValid && !mCheckpointNeedsSnapshot
+                && mDeltaCheckpointsSinceSnapshot < mConstants.MAX_DELTA_CHECKPOINTS
+                && mDeltaBytesSinceSnapshot < mLastSnapshotBytes) {
+            writeDeltaLocked();
+        } else {
+            writeSnapshotLocked();
         }
-        mPendingWrite = out;
+        mLastWriteTime = mClocks.elapsedRealtime();
 
         if (sync) {
             commitPendingDataToDisk();
@@ -13491,21 +13593,239 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
-    public void commitPendingDataToDisk() {
-        final Parcel next;
-        synchronized (this) {
-            next = mPendingWrite;
-            mPendingWrite = null;
-            if (next == null) {
-                return;
+    private void writeSnapshotLocked() {
+        Parcel out = Parcel.obtain();
+        writeSummaryToParcel(out, true);
+
+        synchronized (mPendingWriteLock) {
+            if (mPendingWrite != null) {
+                mPendingWrite.recycle();
+            }
+            mPendingWrite = out;
+            mPendingWriteStartsDeltas = mConstants.DELTA_CHECKPOINTS;
+            for (int i = mPendingDeltaWrites.size() - 1; i >= 0; i--) {
+                mPendingDeltaWrites.get(i).recycle();
+            }
+            mPendingDeltaWrites.clear();
+        }
+
+        for (int i = mUidStats.size() - 1; i >= 0; i--) {
+            mUidStats.valueAt(i).mDirtySinceCheckpoint = false;
+        }
+        mCheckpointNeedsSnapshot = false;
+        mDeltaCheckpointsSinceSnapshot = 0;
+        mDeltaBytesSinceSnapshot = DELTA_FILE_HEADER_SIZE;
+        mLastSnapshotBytes = out.dataSize();
+        mCheckpointBytesWritten += out.dataSize();
+        markCheckpointLocked();
+    }
+
+    private void writeDeltaLocked() {
+        Parcel out = Parcel.obtain();
+        writeDeltaToParcelLocked(out);
+
+        synchronized (mPendingWriteLock) {
+            mPendingDeltaWrites.add(out);
+        }
+
+        final int size = DELTA_RECORD_HEADER_SIZE + out.dataSize();
+        mDeltaCheckpointsSinceSnapshot++;
+        mDeltaBytesSinceSnapshot += size;
+        mCheckpointBytesWritten += size;
+        markCheckpointLocked();
+    }
+
+    private void markCheckpointLocked() {
+        mCheckpointHistoryPos = mHistoryBuffer.dataSize();
+        mCheckpointHistoryTagIdx = mNextHistoryTagIdx;
+        mCheckpointRemovedUids.clear();
+    }
+
+    /**
+     * Writes what changed since the last checkpoint: the history added since, the global stats,
+     * the uids removed since and the uids that may have been updated since. Uids with a running
+     * process are always included, as their timers may be running.
+     */
+    private void writeDeltaToParcelLocked(Parcel out) {
+        pullPendingStateUpdatesLocked();
+
+        long startClockTime = getStartClockTime();
+
+        final long NOW_SYS = mClocks.uptimeMillis() * 1000;
+        final long NOWREAL_SYS = mClocks.elapsedRealtime() * 1000;
+
+        out.writeLong(mHistoryBaseTime + mLastHistoryElapsedRealtime);
+        final int tagCountPos = out.dataPosition();
+        int tagCount = 0;
+        out.writeInt(0);
+        for (HashMap.Entry<HistoryTag, Integer> ent : mHistoryTagPool.entrySet()) {
+            final int idx = ent.getValue();
+            if (idx >= mCheckpointHistoryTagIdx) {
+                HistoryTag tag = ent.getKey();
+                out.writeInt(idx);
+                out.writeString(tag.string);
+                out.writeInt(tag.uid);
+                tagCount++;
+            }
+        }
+        writeIntAt(out, tagCountPos, tagCount);
+        final int historySize = mHistoryBuffer.dataSize() - mCheckpointHistoryPos;
+        out.writeInt(mCheckpointHistoryPos);
+        out.writeInt(historySize);
+        out.appendFrom(mHistoryBuffer, mCheckpointHistoryPos, historySize);
+
+        writeSummaryGlobalsToParcelLocked(out, NOW_SYS, NOWREAL_SYS, startClockTime);
+
+        out.writeIntArray(mCheckpointRemovedUids.toArray());
+
+        final int uidCountPos = out.dataPosition();
+        int uidCount = 0;
+        out.writeInt(0);
+        for (int iu = 0; iu < mUidStats.size(); iu++) {
+            Uid u = mUidStats.valueAt(iu);
+            if (u.mDirtySinceCheckpoint
+                    || u.mProcessState != ActivityManager.PROCESS_STATE_NONEXISTENT) {
+                out.writeInt(mUidStats.keyAt(iu));
+                writeUidSummaryToParcelLocked(out, u, NOW_SYS, NOWREAL_SYS);
+                u.mDirtySinceCheckpoint = false;
+                uidCount++;
+            }
+        }
+        writeIntAt(out, uidCountPos, uidCount);
+    }
+
+    private static void writeIntAt(Parcel out, int pos, int value) {
+        final int end = out.dataPosition();
+        out.setDataPosition(pos);
+        out.writeInt(value);
+        out.setDataPosition(end);
+    }
+
+    /**
+     * Applies a delta written by {@link #writeDeltaToParcelLocked} over the stats read so far.
+     */
+    private void readDeltaFromParcelLocked(Parcel in) throws ParcelFormatException {
+        final long historyBaseTime = in.readLong();
+        final int numTags = in.readInt();
+        for (int i = 0; i < numTags; i++) {
+            int idx = in.readInt();
+            String str = in.readString();
+            if (str == null) {
+                throw new ParcelFormatException("null history tag string");
+            }
+            int uid = in.readInt();
+            HistoryTag tag = new HistoryTag();
+            tag.string = str;
+            tag.uid = uid;
+            tag.poolIdx = idx;
+            mHistoryTagPool.put(tag, idx);
+            if (idx >= mNextHistoryTagIdx) {
+                mNextHistoryTagIdx = idx+1;
+            }
+            mNumHistoryTagChars += tag.string.length() + 1;
+        }
+        final int historyPos = in.readInt();
+        final int historySize = in.readInt();
+        if (historyPos < 0 || historyPos > mHistoryBuffer.dataSize() || historySize < 0
+                || historyPos + historySize >= MAX_MAX_HISTORY_BUFFER*3
+                || ((historyPos|historySize)&~3) != (historyPos|historySize)) {
+            throw new ParcelFormatException("File corrupt: bad history delta " + historyPos
+                    + "+" + historySize);
+        }
+        final int curPos = in.dataPosition();
+        mHistoryBuffer.setDataSize(historyPos);
+        mHistoryBuffer.setDataPosition(historyPos);
+        mHistoryBuffer.appendFrom(in, curPos, historySize);
+        in.setDataPosition(curPos + historySize);
+        // Same adjustment as readHistory().
+        mHistoryBaseTime = historyBaseTime;
+        if (mHistoryBaseTime > 0) {
+            mHistoryBaseTime = mHistoryBaseTime - mClocks.elapsedRealtime() + 1;
+        }
+
+        readSummaryGlobalsFromParcelLocked(in);
+
+        final int[] removedUids = in.createIntArray();
+        if (removedUids == null || (removedUids.length & 1) != 0) {
+            throw new ParcelFormatException("File corrupt: bad removed uids");
+        }
+        for (int i = 0; i < removedUids.length; i += 2) {
+            for (int iu = mUidStats.size() - 1; iu >= 0; iu--) {
+                final int uid = mUidStats.keyAt(iu);
+                if (uid >= removedUids[i] && uid <= removedUids[i + 1]) {
+                    mUidStats.removeAt(iu);
+                }
+            }
+        }
+
+        final int NU = in.readInt();
+        if (NU > 10000) {
+            throw new ParcelFormatException("File corrupt: too many uids " + NU);
+        }
+        final long uptimeUs = mClocks.uptimeMillis() * 1000;
+        final long realtimeUs = mClocks.elapsedRealtime() * 1000;
+        for (int iu = 0; iu < NU; iu++) {
+            int uid = in.readInt();
+            Uid old = mUidStats.get(uid);
+            if (old != null) {
+                // Detaches the timers of the previous state from the time bases.
+                old.reset(uptimeUs, realtimeUs);
             }
+            Uid u = new Uid(this, uid);
+            mUidStats.put(uid, u);
+            readUidSummaryFromParcelLocked(in, u);
         }
+    }
+
+    /**
+     * Returns the number of bytes written by checkpoints, snapshots and deltas, since boot.
+     */
+    @VisibleForTesting
+    public long getCheckpointBytesWrittenLocked() {
+        return mCheckpointBytesWritten;
+    }
 
+    @VisibleForTesting
+    public void setDeltaCheckpointsEnabledLocked(boolean enabled) {
+        mConstants.DELTA_CHECKPOINTS = enabled;
+    }
+
+    public void commitPendingDataToDisk() {
         mWriteLock.lock();
+        try {
+            // Taken with mWriteLock held so that checkpoints reach the disk in order.
+            final Parcel next;
+            final boolean startDeltas;
+            final Parcel[] deltas;
+            synchronized (mPendingWriteLock) {
+                next = mPendingWrite;
+                startDeltas = mPendingWriteStartsDeltas;
+                mPendingWrite = null;
+                deltas = mPendingDeltaWrites.toArray(new Parcel[mPendingDeltaWrites.size()]);
+                mPendingDeltaWrites.clear();
+            }
+            if (next != null) {
+                commitSnapshot(next, startDeltas);
+            }
+            if (deltas.length > 0) {
+                commitDeltas(deltas);
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    // Called with mWriteLock held.
+    private void commitSnapshot(Parcel next, boolean startDeltas) {
+        // Any deltas on disk follow the previous snapshot, and those not committed yet belong to
+        // this one.
+        mDeltaFileValid = false;
+        final byte[] data;
         try {
             final long startTime = SystemClock.uptimeMillis();
+            data = next.marshall();
             FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
+            stream.write(data);
             stream.flush();
             FileUtils.sync(stream);
             stream.close();
@@ -13515,10 +13835,118 @@ public class BatteryStatsImpl extends BatteryStats {
         } catch (IOException e) {
             Slog.w("BatteryStats", "Error writing battery statistics", e);
             mFile.rollback();
+            return;
         } finally {
             next.recycle();
-            mWriteLock.unlock();
         }
+
+        if (!startDeltas) {
+            // Stale deltas left by a failed delete are rejected by the header check on read.
+            mDeltaFile.delete();
+            return;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(DELTA_FILE_HEADER_SIZE);
+        header.putInt(DELTA_FILE_MAGIC);
+        header.putInt(VERSION);
+        header.putInt(data.length);
+        header.putInt(crc32(data, 0, data.length));
+        try (FileOutputStream stream = new FileOutputStream(mDeltaFile)) {
+            stream.write(header.array());
+            stream.flush();
+            FileUtils.sync(stream);
+            mDeltaFileValid = true;
+        } catch (IOException e) {
+            Slog.w("BatteryStats", "Error starting battery statistics deltas", e);
+        }
+    }
+
+    // Called with mWriteLock held.
+    private void commitDeltas(Parcel[] deltas) {
+        try {
+            // Dropped if the delta file doesn't follow the snapshot on disk; as the next
+            // checkpoint is a snapshot then, nothing is lost.
+            if (!mDeltaFileValid) {
+                return;
+            }
+            final ByteBuffer header = ByteBuffer.allocate(DELTA_RECORD_HEADER_SIZE);
+            try (FileOutputStream stream = new FileOutputStream(mDeltaFile, true)) {
+                for (Parcel delta : deltas) {
+                    final byte[] data = delta.marshall();
+                    header.clear();
+                    header.putInt(data.length);
+                    header.putInt(crc32(data, 0, data.length));
+                    stream.write(header.array());
+                    stream.write(data);
+                }
+                stream.flush();
+                FileUtils.sync(stream);
+            } catch (IOException e) {
+                Slog.w("BatteryStats", "Error writing battery statistics delta", e);
+                mDeltaFileValid = false;
+            }
+        } finally {
+            for (Parcel delta : deltas) {
+                delta.recycle();
+            }
+        }
+    }
+
+    private static int crc32(byte[] data, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Replays the deltas appended after {@code snapshot}, the contents of mFile that were just
+     * read. Returns whether deltas can still be appended to the file.
+     */
+    private boolean readDeltasLocked(byte[] snapshot) throws IOException {
+        if (!mDeltaFile.exists()) {
+            return false;
+        }
+        final byte[] raw;
+        try (FileInputStream stream = new FileInputStream(mDeltaFile)) {
+            raw = BatteryStatsHelper.readFully(stream);
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(raw);
+        if (raw.length < DELTA_FILE_HEADER_SIZE
+                || buffer.getInt() != DELTA_FILE_MAGIC
+                || buffer.getInt() != VERSION
+                || buffer.getInt() != snapshot.length
+                || buffer.getInt() != crc32(snapshot, 0, snapshot.length)) {
+            Slog.w("BatteryStats", "Ignoring battery statistics deltas of another snapshot");
+            return false;
+        }
+
+        int count = 0;
+        while (buffer.remaining() >= DELTA_RECORD_HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            final int offset = buffer.position();
+            if (length < 0 || length > buffer.remaining()
+                    || crc32(raw, offset, length) != crc) {
+                // Torn by a crash while appending; everything before it is good.
+                Slog.w("BatteryStats", "Ignoring truncated battery statistics delta " + count);
+                buffer.position(offset - DELTA_RECORD_HEADER_SIZE);
+                break;
+            }
+            Parcel in = Parcel.obtain();
+            try {
+                in.unmarshall(raw, offset, length);
+                in.setDataPosition(0);
+                readDeltaFromParcelLocked(in);
+            } finally {
+                in.recycle();
+            }
+            buffer.position(offset + length);
+            count++;
+        }
+
+        mDeltaCheckpointsSinceSnapshot = count;
+        mDeltaBytesSinceSnapshot = buffer.position();
+        mLastSnapshotBytes = snapshot.length;
+        return !buffer.hasRemaining();
     }
 
     public void readLocked() {
@@ -13532,6 +13960,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         mUidStats.clear();
+        mDeltaFileValid = false;
 
         try {
             File file = mFile.chooseForRead();
@@ -13547,6 +13976,9 @@ public class BatteryStatsImpl extends BatteryStats {
             stream.close();
 
             readSummaryFromParcel(in);
+            mDeltaFileValid = readDeltasLocked(raw);
+            mCheckpointNeedsSnapshot = false;
+            markCheckpointLocked();
         } catch(Exception e) {
             Slog.e("BatteryStats", "Error reading battery statistics", e);
             resetAllStatsLocked();
@@ -13713,6 +14145,21 @@ public class BatteryStatsImpl extends BatteryStats {
 
         readHistory(in, true);
 
+        readSummaryGlobalsFromParcelLocked(in);
+
+        final int NU = in.readInt();
+        if (NU > 10000) {
+            throw new ParcelFormatException("File corrupt: too many uids " + NU);
+        }
+        for (int iu = 0; iu < NU; iu++) {
+            int uid = in.readInt();
+            Uid u = new Uid(this, uid);
+            mUidStats.put(uid, u);
+            readUidSummaryFromParcelLocked(in, u);
+        }
+    }
+
+    private void readSummaryGlobalsFromParcelLocked(Parcel in) throws ParcelFormatException {
         mStartCount = in.readInt();
         mUptime = in.readLong();
         mRealtime = in.readLong();
@@ -13881,282 +14328,275 @@ public class BatteryStatsImpl extends BatteryStats {
                 getKernelMemoryTimerLocked(kmstName).readSummaryFromParcelLocked(in);
             }
         }
+    }
 
-        final int NU = in.readInt();
-        if (NU > 10000) {
-            throw new ParcelFormatException("File corrupt: too many uids " + NU);
-        }
-        for (int iu = 0; iu < NU; iu++) {
-            int uid = in.readInt();
-            Uid u = new Uid(this, uid);
-            mUidStats.put(uid, u);
-
-            u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
-            u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
+    private void readUidSummaryFromParcelLocked(Parcel in, Uid u)
+            throws ParcelFormatException {
+        u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
+        u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
 
-            u.mWifiRunning = false;
-            if (in.readInt() != 0) {
-                u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mFullWifiLockOut = false;
-            if (in.readInt() != 0) {
-                u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiScanStarted = false;
-            if (in.readInt() != 0) {
-                u.mWifiScanTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (in.readInt() != 0) {
-                    u.makeWifiBatchedScanBin(i, null);
-                    u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
-                }
-            }
-            u.mWifiMulticastEnabled = false;
-            if (in.readInt() != 0) {
-                u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
+        u.mWifiRunning = false;
+        if (in.readInt() != 0) {
+            u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mFullWifiLockOut = false;
+        if (in.readInt() != 0) {
+            u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiScanStarted = false;
+        if (in.readInt() != 0) {
+            u.mWifiScanTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
             if (in.readInt() != 0) {
-                u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+                u.makeWifiBatchedScanBin(i, null);
+                u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
             }
+        }
+        u.mWifiMulticastEnabled = false;
+        if (in.readInt() != 0) {
+            u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundServiceTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
             if (in.readInt() != 0) {
-                u.createForegroundServiceTimerLocked().readSummaryFromParcelLocked(in);
+                u.makeProcessState(i, null);
+                u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
             }
-            if (in.readInt() != 0) {
-                u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+
+        if (in.readInt() != 0) {
+            if (u.mUserActivityCounters == null) {
+                u.initUserActivityLocked();
             }
-            if (in.readInt() != 0) {
-                u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
             }
-            if (in.readInt() != 0) {
-                u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+
+        if (in.readInt() != 0) {
+            if (u.mNetworkByteActivityCounters == null) {
+                u.initNetworkActivityLocked();
             }
-            if (in.readInt() != 0) {
-                u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
+                u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
             }
-            if (in.readInt() != 0) {
-                u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+            u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
+            u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+        }
+
+        u.mUserCpuTime.readSummaryFromParcelLocked(in);
+        u.mSystemCpuTime.readSummaryFromParcelLocked(in);
+
+        if (in.readInt() != 0) {
+            final int numClusters = in.readInt();
+            if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
+                throw new ParcelFormatException("Incompatible cpu cluster arrangement");
             }
-            u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+
+            u.mCpuClusterSpeedTimesUs = new LongSamplingCounter[numClusters][];
+            for (int cluster = 0; cluster < numClusters; cluster++) {
                 if (in.readInt() != 0) {
-                    u.makeProcessState(i, null);
-                    u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
-                }
-            }
-            if (in.readInt() != 0) {
-                u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
+                    final int NSB = in.readInt();
+                    if (mPowerProfile != null &&
+                            mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
+                        throw new ParcelFormatException("File corrupt: too many speed bins " +
+                                NSB);
+                    }
 
-            if (in.readInt() != 0) {
-                if (u.mUserActivityCounters == null) {
-                    u.initUserActivityLocked();
-                }
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
+                    u.mCpuClusterSpeedTimesUs[cluster] = new LongSamplingCounter[NSB];
+                    for (int speed = 0; speed < NSB; speed++) {
+                        if (in.readInt() != 0) {
+                            u.mCpuClusterSpeedTimesUs[cluster][speed] = new LongSamplingCounter(
+                                    mOnBatteryTimeBase);
+                            u.mCpuClusterSpeedTimesUs[cluster][speed].readSummaryFromParcelLocked(in);
+                        }
+                    }
+                } else {
+                    u.mCpuClusterSpeedTimesUs[cluster] = null;
                 }
             }
+        } else {
+            u.mCpuClusterSpeedTimesUs = null;
+        }
 
-            if (in.readInt() != 0) {
-                if (u.mNetworkByteActivityCounters == null) {
-                    u.initNetworkActivityLocked();
-                }
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
-                    u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
-                u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
-                u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
-            }
+        u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryTimeBase);
+        u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryScreenOffTimeBase);
 
-            u.mUserCpuTime.readSummaryFromParcelLocked(in);
-            u.mSystemCpuTime.readSummaryFromParcelLocked(in);
+        u.mCpuActiveTimeMs.readSummaryFromParcelLocked(in);
+        u.mCpuClusterTimesMs.readSummaryFromParcelLocked(in);
 
-            if (in.readInt() != 0) {
-                final int numClusters = in.readInt();
-                if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
-                    throw new ParcelFormatException("Incompatible cpu cluster arrangement");
-                }
-
-                u.mCpuClusterSpeedTimesUs = new LongSamplingCounter[numClusters][];
-                for (int cluster = 0; cluster < numClusters; cluster++) {
-                    if (in.readInt() != 0) {
-                        final int NSB = in.readInt();
-                        if (mPowerProfile != null &&
-                                mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
-                            throw new ParcelFormatException("File corrupt: too many speed bins " +
-                                    NSB);
-                        }
-
-                        u.mCpuClusterSpeedTimesUs[cluster] = new LongSamplingCounter[NSB];
-                        for (int speed = 0; speed < NSB; speed++) {
-                            if (in.readInt() != 0) {
-                                u.mCpuClusterSpeedTimesUs[cluster][speed] = new LongSamplingCounter(
-                                        mOnBatteryTimeBase);
-                                u.mCpuClusterSpeedTimesUs[cluster][speed].readSummaryFromParcelLocked(in);
-                            }
-                        }
-                    } else {
-                        u.mCpuClusterSpeedTimesUs[cluster] = null;
-                    }
-                }
-            } else {
-                u.mCpuClusterSpeedTimesUs = null;
+        int length = in.readInt();
+        if (length == Uid.NUM_PROCESS_STATE) {
+            u.mProcStateTimeMs = new LongSamplingCounterArray[length];
+            for (int procState = 0; procState < length; ++procState) {
+                u.mProcStateTimeMs[procState]
+                        = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                                in, mOnBatteryTimeBase);
             }
-
-            u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryTimeBase);
-            u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryScreenOffTimeBase);
-
-            u.mCpuActiveTimeMs.readSummaryFromParcelLocked(in);
-            u.mCpuClusterTimesMs.readSummaryFromParcelLocked(in);
-
-            int length = in.readInt();
-            if (length == Uid.NUM_PROCESS_STATE) {
-                u.mProcStateTimeMs = new LongSamplingCounterArray[length];
-                for (int procState = 0; procState < length; ++procState) {
-                    u.mProcStateTimeMs[procState]
-                            = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                                    in, mOnBatteryTimeBase);
-                }
-            } else {
-                u.mProcStateTimeMs = null;
-            }
-            length = in.readInt();
-            if (length == Uid.NUM_PROCESS_STATE) {
-                u.mProcStateScreenOffTimeMs = new LongSamplingCounterArray[length];
-                for (int procState = 0; procState < length; ++procState) {
-                    u.mProcStateScreenOffTimeMs[procState]
-                            = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                                    in, mOnBatteryScreenOffTimeBase);
-                }
-            } else {
-                u.mProcStateScreenOffTimeMs = null;
+        } else {
+            u.mProcStateTimeMs = null;
+        }
+        length = in.readInt();
+        if (length == Uid.NUM_PROCESS_STATE) {
+            u.mProcStateScreenOffTimeMs = new LongSamplingCounterArray[length];
+            for (int procState = 0; procState < length; ++procState) {
+                u.mProcStateScreenOffTimeMs[procState]
+                        = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                                in, mOnBatteryScreenOffTimeBase);
             }
+        } else {
+            u.mProcStateScreenOffTimeMs = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mMobileRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mMobileRadioApWakeupCount = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mWifiRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mWifiRadioApWakeupCount = null;
+        }
 
-            int NW = in.readInt();
-            if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
-            }
-            for (int iw = 0; iw < NW; iw++) {
-                String wlName = in.readString();
-                u.readWakeSummaryFromParcelLocked(wlName, in);
-            }
+        int NW = in.readInt();
+        if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
+        }
+        for (int iw = 0; iw < NW; iw++) {
+            String wlName = in.readString();
+            u.readWakeSummaryFromParcelLocked(wlName, in);
+        }
 
-            int NS = in.readInt();
-            if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many syncs " + NS);
-            }
-            for (int is = 0; is < NS; is++) {
-                String name = in.readString();
-                u.readSyncSummaryFromParcelLocked(name, in);
-            }
+        int NS = in.readInt();
+        if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many syncs " + NS);
+        }
+        for (int is = 0; is < NS; is++) {
+            String name = in.readString();
+            u.readSyncSummaryFromParcelLocked(name, in);
+        }
 
-            int NJ = in.readInt();
-            if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
-            }
-            for (int ij = 0; ij < NJ; ij++) {
-                String name = in.readString();
-                u.readJobSummaryFromParcelLocked(name, in);
-            }
+        int NJ = in.readInt();
+        if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
+        }
+        for (int ij = 0; ij < NJ; ij++) {
+            String name = in.readString();
+            u.readJobSummaryFromParcelLocked(name, in);
+        }
 
-            u.readJobCompletionsFromParcelLocked(in);
+        u.readJobCompletionsFromParcelLocked(in);
 
-            u.mJobsDeferredEventCount.readSummaryFromParcelLocked(in);
-            u.mJobsDeferredCount.readSummaryFromParcelLocked(in);
-            u.mJobsFreshnessTimeMs.readSummaryFromParcelLocked(in);
-            for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
-                if (in.readInt() != 0) {
-                    u.mJobsFreshnessBuckets[i] = new Counter(u.mBsi.mOnBatteryTimeBase);
-                    u.mJobsFreshnessBuckets[i].readSummaryFromParcelLocked(in);
-                }
+        u.mJobsDeferredEventCount.readSummaryFromParcelLocked(in);
+        u.mJobsDeferredCount.readSummaryFromParcelLocked(in);
+        u.mJobsFreshnessTimeMs.readSummaryFromParcelLocked(in);
+        for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
+            if (in.readInt() != 0) {
+                u.mJobsFreshnessBuckets[i] = new Counter(u.mBsi.mOnBatteryTimeBase);
+                u.mJobsFreshnessBuckets[i].readSummaryFromParcelLocked(in);
             }
+        }
 
-            int NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many sensors " + NP);
-            }
-            for (int is = 0; is < NP; is++) {
-                int seNumber = in.readInt();
-                if (in.readInt() != 0) {
-                    u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
-                }
+        int NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many sensors " + NP);
+        }
+        for (int is = 0; is < NP; is++) {
+            int seNumber = in.readInt();
+            if (in.readInt() != 0) {
+                u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
             }
+        }
 
-            NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String procName = in.readString();
+            Uid.Proc p = u.getProcessStatsLocked(procName);
+            p.mUserTime = p.mLoadedUserTime = in.readLong();
+            p.mSystemTime = p.mLoadedSystemTime = in.readLong();
+            p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
+            p.mStarts = p.mLoadedStarts = in.readInt();
+            p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
+            p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
+            p.readExcessivePowerFromParcelLocked(in);
+        }
+
+        NP = in.readInt();
+        if (NP > 10000) {
+            throw new ParcelFormatException("File corrupt: too many packages " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String pkgName = in.readString();
+            Uid.Pkg p = u.getPackageStatsLocked(pkgName);
+            final int NWA = in.readInt();
+            if (NWA > 1000) {
+                throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String procName = in.readString();
-                Uid.Proc p = u.getProcessStatsLocked(procName);
-                p.mUserTime = p.mLoadedUserTime = in.readLong();
-                p.mSystemTime = p.mLoadedSystemTime = in.readLong();
-                p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
-                p.mStarts = p.mLoadedStarts = in.readInt();
-                p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
-                p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
-                p.readExcessivePowerFromParcelLocked(in);
+            p.mWakeupAlarms.clear();
+            for (int iwa=0; iwa<NWA; iwa++) {
+                String tag = in.readString();
+                Counter c = new Counter(mOnBatteryScreenOffTimeBase);
+                c.readSummaryFromParcelLocked(in);
+                p.mWakeupAlarms.put(tag, c);
             }
-
-            NP = in.readInt();
-            if (NP > 10000) {
-                throw new ParcelFormatException("File corrupt: too many packages " + NP);
+            NS = in.readInt();
+            if (NS > 1000) {
+                throw new ParcelFormatException("File corrupt: too many services " + NS);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String pkgName = in.readString();
-                Uid.Pkg p = u.getPackageStatsLocked(pkgName);
-                final int NWA = in.readInt();
-                if (NWA > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
-                }
-                p.mWakeupAlarms.clear();
-                for (int iwa=0; iwa<NWA; iwa++) {
-                    String tag = in.readString();
-                    Counter c = new Counter(mOnBatteryScreenOffTimeBase);
-                    c.readSummaryFromParcelLocked(in);
-                    p.mWakeupAlarms.put(tag, c);
-                }
-                NS = in.readInt();
-                if (NS > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many services " + NS);
-                }
-                for (int is = 0; is < NS; is++) {
-                    String servName = in.readString();
-                    Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
-                    s.mStartTime = s.mLoadedStartTime = in.readLong();
-                    s.mStarts = s.mLoadedStarts = in.readInt();
-                    s.mLaunches = s.mLoadedLaunches = in.readInt();
-                }
+            for (int is = 0; is < NS; is++) {
+                String servName = in.readString();
+                Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
+                s.mStartTime = s.mLoadedStartTime = in.readLong();
+                s.mStarts = s.mLoadedStarts = in.readInt();
+                s.mLaunches = s.mLoadedLaunches = in.readInt();
             }
         }
     }
@@ -14181,6 +14621,19 @@ public class BatteryStatsImpl extends BatteryStats {
 
         writeHistory(out, inclHistory, true);
 
+        writeSummaryGlobalsToParcelLocked(out, NOW_SYS, NOWREAL_SYS, startClockTime);
+
+        final int NU = mUidStats.size();
+        out.writeInt(NU);
+        for (int iu = 0; iu < NU; iu++) {
+            out.writeInt(mUidStats.keyAt(iu));
+            Uid u = mUidStats.valueAt(iu);
+            writeUidSummaryToParcelLocked(out, u, NOW_SYS, NOWREAL_SYS);
+        }
+    }
+
+    private void writeSummaryGlobalsToParcelLocked(Parcel out, long NOW_SYS, long NOWREAL_SYS,
+            long startClockTime) {
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
         out.writeLong(computeRealtime(NOWREAL_SYS, STATS_SINCE_CHARGED));
@@ -14342,326 +14795,322 @@ public class BatteryStatsImpl extends BatteryStats {
                 out.writeInt(0);
             }
         }
+    }
 
-        final int NU = mUidStats.size();
-        out.writeInt(NU);
-        for (int iu = 0; iu < NU; iu++) {
-            out.writeInt(mUidStats.keyAt(iu));
-            Uid u = mUidStats.valueAt(iu);
-
-            u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
-            u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+    private void writeUidSummaryToParcelLocked(Parcel out, Uid u, long NOW_SYS,
+            long NOWREAL_SYS) {
+        u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+        u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
 
-            if (u.mWifiRunningTimer != null) {
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mFullWifiLockTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundServiceTimer != null) {
+            out.writeInt(1);
+            u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAggregatedPartialWakelockTimer != null) {
+            out.writeInt(1);
+            u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothUnoptimizedScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultBgCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
-                out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+
+        if (u.mCpuClusterSpeedTimesUs != null) {
+            out.writeInt(1);
+            out.writeInt(u.mCpuClusterSpeedTimesUs.length);
+            for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
+                if (cpuSpeeds != null) {
                     out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                    out.writeInt(cpuSpeeds.length);
+                    for (LongSamplingCounter c : cpuSpeeds) {
+                        if (c != null) {
+                            out.writeInt(1);
+                            c.writeSummaryFromParcelLocked(out);
+                        } else {
+                            out.writeInt(0);
+                        }
+                    }
                 } else {
                     out.writeInt(0);
                 }
             }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mVideoTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFlashlightTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mCameraTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundActivityTimer != null) {
-                out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundServiceTimer != null) {
-                out.writeInt(1);
-                u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAggregatedPartialWakelockTimer != null) {
-                out.writeInt(1);
-                u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+
+        u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
+        u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+
+        if (u.mProcStateTimeMs != null) {
+            out.writeInt(u.mProcStateTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mProcStateScreenOffTimeMs != null) {
+            out.writeInt(u.mProcStateScreenOffTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothUnoptimizedScanTimer != null) {
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mMobileRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mWifiRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeString(wakeStats.keyAt(iw));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultCounter != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultBgCounter != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
-            }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-
-            if (u.mCpuClusterSpeedTimesUs != null) {
-                out.writeInt(1);
-                out.writeInt(u.mCpuClusterSpeedTimesUs.length);
-                for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
-                    if (cpuSpeeds != null) {
-                        out.writeInt(1);
-                        out.writeInt(cpuSpeeds.length);
-                        for (LongSamplingCounter c : cpuSpeeds) {
-                            if (c != null) {
-                                out.writeInt(1);
-                                c.writeSummaryFromParcelLocked(out);
-                            } else {
-                                out.writeInt(0);
-                            }
-                        }
-                    } else {
-                        out.writeInt(0);
-                    }
-                }
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+        final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeString(syncStats.keyAt(is));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
-            u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+        final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeString(jobStats.keyAt(ij));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mProcStateTimeMs != null) {
-                out.writeInt(u.mProcStateTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mProcStateScreenOffTimeMs != null) {
-                out.writeInt(u.mProcStateScreenOffTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
+        u.writeJobCompletionsToParcelLocked(out);
 
-            if (u.mMobileRadioApWakeupCount != null) {
+        u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
+        u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
+        u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
+        for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
+            if (u.mJobsFreshnessBuckets[i] != null) {
                 out.writeInt(1);
-                u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            if (u.mWifiRadioApWakeupCount != null) {
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
                 out.writeInt(1);
-                u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            u.writeJobCompletionsToParcelLocked(out);
-
-            u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
-            u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
-            u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
-            for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
-                if (u.mJobsFreshnessBuckets[i] != null) {
-                    out.writeInt(1);
-                    u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
-                } else {
-                    out.writeInt(0);
-                }
-            }
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeString(u.mProcessStats.keyAt(ip));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
 
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeString(ent.getKey());
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeString(ps.mWakeupAlarms.keyAt(iwa));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
                 }
-            }
-
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeString(ps.mServiceStats.keyAt(is));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
         }
@@ -21,6 +21,7 @@ import android.os.SystemClock;
 import android.text.format.DateFormat;
 import android.util.ArrayMap;
 import android.util.SparseArray;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -37,14 +38,32 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ *
+ * <p>To keep the overhead low enough to leave on, calls are accumulated into per-thread shards
+ * that are only merged when the stats are dumped, so binder threads never contend with each
+ * other. With detailed tracking, only one in {@link #setSamplingInterval sampling interval}
+ * calls has its CPU time measured; call counts are always exact, and total times are
+ * extrapolated from the sampled calls.
  */
 public class BinderCallsStats {
     private static final int CALL_SESSIONS_POOL_SIZE = 100;
+
+    /**
+     * Number of buckets of the per-call latency histograms. Bucket {@code i} counts calls that
+     * took less than 2^i microseconds (and at least 2^(i-1)), the last bucket counts all
+     * slower calls.
+     */
+    @VisibleForTesting
+    public static final int HISTOGRAM_BUCKETS = 24;
+
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
+    private volatile int mSamplingInterval = 1;
+    /** All shards ever created, so that calls from threads that have died are still dumped. */
     @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    private final ArrayList<Shard> mShards = new ArrayList<>();
+    private final ThreadLocal<Shard> mShard = ThreadLocal.withInitial(this::newShard);
     private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
     private final Object mLock = new Object();
     private long mStartTime = System.currentTimeMillis();
@@ -68,21 +87,25 @@ public class BinderCallsStats {
         }
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
+        s.mShard = mShard.get();
+        s.mSampled = mDetailedTracking && s.mShard.shouldSample(mSamplingInterval);
 
-        s.mStarted = getThreadTimeMicro();
+        s.mStarted = s.mSampled ? getThreadTimeMicro() : 0;
         return s;
     }
 
     public void callEnded(CallSession s) {
         Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
+        long duration = s.mSampled ? getThreadTimeMicro() - s.mStarted : 0;
         s.mCallingUId = Binder.getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+        // Only contended while the stats are being dumped or reset.
+        final Shard shard = s.mShard;
+        synchronized (shard) {
+            UidEntry uidEntry = shard.uidEntries.get(s.mCallingUId);
             if (uidEntry == null) {
                 uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                shard.uidEntries.put(s.mCallingUId, uidEntry);
             }
 
             if (mDetailedTracking) {
@@ -94,17 +117,60 @@ public class BinderCallsStats {
                     uidEntry.mCallStats.put(callStat, callStat);
                 }
                 callStat.callCount++;
-                callStat.time += duration;
+                if (s.mSampled) {
+                    callStat.recordSample(duration);
+                    uidEntry.sampledCallCount++;
+                    uidEntry.time += duration;
+                }
+            } else {
+                uidEntry.sampledCallCount++;
+                uidEntry.time++;
             }
 
-            uidEntry.time += duration;
             uidEntry.callCount++;
         }
+        s.mShard = null;
         if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
             mCallSessionsPool.add(s);
         }
     }
 
+    private Shard newShard() {
+        final Shard shard = new Shard();
+        synchronized (mLock) {
+            mShards.add(shard);
+        }
+        return shard;
+    }
+
+    /** Returns the stats of all shards merged per uid. */
+    private List<UidEntry> getMergedUidEntries() {
+        final Shard[] shards;
+        synchronized (mLock) {
+            shards = mShards.toArray(new Shard[mShards.size()]);
+        }
+        final SparseArray<UidEntry> merged = new SparseArray<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                final int size = shard.uidEntries.size();
+                for (int i = 0; i < size; i++) {
+                    final UidEntry e = shard.uidEntries.valueAt(i);
+                    UidEntry mergedEntry = merged.get(e.uid);
+                    if (mergedEntry == null) {
+                        mergedEntry = new UidEntry(e.uid);
+                        merged.put(e.uid, mergedEntry);
+                    }
+                    mergedEntry.add(e);
+                }
+            }
+        }
+        final List<UidEntry> entries = new ArrayList<>(merged.size());
+        for (int i = 0; i < merged.size(); i++) {
+            entries.add(merged.valueAt(i));
+        }
+        return entries;
+    }
+
     public void dump(PrintWriter pw) {
         Map<Integer, Long> uidTimeMap = new HashMap<>();
         Map<Integer, Long> uidCallCountMap = new HashMap<>();
@@ -112,48 +178,59 @@ public class BinderCallsStats {
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
-        List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        pw.print("Sampling interval: ");
+        pw.println(mSamplingInterval);
+        List<UidEntry> entries = getMergedUidEntries();
+        for (UidEntry e : entries) {
+            final long time = e.getEstimatedTime();
+            totalCallsTime += time;
+            // Update per-uid totals
+            Long totalTimePerUid = uidTimeMap.get(e.uid);
+            uidTimeMap.put(e.uid,
+                    totalTimePerUid == null ? time : totalTimePerUid + time);
+            Long totalCallsPerUid = uidCallCountMap.get(e.uid);
+            uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
+                    : totalCallsPerUid + e.callCount);
+            totalCallsCount += e.callCount;
         }
         if (mDetailedTracking) {
             pw.println("Raw data (uid,call_desc,time):");
-            entries.sort((o1, o2) -> {
-                if (o1.time < o2.time) {
-                    return 1;
-                } else if (o1.time > o2.time) {
-                    return -1;
-                }
-                return 0;
-            });
+            entries.sort((o1, o2) -> Long.compare(o2.getEstimatedTime(), o1.getEstimatedTime()));
             StringBuilder sb = new StringBuilder();
             for (UidEntry uidEntry : entries) {
-                List<CallStat> callStats = new ArrayList<>(uidEntry.mCallStats.keySet());
-                callStats.sort((o1, o2) -> {
-                    if (o1.time < o2.time) {
-                        return 1;
-                    } else if (o1.time > o2.time) {
-                        return -1;
-                    }
-                    return 0;
-                });
+                List<CallStat> callStats = getSortedCallStats(uidEntry);
                 for (CallStat e : callStats) {
                     sb.setLength(0);
                     sb.append("    ")
-                            .append(uidEntry.uid).append(",").append(e).append(',').append(e.time);
+                            .append(uidEntry.uid).append(",").append(e).append(',')
+                            .append(e.getEstimatedTime());
+                    pw.println(sb);
+                }
+            }
+            pw.println();
+            pw.println("Latency histograms (uid,call_desc,sampled_calls,max_time:"
+                    + " <upper_bound_micros>=<sampled_calls>...):");
+            for (UidEntry uidEntry : entries) {
+                for (CallStat e : getSortedCallStats(uidEntry)) {
+                    if (e.sampledCallCount == 0) {
+                        continue;
+                    }
+                    sb.setLength(0);
+                    sb.append("    ").append(uidEntry.uid).append(",").append(e).append(',')
+                            .append(e.sampledCallCount).append(',').append(e.maxTime)
+                            .append(':');
+                    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                        if (e.histogram[i] == 0) {
+                            continue;
+                        }
+                        sb.append(' ');
+                        if (i == HISTOGRAM_BUCKETS - 1) {
+                            sb.append("inf");
+                        } else {
+                            sb.append(1L << i);
+                        }
+                        sb.append('=').append(e.histogram[i]);
+                    }
                     pw.println(sb);
                 }
             }
@@ -184,6 +261,44 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Writes the stats as a {@link BinderCallsStatsProto}. Unlike the text dump, times are the
+     * raw sums over the sampled calls.
+     */
+    public void dump(ProtoOutputStream proto) {
+        proto.write(BinderCallsStatsProto.START_TIME_MILLIS, mStartTime);
+        proto.write(BinderCallsStatsProto.DETAILED_TRACKING, mDetailedTracking);
+        proto.write(BinderCallsStatsProto.SAMPLING_INTERVAL, mSamplingInterval);
+        for (UidEntry uidEntry : getMergedUidEntries()) {
+            final long uidToken = proto.start(BinderCallsStatsProto.UID_ENTRIES);
+            proto.write(BinderCallsStatsProto.UidEntry.UID, uidEntry.uid);
+            proto.write(BinderCallsStatsProto.UidEntry.CALL_COUNT, uidEntry.callCount);
+            proto.write(BinderCallsStatsProto.UidEntry.SAMPLED_CALL_COUNT,
+                    uidEntry.sampledCallCount);
+            proto.write(BinderCallsStatsProto.UidEntry.TIME_MICROS, uidEntry.time);
+            for (CallStat callStat : uidEntry.mCallStats.keySet()) {
+                final long callToken = proto.start(BinderCallsStatsProto.UidEntry.CALL_STATS);
+                proto.write(BinderCallsStatsProto.CallStat.CLASS_NAME, callStat.className);
+                proto.write(BinderCallsStatsProto.CallStat.CODE, callStat.msg);
+                proto.write(BinderCallsStatsProto.CallStat.CALL_COUNT, callStat.callCount);
+                proto.write(BinderCallsStatsProto.CallStat.SAMPLED_CALL_COUNT,
+                        callStat.sampledCallCount);
+                proto.write(BinderCallsStatsProto.CallStat.TIME_MICROS, callStat.time);
+                proto.write(BinderCallsStatsProto.CallStat.MAX_TIME_MICROS, callStat.maxTime);
+                proto.writePackedInt64(BinderCallsStatsProto.CallStat.HISTOGRAM,
+                        callStat.histogram);
+                proto.end(callToken);
+            }
+            proto.end(uidToken);
+        }
+    }
+
+    private static List<CallStat> getSortedCallStats(UidEntry uidEntry) {
+        List<CallStat> callStats = new ArrayList<>(uidEntry.mCallStats.keySet());
+        callStats.sort((o1, o2) -> Long.compare(o2.getEstimatedTime(), o1.getEstimatedTime()));
+        return callStats;
+    }
+
     private long getThreadTimeMicro() {
         // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
         // enabled
@@ -201,18 +316,71 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Sets how many calls are made per call whose CPU time is measured with detailed tracking.
+     * 1 measures every call.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        Preconditions.checkArgumentPositive(samplingInterval, "samplingInterval");
+        if (samplingInterval != mSamplingInterval) {
+            reset();
+            mSamplingInterval = samplingInterval;
+        }
+    }
+
     public void reset() {
+        final Shard[] shards;
         synchronized (mLock) {
-            mUidEntries.clear();
+            shards = mShards.toArray(new Shard[mShards.size()]);
             mStartTime = System.currentTimeMillis();
         }
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.uidEntries.clear();
+            }
+        }
+    }
+
+    /** Stats of the calls handled by one thread, locked by synchronizing on it. */
+    private static class Shard {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> uidEntries = new SparseArray<>();
+        /** Only accessed by the thread owning the shard. */
+        int callsUntilSample;
+
+        boolean shouldSample(int samplingInterval) {
+            if (--callsUntilSample > 0) {
+                return false;
+            }
+            callsUntilSample = samplingInterval;
+            return true;
+        }
+    }
+
+    /**
+     * Extrapolates the time of the sampled calls to all the calls, i.e. returns
+     * {@code time * callCount / sampledCallCount}. The product easily overflows after a long
+     * uptime, so the time is divided first, and only the remainder is scaled in floating point.
+     */
+    @VisibleForTesting
+    static long estimateTime(long time, long callCount, long sampledCallCount) {
+        if (sampledCallCount == 0) {
+            return 0;
+        }
+        final long whole = time / sampledCallCount;
+        final long remainder = time % sampledCallCount;
+        return whole * callCount + (long) ((double) remainder * callCount / sampledCallCount);
     }
 
     private static class CallStat {
         String className;
         int msg;
+        /** Total CPU time of the sampled calls. */
         long time;
         long callCount;
+        long sampledCallCount;
+        long maxTime;
+        long[] histogram;
 
         CallStat() {
         }
@@ -220,6 +388,31 @@ public class BinderCallsStats {
         CallStat(String className, int msg) {
             this.className = className;
             this.msg = msg;
+            this.histogram = new long[HISTOGRAM_BUCKETS];
+        }
+
+        void recordSample(long duration) {
+            sampledCallCount++;
+            time += duration;
+            if (duration > maxTime) {
+                maxTime = duration;
+            }
+            histogram[Math.min(64 - Long.numberOfLeadingZeros(duration),
+                    HISTOGRAM_BUCKETS - 1)]++;
+        }
+
+        void add(CallStat other) {
+            callCount += other.callCount;
+            sampledCallCount += other.sampledCallCount;
+            time += other.time;
+            maxTime = Math.max(maxTime, other.maxTime);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram[i] += other.histogram[i];
+            }
+        }
+
+        long getEstimatedTime() {
+            return estimateTime(time, callCount, sampledCallCount);
         }
 
         @Override
@@ -249,13 +442,17 @@ public class BinderCallsStats {
     public static class CallSession {
         int mCallingUId;
         long mStarted;
+        boolean mSampled;
+        Shard mShard;
         CallStat mCallStat = new CallStat();
     }
 
     private static class UidEntry {
         int uid;
+        /** Total CPU time of the sampled calls. */
         long time;
         long callCount;
+        long sampledCallCount;
 
         UidEntry(int uid) {
             this.uid = uid;
@@ -264,6 +461,24 @@ public class BinderCallsStats {
         // Aggregate time spent per each call name: call_desc -> cpu_time_micros
         Map<CallStat, CallStat> mCallStats = new ArrayMap<>();
 
+        void add(UidEntry other) {
+            time += other.time;
+            callCount += other.callCount;
+            sampledCallCount += other.sampledCallCount;
+            for (CallStat otherStat : other.mCallStats.keySet()) {
+                CallStat callStat = mCallStats.get(otherStat);
+                if (callStat == null) {
+                    callStat = new CallStat(otherStat.className, otherStat.msg);
+                    mCallStats.put(callStat, callStat);
+                }
+                callStat.add(otherStat);
+            }
+        }
+
+        long getEstimatedTime() {
+            return estimateTime(time, callCount, sampledCallCount);
+        }
+
         @Override
         public String toString() {
             return "UidEntry{" +
@@ -289,4 +504,75 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Field ids of the proto dump written by {@link #dump(ProtoOutputStream)}:
+     * <pre>
+     * message BinderCallsStatsProto {
+     *     optional int64 start_time_millis = 1;
+     *     optional bool detailed_tracking = 2;
+     *     optional int32 sampling_interval = 3;
+     *     repeated UidEntry uid_entries = 4;
+     * }
+     * message UidEntry {
+     *     optional int32 uid = 1;
+     *     optional int64 call_count = 2;
+     *     optional int64 sampled_call_count = 3;
+     *     optional int64 time_micros = 4;
+     *     repeated CallStat call_stats = 5;
+     * }
+     * message CallStat {
+     *     optional string class_name = 1;
+     *     optional int32 code = 2;
+     *     optional int64 call_count = 3;
+     *     optional int64 sampled_call_count = 4;
+     *     optional int64 time_micros = 5;
+     *     optional int64 max_time_micros = 6;
+     *     // See HISTOGRAM_BUCKETS.
+     *     repeated int64 histogram = 7 [packed = true];
+     * }
+     * </pre>
+     */
+    public static final class BinderCallsStatsProto {
+        private static final long SINGLE = ProtoOutputStream.FIELD_COUNT_SINGLE;
+        private static final long REPEATED = ProtoOutputStream.FIELD_COUNT_REPEATED;
+
+        public static final long START_TIME_MILLIS =
+                ProtoOutputStream.makeFieldId(1, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+        public static final long DETAILED_TRACKING =
+                ProtoOutputStream.makeFieldId(2, SINGLE | ProtoOutputStream.FIELD_TYPE_BOOL);
+        public static final long SAMPLING_INTERVAL =
+                ProtoOutputStream.makeFieldId(3, SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+        public static final long UID_ENTRIES =
+                ProtoOutputStream.makeFieldId(4, REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+
+        public static final class UidEntry {
+            public static final long UID =
+                    ProtoOutputStream.makeFieldId(1, SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+            public static final long CALL_COUNT =
+                    ProtoOutputStream.makeFieldId(2, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long SAMPLED_CALL_COUNT =
+                    ProtoOutputStream.makeFieldId(3, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long TIME_MICROS =
+                    ProtoOutputStream.makeFieldId(4, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long CALL_STATS = ProtoOutputStream.makeFieldId(5,
+                    REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+        }
+
+        public static final class CallStat {
+            public static final long CLASS_NAME =
+                    ProtoOutputStream.makeFieldId(1, SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+            public static final long CODE =
+                    ProtoOutputStream.makeFieldId(2, SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+            public static final long CALL_COUNT =
+                    ProtoOutputStream.makeFieldId(3, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long SAMPLED_CALL_COUNT =
+                    ProtoOutputStream.makeFieldId(4, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long TIME_MICROS =
+                    ProtoOutputStream.makeFieldId(5, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long MAX_TIME_MICROS =
+                    ProtoOutputStream.makeFieldId(6, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long HISTOGRAM = ProtoOutputStream.makeFieldId(7,
+                    ProtoOutputStream.FIELD_COUNT_PACKED | ProtoOutputStream.FIELD_TYPE_INT64);
+        }
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinderCallsStatsTest {
+    @Test
+    public void estimateTime_noSamples() {
+        assertEquals(0, BinderCallsStats.estimateTime(0, 10, 0));
+    }
+
+    @Test
+    public void estimateTime_scalesBySamplingRatio() {
+        assertEquals(1000, BinderCallsStats.estimateTime(100, 100, 10));
+        assertEquals(35, BinderCallsStats.estimateTime(7, 10, 2));
+    }
+
+    @Test
+    public void estimateTime_doesNotOverflow() {
+        // 10^13 us of sampled time over 10^8 of 10^9 calls: the product overflows a long.
+        final long time = 10_000_000_000_000L;
+        assertEquals(100_000_000_000_000L,
+                BinderCallsStats.estimateTime(time, 1_000_000_000L, 100_000_000L));
+    }
+}
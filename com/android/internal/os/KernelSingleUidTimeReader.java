@@ -208,14 +208,15 @@ public class KernelSingleUidTimeReader {
         }
     }
 
-    public void setAllUidsCpuTimesMs(SparseArray<long[]> allUidsCpuTimesMs) {
+    public void setAllUidsCpuTimesMs(KernelUidTimeStore allUidsCpuTimesMs) {
         synchronized (this) {
             mLastUidCpuTimeMs.clear();
-            for (int i = allUidsCpuTimesMs.size() - 1; i >= 0; --i) {
-                final long[] cpuTimesMs = allUidsCpuTimesMs.valueAt(i);
-                if (cpuTimesMs != null) {
-                    mLastUidCpuTimeMs.put(allUidsCpuTimesMs.keyAt(i), cpuTimesMs.clone());
-                }
+            final KernelUidTimeStore.Cursor cursor = allUidsCpuTimesMs.cursor();
+            while (cursor.moveToNext()) {
+                final long[] cpuTimesMs = new long[allUidsCpuTimesMs.getWidth()];
+                cursor.copyTimes(cpuTimesMs);
+                // Uids are in increasing order.
+                mLastUidCpuTimeMs.append(cursor.getUid(), cpuTimesMs);
             }
         }
     }
@@ -18,13 +18,11 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.util.Slog;
-import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_active_time and reports CPU active time to
@@ -38,8 +36,8 @@ import java.util.function.Consumer;
  * ...
  * timeXn means the CPU time that a UID X spent running concurrently with n other processes.
  * The file contains a monotonically increasing count of time for a single boot. This class
- * maintains the previous results of a call to {@link #readDelta} in order to provide a
- * proper delta.
+ * maintains the previous times per number of concurrent processes read by {@link #readDelta} in a
+ * {@link KernelUidTimeStore} in order to provide a proper delta, computed without allocating.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
  * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
@@ -54,7 +52,9 @@ public class KernelUidCpuActiveTimeReader extends
     private static final String TAG = KernelUidCpuActiveTimeReader.class.getSimpleName();
 
     private final KernelCpuProcReader mProcReader;
-    private SparseArray<Double> mLastUidCpuActiveTimeMs = new SparseArray<>();
+    // Created once the number of cores is known.
+    private KernelUidTimeStore mLastUidCpuActiveTimes;
+    private long[] mCurTimes; // Reuse to avoid GC.
     private int mCores;
 
     public interface Callback extends KernelUidCpuTimeReaderBase.Callback {
@@ -78,102 +78,132 @@ public class KernelUidCpuActiveTimeReader extends
 
     @Override
     protected void readDeltaImpl(@Nullable Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                double delta = activeTime - mLastUidCpuActiveTimeMs.get(uid, 0.0);
-                if (delta > 0) {
-                    mLastUidCpuActiveTimeMs.put(uid, activeTime);
-                    if (callback != null) {
-                        callback.onUidCpuActiveTime(uid, (long) delta);
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
+                return;
+            }
+            while (buf.hasRemaining()) {
+                int uid = buf.get();
+                if (!readActiveTimes(buf, mCurTimes)) {
+                    continue;
+                }
+                final double activeTime = sumActiveTime(mCurTimes);
+                if (activeTime > 0) {
+                    final int row = mLastUidCpuActiveTimes.getOrAddRow(uid);
+                    double delta = 0;
+                    for (int j = 1; j <= mCores; j++) {
+                        delta += (double) (mCurTimes[j - 1]
+                                - mLastUidCpuActiveTimes.get(row, j - 1)) * 10 / j;
+                    }
+                    if (delta > 0) {
+                        mLastUidCpuActiveTimes.set(row, mCurTimes);
+                        if (callback != null) {
+                            callback.onUidCpuActiveTime(uid, (long) delta);
+                        }
+                    } else if (delta < 0) {
+                        Slog.e(TAG, "Negative delta from active time proc: " + delta);
                     }
-                } else if (delta < 0) {
-                    Slog.e(TAG, "Negative delta from active time proc: " + delta);
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                callback.onUidCpuActiveTime(uid, (long) activeTime);
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
+                return;
+            }
+            while (buf.hasRemaining()) {
+                int uid = buf.get();
+                if (readActiveTimes(buf, mCurTimes)) {
+                    final double activeTime = sumActiveTime(mCurTimes);
+                    if (activeTime > 0) {
+                        callback.onUidCpuActiveTime(uid, (long) activeTime);
+                    }
+                }
             }
-        });
+        }
     }
 
-    private double sumActiveTime(IntBuffer buffer) {
-        double sum = 0;
+    /**
+     * Reads the times of a uid running concurrently with 0 to mCores - 1 other processes.
+     *
+     * @return false if a time is invalid.
+     */
+    private boolean readActiveTimes(IntBuffer buffer, long[] times) {
         boolean corrupted = false;
-        for (int j = 1; j <= mCores; j++) {
+        for (int j = 0; j < mCores; j++) {
             int time = buffer.get();
             if (time < 0) {
                 // Even if error happens, we still need to continue reading.
                 // Buffer cannot be skipped.
                 Slog.e(TAG, "Negative time from active time proc: " + time);
                 corrupted = true;
-            } else {
-                sum += (double) time * 10 / j; // Unit is 10ms.
             }
+            times[j] = time;
         }
-        return corrupted ? -1 : sum;
+        return !corrupted;
+    }
+
+    private double sumActiveTime(long[] times) {
+        double sum = 0;
+        for (int j = 1; j <= mCores; j++) {
+            sum += (double) times[j - 1] * 10 / j; // Unit is 10ms.
+        }
+        return sum;
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Reads the proc file, and returns its content positioned at the first uid entry, or null if
+     * it couldn't be read or is malformed. Both {@link #readDeltaImpl} and {@link #readAbsolute}
+     * then go over the uid entries, the former storing the times it reads. Must be called with
+     * {@link #mProcReader} held, until the buffer is consumed.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            final ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG,
-                        "Cannot parse active time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            final IntBuffer buf = bytes.asIntBuffer();
-            final int cores = buf.get();
-            if (mCores != 0 && cores != mCores) {
-                Slog.wtf(TAG, "Cpu active time wrong # cores: " + cores);
-                return;
-            }
+    private IntBuffer readUidTimesLocked() {
+        final ByteBuffer bytes = mProcReader.readBytes();
+        if (bytes == null || bytes.remaining() <= 4) {
+            // Error already logged in mProcReader.
+            return null;
+        }
+        if ((bytes.remaining() & 3) != 0) {
+            Slog.wtf(TAG,
+                    "Cannot parse active time proc bytes to int: " + bytes.remaining());
+            return null;
+        }
+        final IntBuffer buf = bytes.asIntBuffer();
+        final int cores = buf.get();
+        if (mCores != 0 && cores != mCores) {
+            Slog.wtf(TAG, "Cpu active time wrong # cores: " + cores);
+            return null;
+        }
+        if (cores <= 0 || buf.remaining() % (cores + 1) != 0) {
+            Slog.wtf(TAG,
+                    "Cpu active time format error: " + buf.remaining() + " / " + (cores
+                            + 1));
+            return null;
+        }
+        if (mCores == 0) {
             mCores = cores;
-            if (cores <= 0 || buf.remaining() % (cores + 1) != 0) {
-                Slog.wtf(TAG,
-                        "Cpu active time format error: " + buf.remaining() + " / " + (cores
-                                + 1));
-                return;
-            }
-            int numUids = buf.remaining() / (cores + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: " + numUids);
-            }
+            mCurTimes = new long[cores];
+            mLastUidCpuActiveTimes = new KernelUidTimeStore(cores);
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: " + buf.remaining() / (cores + 1));
         }
+        return buf;
     }
 
     public void removeUid(int uid) {
-        mLastUidCpuActiveTimeMs.delete(uid);
+        if (mLastUidCpuActiveTimes != null) {
+            mLastUidCpuActiveTimes.removeUid(uid);
+        }
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
-        mLastUidCpuActiveTimeMs.put(startUid, null);
-        mLastUidCpuActiveTimeMs.put(endUid, null);
-        final int firstIndex = mLastUidCpuActiveTimeMs.indexOfKey(startUid);
-        final int lastIndex = mLastUidCpuActiveTimeMs.indexOfKey(endUid);
-        mLastUidCpuActiveTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        if (mLastUidCpuActiveTimes != null) {
+            mLastUidCpuActiveTimes.removeUidsInRange(startUid, endUid);
+        }
     }
 }
@@ -18,13 +18,11 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.util.Slog;
-import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_policy_time and reports CPU cluster times
@@ -42,8 +40,8 @@ import java.util.function.Consumer;
  * time entries.
  *
  * The file contains a monotonically increasing count of time for a single boot. This class
- * maintains the previous results of a call to {@link #readDelta} in order to provide a
- * proper delta.
+ * maintains the previous times per core read by {@link #readDelta} in a {@link KernelUidTimeStore}
+ * in order to provide a proper delta, computed without allocating.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
  * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
@@ -58,12 +56,14 @@ public class KernelUidCpuClusterTimeReader extends
     private static final String TAG = KernelUidCpuClusterTimeReader.class.getSimpleName();
 
     private final KernelCpuProcReader mProcReader;
-    private SparseArray<double[]> mLastUidPolicyTimeMs = new SparseArray<>();
+    // Created once the number of cores is known.
+    private KernelUidTimeStore mLastUidPolicyTimes;
 
     private int mNumClusters = -1;
     private int mNumCores;
     private int[] mNumCoresOnCluster;
 
+    private long[] mCurCoreTimes; // Reuse to avoid GC.
     private double[] mCurTime; // Reuse to avoid GC.
     private long[] mDeltaTime; // Reuse to avoid GC.
     private long[] mCurTimeRounded; // Reuse to avoid GC.
@@ -90,119 +90,139 @@ public class KernelUidCpuClusterTimeReader extends
 
     @Override
     protected void readDeltaImpl(@Nullable Callback cb) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double[] lastTimes = mLastUidPolicyTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new double[mNumClusters];
-                mLastUidPolicyTimeMs.put(uid, lastTimes);
-            }
-            if (!sumClusterTime(buf, mCurTime)) {
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
                 return;
             }
-            boolean valid = true;
-            boolean notify = false;
-            for (int i = 0; i < mNumClusters; i++) {
-                mDeltaTime[i] = (long) (mCurTime[i] - lastTimes[i]);
-                if (mDeltaTime[i] < 0) {
-                    Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
-                    valid = false;
+            while (buf.hasRemaining()) {
+                int uid = buf.get();
+                final int row = mLastUidPolicyTimes.getOrAddRow(uid);
+                if (!readCoreTimes(buf, mCurCoreTimes)) {
+                    continue;
                 }
-                notify |= mDeltaTime[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTime, 0, lastTimes, 0, mNumClusters);
-                if (cb != null) {
-                    cb.onUidCpuPolicyTime(uid, mDeltaTime);
+                boolean valid = true;
+                boolean notify = false;
+                int core = 0;
+                for (int i = 0; i < mNumClusters; i++) {
+                    double delta = 0;
+                    for (int j = 1; j <= mNumCoresOnCluster[i]; j++, core++) {
+                        delta += (double) (mCurCoreTimes[core]
+                                - mLastUidPolicyTimes.get(row, core)) * 10 / j;
+                    }
+                    mDeltaTime[i] = (long) delta;
+                    if (mDeltaTime[i] < 0) {
+                        Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
+                        valid = false;
+                    }
+                    notify |= mDeltaTime[i] > 0;
+                }
+                if (notify && valid) {
+                    mLastUidPolicyTimes.set(row, mCurCoreTimes);
+                    if (cb != null) {
+                        cb.onUidCpuPolicyTime(uid, mDeltaTime);
+                    }
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (sumClusterTime(buf, mCurTime)) {
-                for (int i = 0; i < mNumClusters; i++) {
-                    mCurTimeRounded[i] = (long) mCurTime[i];
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
+                return;
+            }
+            while (buf.hasRemaining()) {
+                int uid = buf.get();
+                if (readCoreTimes(buf, mCurCoreTimes)) {
+                    sumClusterTime(mCurCoreTimes, mCurTime);
+                    for (int i = 0; i < mNumClusters; i++) {
+                        mCurTimeRounded[i] = (long) mCurTime[i];
+                    }
+                    callback.onUidCpuPolicyTime(uid, mCurTimeRounded);
                 }
-                callback.onUidCpuPolicyTime(uid, mCurTimeRounded);
             }
-        });
+        }
     }
 
-    private boolean sumClusterTime(IntBuffer buffer, double[] clusterTime) {
+    /**
+     * Reads the times of a uid on each cluster running concurrently with 0 to the number of cores
+     * of the cluster - 1 other processes.
+     *
+     * @return false if a time is invalid.
+     */
+    private boolean readCoreTimes(IntBuffer buffer, long[] coreTimes) {
         boolean valid = true;
+        for (int core = 0; core < mNumCores; core++) {
+            int time = buffer.get();
+            if (time < 0) {
+                Slog.e(TAG, "Negative time from cluster time proc: " + time);
+                valid = false;
+            }
+            coreTimes[core] = time;
+        }
+        return valid;
+    }
+
+    private void sumClusterTime(long[] coreTimes, double[] clusterTime) {
+        int core = 0;
         for (int i = 0; i < mNumClusters; i++) {
             clusterTime[i] = 0;
-            for (int j = 1; j <= mNumCoresOnCluster[i]; j++) {
-                int time = buffer.get();
-                if (time < 0) {
-                    Slog.e(TAG, "Negative time from cluster time proc: " + time);
-                    valid = false;
-                }
-                clusterTime[i] += (double) time * 10 / j; // Unit is 10ms.
+            for (int j = 1; j <= mNumCoresOnCluster[i]; j++, core++) {
+                clusterTime[i] += (double) coreTimes[core] * 10 / j; // Unit is 10ms.
             }
         }
-        return valid;
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Reads the proc file, and returns its content positioned at the first uid entry, or null if
+     * it couldn't be read or is malformed. Both {@link #readDeltaImpl} and {@link #readAbsolute}
+     * then go over the uid entries, the former storing the times it reads. Must be called with
+     * {@link #mProcReader} held, until the buffer is consumed.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG,
-                        "Cannot parse cluster time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int numClusters = buf.get();
-            if (numClusters <= 0) {
-                Slog.wtf(TAG, "Cluster time format error: " + numClusters);
-                return;
-            }
-            if (mNumClusters == -1) {
-                mNumClusters = numClusters;
-            }
-            if (buf.remaining() < numClusters) {
-                Slog.wtf(TAG, "Too few data left in the buffer: " + buf.remaining());
-                return;
-            }
-            if (mNumCores <= 0) {
-                if (!readCoreInfo(buf, numClusters)) {
-                    return;
-                }
-            } else {
-                buf.position(buf.position() + numClusters);
-            }
-
-            if (buf.remaining() % (mNumCores + 1) != 0) {
-                Slog.wtf(TAG,
-                        "Cluster time format error: " + buf.remaining() + " / " + (mNumCores
-                                + 1));
-                return;
+    private IntBuffer readUidTimesLocked() {
+        ByteBuffer bytes = mProcReader.readBytes();
+        if (bytes == null || bytes.remaining() <= 4) {
+            // Error already logged in mProcReader.
+            return null;
+        }
+        if ((bytes.remaining() & 3) != 0) {
+            Slog.wtf(TAG,
+                    "Cannot parse cluster time proc bytes to int: " + bytes.remaining());
+            return null;
+        }
+        IntBuffer buf = bytes.asIntBuffer();
+        final int numClusters = buf.get();
+        if (numClusters <= 0) {
+            Slog.wtf(TAG, "Cluster time format error: " + numClusters);
+            return null;
+        }
+        if (mNumClusters == -1) {
+            mNumClusters = numClusters;
+        }
+        if (buf.remaining() < numClusters) {
+            Slog.wtf(TAG, "Too few data left in the buffer: " + buf.remaining());
+            return null;
+        }
+        if (mNumCores <= 0) {
+            if (!readCoreInfo(buf, numClusters)) {
+                return null;
             }
-            int numUids = buf.remaining() / (mNumCores + 1);
+        } else {
+            buf.position(buf.position() + numClusters);
+        }
 
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: " + numUids);
-            }
+        if (buf.remaining() % (mNumCores + 1) != 0) {
+            Slog.wtf(TAG,
+                    "Cluster time format error: " + buf.remaining() + " / " + (mNumCores
+                            + 1));
+            return null;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: " + buf.remaining() / (mNumCores + 1));
         }
+        return buf;
     }
 
     // Returns if it has read valid info.
@@ -219,6 +239,8 @@ public class KernelUidCpuClusterTimeReader extends
         }
         mNumCores = numCores;
         mNumCoresOnCluster = numCoresOnCluster;
+        mLastUidPolicyTimes = new KernelUidTimeStore(numCores);
+        mCurCoreTimes = new long[numCores];
         mCurTime = new double[numClusters];
         mDeltaTime = new long[numClusters];
         mCurTimeRounded = new long[numClusters];
@@ -226,14 +248,14 @@ public class KernelUidCpuClusterTimeReader extends
     }
 
     public void removeUid(int uid) {
-        mLastUidPolicyTimeMs.delete(uid);
+        if (mLastUidPolicyTimes != null) {
+            mLastUidPolicyTimes.removeUid(uid);
+        }
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
-        mLastUidPolicyTimeMs.put(startUid, null);
-        mLastUidPolicyTimeMs.put(endUid, null);
-        final int firstIndex = mLastUidPolicyTimeMs.indexOfKey(startUid);
-        final int lastIndex = mLastUidPolicyTimeMs.indexOfKey(endUid);
-        mLastUidPolicyTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        if (mLastUidPolicyTimes != null) {
+            mLastUidPolicyTimes.removeUidsInRange(startUid, endUid);
+        }
     }
 }
@@ -23,7 +23,6 @@ import android.annotation.Nullable;
 import android.os.StrictMode;
 import android.util.IntArray;
 import android.util.Slog;
-import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -32,7 +31,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -50,8 +48,8 @@ import java.util.function.Consumer;
  *
  * This provides the times a UID's processes spent executing at each different cpu frequency.
  * The file contains a monotonically increasing count of time for a single boot. This class
- * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
- * delta.
+ * maintains the previous results of a call to {@link #readDelta} in a {@link KernelUidTimeStore}
+ * in order to provide a proper delta, which is computed in place without allocating.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
  * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
@@ -76,7 +74,8 @@ public class KernelUidCpuFreqTimeReader extends
     private int mCpuFreqsCount;
     private final KernelCpuProcReader mProcReader;
 
-    private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
+    // Created once the number of freqs is known.
+    private KernelUidTimeStore mLastUidCpuFreqTimeMs;
 
     // We check the existence of proc file a few times (just in case it is not ready yet when we
     // start reading) and if it is not available, we simply ignore further read requests.
@@ -102,7 +101,12 @@ public class KernelUidCpuFreqTimeReader extends
         return mAllUidTimesAvailable;
     }
 
-    public SparseArray<long[]> getAllUidCpuFreqTimeMs() {
+    /**
+     * Returns the times per freq of each uid as of the last {@link #readDelta}, or null if the
+     * freqs haven't been read yet.
+     */
+    @Nullable
+    public KernelUidTimeStore getAllUidCpuFreqTimeMs() {
         return mLastUidCpuFreqTimeMs;
     }
 
@@ -142,6 +146,7 @@ public class KernelUidCpuFreqTimeReader extends
         mCpuFreqs = new long[mCpuFreqsCount];
         mCurTimes = new long[mCpuFreqsCount];
         mDeltaTimes = new long[mCpuFreqsCount];
+        mLastUidCpuFreqTimeMs = new KernelUidTimeStore(mCpuFreqsCount);
         for (int i = 0; i < mCpuFreqsCount; ++i) {
             mCpuFreqs[i] = Long.parseLong(freqStr[i + 1], 10);
         }
@@ -170,42 +175,50 @@ public class KernelUidCpuFreqTimeReader extends
         if (mCpuFreqs == null) {
             return;
         }
-        readImpl((buf) -> {
-            int uid = buf.get();
-            long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new long[mCpuFreqsCount];
-                mLastUidCpuFreqTimeMs.put(uid, lastTimes);
-            }
-            if (!getFreqTimeForUid(buf, mCurTimes)) {
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
                 return;
             }
-            boolean notify = false;
-            boolean valid = true;
-            for (int i = 0; i < mCpuFreqsCount; i++) {
-                mDeltaTimes[i] = mCurTimes[i] - lastTimes[i];
-                if (mDeltaTimes[i] < 0) {
-                    Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
-                    valid = false;
+            while (buf.hasRemaining()) {
+                final int uid = buf.get();
+                final int row = mLastUidCpuFreqTimeMs.getOrAddRow(uid);
+                if (!getFreqTimeForUid(buf, mCurTimes)) {
+                    continue;
                 }
-                notify |= mDeltaTimes[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTimes, 0, lastTimes, 0, mCpuFreqsCount);
-                if (callback != null) {
-                    callback.onUidCpuFreqTime(uid, mDeltaTimes);
+                boolean notify = false;
+                boolean valid = true;
+                for (int i = 0; i < mCpuFreqsCount; i++) {
+                    mDeltaTimes[i] = mCurTimes[i] - mLastUidCpuFreqTimeMs.get(row, i);
+                    if (mDeltaTimes[i] < 0) {
+                        Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
+                        valid = false;
+                    }
+                    notify |= mDeltaTimes[i] > 0;
+                }
+                if (notify && valid) {
+                    mLastUidCpuFreqTimeMs.set(row, mCurTimes);
+                    if (callback != null) {
+                        callback.onUidCpuFreqTime(uid, mDeltaTimes);
+                    }
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (getFreqTimeForUid(buf, mCurTimes)) {
-                callback.onUidCpuFreqTime(uid, mCurTimes);
+        synchronized (mProcReader) {
+            final IntBuffer buf = readUidTimesLocked();
+            if (buf == null) {
+                return;
             }
-        });
+            while (buf.hasRemaining()) {
+                final int uid = buf.get();
+                if (getFreqTimeForUid(buf, mCurTimes)) {
+                    callback.onUidCpuFreqTime(uid, mCurTimes);
+                }
+            }
+        }
     }
 
     private boolean getFreqTimeForUid(IntBuffer buffer, long[] freqTime) {
@@ -221,54 +234,47 @@ public class KernelUidCpuFreqTimeReader extends
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Reads the proc file, and returns its content positioned at the first uid entry, or null if
+     * it couldn't be read or is malformed. Both {@link #readDeltaImpl} and {@link #readAbsolute}
+     * then go over the uid entries, the former storing the times it reads. Must be called with
+     * {@link #mProcReader} held, until the buffer is consumed.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int freqs = buf.get();
-            if (freqs != mCpuFreqsCount) {
-                Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
-                return;
-            }
-            if (buf.remaining() % (freqs + 1) != 0) {
-                Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
-                return;
-            }
-            int numUids = buf.remaining() / (freqs + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: #" + numUids);
-            }
+    private IntBuffer readUidTimesLocked() {
+        ByteBuffer bytes = mProcReader.readBytes();
+        if (bytes == null || bytes.remaining() <= 4) {
+            // Error already logged in mProcReader.
+            return null;
         }
+        if ((bytes.remaining() & 3) != 0) {
+            Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
+            return null;
+        }
+        IntBuffer buf = bytes.asIntBuffer();
+        final int freqs = buf.get();
+        if (freqs != mCpuFreqsCount) {
+            Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
+            return null;
+        }
+        if (buf.remaining() % (freqs + 1) != 0) {
+            Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
+            return null;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: #" + buf.remaining() / (freqs + 1));
+        }
+        return buf;
     }
 
     public void removeUid(int uid) {
-        mLastUidCpuFreqTimeMs.delete(uid);
+        if (mLastUidCpuFreqTimeMs != null) {
+            mLastUidCpuFreqTimeMs.removeUid(uid);
+        }
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
-        mLastUidCpuFreqTimeMs.put(startUid, null);
-        mLastUidCpuFreqTimeMs.put(endUid, null);
-        final int firstIndex = mLastUidCpuFreqTimeMs.indexOfKey(startUid);
-        final int lastIndex = mLastUidCpuFreqTimeMs.indexOfKey(endUid);
-        mLastUidCpuFreqTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        if (mLastUidCpuFreqTimeMs != null) {
+            mLastUidCpuFreqTimeMs.removeUidsInRange(startUid, endUid);
+        }
     }
 
     /**
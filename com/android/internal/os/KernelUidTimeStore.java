@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import libcore.util.EmptyArray;
+
+import java.util.Arrays;
+
+/**
+ * Stores a fixed number of times per uid, such as the last times read from a kernel uid cpu time
+ * proc file by the KernelUidCpu*TimeReaders, in one contiguous long array with a row of
+ * {@link #getWidth} values per uid.
+ *
+ * Rows are kept sorted by uid. The proc files list uids in increasing order, so when they are
+ * looked up in that order with {@link #getOrAddRow}, finding a row takes constant time, and
+ * reading a whole file allocates nothing once every uid has a row.
+ *
+ * The stored values are read with a {@link Cursor}, or by row with {@link #get}.
+ *
+ * This class is NOT thread-safe.
+ */
+public final class KernelUidTimeStore {
+    private final int mWidth;
+    private int[] mUids = EmptyArray.INT;
+    private long[] mTimes = EmptyArray.LONG;
+    private int mSize;
+
+    // Row following the last one looked up, where the next uid is most likely to be.
+    private int mNextRow;
+
+    private final Cursor mCursor = new Cursor();
+
+    /**
+     * @param width The number of values stored per uid.
+     */
+    public KernelUidTimeStore(int width) {
+        mWidth = width;
+    }
+
+    /** Returns the number of values stored per uid. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Returns the number of uids stored. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the row of the given uid, or a negative number if it has none. */
+    public int indexOfUid(int uid) {
+        if (mNextRow < mSize && mUids[mNextRow] == uid) {
+            return mNextRow;
+        }
+        return Arrays.binarySearch(mUids, 0, mSize, uid);
+    }
+
+    /**
+     * Returns the row of the given uid, adding one with all its values at 0 if it has none.
+     * Rows of other uids may move.
+     */
+    public int getOrAddRow(int uid) {
+        int row = indexOfUid(uid);
+        if (row < 0) {
+            row = ~row;
+            insertRow(row, uid);
+        }
+        mNextRow = row + 1;
+        return row;
+    }
+
+    /** Returns the uid of the given row. */
+    public int getUid(int row) {
+        return mUids[row];
+    }
+
+    /** Returns the value at the given column of the given row. */
+    public long get(int row, int column) {
+        return mTimes[row * mWidth + column];
+    }
+
+    /** Sets the {@link #getWidth} values of the given row. */
+    public void set(int row, long[] values) {
+        System.arraycopy(values, 0, mTimes, row * mWidth, mWidth);
+    }
+
+    /** Copies the {@link #getWidth} values of the given row into {@code out}. */
+    public void copyRow(int row, long[] out) {
+        System.arraycopy(mTimes, row * mWidth, out, 0, mWidth);
+    }
+
+    public void removeUid(int uid) {
+        final int row = indexOfUid(uid);
+        if (row >= 0) {
+            removeRows(row, row + 1);
+        }
+    }
+
+    /** Removes the uids from {@code startUid} to {@code endUid}, both included. */
+    public void removeUidsInRange(int startUid, int endUid) {
+        if (endUid < startUid) {
+            return;
+        }
+        int start = Arrays.binarySearch(mUids, 0, mSize, startUid);
+        if (start < 0) {
+            start = ~start;
+        }
+        int end = Arrays.binarySearch(mUids, 0, mSize, endUid);
+        end = end < 0 ? ~end : end + 1;
+        if (start < end) {
+            removeRows(start, end);
+        }
+    }
+
+    public void clear() {
+        mSize = 0;
+        mNextRow = 0;
+    }
+
+    /**
+     * Returns a cursor over the stored uids, in increasing order, positioned before the first
+     * one. The same cursor is returned every time, and it is invalidated by any modification of
+     * the store.
+     */
+    public Cursor cursor() {
+        mCursor.mRow = -1;
+        return mCursor;
+    }
+
+    private void insertRow(int row, int uid) {
+        if (mSize == mUids.length) {
+            final int capacity = Math.max(mSize * 2, 16);
+            mUids = Arrays.copyOf(mUids, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity * mWidth);
+        }
+        if (row < mSize) {
+            System.arraycopy(mUids, row, mUids, row + 1, mSize - row);
+            System.arraycopy(mTimes, row * mWidth, mTimes, (row + 1) * mWidth,
+                    (mSize - row) * mWidth);
+        }
+        mUids[row] = uid;
+        Arrays.fill(mTimes, row * mWidth, (row + 1) * mWidth, 0);
+        mSize++;
+    }
+
+    private void removeRows(int start, int end) {
+        System.arraycopy(mUids, end, mUids, start, mSize - end);
+        System.arraycopy(mTimes, end * mWidth, mTimes, start * mWidth, (mSize - end) * mWidth);
+        mSize -= end - start;
+        mNextRow = 0;
+    }
+
+    /**
+     * Iterates over the uids of a {@link KernelUidTimeStore} and their values.
+     */
+    public final class Cursor {
+        private int mRow;
+
+        private Cursor() {
+        }
+
+        /** Moves to the next uid, returning false if there is none. */
+        public boolean moveToNext() {
+            return ++mRow < mSize;
+        }
+
+        public int getUid() {
+            return mUids[mRow];
+        }
+
+        /** Returns the value at the given column for the current uid. */
+        public long getTime(int column) {
+            return mTimes[mRow * mWidth + column];
+        }
+
+        /** Copies the {@link #getWidth} values of the current uid into {@code out}. */
+        public void copyTimes(long[] out) {
+            System.arraycopy(mTimes, mRow * mWidth, out, 0, mWidth);
+        }
+    }
+}
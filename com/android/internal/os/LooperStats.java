@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import android.os.Looper;
+import android.os.Message;
+import android.text.format.DateFormat;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.Preconditions;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects how long messages waited in the queue and how long they took to dispatch, per
+ * handler class, callback class and what, for the loopers it {@link #attach observes}.
+ *
+ * <p>All entries and their histograms are allocated up front, so recording a message never
+ * allocates. Once {@link #getMaxEntries} distinct messages have been seen, further ones are
+ * counted in a single overflow entry until the stats are {@link #reset}.
+ */
+public class LooperStats implements Looper.Observer {
+    /**
+     * Number of buckets of the queueing delay histograms. Bucket {@code i} counts messages that
+     * waited less than 2^i milliseconds (and at least 2^(i-1)), the last bucket counts all
+     * later messages.
+     */
+    @VisibleForTesting
+    public static final int DELAY_HISTOGRAM_BUCKETS = 16;
+
+    /**
+     * Number of buckets of the dispatch time histograms, as {@link #DELAY_HISTOGRAM_BUCKETS} but
+     * in microseconds.
+     */
+    @VisibleForTesting
+    public static final int DISPATCH_HISTOGRAM_BUCKETS = 24;
+
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final Object mLock = new Object();
+    private final int mMaxEntries;
+    @GuardedBy("mLock")
+    private final Entry[] mEntries;
+    /** Open-addressing table of index + 1 into {@link #mEntries}, 0 for an empty slot. */
+    @GuardedBy("mLock")
+    private final int[] mTable;
+    @GuardedBy("mLock")
+    private int mEntryCount;
+    @GuardedBy("mLock")
+    private final Entry mOverflowEntry = new Entry();
+    @GuardedBy("mLock")
+    private long mStartTime = System.currentTimeMillis();
+
+    public LooperStats() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public LooperStats(int maxEntries) {
+        Preconditions.checkArgumentPositive(maxEntries, "maxEntries");
+        mMaxEntries = maxEntries;
+        mEntries = new Entry[maxEntries];
+        for (int i = 0; i < maxEntries; i++) {
+            mEntries[i] = new Entry();
+        }
+        // At most half full, so that probes stay short.
+        mTable = new int[Integer.highestOneBit(maxEntries * 2 - 1) << 1];
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    /** Starts observing the messages dispatched by the given looper. */
+    public void attach(Looper looper) {
+        looper.setObserver(this);
+    }
+
+    /** Stops observing the given looper, if this was observing it. */
+    public void detach(Looper looper) {
+        if (looper.getObserver() == this) {
+            looper.setObserver(null);
+        }
+    }
+
+    @Override
+    public void messageDispatched(Message msg, long queueDelayMs, long dispatchMicros) {
+        final Class<?> handlerClass = msg.getTarget().getClass();
+        final Runnable callback = msg.getCallback();
+        final Class<?> callbackClass = callback != null ? callback.getClass() : null;
+        final int what = msg.what;
+
+        // Only contended while the stats are being dumped or reset, unless several loopers
+        // share these stats.
+        synchronized (mLock) {
+            findOrAddEntryLocked(handlerClass, callbackClass, what)
+                    .record(queueDelayMs, dispatchMicros);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Entry findOrAddEntryLocked(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        final int mask = mTable.length - 1;
+        int slot = hash(handlerClass, callbackClass, what) & mask;
+        while (true) {
+            final int index = mTable[slot] - 1;
+            if (index < 0) {
+                break;
+            }
+            final Entry entry = mEntries[index];
+            if (entry.handlerClass == handlerClass && entry.callbackClass == callbackClass
+                    && entry.what == what) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mEntryCount == mMaxEntries) {
+            return mOverflowEntry;
+        }
+        final Entry entry = mEntries[mEntryCount++];
+        entry.handlerClass = handlerClass;
+        entry.callbackClass = callbackClass;
+        entry.what = what;
+        mTable[slot] = mEntryCount;
+        return entry;
+    }
+
+    private static int hash(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        int h = System.identityHashCode(handlerClass);
+        h = 31 * h + System.identityHashCode(callbackClass);
+        h = 31 * h + what;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns a copy of the entries, slowest first in total, followed by the overflow entry if
+     * it has any messages.
+     */
+    @GuardedBy("mLock")
+    private List<Entry> getEntriesLocked() {
+        final List<Entry> entries = new ArrayList<>(mEntryCount + 1);
+        for (int i = 0; i < mEntryCount; i++) {
+            entries.add(new Entry(mEntries[i]));
+        }
+        entries.sort((o1, o2) ->
+                Long.compare(o2.totalDispatchMicros, o1.totalDispatchMicros));
+        if (mOverflowEntry.messageCount > 0) {
+            entries.add(new Entry(mOverflowEntry));
+        }
+        return entries;
+    }
+
+    public void dump(PrintWriter pw) {
+        final long startTime;
+        final List<Entry> entries;
+        synchronized (mLock) {
+            startTime = mStartTime;
+            entries = getEntriesLocked();
+        }
+        pw.print("Start time: ");
+        pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", startTime));
+        pw.println("Raw data (handler_class,callback_class,what,messages,total_delay_ms,"
+                + "max_delay_ms,total_dispatch_micros,max_dispatch_micros):");
+        final StringBuilder sb = new StringBuilder();
+        for (Entry e : entries) {
+            sb.setLength(0);
+            sb.append("    ").append(e).append(',').append(e.messageCount)
+                    .append(',').append(e.totalDelayMs).append(',').append(e.maxDelayMs)
+                    .append(',').append(e.totalDispatchMicros)
+                    .append(',').append(e.maxDispatchMicros);
+            pw.println(sb);
+        }
+        pw.println();
+        pw.println("Queueing delay histograms (handler_class,callback_class,what:"
+                + " <upper_bound_ms>=<messages>...):");
+        for (Entry e : entries) {
+            sb.setLength(0);
+            sb.append("    ").append(e).append(':');
+            appendHistogram(sb, e.delayHistogram);
+            pw.println(sb);
+        }
+        pw.println();
+        pw.println("Dispatch time histograms (handler_class,callback_class,what:"
+                + " <upper_bound_micros>=<messages>...):");
+        for (Entry e : entries) {
+            sb.setLength(0);
+            sb.append("    ").append(e).append(':');
+            appendHistogram(sb, e.dispatchHistogram);
+            pw.println(sb);
+        }
+    }
+
+    private static void appendHistogram(StringBuilder sb, long[] histogram) {
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            sb.append(' ');
+            if (i == histogram.length - 1) {
+                sb.append("inf");
+            } else {
+                sb.append(1L << i);
+            }
+            sb.append('=').append(histogram[i]);
+        }
+    }
+
+    /** Writes the stats as a {@link LooperStatsProto}. */
+    public void dump(ProtoOutputStream proto) {
+        final long startTime;
+        final List<Entry> entries;
+        synchronized (mLock) {
+            startTime = mStartTime;
+            entries = getEntriesLocked();
+        }
+        proto.write(LooperStatsProto.START_TIME_MILLIS, startTime);
+        for (Entry e : entries) {
+            writeEntry(proto, e.isOverflow() ? LooperStatsProto.OVERFLOW_ENTRY
+                    : LooperStatsProto.ENTRIES, e);
+        }
+    }
+
+    private static void writeEntry(ProtoOutputStream proto, long fieldId, Entry e) {
+        final long token = proto.start(fieldId);
+        if (!e.isOverflow()) {
+            proto.write(LooperStatsProto.Entry.HANDLER_CLASS_NAME, e.handlerClass.getName());
+        }
+        if (e.callbackClass != null) {
+            proto.write(LooperStatsProto.Entry.CALLBACK_CLASS_NAME, e.callbackClass.getName());
+        }
+        proto.write(LooperStatsProto.Entry.WHAT, e.what);
+        proto.write(LooperStatsProto.Entry.MESSAGE_COUNT, e.messageCount);
+        proto.write(LooperStatsProto.Entry.TOTAL_DELAY_MILLIS, e.totalDelayMs);
+        proto.write(LooperStatsProto.Entry.MAX_DELAY_MILLIS, e.maxDelayMs);
+        proto.write(LooperStatsProto.Entry.TOTAL_DISPATCH_MICROS, e.totalDispatchMicros);
+        proto.write(LooperStatsProto.Entry.MAX_DISPATCH_MICROS, e.maxDispatchMicros);
+        proto.writePackedInt64(LooperStatsProto.Entry.DELAY_HISTOGRAM, e.delayHistogram);
+        proto.writePackedInt64(LooperStatsProto.Entry.DISPATCH_HISTOGRAM, e.dispatchHistogram);
+        proto.end(token);
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            for (int i = 0; i < mEntryCount; i++) {
+                mEntries[i].clear();
+            }
+            mOverflowEntry.clear();
+            Arrays.fill(mTable, 0);
+            mEntryCount = 0;
+            mStartTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Field ids of the proto written by {@link #dump(ProtoOutputStream)}:
+     * <pre>
+     * message LooperStatsProto {
+     *     optional int64 start_time_millis = 1;
+     *     repeated Entry entries = 2;
+     *     // Messages seen once all entries were taken.
+     *     optional Entry overflow_entry = 3;
+     * }
+     * message Entry {
+     *     optional string handler_class_name = 1;
+     *     // Set for messages posted as a Runnable.
+     *     optional string callback_class_name = 2;
+     *     optional int32 what = 3;
+     *     optional int64 message_count = 4;
+     *     optional int64 total_delay_millis = 5;
+     *     optional int64 max_delay_millis = 6;
+     *     optional int64 total_dispatch_micros = 7;
+     *     optional int64 max_dispatch_micros = 8;
+     *     // See DELAY_HISTOGRAM_BUCKETS.
+     *     repeated int64 delay_histogram = 9 [packed = true];
+     *     // See DISPATCH_HISTOGRAM_BUCKETS.
+     *     repeated int64 dispatch_histogram = 10 [packed = true];
+     * }
+     * </pre>
+     */
+    public static final class LooperStatsProto {
+        private static final long SINGLE = ProtoOutputStream.FIELD_COUNT_SINGLE;
+        private static final long REPEATED = ProtoOutputStream.FIELD_COUNT_REPEATED;
+        private static final long PACKED = ProtoOutputStream.FIELD_COUNT_PACKED;
+
+        public static final long START_TIME_MILLIS =
+                ProtoOutputStream.makeFieldId(1, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+        public static final long ENTRIES =
+                ProtoOutputStream.makeFieldId(2, REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+        public static final long OVERFLOW_ENTRY =
+                ProtoOutputStream.makeFieldId(3, SINGLE | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+
+        public static final class Entry {
+            public static final long HANDLER_CLASS_NAME =
+                    ProtoOutputStream.makeFieldId(1, SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+            public static final long CALLBACK_CLASS_NAME =
+                    ProtoOutputStream.makeFieldId(2, SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+            public static final long WHAT =
+                    ProtoOutputStream.makeFieldId(3, SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+            public static final long MESSAGE_COUNT =
+                    ProtoOutputStream.makeFieldId(4, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long TOTAL_DELAY_MILLIS =
+                    ProtoOutputStream.makeFieldId(5, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long MAX_DELAY_MILLIS =
+                    ProtoOutputStream.makeFieldId(6, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long TOTAL_DISPATCH_MICROS =
+                    ProtoOutputStream.makeFieldId(7, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long MAX_DISPATCH_MICROS =
+                    ProtoOutputStream.makeFieldId(8, SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long DELAY_HISTOGRAM =
+                    ProtoOutputStream.makeFieldId(9, PACKED | ProtoOutputStream.FIELD_TYPE_INT64);
+            public static final long DISPATCH_HISTOGRAM =
+                    ProtoOutputStream.makeFieldId(10, PACKED | ProtoOutputStream.FIELD_TYPE_INT64);
+        }
+    }
+
+    private static class Entry {
+        /** Null for the overflow entry. */
+        Class<?> handlerClass;
+        Class<?> callbackClass;
+        int what;
+        long messageCount;
+        long totalDelayMs;
+        long maxDelayMs;
+        long totalDispatchMicros;
+        long maxDispatchMicros;
+        final long[] delayHistogram;
+        final long[] dispatchHistogram;
+
+        Entry() {
+            delayHistogram = new long[DELAY_HISTOGRAM_BUCKETS];
+            dispatchHistogram = new long[DISPATCH_HISTOGRAM_BUCKETS];
+        }
+
+        Entry(Entry other) {
+            handlerClass = other.handlerClass;
+            callbackClass = other.callbackClass;
+            what = other.what;
+            messageCount = other.messageCount;
+            totalDelayMs = other.totalDelayMs;
+            maxDelayMs = other.maxDelayMs;
+            totalDispatchMicros = other.totalDispatchMicros;
+            maxDispatchMicros = other.maxDispatchMicros;
+            delayHistogram = other.delayHistogram.clone();
+            dispatchHistogram = other.dispatchHistogram.clone();
+        }
+
+        void record(long delayMs, long dispatchMicros) {
+            messageCount++;
+            totalDelayMs += delayMs;
+            if (delayMs > maxDelayMs) {
+                maxDelayMs = delayMs;
+            }
+            totalDispatchMicros += dispatchMicros;
+            if (dispatchMicros > maxDispatchMicros) {
+                maxDispatchMicros = dispatchMicros;
+            }
+            delayHistogram[Math.min(64 - Long.numberOfLeadingZeros(delayMs),
+                    DELAY_HISTOGRAM_BUCKETS - 1)]++;
+            dispatchHistogram[Math.min(64 - Long.numberOfLeadingZeros(dispatchMicros),
+                    DISPATCH_HISTOGRAM_BUCKETS - 1)]++;
+        }
+
+        boolean isOverflow() {
+            return handlerClass == null;
+        }
+
+        void clear() {
+            handlerClass = null;
+            callbackClass = null;
+            what = 0;
+            messageCount = 0;
+            totalDelayMs = 0;
+            maxDelayMs = 0;
+            totalDispatchMicros = 0;
+            maxDispatchMicros = 0;
+            Arrays.fill(delayHistogram, 0);
+            Arrays.fill(dispatchHistogram, 0);
+        }
+
+        @Override
+        public String toString() {
+            if (isOverflow()) {
+                return "OVERFLOW";
+            }
+            return handlerClass.getName() + ","
+                    + (callbackClass != null ? callbackClass.getName() : "") + "," + what;
+        }
+    }
+}
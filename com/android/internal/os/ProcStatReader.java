@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the /proc/stat, /proc/loadavg and /proc/[pid]/stat files sampled by
+ * {@link ProcessCpuTracker}.
+ *
+ * Unlike {@link android.os.Process#readProcFile}, which interprets a format array and returns
+ * strings, a ProcStatReader reads each file into the same buffer and parses the fields it needs in
+ * place into the primitive arrays given by the caller, so sampling hundreds of processes does not
+ * allocate per process.
+ *
+ * A ProcStatReader is not thread-safe.
+ */
+public final class ProcStatReader {
+    // All the files read fit in a page, and only the first line of /proc/stat is needed.
+    private static final int BUFFER_SIZE = 4096;
+
+    /** Number of values filled in by {@link #readSystemCpu}. */
+    public static final int SYSTEM_CPU_COUNT = 7;
+
+    /** Indices of the values filled in by {@link #readProcessStat}. */
+    public static final int PROCESS_STAT_MINOR_FAULTS = 0;
+    public static final int PROCESS_STAT_MAJOR_FAULTS = 1;
+    public static final int PROCESS_STAT_UTIME = 2;
+    public static final int PROCESS_STAT_STIME = 3;
+    public static final int PROCESS_STAT_VSIZE = 4;
+    public static final int PROCESS_STAT_COUNT = 5;
+
+    private final String mSystemStatFile;
+    private final String mLoadAverageFile;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLength;
+    private int mPos;
+    // Whether a number was expected but not found since the last call to readFile.
+    private boolean mMissingValue;
+
+    // Bounds of the name of the last process stat file read.
+    private int mNameStart;
+    private int mNameEnd;
+
+    /**
+     * @param procRoot The directory procfs is mounted on, normally "/proc".
+     */
+    public ProcStatReader(String procRoot) {
+        mSystemStatFile = procRoot + "/stat";
+        mLoadAverageFile = procRoot + "/loadavg";
+    }
+
+    /**
+     * Reads the user, nice, system, idle, iowait, irq and softirq times of all CPUs, in jiffies,
+     * from the first line of /proc/stat.
+     *
+     * @param out receives the {@link #SYSTEM_CPU_COUNT} times.
+     * @return false if the file could not be read or was truncated.
+     */
+    public boolean readSystemCpu(long[] out) {
+        if (!readFile(mSystemStatFile)) {
+            return false;
+        }
+        mPos = 0;
+        // Skip the "cpu" label.
+        skipField();
+        for (int i = 0; i < SYSTEM_CPU_COUNT; i++) {
+            out[i] = parseLong();
+        }
+        return isComplete();
+    }
+
+    /**
+     * Reads the 1, 5 and 15 minute load averages from /proc/loadavg.
+     *
+     * @return false if the file could not be read or was truncated.
+     */
+    public boolean readLoadAverage(float[] out) {
+        if (!readFile(mLoadAverageFile)) {
+            return false;
+        }
+        mPos = 0;
+        for (int i = 0; i < 3; i++) {
+            out[i] = parseFloat();
+        }
+        return isComplete();
+    }
+
+    /**
+     * Reads the fault counts, the user and system times in jiffies, and the virtual memory size
+     * from a /proc/[pid]/stat or /proc/[pid]/task/[tid]/stat file. The name of the process can
+     * then be read with {@link #getProcessName}.
+     *
+     * @param out receives the {@link #PROCESS_STAT_COUNT} values.
+     * @return false if the file could not be read, for instance because the process is gone, or
+     *         was truncated.
+     */
+    public boolean readProcessStat(String statFile, long[] out) {
+        if (!readFile(statFile)) {
+            return false;
+        }
+        // The name, in field 2, is between parentheses and may contain spaces and parentheses
+        // itself, so fields are counted from the last closing parenthesis.
+        int nameEnd = mLength - 1;
+        while (nameEnd >= 0 && mBuffer[nameEnd] != ')') {
+            nameEnd--;
+        }
+        int nameStart = 0;
+        while (nameStart < nameEnd && mBuffer[nameStart] != '(') {
+            nameStart++;
+        }
+        if (nameEnd < 0 || nameStart == nameEnd) {
+            return false;
+        }
+        mNameStart = nameStart + 1;
+        mNameEnd = nameEnd;
+
+        mPos = nameEnd + 1;
+        skipFields(7);                                  // 3 to 9
+        out[PROCESS_STAT_MINOR_FAULTS] = parseLong();   // 10: minor faults
+        skipFields(1);
+        out[PROCESS_STAT_MAJOR_FAULTS] = parseLong();   // 12: major faults
+        skipFields(1);
+        out[PROCESS_STAT_UTIME] = parseLong();          // 14: utime
+        out[PROCESS_STAT_STIME] = parseLong();          // 15: stime
+        skipFields(7);                                  // 16 to 22
+        out[PROCESS_STAT_VSIZE] = parseLong();          // 23: vsize
+        return isComplete();
+    }
+
+    /**
+     * Returns the name of the process of the last stat file read by {@link #readProcessStat}.
+     * Unlike the values, this allocates, and is meant for processes seen for the first time.
+     */
+    public String getProcessName() {
+        return new String(mBuffer, mNameStart, mNameEnd - mNameStart, StandardCharsets.UTF_8);
+    }
+
+    private boolean readFile(String path) {
+        mMissingValue = false;
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(path, OsConstants.O_RDONLY, 0);
+            mLength = Os.read(fd, mBuffer, 0, mBuffer.length);
+            return mLength > 0;
+        } catch (ErrnoException | InterruptedIOException e) {
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Whether every value parsed since the file was read was there, and the last one was
+     * followed by something, as all the values read are, rather than cut off by the end of the
+     * data.
+     */
+    private boolean isComplete() {
+        return !mMissingValue && mPos < mLength;
+    }
+
+    private void skipSpaces() {
+        while (mPos < mLength && mBuffer[mPos] == ' ') {
+            mPos++;
+        }
+    }
+
+    private void skipField() {
+        skipSpaces();
+        while (mPos < mLength && mBuffer[mPos] != ' ' && mBuffer[mPos] != '\n') {
+            mPos++;
+        }
+    }
+
+    private void skipFields(int count) {
+        for (int i = 0; i < count; i++) {
+            skipField();
+        }
+    }
+
+    private long parseLong() {
+        skipSpaces();
+        boolean negative = false;
+        if (mPos < mLength && mBuffer[mPos] == '-') {
+            negative = true;
+            mPos++;
+        }
+        final long value = parseDigits();
+        return negative ? -value : value;
+    }
+
+    private long parseDigits() {
+        final int start = mPos;
+        long value = 0;
+        while (mPos < mLength) {
+            final int digit = mBuffer[mPos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            mPos++;
+        }
+        if (mPos == start) {
+            mMissingValue = true;
+        }
+        return value;
+    }
+
+    private float parseFloat() {
+        skipSpaces();
+        final long whole = parseDigits();
+        if (mPos >= mLength || mBuffer[mPos] != '.') {
+            return whole;
+        }
+        mPos++;
+        final int fractionStart = mPos;
+        final long fraction = parseDigits();
+        float divisor = 1;
+        for (int i = fractionStart; i < mPos; i++) {
+            divisor *= 10;
+        }
+        return whole + fraction / divisor;
+    }
+}
@@ -16,8 +16,6 @@
 
 package com.android.internal.os;
 
-import static android.os.Process.*;
-
 import android.os.FileUtils;
 import android.os.Process;
 import android.os.StrictMode;
@@ -26,6 +24,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
@@ -48,94 +47,31 @@ public class ProcessCpuTracker {
     private static final boolean DEBUG = false;
     private static final boolean localLOGV = DEBUG || false;
 
-    private static final int[] PROCESS_STATS_FORMAT = new int[] {
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_PARENS,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 10: minor faults
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 12: major faults
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 14: utime
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 15: stime
-    };
+    // With mSkipIdleProcesses, after this many samples without CPU use a process is no longer
+    // read on every sample.
+    private static final int IDLE_SAMPLES_BEFORE_SKIPPING = 4;
+    // How many samples in a row an idle process may be skipped.
+    private static final int MAX_SKIPPED_SAMPLES = 3;
 
-    static final int PROCESS_STAT_MINOR_FAULTS = 0;
-    static final int PROCESS_STAT_MAJOR_FAULTS = 1;
-    static final int PROCESS_STAT_UTIME = 2;
-    static final int PROCESS_STAT_STIME = 3;
-
-    /** Stores user time and system time in jiffies. */
-    private final long[] mProcessStatsData = new long[4];
-
-    /** Stores user time and system time in jiffies.  Used for
-     * public API to retrieve CPU use for a process.  Must lock while in use. */
-    private final long[] mSinglePidStatsData = new long[4];
-
-    private static final int[] PROCESS_FULL_STATS_FORMAT = new int[] {
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_PARENS|PROC_OUT_STRING,    // 2: name
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 10: minor faults
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 12: major faults
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 14: utime
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 15: stime
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 23: vsize
-    };
+    private final String mProcRoot;
 
-    static final int PROCESS_FULL_STAT_MINOR_FAULTS = 1;
-    static final int PROCESS_FULL_STAT_MAJOR_FAULTS = 2;
-    static final int PROCESS_FULL_STAT_UTIME = 3;
-    static final int PROCESS_FULL_STAT_STIME = 4;
-    static final int PROCESS_FULL_STAT_VSIZE = 5;
-
-    private final String[] mProcessFullStatsStringData = new String[6];
-    private final long[] mProcessFullStatsData = new long[6];
-
-    private static final int[] SYSTEM_CPU_FORMAT = new int[] {
-        PROC_SPACE_TERM|PROC_COMBINE,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 1: user time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 2: nice time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 3: sys time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 4: idle time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 5: iowait time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 6: irq time
-        PROC_SPACE_TERM|PROC_OUT_LONG                   // 7: softirq time
-    };
+    /** Reads all the files sampled by {@link #update}. */
+    private final ProcStatReader mReader;
 
-    private final long[] mSystemCpuData = new long[7];
+    private final long[] mProcessStatsData = new long[ProcStatReader.PROCESS_STAT_COUNT];
 
-    private static final int[] LOAD_AVERAGE_FORMAT = new int[] {
-        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 0: 1 min
-        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 1: 5 mins
-        PROC_SPACE_TERM|PROC_OUT_FLOAT                  // 2: 15 mins
-    };
+    /** Used for public API to retrieve CPU use for a process.  Must lock while in use. */
+    private final ProcStatReader mSinglePidReader;
+    private final long[] mSinglePidStatsData = new long[ProcStatReader.PROCESS_STAT_COUNT];
+
+    private final long[] mSystemCpuData = new long[ProcStatReader.SYSTEM_CPU_COUNT];
 
     private final float[] mLoadAverageData = new float[3];
 
     private final boolean mIncludeThreads;
 
+    private boolean mSkipIdleProcesses;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -175,6 +111,9 @@ public class ProcessCpuTracker {
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
     private boolean mWorkingProcsSorted;
 
+    // The processes that were added, removed or used CPU in the last update.
+    private final ArrayList<Stats> mChangedProcs = new ArrayList<Stats>();
+
     private boolean mFirst = true;
 
     private byte[] mBuffer = new byte[4096];
@@ -245,10 +184,14 @@ public class ProcessCpuTracker {
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        // Consecutive samples without CPU use, and how many of the last ones were skipped.
+        int idleSamples;
+        int skippedSamples;
+
+        Stats(int _pid, int parentPid, boolean includeThreads, String procRoot) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
+                final File procDir = new File(procRoot, Integer.toString(pid));
                 statFile = new File(procDir, "stat").toString();
                 cmdlineFile = new File(procDir, "cmdline").toString();
                 threadsDir = (new File(procDir, "task")).toString();
@@ -260,7 +203,7 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
+                final File procDir = new File(procRoot, Integer.toString(
                         parentPid));
                 final File taskDir = new File(
                         new File(procDir, "task"), Integer.toString(pid));
@@ -294,11 +237,33 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, "/proc");
+    }
+
+    /**
+     * @param procRoot The directory procfs is mounted on; tests may use a fake one.
+     */
+    @VisibleForTesting
+    public ProcessCpuTracker(boolean includeThreads, String procRoot) {
         mIncludeThreads = includeThreads;
+        mProcRoot = procRoot;
+        mReader = new ProcStatReader(procRoot);
+        mSinglePidReader = new ProcStatReader(procRoot);
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
 
+    /**
+     * Whether to read processes that have been idle for a while only on some of the samples.
+     * <p>
+     * A skipped process reports no CPU use for that sample, and the CPU it used meanwhile is
+     * reported by the next sample that reads it. This is only suitable for a tracker whose
+     * callers look at totals over several samples, not at the use in each sample.
+     */
+    public void setSkipIdleProcesses(boolean skip) {
+        mSkipIdleProcesses = skip;
+    }
+
     public void onLoadChanged(float load1, float load5, float load15) {
     }
 
@@ -320,8 +285,7 @@ public class ProcessCpuTracker {
         final long nowWallTime = System.currentTimeMillis();
 
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
-                null, sysCpu, null)) {
+        if (mReader.readSystemCpu(sysCpu)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
             // Total system time is simply system time.
@@ -383,16 +347,16 @@ public class ProcessCpuTracker {
         mLastSampleWallTime = mCurrentSampleWallTime;
         mCurrentSampleWallTime = nowWallTime;
 
+        mChangedProcs.clear();
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats(mProcRoot, -1, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
-                null, null, loadAverages)) {
+        if (mReader.readLoadAverage(loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
             float load15 = loadAverages[2];
@@ -436,18 +400,30 @@ public class ProcessCpuTracker {
                         + " pid " + pid + ": " + st);
 
                 if (st.interesting) {
+                    if (mSkipIdleProcesses && st.idleSamples >= IDLE_SAMPLES_BEFORE_SKIPPING
+                            && st.skippedSamples < MAX_SKIPPED_SAMPLES) {
+                        // Since the base times are left alone, any CPU used meanwhile is
+                        // reported when the process is read again.
+                        st.skippedSamples++;
+                        st.rel_utime = 0;
+                        st.rel_stime = 0;
+                        st.rel_minfaults = 0;
+                        st.rel_majfaults = 0;
+                        continue;
+                    }
+                    st.skippedSamples = 0;
+
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
+                    if (!mReader.readProcessStat(st.statFile, procStats)) {
                         continue;
                     }
 
-                    final long minfaults = procStats[PROCESS_STAT_MINOR_FAULTS];
-                    final long majfaults = procStats[PROCESS_STAT_MAJOR_FAULTS];
-                    final long utime = procStats[PROCESS_STAT_UTIME] * mJiffyMillis;
-                    final long stime = procStats[PROCESS_STAT_STIME] * mJiffyMillis;
+                    final long minfaults = procStats[ProcStatReader.PROCESS_STAT_MINOR_FAULTS];
+                    final long majfaults = procStats[ProcStatReader.PROCESS_STAT_MAJOR_FAULTS];
+                    final long utime = procStats[ProcStatReader.PROCESS_STAT_UTIME] * mJiffyMillis;
+                    final long stime = procStats[ProcStatReader.PROCESS_STAT_STIME] * mJiffyMillis;
 
                     if (utime == st.base_utime && stime == st.base_stime) {
                         st.rel_utime = 0;
@@ -457,8 +433,10 @@ public class ProcessCpuTracker {
                         if (st.active) {
                             st.active = false;
                         }
+                        st.idleSamples++;
                         continue;
                     }
+                    st.idleSamples = 0;
 
                     if (!st.active) {
                         st.active = true;
@@ -489,6 +467,9 @@ public class ProcessCpuTracker {
                     st.base_minfaults = minfaults;
                     st.base_majfaults = majfaults;
                     st.working = true;
+                    if (parentPid < 0) {
+                        mChangedProcs.add(st);
+                    }
                 }
 
                 continue;
@@ -496,7 +477,7 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
+                st = new Stats(pid, parentPid, mIncludeThreads, mProcRoot);
                 allProcs.add(curStatsIndex, st);
                 curStatsIndex++;
                 NS++;
@@ -504,29 +485,28 @@ public class ProcessCpuTracker {
                         + (parentPid < 0 ? "process" : "thread")
                         + " pid " + pid + ": " + st);
 
-                final String[] procStatsString = mProcessFullStatsStringData;
-                final long[] procStats = mProcessFullStatsData;
+                final long[] procStats = mProcessStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
-                //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
-                        procStats, null)) {
+                if (mReader.readProcessStat(st.statFile, procStats)) {
+                    final String procName = mReader.getProcessName();
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
                     // of them do use CPU, but there can be a *lot* that are
                     // not doing anything.
-                    st.vsize = procStats[PROCESS_FULL_STAT_VSIZE];
-                    if (true || procStats[PROCESS_FULL_STAT_VSIZE] != 0) {
+                    st.vsize = procStats[ProcStatReader.PROCESS_STAT_VSIZE];
+                    if (true || procStats[ProcStatReader.PROCESS_STAT_VSIZE] != 0) {
                         st.interesting = true;
-                        st.baseName = procStatsString[0];
-                        st.base_minfaults = procStats[PROCESS_FULL_STAT_MINOR_FAULTS];
-                        st.base_majfaults = procStats[PROCESS_FULL_STAT_MAJOR_FAULTS];
-                        st.base_utime = procStats[PROCESS_FULL_STAT_UTIME] * mJiffyMillis;
-                        st.base_stime = procStats[PROCESS_FULL_STAT_STIME] * mJiffyMillis;
+                        st.baseName = procName;
+                        st.base_minfaults = procStats[ProcStatReader.PROCESS_STAT_MINOR_FAULTS];
+                        st.base_majfaults = procStats[ProcStatReader.PROCESS_STAT_MAJOR_FAULTS];
+                        st.base_utime =
+                                procStats[ProcStatReader.PROCESS_STAT_UTIME] * mJiffyMillis;
+                        st.base_stime =
+                                procStats[ProcStatReader.PROCESS_STAT_STIME] * mJiffyMillis;
                     } else {
                         Slog.i(TAG, "Skipping kernel process pid " + pid
-                                + " name " + procStatsString[0]);
-                        st.baseName = procStatsString[0];
+                                + " name " + procName);
+                        st.baseName = procName;
                     }
                 } else {
                     Slog.w(TAG, "Skipping unknown process pid " + pid);
@@ -557,6 +537,9 @@ public class ProcessCpuTracker {
                 st.added = true;
                 if (!first && st.interesting) {
                     st.working = true;
+                    if (parentPid < 0) {
+                        mChangedProcs.add(st);
+                    }
                 }
                 continue;
             }
@@ -568,6 +551,9 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            if (parentPid < 0) {
+                mChangedProcs.add(st);
+            }
             allProcs.remove(curStatsIndex);
             NS--;
             if (DEBUG) Slog.v(TAG, "Removed "
@@ -588,6 +574,9 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            if (parentPid < 0) {
+                mChangedProcs.add(st);
+            }
             allProcs.remove(curStatsIndex);
             NS--;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
@@ -602,12 +591,11 @@ public class ProcessCpuTracker {
      */
     public long getCpuTimeForPid(int pid) {
         synchronized (mSinglePidStatsData) {
-            final String statFile = "/proc/" + pid + "/stat";
+            final String statFile = mProcRoot + "/" + pid + "/stat";
             final long[] statsData = mSinglePidStatsData;
-            if (Process.readProcFile(statFile, PROCESS_STATS_FORMAT,
-                    null, statsData, null)) {
-                long time = statsData[PROCESS_STAT_UTIME]
-                        + statsData[PROCESS_STAT_STIME];
+            if (mSinglePidReader.readProcessStat(statFile, statsData)) {
+                long time = statsData[ProcStatReader.PROCESS_STAT_UTIME]
+                        + statsData[ProcStatReader.PROCESS_STAT_STIME];
                 return time * mJiffyMillis;
             }
             return 0;
@@ -723,6 +711,19 @@ public class ProcessCpuTracker {
         return mWorkingProcs.get(index);
     }
 
+    /**
+     * Returns the number of processes that were added, removed or used CPU in the last
+     * {@link #update}. Unlike {@link #countWorkingStats}, this does not go through all the
+     * processes nor sort them, so it is cheap to call after every update.
+     */
+    final public int countChangedStats() {
+        return mChangedProcs.size();
+    }
+
+    final public Stats getChangedStats(int index) {
+        return mChangedProcs.get(index);
+    }
+
     final public String printCurrentLoad() {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new FastPrintWriter(sw, false, 128);
@@ -238,6 +238,25 @@ public class FastXmlSerializer implements XmlSerializer {
         return this;
     }
 
+    /**
+     * Appends a balanced element that was already serialized by another FastXmlSerializer,
+     * exactly as {@link #startTag} would start a new element here. The fragment is not
+     * escaped or indented again.
+     *
+     * @hide
+     */
+    public void fragment(String xml) throws IOException {
+        if (xml.length() == 0) {
+            return;
+        }
+        if (mInTag) {
+            append(">\n");
+            mInTag = false;
+        }
+        append(xml);
+        mLineStart = xml.charAt(xml.length()-1) == '\n';
+    }
+
     public void entityRef(String text) throws IOException, IllegalArgumentException,
             IllegalStateException {
         throw new UnsupportedOperationException();
@@ -76,6 +76,15 @@ public class FileRotator {
         public void write(OutputStream out) throws IOException;
     }
 
+    /**
+     * External class that reads data directly from a given {@link File}, such
+     * as by memory-mapping it. May be called multiple times when reading
+     * rotated data.
+     */
+    public interface FileReader {
+        public void read(File file) throws IOException;
+    }
+
     /**
      * External class that reads existing data from given {@link InputStream},
      * then writes any modified data to {@link OutputStream}.
@@ -298,6 +307,25 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Pass any rotated files that overlap the requested time range to the
+     * given {@link FileReader}, without opening them.
+     */
+    public void readMatchingFiles(FileReader reader, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // read file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "reading matching file " + name);
+
+                reader.read(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
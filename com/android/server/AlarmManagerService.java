@@ -96,6 +96,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.time.DateTimeException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -104,8 +105,10 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
+import java.util.RandomAccess;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.function.Predicate;
@@ -497,6 +500,9 @@ class AlarmManagerService extends SystemService {
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
+        // Position in mAlarmBatches, or null if this batch is not queued.
+        BatchQueue.Node queueNode;
+
         Batch() {
             start = 0;
             end = Long.MAX_VALUE;
@@ -547,6 +553,7 @@ class AlarmManagerService extends SystemService {
                 end = alarm.maxWhenElapsed;
             }
             flags |= alarm.flags;
+            BatchQueue.onBoundsChanged(queueNode);
 
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "    => now " + this);
@@ -590,6 +597,7 @@ class AlarmManagerService extends SystemService {
                 start = newStart;
                 end = newEnd;
                 flags = newFlags;
+                BatchQueue.onBoundsChanged(queueNode);
             }
             return didRemove;
         }
@@ -661,6 +669,238 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    /**
+     * The list of pending alarm batches, ordered by batch start time.
+     *
+     * <p>Backed by a randomized balanced binary tree (a treap) rather than an array, so that
+     * positional access, insertion and removal are all O(log n). Each subtree additionally tracks
+     * the earliest start and latest end of the non-standalone batches in it, which lets
+     * {@link #findFirstBatchThatCanHold} skip every subtree that cannot contain a batch able to
+     * hold a given alarm instead of testing every batch in turn. Batches report changes of their
+     * bounds through {@link #onBoundsChanged} so these summaries stay exact.
+     */
+    static final class BatchQueue extends AbstractList<Batch> implements RandomAccess {
+        static final class Node {
+            final Batch batch;
+            final int priority;
+            Node left;
+            Node right;
+            Node parent;
+            int size;
+            // Earliest start and latest end of the coalescable batches in this subtree.
+            long minStart;
+            long maxEnd;
+
+            Node(Batch batch, int priority) {
+                this.batch = batch;
+                this.priority = priority;
+            }
+        }
+
+        private final Random mRandom = new Random();
+        private Node mRoot;
+
+        // Results of the last split(); avoids allocating a pair for every operation.
+        private Node mSplitLeft;
+        private Node mSplitRight;
+
+        @Override
+        public int size() {
+            return size(mRoot);
+        }
+
+        @Override
+        public Batch get(int index) {
+            checkIndex(index, size());
+            Node node = mRoot;
+            while (true) {
+                final int leftSize = size(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index == leftSize) {
+                    return node.batch;
+                } else {
+                    index -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public void add(int index, Batch batch) {
+            checkIndex(index, size() + 1);
+            final Node node = new Node(batch, mRandom.nextInt());
+            batch.queueNode = node;
+            update(node);
+            split(mRoot, index);
+            final Node right = mSplitRight;
+            mRoot = merge(merge(mSplitLeft, node), right);
+            mRoot.parent = null;
+            modCount++;
+        }
+
+        /**
+         * Inserts the batch before all batches that start at or after it.
+         *
+         * @return the index at which the batch was inserted.
+         */
+        int addSorted(Batch batch) {
+            int index = 0;
+            Node node = mRoot;
+            while (node != null) {
+                if (node.batch.start < batch.start) {
+                    index += size(node.left) + 1;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            add(index, batch);
+            return index;
+        }
+
+        @Override
+        public Batch remove(int index) {
+            checkIndex(index, size());
+            split(mRoot, index);
+            final Node left = mSplitLeft;
+            split(mSplitRight, 1);
+            final Node removed = mSplitLeft;
+            mRoot = merge(left, mSplitRight);
+            if (mRoot != null) {
+                mRoot.parent = null;
+            }
+            removed.batch.queueNode = null;
+            modCount++;
+            return removed.batch;
+        }
+
+        @Override
+        public void clear() {
+            detach(mRoot);
+            mRoot = null;
+            modCount++;
+        }
+
+        /**
+         * Returns the index of the first batch, in start order, that is not standalone and can
+         * hold an alarm with the given delivery window, or -1 if there is none.
+         */
+        int findFirstBatchThatCanHold(long whenElapsed, long maxWhen) {
+            return findFirstBatchThatCanHold(mRoot, whenElapsed, maxWhen, 0);
+        }
+
+        private static int findFirstBatchThatCanHold(Node node, long whenElapsed, long maxWhen,
+                int offset) {
+            if (node == null || node.minStart > maxWhen || node.maxEnd < whenElapsed) {
+                return -1;
+            }
+            final int found = findFirstBatchThatCanHold(node.left, whenElapsed, maxWhen, offset);
+            if (found >= 0) {
+                return found;
+            }
+            final int index = offset + size(node.left);
+            if (isCoalescable(node.batch) && node.batch.canHold(whenElapsed, maxWhen)) {
+                return index;
+            }
+            return findFirstBatchThatCanHold(node.right, whenElapsed, maxWhen, index + 1);
+        }
+
+        /** Refreshes the subtree summaries after the bounds or flags of a batch changed. */
+        static void onBoundsChanged(Node node) {
+            for (; node != null; node = node.parent) {
+                update(node);
+            }
+        }
+
+        private static boolean isCoalescable(Batch batch) {
+            return (batch.flags & AlarmManager.FLAG_STANDALONE) == 0;
+        }
+
+        private static int size(Node node) {
+            return node != null ? node.size : 0;
+        }
+
+        private static void update(Node node) {
+            node.size = 1;
+            if (isCoalescable(node.batch)) {
+                node.minStart = node.batch.start;
+                node.maxEnd = node.batch.end;
+            } else {
+                node.minStart = Long.MAX_VALUE;
+                node.maxEnd = Long.MIN_VALUE;
+            }
+            final Node left = node.left;
+            if (left != null) {
+                left.parent = node;
+                node.size += left.size;
+                node.minStart = Math.min(node.minStart, left.minStart);
+                node.maxEnd = Math.max(node.maxEnd, left.maxEnd);
+            }
+            final Node right = node.right;
+            if (right != null) {
+                right.parent = node;
+                node.size += right.size;
+                node.minStart = Math.min(node.minStart, right.minStart);
+                node.maxEnd = Math.max(node.maxEnd, right.maxEnd);
+            }
+        }
+
+        /** Splits the tree into its first {@code count} nodes and the rest. */
+        private void split(Node node, int count) {
+            if (node == null) {
+                mSplitLeft = mSplitRight = null;
+                return;
+            }
+            final int leftSize = size(node.left);
+            if (count <= leftSize) {
+                split(node.left, count);
+                node.left = mSplitRight;
+                update(node);
+                node.parent = null;
+                mSplitRight = node;
+            } else {
+                split(node.right, count - leftSize - 1);
+                node.right = mSplitLeft;
+                update(node);
+                node.parent = null;
+                mSplitLeft = node;
+            }
+        }
+
+        private static Node merge(Node left, Node right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                left.right = merge(left.right, right);
+                update(left);
+                return left;
+            } else {
+                right.left = merge(left, right.left);
+                update(right);
+                return right;
+            }
+        }
+
+        private static void detach(Node node) {
+            if (node != null) {
+                node.batch.queueNode = null;
+                detach(node.left);
+                detach(node.right);
+            }
+        }
+
+        private static void checkIndex(int index, int size) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index=" + index + " size=" + size);
+            }
+        }
+    }
+
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -725,7 +965,7 @@ class AlarmManagerService extends SystemService {
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
     static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final BatchQueue mAlarmBatches = new BatchQueue();
 
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -765,16 +1005,12 @@ class AlarmManagerService extends SystemService {
     }
 
     // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
+    static boolean addBatchLocked(BatchQueue list, Batch newBatch) {
+        return list.addSorted(newBatch) == 0;
     }
 
-    private void insertAndBatchAlarmLocked(Alarm alarm) {
+    @VisibleForTesting
+    void insertAndBatchAlarmLocked(Alarm alarm) {
         final int whichBatch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? -1
                 : attemptCoalesceLocked(alarm.whenElapsed, alarm.maxWhenElapsed);
 
@@ -793,17 +1029,10 @@ class AlarmManagerService extends SystemService {
 
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
+        return mAlarmBatches.findFirstBatchThatCanHold(whenElapsed, maxWhen);
     }
     /** @return total count of the alarms in a set of alarm batches. */
-    static int getAlarmCount(ArrayList<Batch> batches) {
+    static int getAlarmCount(List<Batch> batches) {
         int ret = 0;
 
         final int size = batches.size();
@@ -826,7 +1055,7 @@ class AlarmManagerService extends SystemService {
         return false;
     }
 
-    boolean haveBatchesTimeTickAlarm(ArrayList<Batch> batches) {
+    boolean haveBatchesTimeTickAlarm(List<Batch> batches) {
         final int numBatches = batches.size();
         for (int i = 0; i < numBatches; i++) {
             if (haveAlarmsTimeTickAlarm(batches.get(i).alarms)) {
@@ -850,7 +1079,7 @@ class AlarmManagerService extends SystemService {
         final boolean oldHasTick = haveBatchesTimeTickAlarm(mAlarmBatches)
                 || haveAlarmsTimeTickAlarm(mPendingWhileIdleAlarms);
 
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+        ArrayList<Batch> oldSet = new ArrayList<>(mAlarmBatches);
         mAlarmBatches.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
@@ -3362,7 +3591,7 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
+    void recordWakeupAlarms(List<Batch> batches, long nowELAPSED, long nowRTC) {
         final int numBatches = batches.size();
         for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
             Batch b = batches.get(nextBatch);
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+
+import android.app.AlarmManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures the cost of batching a large number of pending alarms, both when they are scheduled
+ * one by one and when all of them are rebatched at once (as on a time or time zone change).
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerServicePerfTest {
+    private static final int ALARM_COUNT = 10000;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static AlarmManagerService sService;
+    private static ArrayList<AlarmManagerService.Alarm> sAlarms;
+
+    @BeforeClass
+    public static void setUpClass() {
+        // The service's handler needs a looper.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> sService =
+                new AlarmManagerService(InstrumentationRegistry.getTargetContext()));
+
+        // A mix of exact, windowed and standalone alarms spread over a day, similar to what a
+        // device with many installed apps ends up with.
+        final Random random = new Random(42);
+        sAlarms = new ArrayList<>(ALARM_COUNT);
+        for (int i = 0; i < ALARM_COUNT; i++) {
+            final long when = random.nextInt((int) (24 * HOUR));
+            final long window;
+            final int flags;
+            switch (i % 10) {
+                case 0:
+                    window = AlarmManager.WINDOW_EXACT;
+                    flags = AlarmManager.FLAG_STANDALONE;
+                    break;
+                case 1:
+                case 2:
+                    window = AlarmManager.WINDOW_EXACT;
+                    flags = 0;
+                    break;
+                default:
+                    window = random.nextInt((int) HOUR);
+                    flags = 0;
+                    break;
+            }
+            final long maxWhen = (window == AlarmManager.WINDOW_EXACT) ? when : when + window;
+            sAlarms.add(new AlarmManagerService.Alarm(ELAPSED_REALTIME_WAKEUP, when, when,
+                    window, maxWhen, 0, null, null, "perftest" + i, null, flags, null,
+                    10000 + (i % 200), "com.android.perftests.alarm" + (i % 200)));
+        }
+    }
+
+    @Test
+    public void timeScheduleAlarms_10k() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            sService.mAlarmBatches.clear();
+            state.resumeTiming();
+
+            synchronized (sService.mLock) {
+                for (int i = 0; i < ALARM_COUNT; i++) {
+                    sService.insertAndBatchAlarmLocked(sAlarms.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void timeRebatchAlarms_10k() {
+        synchronized (sService.mLock) {
+            sService.mAlarmBatches.clear();
+            for (int i = 0; i < ALARM_COUNT; i++) {
+                sService.insertAndBatchAlarmLocked(sAlarms.get(i));
+            }
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Mirrors rebatchAllAlarmsLocked() minus the kernel and standby bookkeeping.
+            synchronized (sService.mLock) {
+                final ArrayList<AlarmManagerService.Batch> oldSet =
+                        new ArrayList<>(sService.mAlarmBatches);
+                sService.mAlarmBatches.clear();
+                for (int batchNum = 0; batchNum < oldSet.size(); batchNum++) {
+                    final AlarmManagerService.Batch batch = oldSet.get(batchNum);
+                    for (int i = 0; i < batch.size(); i++) {
+                        sService.insertAndBatchAlarmLocked(batch.get(i));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,19 +21,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
 import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.Printer;
 
 import android.content.Intent;
@@ -51,6 +55,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /**
+     * Number of distinct queries whose matching filters are remembered, see
+     * {@link #mMatchCache}.
+     */
+    final private static int MATCH_CACHE_SIZE = 128;
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -59,8 +69,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        mFilterOrder.put(f, mNextFilterOrder++);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        register_scheme_hosts(f, true);
         int numT = register_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             register_intent_filter(f, f.actionsIterator(),
@@ -70,6 +82,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        mMatchCache.evictAll();
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -204,6 +217,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        register_scheme_hosts(f, false);
         int numT = unregister_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             unregister_intent_filter(f, f.actionsIterator(),
@@ -213,6 +227,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        mFilterOrder.remove(f);
+        mMatchCache.evictAll();
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -453,10 +469,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         // If the intent includes a data URI, then we want to collect all of
-        // the filters that match its scheme (we will further refine matches
-        // on the authority and path by directly matching each resulting filter).
+        // the filters that match its scheme and could match its host (we will
+        // further refine matches on the authority and path by directly matching
+        // each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            schemeCut = getSchemeCut(scheme, intent.getData());
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -469,21 +486,36 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        if (debug) {
+            // Match each filter again, logging why it did or did not match.
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, firstTypeCut, finalList, userId);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, secondTypeCut, finalList, userId);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, thirdTypeCut, finalList, userId);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, schemeCut, finalList, userId);
+            }
+        } else {
+            final MatchKey key = new MatchKey(intent, resolvedType);
+            MatchedFilters matched = mMatchCache.get(key);
+            if (matched == null) {
+                matched = new MatchedFilters();
+                matchFilters(intent, categories, resolvedType, scheme, firstTypeCut, matched);
+                matchFilters(intent, categories, resolvedType, scheme, secondTypeCut, matched);
+                matchFilters(intent, categories, resolvedType, scheme, thirdTypeCut, matched);
+                matchFilters(intent, categories, resolvedType, scheme, schemeCut, matched);
+                mMatchCache.put(key, matched);
+            }
+            buildResolveListFromMatches(intent, defaultOnly, matched, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -720,6 +752,199 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return new FastImmutableArraySet<String>(categories.toArray(new String[categories.size()]));
     }
 
+    /**
+     * Registers or unregisters the filter in the maps used to narrow down the
+     * filters for a scheme to those that could match a given host.
+     */
+    private final void register_scheme_hosts(F filter, boolean register) {
+        final int numSchemes = filter.countDataSchemes();
+        if (numSchemes == 0) {
+            return;
+        }
+        final ArraySet<String> hosts = getIndexableHosts(filter);
+        for (int i = 0; i < numSchemes; i++) {
+            final String scheme = filter.getDataScheme(i);
+            if (hosts == null) {
+                if (register) {
+                    addFilter(mSchemeAnyHostToFilter, scheme, filter);
+                } else {
+                    remove_all_objects(mSchemeAnyHostToFilter, scheme, filter);
+                }
+                continue;
+            }
+            for (int j = 0; j < hosts.size(); j++) {
+                final String key = scheme + "://" + hosts.valueAt(j);
+                if (register) {
+                    addFilter(mSchemeHostToFilter, key, filter);
+                } else {
+                    remove_all_objects(mSchemeHostToFilter, key, filter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the normalized hosts a filter's data URIs must have, or null if the
+     * filter could match URIs with other hosts: when it has no authorities, a
+     * wildcard host, or scheme specific parts (which match regardless of the host).
+     */
+    private static ArraySet<String> getIndexableHosts(IntentFilter filter) {
+        final int numAuthorities = filter.countDataAuthorities();
+        if (numAuthorities == 0 || filter.countDataSchemeSpecificParts() != 0) {
+            return null;
+        }
+        final ArraySet<String> hosts = new ArraySet<>(numAuthorities);
+        for (int i = 0; i < numAuthorities; i++) {
+            final String host = filter.getDataAuthority(i).getHost();
+            if (host.length() > 0 && host.charAt(0) == '*') {
+                return null;
+            }
+            hosts.add(normalizeHost(host));
+        }
+        return hosts;
+    }
+
+    /**
+     * Folds the case of a host the same way {@link String#compareToIgnoreCase}, which
+     * {@link IntentFilter.AuthorityEntry} matches hosts with, compares characters.
+     */
+    private static String normalizeHost(String host) {
+        final char[] chars = host.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the filters registered for the scheme that could match the host of
+     * the data, in the order they were added, like {@link #mSchemeToFilter} would.
+     */
+    private F[] getSchemeCut(String scheme, Uri data) {
+        final F[] anyHostCut = mSchemeAnyHostToFilter.get(scheme);
+        final String host = data != null ? data.getHost() : null;
+        final F[] hostCut = host != null
+                ? mSchemeHostToFilter.get(scheme + "://" + normalizeHost(host)) : null;
+        if (hostCut == null) {
+            return anyHostCut;
+        } else if (anyHostCut == null) {
+            return hostCut;
+        }
+
+        // Merge both by the order the filters were added in.
+        final F[] result = newArray(hostCut.length + anyHostCut.length);
+        int i = 0, j = 0, k = 0;
+        F a = hostCut[0];
+        F b = anyHostCut[0];
+        while (a != null || b != null) {
+            if (b == null || (a != null && mFilterOrder.get(a) < mFilterOrder.get(b))) {
+                result[k++] = a;
+                a = ++i < hostCut.length ? hostCut[i] : null;
+            } else {
+                result[k++] = b;
+                b = ++j < anyHostCut.length ? anyHostCut[j] : null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the filters in src that match the intent to dest, along with how
+     * they matched.
+     */
+    private void matchFilters(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme, F[] src, MatchedFilters dest) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final int N = src != null ? src.length : 0;
+        F filter;
+        for (int i=0; i<N && (filter=src[i]) != null; i++) {
+            final int match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            if (match >= 0) {
+                dest.filters.add(filter);
+                dest.matches.add(match);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #buildResolveList}, for filters that are already known to match.
+     */
+    private void buildResolveListFromMatches(Intent intent, boolean defaultOnly,
+            MatchedFilters matched, List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+
+        final int N = matched.filters.size();
+        for (int i = 0; i < N; i++) {
+            @SuppressWarnings("unchecked")
+            final F filter = (F) matched.filters.get(i);
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matched.matches.get(i), userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parts of a query that decide which filters match it.
+     */
+    private static final class MatchKey {
+        final String action;
+        final String resolvedType;
+        final Uri data;
+        final ArraySet<String> categories;
+        final int hashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            this.action = intent.getAction();
+            this.resolvedType = resolvedType;
+            this.data = intent.getData();
+            final Set<String> intentCategories = intent.getCategories();
+            this.categories = intentCategories != null
+                    ? new ArraySet<>(intentCategories) : null;
+            this.hashCode = Objects.hash(action, resolvedType, data, categories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            final MatchKey other = (MatchKey) o;
+            return hashCode == other.hashCode
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The filters matching a query, and how each of them matched, in the order
+     * they were found.
+     */
+    private static final class MatchedFilters {
+        final ArrayList<IntentFilter> filters = new ArrayList<>();
+        final IntArray matches = new IntArray();
+    }
+
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly, String resolvedType, String scheme,
             F[] src, List<R> dest, int userId) {
@@ -875,4 +1100,34 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * All of the URI schemes and hosts, as "scheme://host", that have been
+     * registered by filters whose data URIs can only have the hosts listed in
+     * the filter. This and {@link #mSchemeAnyHostToFilter} partition
+     * {@link #mSchemeToFilter}.
+     */
+    private final ArrayMap<String, F[]> mSchemeHostToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * All of the URI schemes that have been registered by filters that could
+     * match any host, see {@link #getIndexableHosts}.
+     */
+    private final ArrayMap<String, F[]> mSchemeAnyHostToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * The order in which the filters have been added, used to keep the order of
+     * merged lookups the same as that of the lookup maps.
+     */
+    private final HashMap<F, Integer> mFilterOrder = new HashMap<F, Integer>();
+    private int mNextFilterOrder;
+
+    /**
+     * The filters that matched recent queries. Resolving the same intents over and
+     * over is common (e.g. implicit broadcasts), and matching is most of the cost.
+     * Anything that depends on more than the filters themselves, such as whether
+     * their package is stopped, is still checked on every query. Cleared whenever
+     * a filter is added or removed.
+     */
+    private final LruCache<MatchKey, MatchedFilters> mMatchCache = new LruCache<>(MATCH_CACHE_SIZE);
 }
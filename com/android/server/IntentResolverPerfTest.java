@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures resolving intents against 50k registered filters, most of them app links on
+ * distinct hosts, both for repeated queries and right after the set of filters changed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    private static final int FILTER_COUNT = 50000;
+    private static final String ACTION_PREFIX = "com.android.perftests.intent.ACTION_";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static TestResolver sResolver;
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        sResolver = new TestResolver();
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            final IntentFilter filter = new IntentFilter();
+            switch (i % 10) {
+                case 0:
+                    // Broadcast receivers.
+                    filter.addAction(ACTION_PREFIX + (i % 500));
+                    break;
+                case 1:
+                    // Content handlers.
+                    filter.addAction(Intent.ACTION_VIEW);
+                    filter.addCategory(Intent.CATEGORY_DEFAULT);
+                    filter.addDataType("image/*");
+                    break;
+                default:
+                    // App links.
+                    filter.addAction(Intent.ACTION_VIEW);
+                    filter.addCategory(Intent.CATEGORY_DEFAULT);
+                    filter.addCategory(Intent.CATEGORY_BROWSABLE);
+                    filter.addDataScheme("http");
+                    filter.addDataScheme("https");
+                    filter.addDataAuthority("host" + i + ".example.com", null);
+                    filter.addDataPath("/app", PatternMatcher.PATTERN_PREFIX);
+                    break;
+            }
+            sResolver.addFilter(filter);
+        }
+        // A browser, which handles every host.
+        final IntentFilter browser = new IntentFilter(Intent.ACTION_VIEW);
+        browser.addCategory(Intent.CATEGORY_DEFAULT);
+        browser.addCategory(Intent.CATEGORY_BROWSABLE);
+        browser.addDataScheme("https");
+        sResolver.addFilter(browser);
+    }
+
+    @Test
+    public void timeQueryAppLink() {
+        final Intent intent = createAppLinkIntent();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            sResolver.queryIntent(intent, null, true, 0);
+        }
+        assertEquals(2, sResolver.queryIntent(intent, null, true, 0).size());
+    }
+
+    @Test
+    public void timeQueryAppLink_afterFilterChange() {
+        final Intent intent = createAppLinkIntent();
+        final IntentFilter filter = new IntentFilter(ACTION_PREFIX + "changing");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            sResolver.addFilter(filter);
+            sResolver.removeFilter(filter);
+            state.resumeTiming();
+
+            sResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryBroadcast() {
+        final Intent intent = new Intent(ACTION_PREFIX + 42);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            sResolver.queryIntent(intent, null, false, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryType() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            sResolver.queryIntent(intent, "image/png", true, 0);
+        }
+    }
+
+    private static Intent createAppLinkIntent() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("https://host1234.example.com/app/item"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+        return intent;
+    }
+}
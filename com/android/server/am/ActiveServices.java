@@ -1831,11 +1831,11 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    mAm.enqueueOomAdjTargetLocked(r.binding.service.app);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            mAm.updateOomAdjPendingTargetsLocked();
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2559,7 +2559,8 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.enqueueOomAdjTargetLocked(app);
+        mAm.updateOomAdjPendingTargetsLocked();
 
         boolean created = false;
         try {
@@ -67,6 +67,8 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_RESTART_DURATION = "service_crash_restart_duration";
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
+    static final String KEY_INCREMENTAL_OOM_ADJ = "incremental_oom_adj";
+    static final String KEY_BATCH_PARALLEL_BROADCASTS = "batch_parallel_broadcasts";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES = 32;
     private static final long DEFAULT_BACKGROUND_SETTLE_TIME = 60*1000;
@@ -95,6 +97,8 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final long DEFAULT_BOUND_SERVICE_CRASH_RESTART_DURATION = 30*60_000;
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
+    private static final boolean DEFAULT_INCREMENTAL_OOM_ADJ = false;
+    private static final boolean DEFAULT_BATCH_PARALLEL_BROADCASTS = false;
 
 
     // Maximum number of cached processes we will allow.
@@ -207,6 +211,14 @@ final class ActivityManagerConstants extends ContentObserver {
     // Indicates if the processes need to be started asynchronously.
     public boolean FLAG_PROCESS_START_ASYNC = DEFAULT_PROCESS_START_ASYNC;
 
+    // Indicates if oom adj updates for a known set of processes only recompute those processes
+    // and the ones they are bound to, instead of all running processes.
+    public boolean INCREMENTAL_OOM_ADJ = DEFAULT_INCREMENTAL_OOM_ADJ;
+
+    // Indicates if the parallel broadcasts a queue dispatches together are delivered to each
+    // process in a single transaction, instead of one transaction per registered receiver.
+    public boolean BATCH_PARALLEL_BROADCASTS = DEFAULT_BATCH_PARALLEL_BROADCASTS;
+
     private final ActivityManagerService mService;
     private ContentResolver mResolver;
     private final KeyValueListParser mParser = new KeyValueListParser(',');
@@ -332,6 +344,10 @@ final class ActivityManagerConstants extends ContentObserver {
                 DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY);
             FLAG_PROCESS_START_ASYNC = mParser.getBoolean(KEY_PROCESS_START_ASYNC,
                     DEFAULT_PROCESS_START_ASYNC);
+            INCREMENTAL_OOM_ADJ = mParser.getBoolean(KEY_INCREMENTAL_OOM_ADJ,
+                    DEFAULT_INCREMENTAL_OOM_ADJ);
+            BATCH_PARALLEL_BROADCASTS = mParser.getBoolean(KEY_BATCH_PARALLEL_BROADCASTS,
+                    DEFAULT_BATCH_PARALLEL_BROADCASTS);
 
             updateMaxCachedProcesses();
         }
@@ -402,6 +418,10 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(MAX_SERVICE_INACTIVITY);
         pw.print("  "); pw.print(KEY_BG_START_TIMEOUT); pw.print("=");
         pw.println(BG_START_TIMEOUT);
+        pw.print("  "); pw.print(KEY_INCREMENTAL_OOM_ADJ); pw.print("=");
+        pw.println(INCREMENTAL_OOM_ADJ);
+        pw.print("  "); pw.print(KEY_BATCH_PARALLEL_BROADCASTS); pw.print("=");
+        pw.println(BATCH_PARALLEL_BROADCASTS);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
@@ -1562,6 +1562,42 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Processes whose oom adj may have changed since the last update, waiting for
+     * {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final ArraySet<ProcessRecord> mPendingOomAdjTargets = new ArraySet<>();
+
+    /**
+     * The top app the last oom adj update was computed with, whose importance needs to be
+     * recomputed by an incremental update if the top app changed since.
+     */
+    @GuardedBy("this")
+    private ProcessRecord mLastOomAdjTopApp;
+
+    // Temporary state of an incremental oom adj update.
+    @GuardedBy("this")
+    private final ArrayList<ProcessRecord> mTmpOomAdjQueue = new ArrayList<>();
+    @GuardedBy("this")
+    private final ArraySet<ProcessRecord> mTmpOomAdjReachable = new ArraySet<>();
+    @GuardedBy("this")
+    private final ArrayList<ProcessRecord> mTmpOomAdjEvaluated = new ArrayList<>();
+    @GuardedBy("this")
+    private final ArraySet<UidRecord> mTmpOomAdjUids = new ArraySet<>();
+
+    /**
+     * Number of times computeOomAdjLocked() evaluated a process, and counters of the full and
+     * incremental oom adj updates, reported by dumpsys activity oom.
+     */
+    long mNumOomAdjEvaluations = 0;
+    int mNumFullOomAdjUpdates = 0;
+    long mNumFullOomAdjEvaluations = 0;
+    int mNumIncrementalOomAdjUpdates = 0;
+    long mNumIncrementalOomAdjEvaluations = 0;
+    int mNumIncrementalOomAdjFallbacks = 0;
+    int mLastOomAdjEvaluations = 0;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -17618,6 +17654,15 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (mHeavyWeightProcess != null) {
             pw.println("  mHeavyWeightProcess: " + mHeavyWeightProcess);
         }
+        pw.print("  Full OOM adj updates: "); pw.print(mNumFullOomAdjUpdates);
+                pw.print(" ("); pw.print(mNumFullOomAdjEvaluations);
+                pw.println(" processes evaluated)");
+        pw.print("  Incremental OOM adj updates: "); pw.print(mNumIncrementalOomAdjUpdates);
+                pw.print(" ("); pw.print(mNumIncrementalOomAdjEvaluations);
+                pw.print(" processes evaluated, "); pw.print(mNumIncrementalOomAdjFallbacks);
+                pw.println(" fell back to full)");
+        pw.print("  Processes evaluated by last OOM adj update: ");
+                pw.println(mLastOomAdjEvaluations);
 
         return true;
     }
@@ -23235,6 +23280,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
+        mNumOomAdjEvaluations++;
+
         if (app.thread == null) {
             app.adjSeq = mAdjSeq;
             app.curSchedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
@@ -25104,6 +25151,170 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Queues a process whose state changed for the next
+     * {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null) {
+            mPendingOomAdjTargets.add(app);
+        }
+    }
+
+    /**
+     * Updates the oom adj of the processes queued by {@link #enqueueOomAdjTargetLocked}.
+     *
+     * With {@link ActivityManagerConstants#INCREMENTAL_OOM_ADJ} set, this only recomputes the
+     * queued processes and the processes whose importance derives from theirs, that is the
+     * processes they are bound to or use providers of, directly or not.  It falls back to a
+     * full update when that isn't enough: a process entered, left or moved between the cached
+     * process slots, which shifts the slots of the others, or a dependency cycle was found.
+     * Without the flag, this is a full update.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjPendingTargetsLocked() {
+        if (!mConstants.INCREMENTAL_OOM_ADJ) {
+            updateOomAdjLocked();
+            return;
+        }
+
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        if (TOP_APP != mLastOomAdjTopApp) {
+            // Both the previous and the new top app change importance.
+            enqueueOomAdjTargetLocked(mLastOomAdjTopApp);
+            enqueueOomAdjTargetLocked(TOP_APP);
+            mLastOomAdjTopApp = TOP_APP;
+        }
+        if (mPendingOomAdjTargets.isEmpty()) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        final long startEvaluations = mNumOomAdjEvaluations;
+        final ArrayList<ProcessRecord> evaluated = mTmpOomAdjEvaluated;
+        boolean needsFullUpdate = !computeOomAdjTargetsLocked(mPendingOomAdjTargets, TOP_APP,
+                now, evaluated);
+        mPendingOomAdjTargets.clear();
+        for (int i = evaluated.size() - 1; i >= 0 && !needsFullUpdate; i--) {
+            final ProcessRecord app = evaluated.get(i);
+            final boolean wasCached = app.setAdj >= ProcessList.CACHED_APP_MIN_ADJ;
+            final boolean isCached = app.curAdj >= ProcessList.CACHED_APP_MIN_ADJ;
+            if (wasCached != isCached || (isCached && app.curProcState != app.setProcState)) {
+                needsFullUpdate = true;
+            } else if (isCached) {
+                // Still in the same kind of cached slot, keep the one it was last assigned.
+                app.curRawAdj = app.setRawAdj;
+                app.curAdj = app.setAdj;
+            }
+        }
+        if (needsFullUpdate) {
+            evaluated.clear();
+            mNumIncrementalOomAdjFallbacks++;
+            updateOomAdjLocked();
+            return;
+        }
+
+        final ArraySet<UidRecord> uids = mTmpOomAdjUids;
+        for (int i = evaluated.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = evaluated.get(i);
+            applyOomAdjLocked(app, false, now, nowElapsed);
+            if (app.uidRecord != null) {
+                uids.add(app.uidRecord);
+            }
+        }
+        evaluated.clear();
+
+        // The state of a uid is the most important state of its processes, so all of them count,
+        // not only the ones that were recomputed.
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            uids.valueAt(i).reset();
+        }
+        for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            final UidRecord uidRec = app.uidRecord;
+            if (uidRec != null && !app.killedByAm && app.thread != null
+                    && uids.contains(uidRec)) {
+                uidRec.ephemeral = app.info.isInstantApp();
+                if (uidRec.curProcState > app.curProcState) {
+                    uidRec.curProcState = app.curProcState;
+                }
+                if (app.foregroundServices) {
+                    uidRec.foregroundServices = true;
+                }
+            }
+        }
+
+        incrementProcStateSeqAndNotifyAppsLocked();
+        dispatchUidChangesLocked(uids, nowElapsed);
+        uids.clear();
+
+        mLastOomAdjEvaluations = (int) (mNumOomAdjEvaluations - startEvaluations);
+        mNumIncrementalOomAdjUpdates++;
+        mNumIncrementalOomAdjEvaluations += mLastOomAdjEvaluations;
+    }
+
+    /**
+     * Computes, in a new adj sequence, the oom adj of the given processes and of the processes
+     * they are bound to or use providers of, directly or not.  Cached processes are left at
+     * {@link ProcessList#UNKNOWN_ADJ}, for the caller to assign them a slot.
+     *
+     * @param outEvaluated Receives the running processes computed, which also includes the
+     *         clients computeOomAdjLocked() recursed into.
+     * @return false if a dependency cycle was found, which only a full update resolves.
+     */
+    @VisibleForTesting
+    @GuardedBy("this")
+    boolean computeOomAdjTargetsLocked(ArraySet<ProcessRecord> targets, ProcessRecord TOP_APP,
+            long now, ArrayList<ProcessRecord> outEvaluated) {
+        final ArrayList<ProcessRecord> queue = mTmpOomAdjQueue;
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            addReachableOomAdjTargetLocked(targets.valueAt(i));
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            final ProcessRecord app = queue.get(i);
+            for (int j = app.connections.size() - 1; j >= 0; j--) {
+                addReachableOomAdjTargetLocked(app.connections.valueAt(j).binding.service.app);
+            }
+            for (int j = app.conProviders.size() - 1; j >= 0; j--) {
+                addReachableOomAdjTargetLocked(app.conProviders.get(j).provider.proc);
+            }
+        }
+
+        // need to reset cycle state before calling computeOomAdjLocked because of service
+        // connections, as in the full update
+        final int N = mLruProcesses.size();
+        for (int i = N - 1; i >= 0; i--) {
+            mLruProcesses.get(i).containsCycle = false;
+        }
+        mAdjSeq++;
+        for (int i = 0; i < queue.size(); i++) {
+            computeOomAdjLocked(queue.get(i), ProcessList.UNKNOWN_ADJ, TOP_APP, false, now);
+        }
+        queue.clear();
+        mTmpOomAdjReachable.clear();
+
+        boolean foundCycle = false;
+        for (int i = N - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            if (app.adjSeq == mAdjSeq && !app.killedByAm && app.thread != null) {
+                outEvaluated.add(app);
+                foundCycle |= app.containsCycle;
+            }
+        }
+        return !foundCycle;
+    }
+
+    @GuardedBy("this")
+    private void addReachableOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null && !app.killedByAm && app.thread != null
+                && mTmpOomAdjReachable.add(app)) {
+            mTmpOomAdjQueue.add(app);
+        }
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
@@ -25119,6 +25330,11 @@ public class ActivityManagerService extends IActivityManager.Stub
             Slog.i(TAG, "updateOomAdj: top=" + TOP_ACT, e);
         }
 
+        // Every process is recomputed, including the ones waiting for an incremental update.
+        final long startEvaluations = mNumOomAdjEvaluations;
+        mPendingOomAdjTargets.clear();
+        mLastOomAdjTopApp = TOP_APP;
+
         // Reset state in all uid records.
         for (int i=mActiveUids.size()-1; i>=0; i--) {
             final UidRecord uidRec = mActiveUids.valueAt(i);
@@ -25526,14 +25742,49 @@ public class ActivityManagerService extends IActivityManager.Stub
             requestPssAllProcsLocked(now, false, mProcessStats.isMemFactorLowered());
         }
 
+        // Update from any uid changes.
+        dispatchUidChangesLocked(null, nowElapsed);
+
+        if (mProcessStats.shouldWriteNowLocked(now)) {
+            mHandler.post(new Runnable() {
+                @Override public void run() {
+                    synchronized (ActivityManagerService.this) {
+                        mProcessStats.writeStateAsyncLocked();
+                    }
+                }
+            });
+        }
+
+        mLastOomAdjEvaluations = (int) (mNumOomAdjEvaluations - startEvaluations);
+        mNumFullOomAdjUpdates++;
+        mNumFullOomAdjEvaluations += mLastOomAdjEvaluations;
+
+        if (DEBUG_OOM_ADJ) {
+            final long duration = SystemClock.uptimeMillis() - now;
+            if (false) {
+                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms",
+                        new RuntimeException("here").fillInStackTrace());
+            } else {
+                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
+            }
+        }
+    }
+
+    /**
+     * Reports the uids whose process state or whitelist state changed since the last time to
+     * the uid observers, and stops the services of the uids that became idle.
+     *
+     * @param uids The uids to look at, or null to look at all active uids.
+     */
+    @GuardedBy("this")
+    private void dispatchUidChangesLocked(ArraySet<UidRecord> uids, long nowElapsed) {
         ArrayList<UidRecord> becameIdle = null;
 
-        // Update from any uid changes.
         if (mLocalPowerManager != null) {
             mLocalPowerManager.startUidChanges();
         }
-        for (int i=mActiveUids.size()-1; i>=0; i--) {
-            final UidRecord uidRec = mActiveUids.valueAt(i);
+        for (int i = (uids != null ? uids.size() : mActiveUids.size()) - 1; i >= 0; i--) {
+            final UidRecord uidRec = uids != null ? uids.valueAt(i) : mActiveUids.valueAt(i);
             int uidChange = UidRecord.CHANGE_PROCSTATE;
             if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
                     && (uidRec.setProcState != uidRec.curProcState
@@ -25602,26 +25853,6 @@ public class ActivityManagerService extends IActivityManager.Stub
                 mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
             }
         }
-
-        if (mProcessStats.shouldWriteNowLocked(now)) {
-            mHandler.post(new Runnable() {
-                @Override public void run() {
-                    synchronized (ActivityManagerService.this) {
-                        mProcessStats.writeStateAsyncLocked();
-                    }
-                }
-            });
-        }
-
-        if (DEBUG_OOM_ADJ) {
-            final long duration = SystemClock.uptimeMillis() - now;
-            if (false) {
-                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms",
-                        new RuntimeException("here").fillInStackTrace());
-            } else {
-                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
-            }
-        }
     }
 
     @Override
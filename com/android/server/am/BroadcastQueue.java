@@ -31,6 +31,8 @@ import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.BroadcastOptions;
 import android.app.PendingIntent;
+import android.app.servertransaction.ClientTransaction;
+import android.app.servertransaction.RegisteredReceiversItem;
 import android.content.ComponentName;
 import android.content.IIntentReceiver;
 import android.content.IIntentSender;
@@ -47,7 +49,9 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -67,6 +71,12 @@ public final class BroadcastQueue {
     private static final String TAG_BROADCAST = TAG + POSTFIX_BROADCAST;
 
     static final int MAX_BROADCAST_HISTORY = ActivityManager.isLowRamDeviceStatic() ? 10 : 50;
+
+    /**
+     * Most deliveries sent to a process in a single transaction when batching, to keep a batch
+     * of broadcasts with large extras within the binder buffer.
+     */
+    static final int MAX_DELIVERIES_PER_TRANSACTION = 32;
     static final int MAX_BROADCAST_SUMMARY_HISTORY
             = ActivityManager.isLowRamDeviceStatic() ? 25 : 300;
 
@@ -154,6 +164,54 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Deliveries of parallel broadcasts to registered receivers, by receiving process, waiting
+     * for {@link #flushDeliveryBatchesLocked} to send them in as few transactions per process
+     * as possible. Null when deliveries are sent one at a time.
+     */
+    ArrayMap<ProcessRecord, ArrayList<PendingDelivery>> mDeliveryBatches;
+
+    /** A delivery of a parallel broadcast held in {@link #mDeliveryBatches}. */
+    static final class PendingDelivery {
+        final IIntentReceiver receiver;
+        final Intent intent;
+        final int resultCode;
+        final String data;
+        final Bundle extras;
+        final boolean sticky;
+        final int sendingUser;
+
+        PendingDelivery(IIntentReceiver receiver, Intent intent, int resultCode, String data,
+                Bundle extras, boolean sticky, int sendingUser) {
+            this.receiver = receiver;
+            this.intent = intent;
+            this.resultCode = resultCode;
+            this.data = data;
+            this.extras = extras;
+            this.sticky = sticky;
+            this.sendingUser = sendingUser;
+        }
+    }
+
+    /**
+     * Largest number of broadcasts seen waiting in each list, for dumpsys.
+     */
+    int mMaxParallelQueueDepth;
+    int mMaxOrderedQueueDepth;
+
+    /**
+     * Time broadcasts waited from being enqueued to being dispatched, for dumpsys.
+     */
+    final DispatchStats mParallelDispatchStats = new DispatchStats();
+    final DispatchStats mOrderedDispatchStats = new DispatchStats();
+
+    /**
+     * Number of parallel broadcast deliveries to registered receivers in running processes, and
+     * number of transactions they were sent in, for dumpsys.
+     */
+    long mNumParallelDeliveries;
+    long mNumParallelTransactions;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -216,11 +274,13 @@ public final class BroadcastQueue {
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
         mParallelBroadcasts.add(r);
+        mMaxParallelQueueDepth = Math.max(mMaxParallelQueueDepth, mParallelBroadcasts.size());
         enqueueBroadcastHelper(r);
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
         mOrderedBroadcasts.add(r);
+        mMaxOrderedQueueDepth = Math.max(mMaxOrderedQueueDepth, mOrderedBroadcasts.size());
         enqueueBroadcastHelper(r);
     }
 
@@ -292,7 +352,8 @@ public final class BroadcastQueue {
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
         if (!skipOomAdj) {
-            mService.updateOomAdjLocked();
+            mService.enqueueOomAdjTargetLocked(app);
+            mService.updateOomAdjPendingTargetsLocked();
         }
 
         // Tell the application to launch this receiver.
@@ -567,6 +628,115 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Delivers a non-ordered broadcast to a registered receiver, like
+     * {@link #performReceiveLocked}, unless deliveries are being batched, in which case a
+     * delivery to a running process waits for {@link #flushDeliveryBatchesLocked}.
+     */
+    void performParallelReceiveLocked(ProcessRecord app, IIntentReceiver receiver,
+            Intent intent, int resultCode, String data, Bundle extras, boolean sticky,
+            int sendingUser) throws RemoteException {
+        if (app == null || app.thread == null) {
+            performReceiveLocked(app, receiver, intent, resultCode, data, extras, false,
+                    sticky, sendingUser);
+            return;
+        }
+        mNumParallelDeliveries++;
+        if (mDeliveryBatches == null) {
+            mNumParallelTransactions++;
+            performReceiveLocked(app, receiver, intent, resultCode, data, extras, false,
+                    sticky, sendingUser);
+            return;
+        }
+        ArrayList<PendingDelivery> batch = mDeliveryBatches.get(app);
+        if (batch == null) {
+            batch = new ArrayList<>();
+            mDeliveryBatches.put(app, batch);
+        }
+        batch.add(new PendingDelivery(receiver, intent, resultCode, data, extras, sticky,
+                sendingUser));
+    }
+
+    /**
+     * Makes {@link #performParallelReceiveLocked} hold deliveries to running processes until
+     * {@link #flushDeliveryBatchesLocked}.
+     */
+    void startDeliveryBatchesLocked() {
+        if (mDeliveryBatches == null) {
+            mDeliveryBatches = new ArrayMap<>();
+        }
+    }
+
+    /**
+     * Sends the deliveries held since {@link #startDeliveryBatchesLocked}, in transactions of at
+     * most {@link #MAX_DELIVERIES_PER_TRANSACTION} deliveries per process, and stops holding
+     * them.
+     */
+    void flushDeliveryBatchesLocked() {
+        final ArrayMap<ProcessRecord, ArrayList<PendingDelivery>> batches = mDeliveryBatches;
+        if (batches == null) {
+            return;
+        }
+        mDeliveryBatches = null;
+        for (int i = 0; i < batches.size(); i++) {
+            final ProcessRecord app = batches.keyAt(i);
+            final ArrayList<PendingDelivery> batch = batches.valueAt(i);
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Delivering batch of "
+                    + batch.size() + " on [" + mQueueName + "] to " + app);
+            final int size = batch.size();
+            for (int start = 0; start < size; start += MAX_DELIVERIES_PER_TRANSACTION) {
+                final int end = Math.min(start + MAX_DELIVERIES_PER_TRANSACTION, size);
+                if (!scheduleDeliveriesLocked(app, batch, start, end)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the given range of deliveries to a process in a single transaction. If they don't
+     * fit in the binder buffer together, they are sent one at a time instead.
+     *
+     * @return Whether the process can still be delivered to.
+     */
+    private boolean scheduleDeliveriesLocked(ProcessRecord app, ArrayList<PendingDelivery> batch,
+            int start, int end) {
+        final RegisteredReceiversItem item = RegisteredReceiversItem.obtain(app.repProcState);
+        for (int i = start; i < end; i++) {
+            final PendingDelivery d = batch.get(i);
+            item.addDelivery(d.receiver, d.intent, d.resultCode, d.data, d.extras, d.sticky,
+                    d.sendingUser);
+        }
+        final ClientTransaction transaction = ClientTransaction.obtain(app.thread, null);
+        transaction.addCallback(item);
+        try {
+            mService.getLifecycleManager().scheduleTransaction(transaction);
+            mNumParallelTransactions++;
+            return true;
+        } catch (TransactionTooLargeException e) {
+            Slog.w(TAG, "Batch of " + (end - start) + " broadcasts to " + app.processName
+                    + " is too large, delivering them one at a time.");
+            for (int i = start; i < end; i++) {
+                final PendingDelivery d = batch.get(i);
+                mNumParallelTransactions++;
+                try {
+                    performReceiveLocked(app, d.receiver, d.intent, d.resultCode, d.data,
+                            d.extras, false, d.sticky, d.sendingUser);
+                } catch (RemoteException re) {
+                    // performReceiveLocked() already crashed the process.
+                    return false;
+                }
+            }
+            return true;
+        } catch (RemoteException e) {
+            // Failed to call into the process. It's either dying or wedged. Kill it gently.
+            Slog.w(TAG, "Can't deliver broadcasts to " + app.processName
+                    + " (pid " + app.pid + "). Crashing it.", e);
+            app.scheduleCrash("can't deliver broadcast");
+            return false;
+        }
+    }
+
     // AMS将一个广播发给一个目标广播接收者之前，有可能需要检查这个广播的发送者和接收者的权限。这个权限检查是
     // 双向的，即需要检查一个广播发送者是否有权限向一个目标广播接收者发送广播，以及一个目标广播接收者是否有权限
     // 接收一个广播发送者发过来的一个广播。这两个权限主要是调用AMS的成员函数checkComponentPermission来检查
@@ -765,6 +935,10 @@ public final class BroadcastQueue {
                 if (ordered) {
                     skipReceiverLocked(r);
                 }
+            } else if (!ordered) {
+                performParallelReceiveLocked(filter.receiverList.app,
+                        filter.receiverList.receiver, new Intent(r.intent), r.resultCode,
+                        r.resultData, r.resultExtras, r.initialSticky, r.userId);
             } else {
                 // 如果不需要进行权限检查或者通过权限检查，调用performReceiveLocked发送广播
                 performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
@@ -913,11 +1087,15 @@ public final class BroadcastQueue {
             // 无序广播之间不存在相互等待，这里处理的是所有非order的动态广播
             // 处理保存在无序广播调度队列mParallelBroadcasts中的广播发送任务，即把保存在无序广播调度
             // 队列mParallelBroadcasts中的广播发送给它的目标广播接收者处理
+        if (mService.mConstants.BATCH_PARALLEL_BROADCASTS && mParallelBroadcasts.size() > 0) {
+            startDeliveryBatchesLocked();
+        }
         while (mParallelBroadcasts.size() > 0) {
                 // 首先保存无序广播调度队列mParallelBroadcasts中的每一个BroadcastRecord对象
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            mParallelDispatchStats.add(r.dispatchClockTime - r.enqueueClockTime);
                 // 调用deliverToRegisteredReceiverLocked向所有的receivers发送广播
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -943,6 +1121,7 @@ public final class BroadcastQueue {
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                     + mQueueName + "] " + r);
         }
+        flushDeliveryBatchesLocked();
 
         // Now take care of the next serialized one...
 
@@ -1117,6 +1296,7 @@ public final class BroadcastQueue {
                 // 超时的起点，可以看到上面超时比较的时候用的就是r.dispatchTime
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            mOrderedDispatchStats.add(r.dispatchClockTime - r.enqueueClockTime);
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                     createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1896,6 +2076,22 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Dispatch stats [" + mQueueName + "]:");
+            pw.print("    parallel: depth="); pw.print(mParallelBroadcasts.size());
+            pw.print(" maxDepth="); pw.print(mMaxParallelQueueDepth);
+            pw.print(" deliveries="); pw.print(mNumParallelDeliveries);
+            pw.print(" transactions="); pw.println(mNumParallelTransactions);
+            pw.print("      "); mParallelDispatchStats.dump(pw);
+            pw.print("    ordered: depth="); pw.print(mOrderedBroadcasts.size());
+            pw.print(" maxDepth="); pw.println(mMaxOrderedQueueDepth);
+            pw.print("      "); mOrderedDispatchStats.dump(pw);
+        }
+
         int i;
         boolean printed = false;
 
@@ -2003,4 +2199,27 @@ public final class BroadcastQueue {
 
         return needSep;
     }
+
+    /**
+     * Time broadcasts waited between being enqueued and being dispatched.
+     */
+    static final class DispatchStats {
+        long mCount;
+        long mTotalLatency;
+        long mMaxLatency;
+
+        void add(long latency) {
+            mCount++;
+            mTotalLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+        }
+
+        void dump(PrintWriter pw) {
+            pw.print("dispatched="); pw.print(mCount);
+            pw.print(" avgLatency=");
+            TimeUtils.formatDuration(mCount > 0 ? mTotalLatency / mCount : 0, pw);
+            pw.print(" maxLatency="); TimeUtils.formatDuration(mMaxLatency, pw);
+            pw.println();
+        }
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IApplicationThread;
+import android.content.Context;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.AppOpsService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Measures delivering a storm of 20 parallel broadcasts, each to 300 registered receivers in 10
+ * running processes, one transaction per receiver as before, against transactions of up to
+ * {@link BroadcastQueue#MAX_DELIVERIES_PER_TRANSACTION} deliveries per process as
+ * {@link BroadcastQueue} does when batching, and reports the number of transactions sent per
+ * broadcast.
+ *
+ * The processes are fake app threads counting the transactions they receive, and deliveries go
+ * through {@link BroadcastQueue#performParallelReceiveLocked} as the parallel broadcast loop of
+ * {@link BroadcastQueue#processNextBroadcastLocked} does, skipping the permission checks.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BroadcastStormPerfTest {
+    private static final int BROADCAST_COUNT = 20;
+    private static final int PROCESS_COUNT = 10;
+    private static final int RECEIVER_COUNT = 300;
+    private static final String PACKAGE_PREFIX = "com.android.perftests.broadcast";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ActivityManagerService mService;
+    private BroadcastQueue mQueue;
+    private final ArrayList<ProcessRecord> mReceiverApps = new ArrayList<>();
+    private final ArrayList<IIntentReceiver> mReceivers = new ArrayList<>();
+    private final ArrayList<CountingBinder> mAppThreads = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        final ClientLifecycleManager lifecycleManager = new ClientLifecycleManager();
+        mService = new ActivityManagerService(new TestInjector()) {
+            @Override
+            ClientLifecycleManager getLifecycleManager() {
+                return lifecycleManager;
+            }
+        };
+        mQueue = new BroadcastQueue(mService, new Handler(Looper.getMainLooper()), "foreground",
+                0, false);
+
+        final ProcessRecord[] apps = new ProcessRecord[PROCESS_COUNT];
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            apps[i] = createProcess(i);
+        }
+        for (int i = 0; i < RECEIVER_COUNT; i++) {
+            mReceiverApps.add(apps[i % PROCESS_COUNT]);
+            mReceivers.add(IIntentReceiver.Stub.asInterface(new Binder()));
+        }
+    }
+
+    @Test
+    public void timeDeliver_perReceiver() throws RemoteException {
+        timeDeliver(false);
+    }
+
+    @Test
+    public void timeDeliver_batched() throws RemoteException {
+        timeDeliver(true);
+    }
+
+    private void timeDeliver(boolean batched) throws RemoteException {
+        final Intent intent = new Intent(Intent.ACTION_TIME_TICK);
+        int storms = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mService) {
+                if (batched) {
+                    mQueue.startDeliveryBatchesLocked();
+                }
+                for (int b = 0; b < BROADCAST_COUNT; b++) {
+                    for (int i = 0; i < RECEIVER_COUNT; i++) {
+                        mQueue.performParallelReceiveLocked(mReceiverApps.get(i),
+                                mReceivers.get(i), new Intent(intent), 0, null, null, false,
+                                UserHandle.USER_SYSTEM);
+                    }
+                }
+                mQueue.flushDeliveryBatchesLocked();
+            }
+            storms++;
+        }
+
+        long transactions = 0;
+        for (int i = 0; i < mAppThreads.size(); i++) {
+            transactions += mAppThreads.get(i).mTransactions;
+        }
+        final Bundle status = new Bundle();
+        status.putLong("transactions_per_broadcast",
+                transactions / Math.max((long) storms * BROADCAST_COUNT, 1));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private ProcessRecord createProcess(int index) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = PACKAGE_PREFIX + index;
+        info.processName = info.packageName;
+        info.uid = Process.FIRST_APPLICATION_UID + index;
+        final ProcessRecord app = new ProcessRecord(mService, null, info, info.processName,
+                info.uid);
+        app.setPid(10000 + index);
+        final CountingBinder appThread = new CountingBinder();
+        mAppThreads.add(appThread);
+        app.thread = IApplicationThread.Stub.asInterface(appThread);
+        return app;
+    }
+
+    /**
+     * Stands for the app thread of a process, accepting and counting every transaction.
+     */
+    private static class CountingBinder extends Binder {
+        long mTransactions;
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+            mTransactions++;
+            return true;
+        }
+    }
+
+    private static class TestInjector extends ActivityManagerService.Injector {
+        @Override
+        public Context getContext() {
+            return InstrumentationRegistry.getTargetContext();
+        }
+
+        @Override
+        public AppOpsService getAppOpsService(File file, Handler handler) {
+            return null;
+        }
+
+        @Override
+        public Handler getUiHandler(ActivityManagerService service) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IApplicationThread;
+import android.app.IServiceConnection;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import com.android.server.AppOpsService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Measures computing the oom adj of 300 running processes, as a full update does, against
+ * recomputing only a process whose state changed and the processes bound to it, as an
+ * incremental update does, and reports the number of processes evaluated per update.
+ *
+ * The processes form 60 chains of 5, each process being bound to a service of the next one,
+ * and the first chain is led by the top app. Only the computation is measured: applying the
+ * results needs lmkd and the rest of the system.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class OomAdjPerfTest {
+    private static final int PROCESS_COUNT = 300;
+    private static final int CHAIN_LENGTH = 5;
+    private static final String PACKAGE_PREFIX = "com.android.perftests.oomadj";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ActivityManagerService mService;
+    private ProcessRecord mTopApp;
+    private final ArrayList<ProcessRecord> mChainHeads = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mService = new ActivityManagerService(new TestInjector());
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mService.mBroadcastQueues[0] = mService.mFgBroadcastQueue =
+                new BroadcastQueue(mService, handler, "foreground", 0, false);
+        mService.mBroadcastQueues[1] = mService.mBgBroadcastQueue =
+                new BroadcastQueue(mService, handler, "background", 0, false);
+
+        synchronized (mService) {
+            ProcessRecord previous = null;
+            for (int i = 0; i < PROCESS_COUNT; i++) {
+                final ProcessRecord app = createProcess(i);
+                if (i % CHAIN_LENGTH == 0) {
+                    mChainHeads.add(app);
+                } else {
+                    bindService(previous, app, i);
+                }
+                mService.mLruProcesses.add(app);
+                previous = app;
+            }
+            mTopApp = mChainHeads.get(0);
+
+            // Starts from the state a full update leaves.
+            final ArraySet<ProcessRecord> all = new ArraySet<>(mService.mLruProcesses);
+            mService.computeOomAdjTargetsLocked(all, mTopApp, SystemClock.uptimeMillis(),
+                    new ArrayList<>());
+        }
+    }
+
+    @Test
+    public void timeComputeOomAdj_full() {
+        final ArraySet<ProcessRecord> targets;
+        synchronized (mService) {
+            targets = new ArraySet<>(mService.mLruProcesses);
+        }
+        timeComputeOomAdj(targets, false);
+    }
+
+    @Test
+    public void timeComputeOomAdj_incremental() {
+        timeComputeOomAdj(new ArraySet<>(), true);
+    }
+
+    private void timeComputeOomAdj(ArraySet<ProcessRecord> targets, boolean incremental) {
+        final ArrayList<ProcessRecord> evaluated = new ArrayList<>();
+        final long startEvaluations;
+        synchronized (mService) {
+            startEvaluations = mService.mNumOomAdjEvaluations;
+        }
+        int updates = 0;
+        int nextChain = 1;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mService) {
+                // Some process shows an overlay, or stops showing it.
+                final ProcessRecord changed = mChainHeads.get(nextChain);
+                changed.hasOverlayUi = !changed.hasOverlayUi;
+                if (incremental) {
+                    targets.add(changed);
+                }
+                mService.computeOomAdjTargetsLocked(targets, mTopApp,
+                        SystemClock.uptimeMillis(), evaluated);
+                if (incremental) {
+                    targets.clear();
+                }
+                evaluated.clear();
+            }
+            nextChain = nextChain % (mChainHeads.size() - 1) + 1;
+            updates++;
+        }
+
+        final Bundle status = new Bundle();
+        synchronized (mService) {
+            status.putLong("processes_evaluated_per_update",
+                    (mService.mNumOomAdjEvaluations - startEvaluations) / Math.max(updates, 1));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private ProcessRecord createProcess(int index) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = PACKAGE_PREFIX + index;
+        info.processName = info.packageName;
+        info.uid = Process.FIRST_APPLICATION_UID + index;
+        final ProcessRecord app = new ProcessRecord(mService, null, info, info.processName,
+                info.uid);
+        app.setPid(10000 + index);
+        app.thread = IApplicationThread.Stub.asInterface(new Binder());
+        return app;
+    }
+
+    private void bindService(ProcessRecord client, ProcessRecord host, int index) {
+        final ServiceInfo serviceInfo = new ServiceInfo();
+        serviceInfo.applicationInfo = host.info;
+        serviceInfo.packageName = host.info.packageName;
+        serviceInfo.processName = host.processName;
+        serviceInfo.name = host.info.packageName + ".Service";
+        final ComponentName name = new ComponentName(serviceInfo.packageName, serviceInfo.name);
+        final Intent intent = new Intent().setComponent(name);
+        final ServiceRecord service = new ServiceRecord(mService, null, name,
+                new Intent.FilterComparison(intent), serviceInfo, false, null);
+        service.app = host;
+        host.services.add(service);
+
+        // As ActiveServices.bindServiceLocked() does.
+        final AppBindRecord binding = service.retrieveAppBindingLocked(intent, client);
+        final IServiceConnection conn = IServiceConnection.Stub.asInterface(new Binder());
+        final ConnectionRecord c = new ConnectionRecord(binding, null, conn,
+                Context.BIND_AUTO_CREATE, 0, null);
+        final IBinder binder = conn.asBinder();
+        ArrayList<ConnectionRecord> clist = service.connections.get(binder);
+        if (clist == null) {
+            clist = new ArrayList<>();
+            service.connections.put(binder, clist);
+        }
+        clist.add(c);
+        binding.connections.add(c);
+        client.connections.add(c);
+    }
+
+    private static class TestInjector extends ActivityManagerService.Injector {
+        @Override
+        public Context getContext() {
+            return InstrumentationRegistry.getTargetContext();
+        }
+
+        @Override
+        public AppOpsService getAppOpsService(File file, Handler handler) {
+            return null;
+        }
+
+        @Override
+        public Handler getUiHandler(ActivityManagerService service) {
+            return null;
+        }
+    }
+}
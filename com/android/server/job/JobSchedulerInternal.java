@@ -91,6 +91,11 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        /** Number of job additions/removals appended to the journal since boot. */
+        public int countJournalRecordsSaved = 0;
+        /** Bytes written to the snapshot and journal since boot. */
+        public long bytesSaved = 0;
+
         public JobStorePersistStats() {
         }
 
@@ -102,6 +107,9 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            countJournalRecordsSaved = source.countJournalRecordsSaved;
+            bytesSaved = source.bytesSaved;
         }
 
         @Override
@@ -113,7 +121,9 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " Journaled: " + countJournalRecordsSaved
+                    + " BytesSaved: " + bytesSaved;
         }
     }
 }
@@ -27,6 +27,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.net.NetworkRequest;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
@@ -53,13 +54,20 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -71,6 +79,11 @@ import java.util.function.Predicate;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs are stored as a full snapshot in jobs.xml plus an append-only journal of the
+ * job additions and removals made since that snapshot was written. Each change only appends its
+ * own record to the journal; once the journal grows larger than the snapshot it is compacted by
+ * writing a fresh snapshot and truncating the journal.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -87,6 +100,12 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /**
+     * The journal is never compacted while it is smaller than this, regardless of the size of
+     * the snapshot, so that stores with only a handful of jobs don't keep rewriting jobs.xml.
+     */
+    private static final long MIN_JOURNAL_BYTES_BEFORE_COMPACTION = 64 * 1024;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
     final Context mContext;
@@ -99,6 +118,26 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    /** Append-only log of the changes made since {@link #mJobsFile} was last written. */
+    private final File mJournalFile;
+    /**
+     * Changes not yet written to disk, in the order they were made. Guarded by {@link #mLock}.
+     */
+    private final ArrayList<JournalOp> mPendingJournalOps = new ArrayList<>();
+    /**
+     * Set when the next write must be a full snapshot, e.g. after a bulk change or a failed
+     * journal append. Guarded by {@link #mLock}.
+     */
+    private boolean mNeedsFullWrite;
+    /** Size of the journal and of the last snapshot. Only accessed on the IoThread. */
+    private long mJournalBytes;
+    private long mSnapshotBytes;
+    /**
+     * Generation of the last snapshot. The journal records the generation of the snapshot it
+     * applies to, so that a journal left behind by an older snapshot is not replayed over a
+     * newer one. Only accessed on the IoThread.
+     */
+    private long mSnapshotGeneration;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +177,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournalFile = new File(jobDir, "jobs.journal");
 
         mJobSet = new JobSet();
 
@@ -152,10 +192,12 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(), mJournalFile.lastModified());
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
+        mJournalBytes = mJournalFile.length();
+        mSnapshotBytes = mJobsFile.getBaseFile().length();
     }
 
     public boolean jobTimesInflatedValid() {
@@ -200,6 +242,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingJournalOps.add(new JournalOp(jobStatus));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -238,6 +281,7 @@ public final class JobStore {
             return false;
         }
         if (writeBack && jobStatus.isPersisted()) {
+            mPendingJournalOps.add(new JournalOp(jobStatus.getUid(), jobStatus.getJobId()));
             maybeWriteStatusToDiskAsync();
         }
         return removed;
@@ -254,6 +298,7 @@ public final class JobStore {
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mNeedsFullWrite = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -315,8 +360,21 @@ public final class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Magic number at the start of the journal file: "JSJ" followed by the format version. It is
+     * followed by the generation of the snapshot the journal applies to.
+     */
+    private static final int JOURNAL_MAGIC = 0x4a534a02;
+    /** Attribute of the snapshot's root tag holding its generation. */
+    private static final String XML_ATTR_GENERATION = "generation";
+    /** Journal record adding a job, or replacing the job with the same uid and job id. */
+    private static final byte JOURNAL_RECORD_ADD = 1;
+    /** Journal record removing the job with the given uid and job id. */
+    private static final byte JOURNAL_RECORD_REMOVE = 2;
+
+    /**
+     * Every time the state changes we post a write; the write appends the changes made since the
+     * previous write to the journal, or writes all the jobs in one swath when the journal needs
+     * compacting.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -334,6 +392,41 @@ public final class JobStore {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
     }
 
+    /**
+     * Synchronously performs any pending write on the calling thread. The caller must not hold
+     * {@link #mLock}.
+     */
+    @VisibleForTesting
+    void writeStatusToDiskForTesting() {
+        mIoHandler.removeCallbacks(mWriteRunnable);
+        mWriteRunnable.run();
+    }
+
+    /**
+     * A single job store change waiting to be appended to the journal.
+     */
+    private static final class JournalOp {
+        final byte type;
+        final int uid;
+        final int jobId;
+        /** The job to persist for {@link #JOURNAL_RECORD_ADD}; copied when it is written. */
+        final JobStatus job;
+
+        JournalOp(JobStatus job) {
+            this.type = JOURNAL_RECORD_ADD;
+            this.uid = job.getUid();
+            this.jobId = job.getJobId();
+            this.job = job;
+        }
+
+        JournalOp(int uid, int jobId) {
+            this.type = JOURNAL_RECORD_REMOVE;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = null;
+        }
+    }
+
     /**
      * Runnable that writes {@link #mJobSet} out to xml.
      * NOTE: This Runnable locks on mLock
@@ -343,22 +436,151 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalOp> journalOps = new ArrayList<>();
+            final boolean fullWrite;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                fullWrite = mNeedsFullWrite || mJournalBytes
+                        >= Math.max(MIN_JOURNAL_BYTES_BEFORE_COMPACTION, mSnapshotBytes);
+                if (fullWrite) {
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                    });
+                    mNeedsFullWrite = false;
+                } else {
+                    // Clone only the jobs that changed since the last write.
+                    for (int i = 0; i < mPendingJournalOps.size(); i++) {
+                        final JournalOp op = mPendingJournalOps.get(i);
+                        journalOps.add(op.type == JOURNAL_RECORD_ADD
+                                ? new JournalOp(new JobStatus(op.job)) : op);
+                    }
+                }
+                mPendingJournalOps.clear();
+            }
+            if (fullWrite) {
+                if (!writeJobsMapImpl(storeCopy) || !truncateJournal()) {
+                    synchronized (mLock) {
+                        // Changes folded into this snapshot are no longer pending; keep
+                        // writing snapshots until one makes it to disk.
+                        mNeedsFullWrite = true;
+                    }
+                }
+            } else if (!journalOps.isEmpty()) {
+                if (!appendToJournalImpl(journalOps)) {
+                    synchronized (mLock) {
+                        // The journal may now end in a partial record; start over from a
+                        // fresh snapshot on the next write.
+                        mNeedsFullWrite = true;
                     }
-                });
+                }
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished " + (fullWrite ? "writing" : "journaling") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        /**
+         * Appends one record per change to the journal.
+         *
+         * @return whether all of the records were durably written.
+         */
+        private boolean appendToJournalImpl(List<JournalOp> ops) {
+            FileOutputStream fos = null;
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+                if (mJournalBytes == 0) {
+                    out.writeInt(JOURNAL_MAGIC);
+                    out.writeLong(mSnapshotGeneration);
+                }
+                for (int i = 0; i < ops.size(); i++) {
+                    final JournalOp op = ops.get(i);
+                    out.writeByte(op.type);
+                    if (op.type == JOURNAL_RECORD_ADD) {
+                        final byte[] jobXml = writeJobToXml(op.job);
+                        out.writeInt(jobXml.length);
+                        out.write(jobXml);
+                    } else {
+                        out.writeInt(op.uid);
+                        out.writeInt(op.jobId);
+                    }
+                }
+                out.flush();
+
+                fos = new FileOutputStream(mJournalFile, true);
+                baos.writeTo(fos);
+                FileUtils.sync(fos);
+                mJournalBytes += baos.size();
+                mPersistInfo.countJournalRecordsSaved += ops.size();
+                mPersistInfo.bytesSaved += baos.size();
+                return true;
+            } catch (IOException e) {
+                Slog.w(TAG, "Error appending to job journal.", e);
+            } catch (XmlPullParserException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Error persisting bundle.", e);
+                }
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Returns a single job serialized as a standalone jobs document. */
+        private byte[] writeJobToXml(JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, "job-info");
+            out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+            writeJobToXml(out, jobStatus);
+            out.endTag(null, "job-info");
+            out.endDocument();
+            return baos.toByteArray();
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
+        }
+
+        /**
+         * Deletes the journal once a snapshot is committed. A journal that survives this, e.g.
+         * because we crashed first, names an older generation and is ignored on the next boot.
+         *
+         * @return whether the journal is gone.
+         */
+        private boolean truncateJournal() {
+            if (mJournalBytes == 0 && !mJournalFile.exists()) {
+                return true;
+            }
+            if (!mJournalFile.delete() && mJournalFile.exists()) {
+                Slog.w(TAG, "Failed to delete job journal " + mJournalFile);
+                return false;
+            }
+            mJournalBytes = 0;
+            return true;
+        }
+
+        /**
+         * @return whether the snapshot was written successfully.
+         */
+        private boolean writeJobsMapImpl(List<JobStatus> jobList) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
@@ -370,19 +592,16 @@ public final class JobStore {
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
+                final long generation = mSnapshotGeneration + 1;
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, XML_ATTR_GENERATION, Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -399,7 +618,11 @@ public final class JobStore {
                 FileOutputStream fos = mJobsFile.startWrite(startTime);
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
+                mSnapshotGeneration = generation;
                 mDirtyOperations = 0;
+                mSnapshotBytes = baos.size();
+                mPersistInfo.bytesSaved += baos.size();
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +636,7 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return false;
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -577,6 +801,8 @@ public final class JobStore {
     private final class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
         private final boolean rtcGood;
+        /** Generation of the last document read by {@link #readJobMapImpl}. */
+        private long readGeneration;
 
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
@@ -597,6 +823,7 @@ public final class JobStore {
                 FileInputStream fis = mJobsFile.openRead();
                 synchronized (mLock) {
                     jobs = readJobMapImpl(fis, rtcGood);
+                    mSnapshotGeneration = readGeneration;
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         IActivityManager am = ActivityManager.getService();
@@ -605,14 +832,6 @@ public final class JobStore {
                             js.prepareLocked(am);
                             js.enqueueTime = now;
                             this.jobSet.add(js);
-
-                            numJobs++;
-                            if (js.getUid() == Process.SYSTEM_UID) {
-                                numSystemJobs++;
-                                if (isSyncJob(js)) {
-                                    numSyncJobs++;
-                                }
-                            }
                         }
                     }
                 }
@@ -623,6 +842,24 @@ public final class JobStore {
                 }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
+            }
+            try {
+                synchronized (mLock) {
+                    replayJournal();
+                    for (int i = jobSet.mJobs.size() - 1; i >= 0; i--) {
+                        final ArraySet<JobStatus> jobs = jobSet.mJobs.valueAt(i);
+                        for (int j = jobs.size() - 1; j >= 0; j--) {
+                            final JobStatus js = jobs.valueAt(j);
+                            numJobs++;
+                            if (js.getUid() == Process.SYSTEM_UID) {
+                                numSystemJobs++;
+                                if (isSyncJob(js)) {
+                                    numSyncJobs++;
+                                }
+                            }
+                        }
+                    }
+                }
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -633,7 +870,101 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        /**
+         * Applies the changes recorded in the journal on top of the snapshot already loaded into
+         * {@link #jobSet}. A journal written for another generation of the snapshot, e.g. if we
+         * crashed between committing a snapshot and deleting the journal, is ignored.
+         * <p>
+         * If replay does not reach the end of the journal, e.g. because of a partial trailing
+         * record left by a crash in the middle of an append, the next write is a full snapshot,
+         * so that new records are never appended after the bytes replay could not read.
+         */
+        private void replayJournal() {
+            if (!replayJournalImpl()) {
+                mNeedsFullWrite = true;
+            }
+        }
+
+        /**
+         * @return whether the whole journal was read, or there was none.
+         */
+        private boolean replayJournalImpl() {
+            final byte[] journal;
+            try {
+                journal = Files.readAllBytes(mJournalFile.toPath());
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                Slog.wtf(TAG, "Error reading job journal.", e);
+                return false;
+            }
+            if (journal.length == 0) {
+                return true;
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+            int numRecords = 0;
+            try {
+                if (in.readInt() != JOURNAL_MAGIC) {
+                    Slog.wtf(TAG, "Invalid job journal header, ignoring journal.");
+                    return false;
+                }
+                final long generation = in.readLong();
+                if (generation != mSnapshotGeneration) {
+                    Slog.w(TAG, "Job journal of generation " + generation + " is stale for "
+                            + "snapshot generation " + mSnapshotGeneration + ", ignoring it.");
+                    return false;
+                }
+                final long now = sElapsedRealtimeClock.millis();
+                final IActivityManager am = ActivityManager.getService();
+                while (in.available() > 0) {
+                    final byte type = in.readByte();
+                    if (type == JOURNAL_RECORD_ADD) {
+                        final byte[] jobXml = new byte[in.readInt()];
+                        in.readFully(jobXml);
+                        final List<JobStatus> jobs =
+                                readJobMapImpl(new ByteArrayInputStream(jobXml), rtcGood);
+                        if (jobs == null) {
+                            continue;
+                        }
+                        for (int i = 0; i < jobs.size(); i++) {
+                            final JobStatus js = jobs.get(i);
+                            removeJob(js.getUid(), js.getJobId());
+                            js.prepareLocked(am);
+                            js.enqueueTime = now;
+                            jobSet.add(js);
+                        }
+                    } else if (type == JOURNAL_RECORD_REMOVE) {
+                        final int uid = in.readInt();
+                        final int jobId = in.readInt();
+                        removeJob(uid, jobId);
+                    } else {
+                        Slog.wtf(TAG, "Unknown job journal record " + type + ", stopping replay.");
+                        return false;
+                    }
+                    numRecords++;
+                }
+            } catch (EOFException e) {
+                Slog.w(TAG, "Job journal ends in a partial record, ignoring it.");
+                return false;
+            } catch (XmlPullParserException | IOException e) {
+                Slog.wtf(TAG, "Error replaying job journal.", e);
+                return false;
+            } finally {
+                if (DEBUG) {
+                    Slog.d(TAG, "Replayed " + numRecords + " job journal records");
+                }
+            }
+            return true;
+        }
+
+        private void removeJob(int uid, int jobId) {
+            final JobStatus existing = jobSet.get(uid, jobId);
+            if (existing != null) {
+                jobSet.remove(existing);
+            }
+        }
+
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, StandardCharsets.UTF_8.name());
@@ -665,6 +996,14 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                // Snapshots written before journaling have no generation.
+                final String generation = parser.getAttributeValue(null, XML_ATTR_GENERATION);
+                try {
+                    readGeneration = generation != null ? Long.parseLong(generation) : 0;
+                } catch (NumberFormatException e) {
+                    Slog.e(TAG, "Invalid generation " + generation + ", assuming 0.");
+                    readGeneration = 0;
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
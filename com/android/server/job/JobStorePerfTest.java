@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures the cost of persisting a single job change in a store holding many persisted jobs.
+ * Each iteration reschedules one job and synchronously writes the change to disk; the bytes
+ * written per change are reported alongside the latency.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class JobStorePerfTest {
+    private static final int SOURCE_UID = 10001;
+    private static final String SOURCE_PACKAGE = "com.android.frameworks.perftests.job";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDataDir;
+    private JobStore mJobStore;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDataDir = new File(context.getFilesDir(), "jobstore-perftest");
+        FileUtils.deleteContentsAndDir(mDataDir);
+        mJobStore = JobStore.initAndGetForTesting(context, mDataDir);
+        mJobStore.writeStatusToDiskForTesting();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDataDir);
+    }
+
+    @Test
+    public void timeRescheduleJob_1k() {
+        rescheduleJob(1000);
+    }
+
+    @Test
+    public void timeRescheduleJob_10k() {
+        rescheduleJob(10000);
+    }
+
+    private void rescheduleJob(int jobCount) {
+        synchronized (mJobStore.mLock) {
+            for (int i = 0; i < jobCount; i++) {
+                mJobStore.add(createJob(i));
+            }
+        }
+        mJobStore.writeStatusToDiskForTesting();
+
+        final long startBytes = mJobStore.getPersistStats().bytesSaved;
+        int changes = 0;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mJobStore.mLock) {
+                mJobStore.add(createJob(changes % jobCount));
+            }
+            mJobStore.writeStatusToDiskForTesting();
+            changes++;
+        }
+
+        final Bundle status = new Bundle();
+        status.putLong("bytes_per_change",
+                (mJobStore.getPersistStats().bytesSaved - startBytes) / Math.max(changes, 1));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private static JobStatus createJob(int jobId) {
+        final JobInfo job = new JobInfo.Builder(jobId,
+                new ComponentName(SOURCE_PACKAGE, "PerfTestJobService"))
+                .setPersisted(true)
+                .setRequiresCharging(true)
+                .setOverrideDeadline(24 * 60 * 60 * 1000L)
+                .build();
+        return JobStatus.createFromJobInfo(job, SOURCE_UID, SOURCE_PACKAGE, 0, null);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import static com.android.server.net.NetworkStatsCollection.FILE_MAGIC;
+import static com.android.server.net.NetworkStatsCollection.INDEX_ENTRY_SIZE;
+import static com.android.server.net.NetworkStatsCollection.VERSION_COLUMNAR;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a {@link NetworkStatsCollection} file written in its
+ * {@link NetworkStatsCollection#VERSION_COLUMNAR} format.
+ * <p>
+ * The file is memory-mapped, and queries only read the index entries and
+ * buckets they need, matching each {@link NetworkIdentitySet} against the
+ * requested {@link NetworkTemplate} once, binary searching the index for a
+ * single uid, and binary searching the bucketStart column of each matching key
+ * for the requested time range. No {@link NetworkStatsHistory} is built.
+ * <p>
+ * Not inherently thread safe.
+ */
+final class MappedNetworkStatsFile {
+    private static final int HEADER_SIZE = 4 + 4 + 4;
+    private static final int LONG_SIZE = 8;
+
+    // Offsets of the fields of an index entry.
+    private static final int ENTRY_IDENT = 0;
+    private static final int ENTRY_UID = 4;
+    private static final int ENTRY_SET = 8;
+    private static final int ENTRY_TAG = 12;
+    private static final int ENTRY_BUCKET_COUNT = 16;
+    private static final int ENTRY_BUCKET_DURATION = 20;
+    private static final int ENTRY_OFFSET = 28;
+
+    // Order of the columns of each key.
+    private static final int COLUMN_BUCKET_START = 0;
+    private static final int COLUMN_RX_BYTES = 2;
+    private static final int COLUMN_RX_PACKETS = 3;
+    private static final int COLUMN_TX_BYTES = 4;
+    private static final int COLUMN_TX_PACKETS = 5;
+    private static final int COLUMN_OPERATIONS = 6;
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+    private final NetworkIdentitySet[] mIdents;
+    private final int mKeyCount;
+    private final int mIndexOffset;
+
+    /**
+     * Map the given file, or return null if it was written in an older format
+     * that must be read with {@link NetworkStatsCollection#read}.
+     */
+    public static MappedNetworkStatsFile open(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+                FileChannel channel = in.getChannel()) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new ProtocolException("truncated file: " + file);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new ProtocolException("oversized file: " + file);
+            }
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final int magic = buffer.getInt(0);
+            if (magic != FILE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            if (buffer.getInt(4) != VERSION_COLUMNAR) {
+                return null;
+            }
+            return new MappedNetworkStatsFile(file, buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("corrupt network stats file: " + file, e);
+        }
+    }
+
+    private MappedNetworkStatsFile(File file, ByteBuffer buffer) throws IOException {
+        mFile = file;
+        mBuffer = buffer;
+
+        final int identCount = buffer.getInt(8);
+        if (identCount < 0) throw new ProtocolException("negative ident count");
+        mIdents = new NetworkIdentitySet[identCount];
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < identCount; i++) {
+            final int length = buffer.getInt(offset);
+            if (length < 0) throw new ProtocolException("negative ident length");
+            final byte[] bytes = new byte[length];
+            buffer.position(offset + 4);
+            buffer.get(bytes);
+            mIdents[i] = new NetworkIdentitySet(
+                    new DataInputStream(new ByteArrayInputStream(bytes)));
+            offset += 4 + length;
+        }
+
+        mKeyCount = buffer.getInt(offset);
+        mIndexOffset = offset + 4;
+        if (mKeyCount < 0
+                || mIndexOffset + (long) mKeyCount * INDEX_ENTRY_SIZE > buffer.capacity()) {
+            throw new ProtocolException("unexpected key count: " + mKeyCount);
+        }
+        // Queries divide by the bucket duration, so reject a corrupt one up front rather than
+        // fail with an ArithmeticException then.
+        for (int i = 0; i < mKeyCount; i++) {
+            final int index = mIndexOffset + i * INDEX_ENTRY_SIZE;
+            if (buffer.getInt(index + ENTRY_BUCKET_COUNT) < 0) {
+                throw new ProtocolException("negative bucket count");
+            }
+            final long bucketDuration = buffer.getLong(index + ENTRY_BUCKET_DURATION);
+            if (bucketDuration <= 0) {
+                throw new ProtocolException("unexpected bucket duration: " + bucketDuration);
+            }
+        }
+    }
+
+    /**
+     * Add the stats of every key matching the requested parameters to the
+     * given {@link NetworkStats}, as {@link NetworkStatsCollection#getSummary}
+     * does.
+     */
+    public void getSummary(NetworkTemplate template, long start, long end, long now,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid, NetworkStats stats)
+            throws IOException {
+        final boolean[] identMatches = matchIdents(template);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        try {
+            for (int i = 0; i < mKeyCount; i++) {
+                final int index = mIndexOffset + i * INDEX_ENTRY_SIZE;
+                final int ident = mBuffer.getInt(index + ENTRY_IDENT);
+                if (!identMatches[ident]) continue;
+
+                final int uid = mBuffer.getInt(index + ENTRY_UID);
+                final int set = mBuffer.getInt(index + ENTRY_SET);
+                if (set >= NetworkStats.SET_DEBUG_START
+                        || !NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                    continue;
+                }
+
+                NetworkStatsCollection.setSummaryKey(entry, mIdents[ident], uid, set,
+                        mBuffer.getInt(index + ENTRY_TAG));
+                getValues(index, start, end, now, entry);
+                if (!entry.isEmpty()) {
+                    stats.combineValues(entry);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt network stats file: " + mFile, e);
+        }
+    }
+
+    /**
+     * Record the buckets of every key matching the requested parameters that
+     * atomically occur in the inclusive time range into the given
+     * {@link NetworkStatsHistory}, as {@link NetworkStatsCollection#getHistory}
+     * does when not augmenting.
+     */
+    public void recordHistory(NetworkTemplate template, int uid, int set, int tag, long start,
+            long end, NetworkStatsHistory combined) throws IOException {
+        boolean[] identMatches = null;
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+        try {
+            for (int i = findFirstKey(uid); i < mKeyCount; i++) {
+                final int index = mIndexOffset + i * INDEX_ENTRY_SIZE;
+                if (mBuffer.getInt(index + ENTRY_UID) != uid) break;
+                if (!NetworkStats.setMatches(set, mBuffer.getInt(index + ENTRY_SET))
+                        || mBuffer.getInt(index + ENTRY_TAG) != tag) {
+                    continue;
+                }
+                if (identMatches == null) {
+                    identMatches = matchIdents(template);
+                }
+                if (!identMatches[mBuffer.getInt(index + ENTRY_IDENT)]) continue;
+
+                recordBuckets(index, start, end, entry, combined);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt network stats file: " + mFile, e);
+        }
+    }
+
+    private boolean[] matchIdents(NetworkTemplate template) {
+        final boolean[] matches = new boolean[mIdents.length];
+        for (int i = 0; i < mIdents.length; i++) {
+            for (NetworkIdentity ident : mIdents[i]) {
+                if (template.matches(ident)) {
+                    matches[i] = true;
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Return the first index entry of the given uid, or of the first uid after
+     * it.
+     */
+    private int findFirstKey(int uid) {
+        int lo = 0;
+        int hi = mKeyCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBuffer.getInt(mIndexOffset + mid * INDEX_ENTRY_SIZE + ENTRY_UID) < uid) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return the first bucket of the key whose columns start at the given
+     * offset that starts after the given time.
+     */
+    private int findFirstBucketAfter(int columns, int bucketCount, long time) {
+        int lo = 0;
+        int hi = bucketCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBuffer.getLong(columns + mid * LONG_SIZE) <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Set the values of the given entry to those of the key at the given index
+     * entry over the requested range, as
+     * {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}
+     * does.
+     */
+    private void getValues(int index, long start, long end, long now, NetworkStats.Entry entry) {
+        final int bucketCount = mBuffer.getInt(index + ENTRY_BUCKET_COUNT);
+        final long bucketDuration = mBuffer.getLong(index + ENTRY_BUCKET_DURATION);
+        final int columns = (int) mBuffer.getLong(index + ENTRY_OFFSET);
+        final int columnSize = bucketCount * LONG_SIZE;
+
+        entry.rxBytes = 0;
+        entry.rxPackets = 0;
+        entry.txBytes = 0;
+        entry.txPackets = 0;
+        entry.operations = 0;
+
+        // skip buckets that end before the request
+        int i = start > Long.MIN_VALUE + bucketDuration
+                ? findFirstBucketAfter(columns, bucketCount, start - bucketDuration) : 0;
+        for (; i < bucketCount; i++) {
+            final int bucket = columns + i * LONG_SIZE;
+            final long curStart = mBuffer.getLong(bucket + COLUMN_BUCKET_START * columnSize);
+            final long curEnd = curStart + bucketDuration;
+
+            // bucket is newer than request; we're finished
+            if (curStart >= end) break;
+
+            // include full value for active buckets, otherwise only fractional
+            final boolean activeBucket = curStart < now && curEnd > now;
+            final long overlap;
+            if (activeBucket) {
+                overlap = bucketDuration;
+            } else {
+                final long overlapEnd = curEnd < end ? curEnd : end;
+                final long overlapStart = curStart > start ? curStart : start;
+                overlap = overlapEnd - overlapStart;
+            }
+            if (overlap <= 0) continue;
+
+            entry.rxBytes += mBuffer.getLong(bucket + COLUMN_RX_BYTES * columnSize)
+                    * overlap / bucketDuration;
+            entry.rxPackets += mBuffer.getLong(bucket + COLUMN_RX_PACKETS * columnSize)
+                    * overlap / bucketDuration;
+            entry.txBytes += mBuffer.getLong(bucket + COLUMN_TX_BYTES * columnSize)
+                    * overlap / bucketDuration;
+            entry.txPackets += mBuffer.getLong(bucket + COLUMN_TX_PACKETS * columnSize)
+                    * overlap / bucketDuration;
+            entry.operations += mBuffer.getLong(bucket + COLUMN_OPERATIONS * columnSize)
+                    * overlap / bucketDuration;
+        }
+    }
+
+    /**
+     * Record the buckets of the key at the given index entry that atomically
+     * occur in the inclusive time range, as
+     * {@link NetworkStatsHistory#recordHistory} does.
+     */
+    private void recordBuckets(int index, long start, long end, NetworkStats.Entry entry,
+            NetworkStatsHistory combined) {
+        final int bucketCount = mBuffer.getInt(index + ENTRY_BUCKET_COUNT);
+        final long bucketDuration = mBuffer.getLong(index + ENTRY_BUCKET_DURATION);
+        final int columns = (int) mBuffer.getLong(index + ENTRY_OFFSET);
+        final int columnSize = bucketCount * LONG_SIZE;
+
+        int i = start > Long.MIN_VALUE ? findFirstBucketAfter(columns, bucketCount, start - 1) : 0;
+        for (; i < bucketCount; i++) {
+            final int bucket = columns + i * LONG_SIZE;
+            final long bucketStart = mBuffer.getLong(bucket + COLUMN_BUCKET_START * columnSize);
+            final long bucketEnd = bucketStart + bucketDuration;
+
+            // bucket is past requested range; we're finished
+            if (bucketEnd > end) break;
+
+            entry.rxBytes = mBuffer.getLong(bucket + COLUMN_RX_BYTES * columnSize);
+            entry.rxPackets = mBuffer.getLong(bucket + COLUMN_RX_PACKETS * columnSize);
+            entry.txBytes = mBuffer.getLong(bucket + COLUMN_TX_BYTES * columnSize);
+            entry.txPackets = mBuffer.getLong(bucket + COLUMN_TX_PACKETS * columnSize);
+            entry.operations = mBuffer.getLong(bucket + COLUMN_OPERATIONS * columnSize);
+
+            combined.recordData(bucketStart, bucketEnd, entry);
+        }
+    }
+}
@@ -59,9 +59,9 @@ import com.android.internal.util.IndentingPrintWriter;
 import libcore.io.IoUtils;
 
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -73,7 +73,6 @@ import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
 
@@ -83,7 +82,7 @@ import java.util.Objects;
  */
 public class NetworkStatsCollection implements FileRotator.Reader {
     /** File header magic number: "ANET" */
-    private static final int FILE_MAGIC = 0x414E4554;
+    static final int FILE_MAGIC = 0x414E4554;
 
     private static final int VERSION_NETWORK_INIT = 1;
 
@@ -94,6 +93,24 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private static final int VERSION_UNIFIED_INIT = 16;
 
+    /**
+     * Histories stored as fixed-width columns behind an index of keys, so that
+     * {@link MappedNetworkStatsFile} can query them without parsing the file.
+     * <pre>
+     * header:  magic, version, identCount, (length, NetworkIdentitySet) of
+     *          each ident, keyCount
+     * index:   (ident, uid, set, tag, bucketCount, bucketDuration, offset) of
+     *          each key, sorted by uid, set, tag and ident
+     * columns: for each key, at its offset, bucketCount values each of
+     *          bucketStart, activeTime, rxBytes, rxPackets, txBytes, txPackets
+     *          and operations
+     * </pre>
+     */
+    static final int VERSION_COLUMNAR = 17;
+
+    static final int COLUMN_COUNT = 7;
+    static final int INDEX_ENTRY_SIZE = 5 * 4 + 2 * 8;
+
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
     private final long mBucketDuration;
@@ -372,14 +389,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 final NetworkStatsHistory value = mStats.valueAt(i);
                 historyEntry = value.getValues(start, end, now, historyEntry);
 
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork() ?
-                        DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+                setSummaryKey(entry, key.ident, key.uid, key.set, key.tag);
                 entry.rxBytes = historyEntry.rxBytes;
                 entry.rxPackets = historyEntry.rxPackets;
                 entry.txBytes = historyEntry.txBytes;
@@ -395,6 +405,21 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return stats;
     }
 
+    /**
+     * Set everything but the values of a {@link #getSummary} entry.
+     */
+    static void setSummaryKey(NetworkStats.Entry entry, NetworkIdentitySet ident, int uid,
+            int set, int tag) {
+        entry.iface = IFACE_ALL;
+        entry.uid = uid;
+        entry.set = set;
+        entry.tag = tag;
+        entry.defaultNetwork = ident.areAllMembersOnDefaultNetwork() ?
+                DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+        entry.metered = ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+        entry.roaming = ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      */
@@ -458,7 +483,13 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         read(new DataInputStream(in));
     }
 
-    public void read(DataInputStream in) throws IOException {
+    /**
+     * Read a collection written by {@link #write(DataOutputStream)}, in any
+     * version.
+     *
+     * @return The version the collection was written in.
+     */
+    public int read(DataInputStream in) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -484,7 +515,43 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                         recordHistory(key, history);
                     }
                 }
-                break;
+                return version;
+            }
+            case VERSION_COLUMNAR: {
+                final int identCount = in.readInt();
+                if (identCount < 0) throw new ProtocolException("negative ident count");
+                final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+                for (int i = 0; i < identCount; i++) {
+                    // length is only needed when mapped
+                    in.readInt();
+                    idents[i] = new NetworkIdentitySet(in);
+                }
+
+                final int keyCount = in.readInt();
+                if (keyCount < 0) throw new ProtocolException("negative key count");
+                final Key[] keys = new Key[keyCount];
+                final int[] bucketCounts = new int[keyCount];
+                final long[] bucketDurations = new long[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    final int ident = in.readInt();
+                    if (ident < 0 || ident >= identCount) {
+                        throw new ProtocolException("unexpected ident: " + ident);
+                    }
+                    final int uid = in.readInt();
+                    final int set = in.readInt();
+                    final int tag = in.readInt();
+                    keys[i] = new Key(idents[ident], uid, set, tag);
+                    bucketCounts[i] = in.readInt();
+                    bucketDurations[i] = in.readLong();
+                    // columns follow the index in the same order
+                    in.readLong();
+                }
+
+                for (int i = 0; i < keyCount; i++) {
+                    recordHistory(keys[i], NetworkStatsHistory.readColumnsFromStream(in,
+                            bucketDurations[i], bucketCounts[i]));
+                }
+                return version;
             }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
@@ -492,34 +559,50 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Write this collection in the {@link #VERSION_COLUMNAR} format.
+     */
     public void write(DataOutputStream out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        final ArrayList<Key> keys = new ArrayList<>(mStats.keySet());
+        Collections.sort(keys, Key::compareIndexOrder);
+
+        // number idents in order of first use
+        final ArrayMap<NetworkIdentitySet, Integer> identIndexes = new ArrayMap<>();
+        final ArrayList<byte[]> identBytes = new ArrayList<>();
+        for (Key key : keys) {
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, identBytes.size());
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                key.ident.writeToStream(new DataOutputStream(bytes));
+                identBytes.add(bytes.toByteArray());
             }
-            keys.add(key);
         }
 
+        long offset = 3 * 4 + 4 + keys.size() * (long) INDEX_ENTRY_SIZE;
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
-
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
-            }
+        out.writeInt(VERSION_COLUMNAR);
+        out.writeInt(identBytes.size());
+        for (byte[] bytes : identBytes) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            offset += 4 + bytes.length;
+        }
+
+        out.writeInt(keys.size());
+        for (Key key : keys) {
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeInt(history.size());
+            out.writeLong(history.getBucketDuration());
+            out.writeLong(offset);
+            offset += COLUMN_COUNT * 8L * history.size();
+        }
+
+        for (Key key : keys) {
+            mStats.get(key).writeColumnsToStream(out);
         }
 
         out.flush();
@@ -803,6 +886,24 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             return false;
         }
 
+        /**
+         * Order of the {@link #VERSION_COLUMNAR} index, which keeps the keys of
+         * each uid together.
+         */
+        public static int compareIndexOrder(Key left, Key right) {
+            int res = Integer.compare(left.uid, right.uid);
+            if (res == 0) {
+                res = Integer.compare(left.set, right.set);
+            }
+            if (res == 0) {
+                res = Integer.compare(left.tag, right.tag);
+            }
+            if (res == 0) {
+                res = left.ident.compareTo(right.ident);
+            }
+            return res;
+        }
+
         @Override
         public int compareTo(Key another) {
             int res = 0;
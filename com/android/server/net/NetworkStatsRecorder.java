@@ -46,6 +46,7 @@ import libcore.io.IoUtils;
 import com.google.android.collect.Sets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -53,6 +54,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.net.ProtocolException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
@@ -93,6 +95,9 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /** Set once every file managed by {@link #mRotator} is in the columnar format. */
+    private boolean mFilesUpgraded;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -201,6 +206,99 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Summarize stats matching the requested parameters, as
+     * {@link NetworkStatsCollection#getSummary} does on the complete history.
+     * Unless the complete history is already loaded, the files overlapping the
+     * requested range are queried through {@link MappedNetworkStatsFile},
+     * which only reads the keys and buckets that match.
+     */
+    public NetworkStats getSummaryLocked(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getSummary(template, start, end, accessLevel, callerUid);
+        }
+
+        final NetworkStats stats = mPending.getSummary(template, start, end, accessLevel,
+                callerUid);
+        if (start == end) return stats;
+
+        final long now = System.currentTimeMillis();
+        try {
+            upgradeFilesLocked();
+            mRotator.readMatchingFiles((file) -> {
+                openMapped(file).getSummary(template, start, end, now, accessLevel, callerUid,
+                        stats);
+            }, start, end);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem querying network stats", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem querying network stats", e);
+            recoverFromWtf();
+        }
+        return stats;
+    }
+
+    /**
+     * Combine history matching the requested parameters, as
+     * {@link NetworkStatsCollection#getHistory} does on the complete history
+     * without augmenting. Unless the complete history is already loaded, the
+     * files overlapping the requested range are queried through
+     * {@link MappedNetworkStatsFile}, which only reads the keys and buckets
+     * that match.
+     */
+    public NetworkStatsHistory getHistoryLocked(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getHistory(template, null, uid, set, tag, fields, start, end,
+                    accessLevel, callerUid);
+        }
+
+        // also checks that the caller can access the uid
+        final NetworkStatsHistory combined = mPending.getHistory(template, null, uid, set, tag,
+                fields, start, end, accessLevel, callerUid);
+        if (start == end) return combined;
+
+        try {
+            upgradeFilesLocked();
+            mRotator.readMatchingFiles((file) -> {
+                openMapped(file).recordHistory(template, uid, set, tag, start, end, combined);
+            }, start, end);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem querying network stats", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem querying network stats", e);
+            recoverFromWtf();
+        }
+        return combined;
+    }
+
+    private static MappedNetworkStatsFile openMapped(File file) throws IOException {
+        final MappedNetworkStatsFile mapped = MappedNetworkStatsFile.open(file);
+        if (mapped == null) {
+            throw new ProtocolException("unexpected version in " + file);
+        }
+        return mapped;
+    }
+
+    /**
+     * Rewrite any files persisted before the columnar format existed, so that
+     * they can be mapped. Files are otherwise only rewritten when active or when
+     * removing uids.
+     */
+    private void upgradeFilesLocked() throws IOException {
+        if (mFilesUpgraded) return;
+        mRotator.rewriteAll(new UpgradeRewriter(mBucketDuration));
+        mFilesUpgraded = true;
+    }
+
     /**
      * Record any delta that occurred since last {@link NetworkStats} snapshot,
      * using the given {@link Map} to identify network interfaces. First
@@ -431,6 +529,40 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Rewriter that will write back any {@link NetworkStatsCollection} read
+     * in an older format.
+     */
+    private static class UpgradeRewriter implements FileRotator.Rewriter {
+        private final NetworkStatsCollection mTemp;
+        private boolean mColumnar;
+
+        public UpgradeRewriter(long bucketDuration) {
+            mTemp = new NetworkStatsCollection(bucketDuration);
+        }
+
+        @Override
+        public void reset() {
+            mTemp.reset();
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            mColumnar = mTemp.read(new DataInputStream(in))
+                    == NetworkStatsCollection.VERSION_COLUMNAR;
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return !mColumnar;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mTemp.write(new DataOutputStream(out));
+        }
+    }
+
     public void importLegacyNetworkLocked(File file) throws IOException {
         checkNotNull(mRotator, "missing FileRotator");
 
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.YEAR_IN_MILLIS;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.DropBoxManager;
+import android.os.FileUtils;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.util.FileRotator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures querying 12 months of daily per-uid stats for 1000 uids, each using both mobile and
+ * wifi, persisted in one file per month: through {@link MappedNetworkStatsFile} as
+ * {@link NetworkStatsRecorder} does now, against loading the complete history first as sessions
+ * used to, and against querying a complete history already in memory.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsRecorderPerfTest {
+    private static final int UID_COUNT = 1000;
+    private static final int MONTH_COUNT = 12;
+    private static final int DAYS_PER_MONTH = 30;
+    private static final String SUBSCRIBER_ID = "310260000000000";
+
+    private static final NetworkTemplate TEMPLATE_MOBILE =
+            NetworkTemplate.buildTemplateMobileAll(SUBSCRIBER_ID);
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private FileRotator mRotator;
+    private NetworkStatsRecorder mRecorder;
+    private long mEnd;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "netstats-perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mRotator = new FileRotator(mDir, "uid", DAY_IN_MILLIS, 2 * YEAR_IN_MILLIS);
+
+        final NetworkIdentitySet mobile = new NetworkIdentitySet();
+        mobile.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE,
+                SUBSCRIBER_ID, null, false, true, true));
+        final NetworkIdentitySet wifi = new NetworkIdentitySet();
+        wifi.add(new NetworkIdentity(TYPE_WIFI, 0, null, "\"perftest\"", false, false, true));
+
+        mEnd = System.currentTimeMillis() / DAY_IN_MILLIS * DAY_IN_MILLIS;
+        long monthStart = mEnd - MONTH_COUNT * DAYS_PER_MONTH * DAY_IN_MILLIS;
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int month = 0; month < MONTH_COUNT; month++) {
+            final NetworkStatsCollection collection = new NetworkStatsCollection(DAY_IN_MILLIS);
+            for (int day = 0; day < DAYS_PER_MONTH; day++) {
+                final long start = monthStart + day * DAY_IN_MILLIS;
+                for (int i = 0; i < UID_COUNT; i++) {
+                    final int uid = Process.FIRST_APPLICATION_UID + i;
+                    entry.rxBytes = 1024 * (i + day);
+                    entry.rxPackets = i + day;
+                    entry.txBytes = 512 * (i + day);
+                    entry.txPackets = i + day;
+                    collection.recordData(mobile, uid, SET_FOREGROUND, TAG_NONE, start,
+                            start + DAY_IN_MILLIS, entry);
+                    collection.recordData(wifi, uid, SET_DEFAULT, TAG_NONE, start,
+                            start + DAY_IN_MILLIS, entry);
+                }
+            }
+
+            // persist the month, then rotate it as the recorder would
+            mRotator.rewriteActive(new FileRotator.Rewriter() {
+                @Override
+                public void reset() {
+                }
+
+                @Override
+                public void read(InputStream in) {
+                }
+
+                @Override
+                public boolean shouldWrite() {
+                    return true;
+                }
+
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    collection.write(new DataOutputStream(out));
+                }
+            }, monthStart);
+            monthStart += DAYS_PER_MONTH * DAY_IN_MILLIS;
+            mRotator.maybeRotate(monthStart);
+        }
+
+        final NetworkStats.NonMonotonicObserver<String> observer =
+                new NetworkStats.NonMonotonicObserver<String>() {
+            @Override
+            public void foundNonMonotonic(NetworkStats left, int leftIndex, NetworkStats right,
+                    int rightIndex, String cookie) {
+            }
+
+            @Override
+            public void foundNonMonotonic(NetworkStats stats, int statsIndex, String cookie) {
+            }
+        };
+        mRecorder = new NetworkStatsRecorder(mRotator, observer,
+                InstrumentationRegistry.getTargetContext().getSystemService(DropBoxManager.class),
+                "uid", DAY_IN_MILLIS, false);
+
+        // Files written above are already columnar, but let the recorder check them.
+        mRecorder.getSummaryLocked(TEMPLATE_MOBILE, mEnd - DAY_IN_MILLIS, mEnd,
+                NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeGetSummary_lastMonth_mapped() {
+        final long start = mEnd - DAYS_PER_MONTH * DAY_IN_MILLIS;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mRecorder.getSummaryLocked(TEMPLATE_MOBILE, start, mEnd,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeGetSummary_lastMonth_loadComplete() throws IOException {
+        final long start = mEnd - DAYS_PER_MONTH * DAY_IN_MILLIS;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStatsCollection complete = new NetworkStatsCollection(DAY_IN_MILLIS);
+            mRotator.readMatching(complete, Long.MIN_VALUE, Long.MAX_VALUE);
+            complete.getSummary(TEMPLATE_MOBILE, start, mEnd, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeGetSummary_lastMonth_inMemory() {
+        final long start = mEnd - DAYS_PER_MONTH * DAY_IN_MILLIS;
+        final NetworkStatsCollection complete = mRecorder.getOrLoadCompleteLocked();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            complete.getSummary(TEMPLATE_MOBILE, start, mEnd, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeGetSummary_year_mapped() {
+        final long start = mEnd - MONTH_COUNT * DAYS_PER_MONTH * DAY_IN_MILLIS;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mRecorder.getSummaryLocked(TEMPLATE_MOBILE, start, mEnd,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeGetHistoryForUid_year_mapped() {
+        final int uid = Process.FIRST_APPLICATION_UID + UID_COUNT / 2;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        NetworkStatsHistory history = null;
+        while (state.keepRunning()) {
+            history = mRecorder.getHistoryLocked(TEMPLATE_MOBILE, uid, NetworkStats.SET_ALL,
+                    TAG_NONE, NetworkStatsHistory.FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+        assertEquals(MONTH_COUNT * DAYS_PER_MONTH, history.size());
+    }
+
+    @Test
+    public void timeGetHistoryForUid_year_loadComplete() throws IOException {
+        final int uid = Process.FIRST_APPLICATION_UID + UID_COUNT / 2;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStatsCollection complete = new NetworkStatsCollection(DAY_IN_MILLIS);
+            mRotator.readMatching(complete, Long.MIN_VALUE, Long.MAX_VALUE);
+            complete.getHistory(TEMPLATE_MOBILE, null, uid, NetworkStats.SET_ALL, TAG_NONE,
+                    NetworkStatsHistory.FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+}
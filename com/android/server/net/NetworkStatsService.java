@@ -567,7 +567,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     callingPackage);
 
             private NetworkStatsCollection mUidComplete;
-            private NetworkStatsCollection mUidTagComplete;
 
             private NetworkStatsCollection getUidComplete() {
                 synchronized (mStatsLock) {
@@ -578,15 +577,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
-            private NetworkStatsCollection getUidTagComplete() {
-                synchronized (mStatsLock) {
-                    if (mUidTagComplete == null) {
-                        mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
-                    }
-                    return mUidTagComplete;
-                }
-            }
-
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -616,14 +606,17 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 try {
-                    final NetworkStats stats = getUidComplete()
-                            .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                    if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
-                                .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                        stats.combineAllValues(tagStats);
+                    // Query the files without loading the complete history
+                    synchronized (mStatsLock) {
+                        final NetworkStats stats = mUidRecorder.getSummaryLocked(
+                                template, start, end, mAccessLevel, mCallingUid);
+                        if (includeTags) {
+                            final NetworkStats tagStats = mUidTagRecorder.getSummaryLocked(
+                                    template, start, end, mAccessLevel, mCallingUid);
+                            stats.combineAllValues(tagStats);
+                        }
+                        return stats;
                     }
-                    return stats;
                 } catch (NullPointerException e) {
                     // TODO: Track down and fix the cause of this crash and remove this catch block.
                     Slog.wtf(TAG, "NullPointerException in getSummaryForAllUid", e);
@@ -635,11 +628,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
+                synchronized (mStatsLock) {
+                    final NetworkStatsRecorder recorder =
+                            tag == TAG_NONE ? mUidRecorder : mUidTagRecorder;
+                    return recorder.getHistoryLocked(template, uid, set, tag, fields,
                             Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
                 }
             }
@@ -650,11 +642,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    synchronized (mStatsLock) {
+                        return mUidRecorder.getHistoryLocked(template, uid, set, tag, fields,
+                                start, end, mAccessLevel, mCallingUid);
+                    }
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    synchronized (mStatsLock) {
+                        return mUidTagRecorder.getHistoryLocked(template, uid, set, tag, fields,
+                                start, end, mAccessLevel, mCallingUid);
+                    }
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -664,7 +660,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             @Override
             public void close() {
                 mUidComplete = null;
-                mUidTagComplete = null;
             }
         };
     }
@@ -748,12 +743,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         assertSystemReady();
         assertBandwidthControlEnabled();
 
-        final NetworkStatsCollection uidComplete;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            return mUidRecorder.getSummaryLocked(template, start, end,
+                    NetworkStatsAccess.Level.DEVICE, android.os.Process.SYSTEM_UID);
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
-                android.os.Process.SYSTEM_UID);
     }
 
     @Override
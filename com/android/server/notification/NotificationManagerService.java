@@ -219,7 +219,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -251,7 +250,6 @@ public class NotificationManagerService extends SystemService {
 
     // message codes
     static final int MESSAGE_DURATION_REACHED = 2;
-    static final int MESSAGE_SAVE_POLICY_FILE = 3;
     static final int MESSAGE_SEND_RANKING_UPDATE = 4;
     static final int MESSAGE_LISTENER_HINTS_CHANGED = 5;
     static final int MESSAGE_LISTENER_NOTIFICATION_FILTER_CHANGED = 6;
@@ -376,6 +374,10 @@ public class NotificationManagerService extends SystemService {
 
     // Persistent storage for notification policy
     private AtomicFile mPolicyFile;
+    private PolicyFileWriter mPolicyFileWriter;
+
+    // How long changes to the policy are held before writing them, see PolicyFileWriter.
+    static final long POLICY_FILE_COALESCING_WINDOW_MS = 1000;
 
     private static final int DB_VERSION = 1;
 
@@ -571,40 +573,23 @@ public class NotificationManagerService extends SystemService {
     }
 
     public void savePolicyFile() {
-        mHandler.removeMessages(MESSAGE_SAVE_POLICY_FILE);
-        mHandler.sendEmptyMessage(MESSAGE_SAVE_POLICY_FILE);
+        mPolicyFileWriter.scheduleWrite();
     }
 
-    private void handleSavePolicyFile() {
-        if (DBG) Slog.d(TAG, "handleSavePolicyFile");
-        synchronized (mPolicyFile) {
-            final FileOutputStream stream;
-            try {
-                stream = mPolicyFile.startWrite();
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to save policy file", e);
-                return;
-            }
-
-            try {
-                writePolicyXml(stream, false /*forBackup*/);
-                mPolicyFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to save policy file, restoring backup", e);
-                mPolicyFile.failWrite(stream);
-            }
-        }
-        BackupManager.dataChanged(getContext().getPackageName());
-    }
-
-    private void writePolicyXml(OutputStream stream, boolean forBackup) throws IOException {
+    /**
+     * @param reuseUnchanged Whether to copy the ranking settings of the packages that did not
+     *                       change since the last such write from that write, see
+     *                       {@link RankingHelper#writeXml(XmlSerializer, boolean, boolean)}.
+     */
+    private void writePolicyXml(OutputStream stream, boolean forBackup, boolean reuseUnchanged)
+            throws IOException {
         final XmlSerializer out = new FastXmlSerializer();
         out.setOutput(stream, StandardCharsets.UTF_8.name());
         out.startDocument(null, true);
         out.startTag(null, TAG_NOTIFICATION_POLICY);
         out.attribute(null, ATTR_VERSION, Integer.toString(DB_VERSION));
         mZenModeHelper.writeXml(out, forBackup, null);
-        mRankingHelper.writeXml(out, forBackup);
+        mRankingHelper.writeXml(out, forBackup, reuseUnchanged);
         mListeners.writeXml(out, forBackup);
         mAssistants.writeXml(out, forBackup);
         mConditionProviders.writeXml(out, forBackup);
@@ -1121,6 +1106,10 @@ public class NotificationManagerService extends SystemService {
                     cancelAllNotificationsInt(MY_UID, MY_PID, null, null, 0, 0, true, userHandle,
                             REASON_USER_STOPPED, null);
                 }
+                // Don't leave the user's last settings changes waiting for the write.
+                mPolicyFileWriter.flush();
+            } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                mPolicyFileWriter.flush();
             } else if (action.equals(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE)) {
                 int userHandle = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, -1);
                 if (userHandle >= 0) {
@@ -1437,6 +1426,19 @@ public class NotificationManagerService extends SystemService {
         mAllowedManagedServicePackages = this::canUseManagedServices;
 
         mPolicyFile = policyFile;
+        mPolicyFileWriter = new PolicyFileWriter(policyFile, mHandler,
+                POLICY_FILE_COALESCING_WINDOW_MS, new PolicyFileWriter.Callback() {
+                    @Override
+                    public void writePolicy(OutputStream stream) throws IOException {
+                        if (DBG) Slog.d(TAG, "writePolicyFile");
+                        writePolicyXml(stream, false /*forBackup*/, true /*reuseUnchanged*/);
+                    }
+
+                    @Override
+                    public void onPolicyWritten() {
+                        BackupManager.dataChanged(getContext().getPackageName());
+                    }
+                });
         loadPolicyFile();
 
         mStatusBar = getLocalService(StatusBarManagerInternal.class);
@@ -1530,6 +1532,7 @@ public class NotificationManagerService extends SystemService {
         filter.addAction(Intent.ACTION_USER_REMOVED);
         filter.addAction(Intent.ACTION_USER_UNLOCKED);
         filter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(mIntentReceiver, filter);
 
         IntentFilter pkgFilter = new IntentFilter();
@@ -3168,7 +3171,7 @@ public class NotificationManagerService extends SystemService {
             synchronized(mPolicyFile) {
                 final ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try {
-                    writePolicyXml(baos, true /*forBackup*/);
+                    writePolicyXml(baos, true /*forBackup*/, false /*reuseUnchanged*/);
                     return baos.toByteArray();
                 } catch (IOException e) {
                     Slog.w(TAG, "getBackupPayload: error writing payload for user " + user, e);
@@ -3866,6 +3869,9 @@ public class NotificationManagerService extends SystemService {
                 pw.println("\n  Ranking Config:");
                 mRankingHelper.dump(pw, "    ", filter);
 
+                pw.println("\n  Policy file:");
+                mPolicyFileWriter.dump(pw, "    ");
+
                 pw.println("\n  Notification listeners:");
                 mListeners.dump(pw, filter);
                 pw.print("    mListenerHints: "); pw.println(mListenerHints);
@@ -5285,9 +5291,6 @@ public class NotificationManagerService extends SystemService {
                 case MESSAGE_FINISH_TOKEN_TIMEOUT:
                     handleKillTokenTimeout((IBinder)msg.obj);
                     break;
-                case MESSAGE_SAVE_POLICY_FILE:
-                    handleSavePolicyFile();
-                    break;
                 case MESSAGE_SEND_RANKING_UPDATE:
                     handleSendRankingUpdate();
                     break;
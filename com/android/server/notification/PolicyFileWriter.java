@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Writes the notification policy file behind the changes to it.
+ * <p>
+ * Settings often change in bursts, such as an app creating all its channels when it first runs,
+ * and every change used to rewrite the whole file. The first change schedules a write after the
+ * coalescing window, and the changes made until then are written with it.
+ */
+final class PolicyFileWriter {
+    private static final String TAG = "PolicyFileWriter";
+
+    interface Callback {
+        /** Writes the whole policy to the given stream. */
+        void writePolicy(OutputStream stream) throws IOException;
+
+        /** Called on the handler thread after the policy was written. */
+        void onPolicyWritten();
+    }
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final long mCoalescingWindowMs;
+    private final Callback mCallback;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private boolean mWritePending;
+    @GuardedBy("mLock")
+    private int mRequestCount;
+    @GuardedBy("mLock")
+    private int mWriteCount;
+    @GuardedBy("mLock")
+    private int mFailedWriteCount;
+    @GuardedBy("mLock")
+    private long mTotalWriteMicros;
+    @GuardedBy("mLock")
+    private long mMaxWriteMicros;
+    @GuardedBy("mLock")
+    private long mTotalBytesWritten;
+    @GuardedBy("mLock")
+    private long mLastBytesWritten;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mWritePending = false;
+            }
+            write();
+        }
+    };
+
+    /**
+     * @param file The policy file. Writes are synchronized on it, as are reads of the file.
+     * @param handler The handler to write the file on.
+     * @param coalescingWindowMs How long to wait after a change before writing it.
+     */
+    PolicyFileWriter(AtomicFile file, Handler handler, long coalescingWindowMs,
+            Callback callback) {
+        mFile = file;
+        mHandler = handler;
+        mCoalescingWindowMs = coalescingWindowMs;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules a write of the file, unless one is already pending.
+     */
+    void scheduleWrite() {
+        synchronized (mLock) {
+            mRequestCount++;
+            if (mWritePending) {
+                return;
+            }
+            mWritePending = true;
+            // Posted under the lock, so that flush() cannot remove it without clearing the flag.
+            mHandler.postDelayed(mWriteRunnable, mCoalescingWindowMs);
+        }
+    }
+
+    /**
+     * Writes the file now if a write is pending, rather than at the end of the window.
+     */
+    void flush() {
+        synchronized (mLock) {
+            if (!mWritePending) {
+                return;
+            }
+            mWritePending = false;
+            mHandler.removeCallbacks(mWriteRunnable);
+        }
+        write();
+    }
+
+    /** Whether a write is waiting for the end of the coalescing window. */
+    @VisibleForTesting
+    boolean isWriteQueued() {
+        synchronized (mLock) {
+            return mHandler.hasCallbacks(mWriteRunnable);
+        }
+    }
+
+    private void write() {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        boolean written = false;
+        long bytes = 0;
+        synchronized (mFile) {
+            final FileOutputStream stream;
+            try {
+                stream = mFile.startWrite();
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to save policy file", e);
+                recordWrite(false, 0, startTime);
+                return;
+            }
+
+            try {
+                mCallback.writePolicy(stream);
+                bytes = stream.getChannel().position();
+                mFile.finishWrite(stream);
+                written = true;
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to save policy file, restoring backup", e);
+                mFile.failWrite(stream);
+            }
+        }
+        recordWrite(written, bytes, startTime);
+        if (written) {
+            mCallback.onPolicyWritten();
+        }
+    }
+
+    private void recordWrite(boolean written, long bytes, long startTime) {
+        final long micros = (SystemClock.elapsedRealtimeNanos() - startTime) / 1000;
+        synchronized (mLock) {
+            if (!written) {
+                mFailedWriteCount++;
+                return;
+            }
+            mWriteCount++;
+            mTotalWriteMicros += micros;
+            mMaxWriteMicros = Math.max(mMaxWriteMicros, micros);
+            mTotalBytesWritten += bytes;
+            mLastBytesWritten = bytes;
+        }
+    }
+
+    @VisibleForTesting
+    int getRequestCount() {
+        synchronized (mLock) {
+            return mRequestCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getWriteCount() {
+        synchronized (mLock) {
+            return mWriteCount;
+        }
+    }
+
+    @VisibleForTesting
+    long getTotalBytesWritten() {
+        synchronized (mLock) {
+            return mTotalBytesWritten;
+        }
+    }
+
+    @VisibleForTesting
+    long getTotalWriteMicros() {
+        synchronized (mLock) {
+            return mTotalWriteMicros;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("coalescing window="); pw.print(mCoalescingWindowMs);
+            pw.print("ms pending="); pw.println(mWritePending);
+            pw.print(prefix); pw.print("requests="); pw.print(mRequestCount);
+            pw.print(" writes="); pw.print(mWriteCount);
+            pw.print(" failed="); pw.println(mFailedWriteCount);
+            pw.print(prefix); pw.print("write time total="); pw.print(mTotalWriteMicros / 1000);
+            pw.print("ms avg=");
+            pw.print(mWriteCount == 0 ? 0 : mTotalWriteMicros / mWriteCount);
+            pw.print("us max="); pw.print(mMaxWriteMicros); pw.println("us");
+            pw.print(prefix); pw.print("bytes written total="); pw.print(mTotalBytesWritten);
+            pw.print(" last="); pw.println(mLastBytesWritten);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating {@link #CHANNELS_PER_PACKAGE} channels for each of {@link #PACKAGE_COUNT}
+ * packages, scheduling a write of the policy file after each one as NotificationManagerService
+ * does, until the last change is written.
+ * <p>
+ * Without a coalescing window and serializing every package, as the policy file used to be
+ * written, against coalescing the changes and only serializing the packages that changed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PolicyFileWriterPerfTest {
+    private static final int PACKAGE_COUNT = 200;
+    private static final int CHANNELS_PER_PACKAGE = 25;
+    private static final String PACKAGE_PREFIX = "com.android.perftests.notification.app";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private PackageManager mPm;
+    private ZenModeHelper mZenModeHelper;
+    private File mPolicyFile;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mPm = mock(PackageManager.class);
+        final ApplicationInfo info = new ApplicationInfo();
+        info.targetSdkVersion = Build.VERSION_CODES.O;
+        when(mPm.getApplicationInfoAsUser(anyString(), anyInt(), anyInt())).thenReturn(info);
+        mZenModeHelper = mock(ZenModeHelper.class);
+        when(mZenModeHelper.getNotificationPolicy())
+                .thenReturn(new NotificationManager.Policy(0, 0, 0));
+
+        mPolicyFile = new File(mContext.getFilesDir(), "notification_policy.xml");
+        new AtomicFile(mPolicyFile).delete();
+        mThread = new HandlerThread("PolicyFileWriterPerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+        new AtomicFile(mPolicyFile).delete();
+    }
+
+    @Test
+    public void timeCreateChannels_writeEach() throws Exception {
+        timeCreateChannels(0, false);
+    }
+
+    @Test
+    public void timeCreateChannels_coalesced() throws Exception {
+        timeCreateChannels(NotificationManagerService.POLICY_FILE_COALESCING_WINDOW_MS, false);
+    }
+
+    @Test
+    public void timeCreateChannels_coalescedIncremental() throws Exception {
+        timeCreateChannels(NotificationManagerService.POLICY_FILE_COALESCING_WINDOW_MS, true);
+    }
+
+    private void timeCreateChannels(long coalescingWindowMs, boolean incremental)
+            throws Exception {
+        RankingHelper helper = null;
+        PolicyFileWriter writer = null;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            helper = createRankingHelper();
+            writer = createWriter(helper, coalescingWindowMs, incremental);
+            state.resumeTiming();
+
+            for (int i = 0; i < PACKAGE_COUNT; i++) {
+                final String pkg = PACKAGE_PREFIX + i;
+                final int uid = Process.FIRST_APPLICATION_UID + i;
+                for (int j = 0; j < CHANNELS_PER_PACKAGE; j++) {
+                    helper.createNotificationChannel(pkg, uid, new NotificationChannel(
+                            "channel" + j, "Channel " + j,
+                            NotificationManager.IMPORTANCE_DEFAULT), true, false);
+                    writer.scheduleWrite();
+                }
+            }
+            // Wait for the writes already posted, then write the last changes.
+            waitForIdle();
+            writer.flush();
+        }
+
+        if (incremental) {
+            // The reused package elements must still match a full serialization.
+            assertEquals(serialize(helper, false), serialize(helper, true));
+        }
+
+        final Bundle status = new Bundle();
+        status.putInt("requests", writer.getRequestCount());
+        status.putInt("writes", writer.getWriteCount());
+        status.putLong("bytes_written", writer.getTotalBytesWritten());
+        status.putLong("write_time_us", writer.getTotalWriteMicros());
+        status.putInt("packages_serialized", helper.getPackagesSerialized());
+        status.putInt("packages_reused", helper.getPackagesReused());
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private RankingHelper createRankingHelper() {
+        return new RankingHelper(mContext, mPm, new RankingHandler() {
+            @Override
+            public void requestSort() {
+            }
+
+            @Override
+            public void requestReconsideration(RankingReconsideration recon) {
+            }
+        }, mZenModeHelper, mock(NotificationUsageStats.class), new String[0]);
+    }
+
+    private PolicyFileWriter createWriter(RankingHelper helper, long coalescingWindowMs,
+            boolean incremental) {
+        return new PolicyFileWriter(new AtomicFile(mPolicyFile), mHandler, coalescingWindowMs,
+                new PolicyFileWriter.Callback() {
+                    @Override
+                    public void writePolicy(OutputStream stream) throws IOException {
+                        final XmlSerializer out = new FastXmlSerializer();
+                        out.setOutput(stream, StandardCharsets.UTF_8.name());
+                        out.startDocument(null, true);
+                        helper.writeXml(out, false /*forBackup*/, incremental);
+                        out.endDocument();
+                    }
+
+                    @Override
+                    public void onPolicyWritten() {
+                    }
+                });
+    }
+
+    private static String serialize(RankingHelper helper, boolean reuseUnchanged)
+            throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        helper.writeXml(out, false /*forBackup*/, reuseUnchanged);
+        out.endDocument();
+        return stream.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private void waitForIdle() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        mHandler.post(idle::countDown);
+        assertTrue(idle.await(60, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PolicyFileWriterTest {
+    // Long enough that no queued write runs during a test.
+    private static final long COALESCING_WINDOW_MS = 60 * 60 * 1000;
+
+    private File mPolicyFile;
+    private HandlerThread mThread;
+    private PolicyFileWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mPolicyFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "policy_file_writer_test.xml");
+        new AtomicFile(mPolicyFile).delete();
+        mThread = new HandlerThread("PolicyFileWriterTest");
+        mThread.start();
+        mWriter = new PolicyFileWriter(new AtomicFile(mPolicyFile),
+                new Handler(mThread.getLooper()), COALESCING_WINDOW_MS,
+                new PolicyFileWriter.Callback() {
+                    @Override
+                    public void writePolicy(OutputStream stream) throws IOException {
+                        stream.write('x');
+                    }
+
+                    @Override
+                    public void onPolicyWritten() {
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+        new AtomicFile(mPolicyFile).delete();
+    }
+
+    @Test
+    public void scheduleWrite_queuesOneWrite() {
+        mWriter.scheduleWrite();
+        mWriter.scheduleWrite();
+        assertTrue(mWriter.isWriteQueued());
+        assertEquals(2, mWriter.getRequestCount());
+        assertEquals(0, mWriter.getWriteCount());
+    }
+
+    @Test
+    public void flush_writesPendingWrite() {
+        mWriter.scheduleWrite();
+        mWriter.flush();
+        assertFalse(mWriter.isWriteQueued());
+        assertEquals(1, mWriter.getWriteCount());
+        assertTrue(mPolicyFile.exists());
+    }
+
+    @Test
+    public void flush_withoutPendingWrite_doesNothing() {
+        mWriter.flush();
+        assertEquals(0, mWriter.getWriteCount());
+    }
+
+    @Test
+    public void scheduleAfterFlush_queuesWrite() {
+        mWriter.scheduleWrite();
+        mWriter.flush();
+        mWriter.scheduleWrite();
+        assertTrue(mWriter.isWriteQueued());
+
+        mWriter.flush();
+        assertFalse(mWriter.isWriteQueued());
+        assertEquals(2, mWriter.getWriteCount());
+    }
+}
@@ -45,6 +45,7 @@ import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto;
+import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 
@@ -57,6 +58,7 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -121,6 +123,10 @@ public class RankingHelper implements RankingConfig {
     private boolean mAreChannelsBypassingDnd;
     private ZenModeHelper mZenModeHelper;
 
+    // Packages serialized by, and reused from the previous call of, writeXml with reuseUnchanged.
+    private int mPackagesSerialized;
+    private int mPackagesReused;
+
     public RankingHelper(Context context, PackageManager pm, RankingHandler rankingHandler,
             ZenModeHelper zenHelper, NotificationUsageStats usageStats, String[] extractorNames) {
         mContext = context;
@@ -275,6 +281,7 @@ public class RankingHelper implements RankingConfig {
                         } catch (NameNotFoundException e) {
                             Slog.e(TAG, "deleteDefaultChannelIfNeeded - Exception: " + e);
                         }
+                        r.changed = true;
                     }
                 }
             }
@@ -389,9 +396,28 @@ public class RankingHelper implements RankingConfig {
     }
 
     public void writeXml(XmlSerializer out, boolean forBackup) throws IOException {
+        writeXml(out, forBackup, false /*reuseUnchanged*/);
+    }
+
+    /**
+     * Writes the ranking settings.
+     * <p>
+     * With reuseUnchanged, which is only supported when not writing for backup, the
+     * {@code package} element of a record that did not change since the last such call is
+     * copied from that call rather than serialized again, and out must be a
+     * {@link FastXmlSerializer}. Records are mutated without holding the lock on mRecords, so a
+     * record is marked changed after each mutation, and the mark is cleared before serializing
+     * it: a mutation racing with the serialization leaves the record marked for the next write.
+     */
+    public void writeXml(XmlSerializer out, boolean forBackup, boolean reuseUnchanged)
+            throws IOException {
+        Preconditions.checkArgument(!reuseUnchanged
+                || (!forBackup && out instanceof FastXmlSerializer));
         out.startTag(null, TAG_RANKING);
         out.attribute(null, ATT_VERSION, Integer.toString(XML_VERSION));
 
+        StringWriter recordBuffer = null;
+        XmlSerializer recordOut = null;
         synchronized (mRecords) {
             final int N = mRecords.size();
             for (int i = 0; i < N; i++) {
@@ -400,53 +426,93 @@ public class RankingHelper implements RankingConfig {
                 if (forBackup && UserHandle.getUserId(r.uid) != UserHandle.USER_SYSTEM) {
                     continue;
                 }
-                final boolean hasNonDefaultSettings =
-                        r.importance != DEFAULT_IMPORTANCE
-                            || r.priority != DEFAULT_PRIORITY
-                            || r.visibility != DEFAULT_VISIBILITY
-                            || r.showBadge != DEFAULT_SHOW_BADGE
-                            || r.lockedAppFields != DEFAULT_LOCKED_APP_FIELDS
-                            || r.channels.size() > 0
-                            || r.groups.size() > 0;
-                if (hasNonDefaultSettings) {
-                    out.startTag(null, TAG_PACKAGE);
-                    out.attribute(null, ATT_NAME, r.pkg);
-                    if (r.importance != DEFAULT_IMPORTANCE) {
-                        out.attribute(null, ATT_IMPORTANCE, Integer.toString(r.importance));
-                    }
-                    if (r.priority != DEFAULT_PRIORITY) {
-                        out.attribute(null, ATT_PRIORITY, Integer.toString(r.priority));
-                    }
-                    if (r.visibility != DEFAULT_VISIBILITY) {
-                        out.attribute(null, ATT_VISIBILITY, Integer.toString(r.visibility));
+                if (!reuseUnchanged) {
+                    writeRecordXml(out, r, forBackup);
+                    continue;
+                }
+                if (r.changed || r.xml == null) {
+                    if (recordOut == null) {
+                        recordBuffer = new StringWriter();
+                        recordOut = new FastXmlSerializer();
+                        recordOut.setOutput(recordBuffer);
                     }
-                    out.attribute(null, ATT_SHOW_BADGE, Boolean.toString(r.showBadge));
-                    out.attribute(null, ATT_APP_USER_LOCKED_FIELDS,
-                            Integer.toString(r.lockedAppFields));
+                    r.changed = false;
+                    r.xml = null;
+                    recordBuffer.getBuffer().setLength(0);
+                    writeRecordXml(recordOut, r, false);
+                    recordOut.flush();
+                    r.xml = recordBuffer.toString();
+                    mPackagesSerialized++;
+                } else {
+                    mPackagesReused++;
+                }
+                ((FastXmlSerializer) out).fragment(r.xml);
+            }
+        }
+        out.endTag(null, TAG_RANKING);
+    }
 
-                    if (!forBackup) {
-                        out.attribute(null, ATT_UID, Integer.toString(r.uid));
-                    }
+    @VisibleForTesting
+    int getPackagesSerialized() {
+        synchronized (mRecords) {
+            return mPackagesSerialized;
+        }
+    }
 
-                    for (NotificationChannelGroup group : r.groups.values()) {
-                        group.writeXml(out);
-                    }
+    @VisibleForTesting
+    int getPackagesReused() {
+        synchronized (mRecords) {
+            return mPackagesReused;
+        }
+    }
 
-                    for (NotificationChannel channel : r.channels.values()) {
-                        if (forBackup) {
-                            if (!channel.isDeleted()) {
-                                channel.writeXmlForBackup(out, mContext);
-                            }
-                        } else {
-                            channel.writeXml(out);
-                        }
-                    }
+    private void writeRecordXml(XmlSerializer out, Record r, boolean forBackup)
+            throws IOException {
+        final boolean hasNonDefaultSettings =
+                r.importance != DEFAULT_IMPORTANCE
+                    || r.priority != DEFAULT_PRIORITY
+                    || r.visibility != DEFAULT_VISIBILITY
+                    || r.showBadge != DEFAULT_SHOW_BADGE
+                    || r.lockedAppFields != DEFAULT_LOCKED_APP_FIELDS
+                    || r.channels.size() > 0
+                    || r.groups.size() > 0;
+        if (!hasNonDefaultSettings) {
+            return;
+        }
+        out.startTag(null, TAG_PACKAGE);
+        out.attribute(null, ATT_NAME, r.pkg);
+        if (r.importance != DEFAULT_IMPORTANCE) {
+            out.attribute(null, ATT_IMPORTANCE, Integer.toString(r.importance));
+        }
+        if (r.priority != DEFAULT_PRIORITY) {
+            out.attribute(null, ATT_PRIORITY, Integer.toString(r.priority));
+        }
+        if (r.visibility != DEFAULT_VISIBILITY) {
+            out.attribute(null, ATT_VISIBILITY, Integer.toString(r.visibility));
+        }
+        out.attribute(null, ATT_SHOW_BADGE, Boolean.toString(r.showBadge));
+        out.attribute(null, ATT_APP_USER_LOCKED_FIELDS,
+                Integer.toString(r.lockedAppFields));
+
+        if (!forBackup) {
+            out.attribute(null, ATT_UID, Integer.toString(r.uid));
+        }
+
+        for (NotificationChannelGroup group : r.groups.values()) {
+            group.writeXml(out);
+        }
 
-                    out.endTag(null, TAG_PACKAGE);
+        for (NotificationChannel channel : r.channels.values()) {
+            if (forBackup) {
+                if (!channel.isDeleted()) {
+                    channel.writeXmlForBackup(out, mContext);
                 }
+            } else {
+                channel.writeXml(out);
             }
         }
-        out.endTag(null, TAG_RANKING);
+
+        out.endTag(null, TAG_PACKAGE);
     }
 
     private void updateConfig() {
@@ -547,7 +613,9 @@ public class RankingHelper implements RankingConfig {
 
     @Override
     public void setShowBadge(String packageName, int uid, boolean showBadge) {
-        getOrCreateRecord(packageName, uid).showBadge = showBadge;
+        final Record r = getOrCreateRecord(packageName, uid);
+        r.showBadge = showBadge;
+        r.changed = true;
         updateConfig();
     }
 
@@ -596,6 +664,7 @@ public class RankingHelper implements RankingConfig {
             }
         }
         r.groups.put(group.getId(), group);
+        r.changed = true;
     }
 
     @Override
@@ -651,6 +720,7 @@ public class RankingHelper implements RankingConfig {
                 }
             }
 
+            r.changed = true;
             updateConfig();
             return;
         }
@@ -675,6 +745,7 @@ public class RankingHelper implements RankingConfig {
         }
 
         r.channels.put(channel.getId(), channel);
+        r.changed = true;
         if (channel.canBypassDnd() != mAreChannelsBypassingDnd) {
             updateChannelsBypassingDnd();
         }
@@ -720,6 +791,7 @@ public class RankingHelper implements RankingConfig {
             r.visibility = updatedChannel.getLockscreenVisibility();
             r.showBadge = updatedChannel.canShowBadge();
         }
+        r.changed = true;
 
         if (!channel.equals(updatedChannel)) {
             // only log if there are real changes
@@ -745,6 +817,9 @@ public class RankingHelper implements RankingConfig {
         }
         final NotificationChannel nc = r.channels.get(channelId);
         if (nc != null && (includeDeleted || !nc.isDeleted())) {
+            // Callers may update the channel itself, such as marking it as having shown a
+            // foreground service notification.
+            r.changed = true;
             return nc;
         }
         return null;
@@ -759,6 +834,7 @@ public class RankingHelper implements RankingConfig {
         NotificationChannel channel = r.channels.get(channelId);
         if (channel != null) {
             channel.setDeleted(true);
+            r.changed = true;
             LogMaker lm = getChannelLog(channel, pkg);
             lm.setType(MetricsProto.MetricsEvent.TYPE_CLOSE);
             MetricsLogger.action(lm);
@@ -779,6 +855,7 @@ public class RankingHelper implements RankingConfig {
             return;
         }
         r.channels.remove(channelId);
+        r.changed = true;
     }
 
     @Override
@@ -795,6 +872,7 @@ public class RankingHelper implements RankingConfig {
                 r.channels.remove(key);
             }
         }
+        r.changed = true;
     }
 
     public NotificationChannelGroup getNotificationChannelGroupWithChannels(String pkg,
@@ -882,6 +960,7 @@ public class RankingHelper implements RankingConfig {
                 deletedChannels.add(nc);
             }
         }
+        r.changed = true;
         return deletedChannels;
     }
 
@@ -1022,7 +1101,9 @@ public class RankingHelper implements RankingConfig {
      */
     @Override
     public void setImportance(String pkgName, int uid, int importance) {
-        getOrCreateRecord(pkgName, uid).importance = importance;
+        final Record r = getOrCreateRecord(pkgName, uid);
+        r.importance = importance;
+        r.changed = true;
         updateConfig();
     }
 
@@ -1047,6 +1128,7 @@ public class RankingHelper implements RankingConfig {
         }
 
         record.lockedAppFields = record.lockedAppFields | LockableAppFields.USER_LOCKED_IMPORTANCE;
+        record.changed = true;
         updateConfig();
     }
 
@@ -1098,6 +1180,12 @@ public class RankingHelper implements RankingConfig {
         }
         pw.println("Restored without uid:");
         dumpRecords(pw, prefix, filter, mRestoredWithoutUids);
+
+        pw.print(prefix);
+        pw.print("packages serialized=");
+        pw.print(mPackagesSerialized);
+        pw.print(" reused=");
+        pw.println(mPackagesReused);
     }
 
     public void dump(ProtoOutputStream proto,
@@ -1352,6 +1440,7 @@ public class RankingHelper implements RankingConfig {
                         record.channels.get(NotificationChannel.DEFAULT_CHANNEL_ID).setName(
                                 context.getResources().getString(
                                         R.string.default_notification_channel_label));
+                        record.changed = true;
                     }
                 }
             }
@@ -1383,6 +1472,7 @@ public class RankingHelper implements RankingConfig {
                 if (r != null) {
                     try {
                         r.uid = mPm.getPackageUidAsUser(r.pkg, changeUserId);
+                        r.changed = true;
                         mRestoredWithoutUids.remove(pkg);
                         synchronized (mRecords) {
                             mRecords.put(recordKey(r.pkg, r.uid), r);
@@ -1399,6 +1489,7 @@ public class RankingHelper implements RankingConfig {
                     if (fullRecord != null) {
                         createDefaultChannelIfNeeded(fullRecord);
                         deleteDefaultChannelIfNeeded(fullRecord);
+                        fullRecord.changed = true;
                     }
                 } catch (NameNotFoundException e) {}
             }
@@ -1475,5 +1566,9 @@ public class RankingHelper implements RankingConfig {
 
         ArrayMap<String, NotificationChannel> channels = new ArrayMap<>();
         Map<String, NotificationChannelGroup> groups = new ConcurrentHashMap<>();
+
+        // Whether the record changed since xml was serialized, see writeXml.
+        volatile boolean changed = true;
+        String xml;
    }
 }
@@ -8503,7 +8503,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, files.length)) {
             // Submit files for parsing in parallel
             int fileCount = 0;
             // 找出所用应用程序文件，如.apk
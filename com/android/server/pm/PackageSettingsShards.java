@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ConcurrentUtils;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Stores the {@code <package>} elements of packages.xml in one file per package, so that writing
+ * the settings after a change to one package only writes the file of that package.
+ * <p>
+ * packages.xml then holds an index naming the file of each package in place of the packages
+ * themselves. Files are never overwritten: a package whose contents changed is written to a new
+ * file, and the files the index no longer names are only deleted once the new packages.xml is
+ * committed. Both the current packages.xml and its backup thus always name a complete set of
+ * files.
+ */
+final class PackageSettingsShards {
+    private static final String TAG = "PackageSettingsShards";
+
+    private static final String FILE_SUFFIX = ".xml";
+    private static final char GENERATION_SEPARATOR = '@';
+
+    private static final int MAX_READ_THREADS = 4;
+
+    private static final class Shard {
+        final String file;
+        final byte[] contents;
+
+        Shard(String file, byte[] contents) {
+            this.file = file;
+            this.contents = contents;
+        }
+    }
+
+    private final File mDir;
+
+    // The file and contents last written or read for each package.
+    private final ArrayMap<String, Shard> mShards = new ArrayMap<>();
+
+    // All the files in mDir, whether named by the committed index or not.
+    private final ArraySet<String> mFiles = new ArraySet<>();
+    private boolean mFilesListed;
+
+    // The files named by the index being written.
+    private final ArraySet<String> mPendingIndex = new ArraySet<>();
+    // Whether files were created in mDir since its entries were last synced.
+    private boolean mDirNeedsSync;
+
+    private long mNextGeneration = 1;
+
+    private int mFilesWritten;
+    private int mFilesUnchanged;
+    private long mBytesWritten;
+
+    PackageSettingsShards(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Reads the files of the given packages, in parallel. A file that cannot be read is logged and
+     * left out of the result.
+     *
+     * @param index The file of each package, as named by packages.xml.
+     * @return The contents of the file of each package.
+     */
+    ArrayMap<String, byte[]> readLPw(ArrayMap<String, String> index) {
+        listFilesLPw();
+        final int count = index.size();
+        final ArrayMap<String, byte[]> contents = new ArrayMap<>(count);
+        if (count == 0) {
+            return contents;
+        }
+        final int threadCount = Math.min(Math.min(
+                Runtime.getRuntime().availableProcessors(), MAX_READ_THREADS), count);
+        final ExecutorService executor = ConcurrentUtils.newFixedThreadPool(threadCount,
+                "package-shard-reader", Process.THREAD_PRIORITY_FOREGROUND);
+        try {
+            final List<Future<byte[]>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final File file = new File(mDir, index.valueAt(i));
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return Files.readAllBytes(file.toPath());
+                    }
+                }));
+            }
+            for (int i = 0; i < count; i++) {
+                final String packageName = index.keyAt(i);
+                final String file = index.valueAt(i);
+                try {
+                    final byte[] bytes = futures.get(i).get();
+                    contents.put(packageName, bytes);
+                    mShards.put(packageName, new Shard(file, bytes));
+                } catch (ExecutionException e) {
+                    Slog.e(TAG, "Unable to read settings of " + packageName + " from " + file,
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted reading package settings", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return contents;
+    }
+
+    /**
+     * Starts writing a new index. Every package in it must then be passed to
+     * {@link #writeLPr}.
+     */
+    void beginWriteLPr() {
+        listFilesLPw();
+        mPendingIndex.clear();
+    }
+
+    /**
+     * Returns the file holding the given contents of a package, writing a new file unless they
+     * are the contents last written or read for the package.
+     */
+    String writeLPr(String packageName, byte[] contents) throws IOException {
+        Shard shard = mShards.get(packageName);
+        if (shard != null && Arrays.equals(shard.contents, contents)) {
+            mFilesUnchanged++;
+        } else {
+            final String file = packageName + GENERATION_SEPARATOR + mNextGeneration++
+                    + FILE_SUFFIX;
+            writeFile(new File(mDir, file), contents);
+            mDirNeedsSync = true;
+            mFiles.add(file);
+            shard = new Shard(file, contents);
+            mShards.put(packageName, shard);
+            mFilesWritten++;
+            mBytesWritten += contents.length;
+        }
+        mPendingIndex.add(shard.file);
+        return shard.file;
+    }
+
+    /**
+     * Syncs the entries of the files written for the new index, so that they are there after a
+     * crash once packages.xml naming them is. Syncing each file only makes its contents durable,
+     * not its name in the directory. Must be called before packages.xml is committed.
+     */
+    void syncLPr() throws IOException {
+        if (!mDirNeedsSync) {
+            return;
+        }
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(mDir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+            mDirNeedsSync = false;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Deletes the files the new index does not name, once packages.xml holding it is committed.
+     */
+    void commitLPr() {
+        for (int i = mFiles.size() - 1; i >= 0; i--) {
+            final String file = mFiles.valueAt(i);
+            if (!mPendingIndex.contains(file)) {
+                new File(mDir, file).delete();
+                mFiles.removeAt(i);
+            }
+        }
+        for (int i = mShards.size() - 1; i >= 0; i--) {
+            if (!mPendingIndex.contains(mShards.valueAt(i).file)) {
+                mShards.removeAt(i);
+            }
+        }
+        mPendingIndex.clear();
+    }
+
+    @VisibleForTesting
+    int getFilesWritten() {
+        return mFilesWritten;
+    }
+
+    @VisibleForTesting
+    int getFilesUnchanged() {
+        return mFilesUnchanged;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Package shards: "); pw.print(mShards.size());
+        pw.print(" in "); pw.println(mDir);
+        pw.print(prefix); pw.print("  files written="); pw.print(mFilesWritten);
+        pw.print(" unchanged="); pw.print(mFilesUnchanged);
+        pw.print(" bytes written="); pw.println(mBytesWritten);
+    }
+
+    private void listFilesLPw() {
+        if (mFilesListed) {
+            return;
+        }
+        mFilesListed = true;
+        final String[] files = mDir.list();
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            mFiles.add(file);
+            final int start = file.lastIndexOf(GENERATION_SEPARATOR);
+            final int end = file.length() - FILE_SUFFIX.length();
+            if (start < 0 || start >= end || !file.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                final long generation = Long.parseLong(file.substring(start + 1, end));
+                mNextGeneration = Math.max(mNextGeneration, generation + 1);
+            } catch (NumberFormatException e) {
+                // Not one of ours, deleted on the next commit.
+            }
+        }
+    }
+
+    private void writeFile(File file, byte[] contents) throws IOException {
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+            FileUtils.setPermissions(mDir.toString(),
+                    FileUtils.S_IRWXU | FileUtils.S_IRWXG, -1, -1);
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(contents);
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            FileUtils.setPermissions(file.toString(),
+                    FileUtils.S_IRUSR | FileUtils.S_IWUSR | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                    -1, -1);
+        } finally {
+            if (out != null) {
+                IoUtils.closeQuietly(out);
+                file.delete();
+            }
+        }
+    }
+}
@@ -34,13 +34,19 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized from the number of available cores
+ * and the number of packages to parse, capped at {@link #MAX_THREADS}. Results are handed out by
+ * {@link #take()} in the order parsing completes, not the order of submission. At any time, at
+ * most {@link #QUEUE_CAPACITY_PER_THREAD} results per thread are kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 3;
+    /**
+     * Upper bound on the number of parsing threads. Past this point parsing is limited by storage
+     * and by contention in the shared parser callbacks rather than by CPU.
+     */
+    private static final int MAX_THREADS = 8;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,18 +55,44 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final ExecutorService mService;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param expectedPackageCount number of packages that will be submitted, used to avoid
+     *                             starting more threads than there is work for.
+     */
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            int expectedPackageCount) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+
+        final int threadCount = computeThreadCount(
+                Runtime.getRuntime().availableProcessors(), expectedPackageCount);
+        mQueue = new ArrayBlockingQueue<>(threadCount * QUEUE_CAPACITY_PER_THREAD);
+        mService = ConcurrentUtils.newFixedThreadPool(threadCount,
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Returns the number of parsing threads to use: one per core, but no more than there are
+     * packages to parse and no more than {@link #MAX_THREADS}.
+     */
+    @VisibleForTesting
+    static int computeThreadCount(int availableProcessors, int expectedPackageCount) {
+        int threadCount = Math.min(availableProcessors, MAX_THREADS);
+        threadCount = Math.min(threadCount, expectedPackageCount);
+        return Math.max(threadCount, 1);
     }
 
     static class ParseResult {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.DisplayMetrics;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Simulates the boot-time scan of an app directory: parses a directory of synthetic APKs
+ * (copies of this test's own APK) with {@link ParallelPackageParser}, with and without a warm
+ * package cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParallelPackageParserPerfTest {
+    private static final int PACKAGE_COUNT = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static File sScanDir;
+    private static File sCacheDir;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        sScanDir = new File(context.getFilesDir(), "parallel-parser-scan");
+        sCacheDir = new File(context.getFilesDir(), "parallel-parser-cache");
+        FileUtils.deleteContentsAndDir(sScanDir);
+        FileUtils.deleteContentsAndDir(sCacheDir);
+        sScanDir.mkdirs();
+        sCacheDir.mkdirs();
+
+        final File source = new File(context.getPackageCodePath());
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            FileUtils.copy(source, new File(sScanDir, "synthetic" + i + ".apk"));
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        FileUtils.deleteContentsAndDir(sScanDir);
+        FileUtils.deleteContentsAndDir(sCacheDir);
+    }
+
+    @Test
+    public void timeScanDirectory_cold() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            scanDirectory(null);
+        }
+    }
+
+    @Test
+    public void timeScanDirectory_warmCache() {
+        // Populate the cache once; every measured scan should then be served from it.
+        scanDirectory(sCacheDir);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            scanDirectory(sCacheDir);
+        }
+    }
+
+    private static void scanDirectory(File cacheDir) {
+        final File[] files = sScanDir.listFiles();
+        final DisplayMetrics metrics = new DisplayMetrics();
+        metrics.setToDefaults();
+        try (ParallelPackageParser parser = new ParallelPackageParser(null /* separateProcesses */,
+                false /* onlyCoreApps */, metrics, cacheDir,
+                null /* callback */, files.length)) {
+            for (File file : files) {
+                parser.submit(file, 0 /* parseFlags */);
+            }
+            for (int i = 0; i < files.length; i++) {
+                final ParallelPackageParser.ParseResult result = parser.take();
+                assertNull(result.toString(), result.throwable);
+            }
+        }
+    }
+}
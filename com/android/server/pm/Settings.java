@@ -62,6 +62,7 @@ import android.os.PatternMatcher;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -81,6 +82,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
@@ -102,6 +104,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -174,6 +178,16 @@ public final class Settings {
 
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
+    /**
+     * Whether packages.xml stores each package in a file of its own, see
+     * {@link PackageSettingsShards}. Settings in either format are read whatever the value.
+     */
+    private static final String PROPERTY_PACKAGE_SHARDS = "persist.pm.package_shards";
+
+    private static final String TAG_PACKAGE_SHARDS = "package-shards";
+    private static final String TAG_PACKAGE_SHARD = "package-shard";
+    private static final String ATTR_FILE = "file";
+
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
     private static final String ATTR_ENFORCEMENT = "enforcement";
 
@@ -269,6 +283,13 @@ public final class Settings {
     /** The top level directory in configfs for sdcardfs to push the package->uid,userId mappings */
     private final File mKernelMappingFilename;
 
+    /** The files of the packages, when packages.xml is sharded. */
+    private final PackageSettingsShards mPackageShards;
+    private boolean mWritePackageShards;
+
+    /** The contents of packages.list as last written, to skip rewriting it unchanged. */
+    private String mLastPackageList;
+
     /** Map from package name to settings */
     final ArrayMap<String, PackageSetting> mPackages = new ArrayMap<>();
 
@@ -445,6 +466,9 @@ public final class Settings {
         // /data/system/packages.list
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
+        // /data/system/packages
+        mPackageShards = new PackageSettingsShards(new File(mSystemDir, "packages"));
+        mWritePackageShards = SystemProperties.getBoolean(PROPERTY_PACKAGE_SHARDS, false);
 
         final File kernelDir = new File("/config/sdcardfs");
         mKernelMappingFilename = kernelDir.exists() ? kernelDir : null;
@@ -2462,6 +2486,27 @@ public final class Settings {
 
         final long startTime = SystemClock.uptimeMillis();
 
+        if (!writeSettingsFileLPr()) {
+            //Debug.stopMethodTracing();
+            return;
+        }
+
+        writeKernelMappingLPr();
+        writePackageListLPr();
+        writeAllUsersPackageRestrictionsLPr();
+        writeAllRuntimePermissionsLPr();
+        com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                "package", SystemClock.uptimeMillis() - startTime);
+        //Debug.stopMethodTracing();
+    }
+
+    /**
+     * Writes packages.xml, and the files of the packages that changed when it is sharded.
+     *
+     * @return Whether the settings were written.
+     */
+    @VisibleForTesting
+    boolean writeSettingsFileLPr() {
         /**
          * 如果mSettingsFilename存在，并且备份文件不存在，将其作为备份
          *
@@ -2481,7 +2526,7 @@ public final class Settings {
                     Slog.wtf(PackageManagerService.TAG,
                             "Unable to backup package manager settings, "
                             + " current changes will be lost at reboot");
-                    return;
+                    return false;
                 }
             } else {
                 // 删除，后面会重写
@@ -2491,6 +2536,7 @@ public final class Settings {
         }
 
         mPastSignatures.clear();
+        mPackageShards.beginWriteLPr();
 
         try {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
@@ -2537,8 +2583,12 @@ public final class Settings {
             mPermissions.writePermissions(serializer);
             serializer.endTag(null, "permissions");
 
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
+            if (mWritePackageShards) {
+                writePackageShardsLPr(serializer);
+            } else {
+                for (final PackageSetting pkg : mPackages.values()) {
+                    writePackageLPr(serializer, pkg);
+                }
             }
 
             for (final PackageSetting pkg : mDisabledSysPackages.values()) {
@@ -2599,6 +2649,9 @@ public final class Settings {
 
             serializer.endDocument();
 
+            // The files of the packages must be durable before packages.xml naming them is.
+            mPackageShards.syncLPr();
+
             str.flush();
             FileUtils.sync(fstr);
             str.close();
@@ -2611,13 +2664,10 @@ public final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
-            com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
-                    "package", SystemClock.uptimeMillis() - startTime);
-            return;
+            // The files of packages that are no longer named by packages.xml, or all of them if
+            // it is no longer sharded, are not needed anymore.
+            mPackageShards.commitLPr();
+            return true;
 
         } catch(java.io.IOException e) {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
@@ -2630,7 +2680,47 @@ public final class Settings {
                         + mSettingsFilename);
             }
         }
-        //Debug.stopMethodTracing();
+        return false;
+    }
+
+    /**
+     * Writes the index of the package files in place of the packages, writing the file of every
+     * package whose settings changed since its file was written.
+     */
+    private void writePackageShardsLPr(XmlSerializer serializer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer packageSerializer = new FastXmlSerializer();
+        // Each file numbers the signatures it writes from 0, so that it can be read on its own.
+        final ArrayList<Signature> pastSignatures = new ArrayList<>();
+
+        serializer.startTag(null, TAG_PACKAGE_SHARDS);
+        for (final PackageSetting pkg : mPackages.values()) {
+            out.reset();
+            pastSignatures.clear();
+            packageSerializer.setOutput(out, StandardCharsets.UTF_8.name());
+            packageSerializer.startDocument(null, true);
+            packageSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            writePackageLPr(packageSerializer, pkg, pastSignatures);
+            packageSerializer.endDocument();
+
+            final String file = mPackageShards.writeLPr(pkg.name, out.toByteArray());
+            serializer.startTag(null, TAG_PACKAGE_SHARD);
+            serializer.attribute(null, ATTR_NAME, pkg.name);
+            serializer.attribute(null, ATTR_FILE, file);
+            serializer.endTag(null, TAG_PACKAGE_SHARD);
+        }
+        serializer.endTag(null, TAG_PACKAGE_SHARDS);
+    }
+
+    @VisibleForTesting
+    void setWritePackageShardsLPw(boolean writePackageShards) {
+        mWritePackageShards = writePackageShards;
+    }
+
+    @VisibleForTesting
+    PackageSettingsShards getPackageShardsLPr() {
+        return mPackageShards;
     }
 
     private void writeKernelRemoveUserLPr(int userId) {
@@ -2743,6 +2833,67 @@ public final class Settings {
             userIds = ArrayUtils.appendInt(userIds, creatingUserId);
         }
 
+        StringBuilder sb = new StringBuilder();
+        for (final PackageSetting pkg : mPackages.values()) {
+            if (pkg.pkg == null || pkg.pkg.applicationInfo == null
+                    || pkg.pkg.applicationInfo.dataDir == null) {
+                if (!"android".equals(pkg.name)) {
+                    Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
+                }
+                continue;
+            }
+
+            final ApplicationInfo ai = pkg.pkg.applicationInfo;
+            final String dataPath = ai.dataDir;
+            final boolean isDebug = (ai.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            final int[] gids = pkg.getPermissionsState().computeGids(userIds);
+
+            // Avoid any application that has a space in its path.
+            if (dataPath.indexOf(' ') >= 0)
+                continue;
+
+            // we store on each line the following information for now:
+            //
+            // pkgName    - package name
+            // userId     - application-specific user id
+            // debugFlag  - 0 or 1 if the package is debuggable.
+            // dataPath   - path to package's data path
+            // seinfo     - seinfo label for the app (assigned at install time)
+            // gids       - supplementary gids this app launches with
+            //
+            // NOTE: We prefer not to expose all ApplicationInfo flags for now.
+            //
+            // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
+            // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
+            //   frameworks/base/libs/packagelistparser
+            //   system/core/run-as/run-as.c
+            //
+            sb.append(ai.packageName);
+            sb.append(" ");
+            sb.append(ai.uid);
+            sb.append(isDebug ? " 1 " : " 0 ");
+            sb.append(dataPath);
+            sb.append(" ");
+            sb.append(ai.seInfo);
+            sb.append(" ");
+            if (gids != null && gids.length > 0) {
+                sb.append(gids[0]);
+                for (int i = 1; i < gids.length; i++) {
+                    sb.append(",");
+                    sb.append(gids[i]);
+                }
+            } else {
+                sb.append("none");
+            }
+            sb.append("\n");
+        }
+
+        // packages.list only changes when packages are added or removed, or their gids change.
+        final String packageList = sb.toString();
+        if (packageList.equals(mLastPackageList) && mPackageListFilename.exists()) {
+            return;
+        }
+
         // Write package list file now, use a JournaledFile.
         File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
         JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
@@ -2754,67 +2905,12 @@ public final class Settings {
             fstr = new FileOutputStream(writeTarget);
             writer = new BufferedWriter(new OutputStreamWriter(fstr, Charset.defaultCharset()));
             FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
-
-            StringBuilder sb = new StringBuilder();
-            for (final PackageSetting pkg : mPackages.values()) {
-                if (pkg.pkg == null || pkg.pkg.applicationInfo == null
-                        || pkg.pkg.applicationInfo.dataDir == null) {
-                    if (!"android".equals(pkg.name)) {
-                        Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
-                    }
-                    continue;
-                }
-
-                final ApplicationInfo ai = pkg.pkg.applicationInfo;
-                final String dataPath = ai.dataDir;
-                final boolean isDebug = (ai.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
-                final int[] gids = pkg.getPermissionsState().computeGids(userIds);
-
-                // Avoid any application that has a space in its path.
-                if (dataPath.indexOf(' ') >= 0)
-                    continue;
-
-                // we store on each line the following information for now:
-                //
-                // pkgName    - package name
-                // userId     - application-specific user id
-                // debugFlag  - 0 or 1 if the package is debuggable.
-                // dataPath   - path to package's data path
-                // seinfo     - seinfo label for the app (assigned at install time)
-                // gids       - supplementary gids this app launches with
-                //
-                // NOTE: We prefer not to expose all ApplicationInfo flags for now.
-                //
-                // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
-                // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
-                //   frameworks/base/libs/packagelistparser
-                //   system/core/run-as/run-as.c
-                //
-                sb.setLength(0);
-                sb.append(ai.packageName);
-                sb.append(" ");
-                sb.append(ai.uid);
-                sb.append(isDebug ? " 1 " : " 0 ");
-                sb.append(dataPath);
-                sb.append(" ");
-                sb.append(ai.seInfo);
-                sb.append(" ");
-                if (gids != null && gids.length > 0) {
-                    sb.append(gids[0]);
-                    for (int i = 1; i < gids.length; i++) {
-                        sb.append(",");
-                        sb.append(gids[i]);
-                    }
-                } else {
-                    sb.append("none");
-                }
-                sb.append("\n");
-                writer.append(sb);
-            }
+            writer.append(packageList);
             writer.flush();
             FileUtils.sync(fstr);
             writer.close();
             journal.commit();
+            mLastPackageList = packageList;
         } catch (Exception e) {
             Slog.wtf(TAG, "Failed to write packages.list", e);
             IoUtils.closeQuietly(writer);
@@ -2875,6 +2971,11 @@ public final class Settings {
 
     void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg)
             throws java.io.IOException {
+        writePackageLPr(serializer, pkg, mPastSignatures);
+    }
+
+    private void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg,
+            ArrayList<Signature> pastSignatures) throws java.io.IOException {
         serializer.startTag(null, "package");
         serializer.attribute(null, ATTR_NAME, pkg.name);
         if (pkg.realName != null) {
@@ -2936,7 +3037,7 @@ public final class Settings {
 
         writeUsesStaticLibLPw(serializer, pkg.usesStaticLibraries, pkg.usesStaticLibrariesVersions);
 
-        pkg.signatures.writeXml(serializer, "sigs", mPastSignatures);
+        pkg.signatures.writeXml(serializer, "sigs", pastSignatures);
 
         writePermissionsLPr(serializer, pkg.getPermissionsState()
                     .getInstallPermissionStates());
@@ -3056,6 +3157,8 @@ public final class Settings {
                 String tagName = parser.getName();
                 if (tagName.equals("package")) {
                     readPackageLPw(parser);
+                } else if (tagName.equals(TAG_PACKAGE_SHARDS)) {
+                    readPackageShardsLPw(parser);
                 } else if (tagName.equals("permissions")) {
                     mPermissions.readPermissions(parser);
                 } else if (tagName.equals("permission-trees")) {
@@ -3676,6 +3779,78 @@ public final class Settings {
     private static int PRE_M_APP_INFO_FLAG_FORWARD_LOCK = 1<<29;
     private static int PRE_M_APP_INFO_FLAG_PRIVILEGED = 1<<30;
 
+    /**
+     * Reads the packages named by the index of a sharded packages.xml from their files.
+     */
+    private void readPackageShardsLPw(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final ArrayMap<String, String> index = new ArrayMap<>();
+        int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            if (parser.getName().equals(TAG_PACKAGE_SHARD)) {
+                final String name = parser.getAttributeValue(null, ATTR_NAME);
+                final String file = parser.getAttributeValue(null, ATTR_FILE);
+                if (name != null && file != null) {
+                    index.put(name, file);
+                }
+            } else {
+                Slog.w(PackageManagerService.TAG, "Unknown element under <" + TAG_PACKAGE_SHARDS
+                        + ">: " + parser.getName());
+            }
+            XmlUtils.skipCurrentTag(parser);
+        }
+
+        // Only reading the files is done in parallel, parsing them updates the settings.
+        final ArrayMap<String, byte[]> contents = mPackageShards.readLPw(index);
+        for (int i = 0; i < index.size(); i++) {
+            final String name = index.keyAt(i);
+            final byte[] bytes = contents.get(name);
+            if (bytes == null) {
+                String msg = "Missing settings file " + index.valueAt(i) + " of package " + name
+                        + "\n";
+                mReadMessages.append(msg);
+                PackageManagerService.reportSettingsProblem(Log.ERROR, msg);
+                continue;
+            }
+            readPackageShardLPw(name, bytes);
+        }
+    }
+
+    private void readPackageShardLPw(String name, byte[] contents) {
+        // The signatures of each file are numbered from 0, see writePackageShardsLPr().
+        final ArrayList<Signature> pastSignatures = new ArrayList<>(mPastSignatures);
+        mPastSignatures.clear();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(contents), StandardCharsets.UTF_8.name());
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                ;
+            }
+            if (type == XmlPullParser.START_TAG && parser.getName().equals("package")) {
+                readPackageLPw(parser);
+            } else {
+                String msg = "No package found in settings file of package " + name + "\n";
+                mReadMessages.append(msg);
+                PackageManagerService.reportSettingsProblem(Log.ERROR, msg);
+            }
+        } catch (XmlPullParserException | IOException e) {
+            mReadMessages.append("Error reading settings of package " + name + ": " + e + "\n");
+            PackageManagerService.reportSettingsProblem(Log.ERROR,
+                    "Error reading settings of package " + name + ": " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading settings of package " + name, e);
+        } finally {
+            mPastSignatures.clear();
+            mPastSignatures.addAll(pastSignatures);
+        }
+    }
+
     private void readPackageLPw(XmlPullParser parser) throws XmlPullParserException, IOException {
         String name = null;
         String realName = null;
@@ -4989,6 +5164,9 @@ public final class Settings {
     void dumpReadMessagesLPr(PrintWriter pw, DumpState dumpState) {
         pw.println("Settings parse messages:");
         pw.print(mReadMessages.toString());
+        if (mWritePackageShards) {
+            mPackageShards.dump(pw, "");
+        }
     }
 
     void dumpRestoredPermissionGrantsLPr(PrintWriter pw, DumpState dumpState) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.pm.permission.PermissionSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Measures writing packages.xml after a change to the settings of one of
+ * {@link #PACKAGE_COUNT} packages, cycling through {@link #CHANGE_COUNT} changes, and reading it
+ * back at boot, with every package written to packages.xml as before and with each package in a
+ * file of its own, see {@link PackageSettingsShards}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsPerfTest {
+    private static final int PACKAGE_COUNT = 500;
+    private static final int CHANGE_COUNT = 1000;
+    private static final String PACKAGE_PREFIX = "com.android.perftests.settings.app";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Object mLock = new Object();
+    private Context mContext;
+    private File mDataDir;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDataDir = new File(mContext.getFilesDir(), "settings-perf");
+        FileUtils.deleteContentsAndDir(mDataDir);
+        mDataDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDataDir);
+    }
+
+    @Test
+    public void timeWriteChange_full() {
+        timeWriteChange(false);
+    }
+
+    @Test
+    public void timeWriteChange_sharded() {
+        timeWriteChange(true);
+    }
+
+    @Test
+    public void timeRead_full() {
+        timeRead(false);
+    }
+
+    @Test
+    public void timeRead_sharded() {
+        timeRead(true);
+    }
+
+    private void timeWriteChange(boolean sharded) {
+        final Settings settings = createSettings(sharded);
+        synchronized (mLock) {
+            addPackages(settings);
+            assertTrue(settings.writeSettingsFileLPr());
+
+            int change = 0;
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                applyChange(settings, change);
+                change = (change + 1) % CHANGE_COUNT;
+                settings.writeSettingsFileLPr();
+            }
+
+            final PackageSettingsShards shards = settings.getPackageShardsLPr();
+            final Bundle status = new Bundle();
+            status.putInt("package_files_written", shards.getFilesWritten());
+            status.putInt("package_files_unchanged", shards.getFilesUnchanged());
+            InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+        }
+    }
+
+    private void timeRead(boolean sharded) {
+        synchronized (mLock) {
+            final Settings written = createSettings(sharded);
+            addPackages(written);
+            assertTrue(written.writeSettingsFileLPr());
+
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                state.pauseTiming();
+                final Settings settings = createSettings(sharded);
+                state.resumeTiming();
+
+                settings.readLPw(Collections.emptyList());
+
+                state.pauseTiming();
+                assertEquals(PACKAGE_COUNT, settings.mPackages.size());
+                state.resumeTiming();
+            }
+        }
+    }
+
+    private Settings createSettings(boolean sharded) {
+        final Settings settings = new Settings(mDataDir,
+                new PermissionSettings(mContext, mLock), mLock);
+        settings.setWritePackageShardsLPw(sharded);
+        return settings;
+    }
+
+    private static void addPackages(Settings settings) {
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String name = PACKAGE_PREFIX + i;
+            final File codePath = new File("/data/app/" + name + "-1");
+            final PackageSetting ps = settings.addPackageLPw(name, null, codePath, codePath,
+                    codePath + "/lib", "arm64-v8a", null, null, Process.FIRST_APPLICATION_UID + i,
+                    1, 0, 0, null, null, null, null);
+            assertNotNull(ps);
+            ps.setTimeStamp(codePath.lastModified());
+            ps.firstInstallTime = ps.lastUpdateTime = 1500000000000L + i;
+            ps.setInstallerPackageName("com.android.vending");
+        }
+    }
+
+    /**
+     * Applies the given one of {@link #CHANGE_COUNT} changes, as an update, a change of installer
+     * or of flags would.
+     */
+    private static void applyChange(Settings settings, int change) {
+        final PackageSetting ps = settings.mPackages.get(PACKAGE_PREFIX + (change % PACKAGE_COUNT));
+        switch (change % 3) {
+            case 0:
+                ps.lastUpdateTime++;
+                ps.versionCode++;
+                break;
+            case 1:
+                ps.setInstallerPackageName(ps.installerPackageName.equals("com.android.vending")
+                        ? "com.android.packageinstaller" : "com.android.vending");
+                break;
+            case 2:
+                ps.pkgFlags ^= ApplicationInfo.FLAG_ALLOW_BACKUP;
+                break;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.util.Log;
 
 import com.android.internal.R;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.XmlUtils;
 import com.android.server.pm.DumpState;
 import com.android.server.pm.PackageManagerService;
@@ -82,7 +83,8 @@ public class PermissionSettings {
 
     private final Object mLock;
 
-    PermissionSettings(@NonNull Context context, @NonNull Object lock) {
+    @VisibleForTesting
+    public PermissionSettings(@NonNull Context context, @NonNull Object lock) {
         mPermissionReviewRequired =
                 context.getResources().getBoolean(R.bool.config_permissionReviewRequired);
         mLock = lock;
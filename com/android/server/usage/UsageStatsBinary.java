@@ -0,0 +1,629 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.LocaleList;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * UsageStats reader/writer for the binary file format.
+ *
+ * <p>Files are memory-mapped when read. Besides the packages and configurations, each file holds
+ * an index of its events, sorted by time, that points at each event record, and a table of the
+ * strings the records refer to. {@link #queryEvents} uses both to read only the events of a time
+ * range, optionally of a single package, without building the rest of the {@link IntervalStats}.
+ *
+ * <pre>
+ * header:         magic, version, endTime, (count, duration) of the 4 trackers,
+ *                 (count, offset) of the packages, configurations, event index and strings
+ * packages:       package, lastTimeUsed, totalTimeInForeground, lastEvent, appLaunchCount,
+ *                 chooser counts
+ * configurations: configuration, lastTimeActive, totalTimeActive, activationCount, active
+ * event index:    (time, record offset) for each event
+ * event records:  package, class, flags, type, data specific to the type
+ * strings:        offset of each string, then (length, utf-8 bytes) of each string
+ * </pre>
+ *
+ * Strings are stored once and referred to by their index in the table, -1 meaning null. As in
+ * the XML format, times are stored as an offset of the beginTime, which is the file name.
+ *
+ * <p>Files written before this format existed are XML; the read methods fall back to
+ * {@link UsageStatsXml} for those.
+ */
+final class UsageStatsBinary {
+    // "USBF"
+    private static final int MAGIC = 0x55534246;
+    private static final int CURRENT_VERSION = 1;
+
+    private static final int TRACKERS_OFFSET = 4 + 4 + 8;
+    private static final int TRACKER_COUNT = 4;
+    private static final int SECTIONS_OFFSET = TRACKERS_OFFSET + TRACKER_COUNT * (4 + 8);
+    private static final int HEADER_SIZE = SECTIONS_OFFSET + 4 * (4 + 4);
+
+    private static final int EVENT_INDEX_ENTRY_SIZE = 8 + 4;
+    private static final int NO_STRING = -1;
+
+    /**
+     * Reads the file into statsOut, whether it is in the binary or the XML format.
+     */
+    static void read(AtomicFile file, IntervalStats statsOut) throws IOException {
+        final ByteBuffer buffer = mapIfBinary(file);
+        if (buffer == null) {
+            UsageStatsXml.read(file, statsOut);
+            return;
+        }
+        statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+        try {
+            new MappedStats(buffer, statsOut.beginTime).read(statsOut);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("Corrupt usage stats file " + file.getBaseFile(), e);
+        }
+        statsOut.lastTimeSaved = file.getLastModifiedTime();
+    }
+
+    /**
+     * Adds the events of the file whose timestamp is in [beginTime, endTime) to eventsOut, in
+     * order. If packageName is not null, only the events of that package are added.
+     */
+    static void queryEvents(AtomicFile file, long beginTime, long endTime, String packageName,
+            List<UsageEvents.Event> eventsOut) throws IOException {
+        final ByteBuffer buffer = mapIfBinary(file);
+        if (buffer == null) {
+            final IntervalStats stats = new IntervalStats();
+            UsageStatsXml.read(file, stats);
+            if (stats.events != null) {
+                addEvents(stats.events, beginTime, endTime, packageName, eventsOut);
+            }
+            return;
+        }
+        try {
+            final MappedStats stats = new MappedStats(buffer, UsageStatsXml.parseBeginTime(file));
+            int packageIndex = NO_STRING;
+            if (packageName != null) {
+                packageIndex = stats.indexOfString(packageName.getBytes(StandardCharsets.UTF_8));
+                if (packageIndex == NO_STRING) {
+                    // The package has no events in this file.
+                    return;
+                }
+            }
+            final int eventCount = stats.mEventCount;
+            for (int i = stats.firstEventOnOrAfter(beginTime); i < eventCount; i++) {
+                if (stats.getEventTime(i) >= endTime) {
+                    return;
+                }
+                if (packageIndex != NO_STRING && stats.getEventPackage(i) != packageIndex) {
+                    continue;
+                }
+                eventsOut.add(stats.readEvent(i));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("Corrupt usage stats file " + file.getBaseFile(), e);
+        }
+    }
+
+    /**
+     * Adds the events of the list whose timestamp is in [beginTime, endTime) to eventsOut, in
+     * order. If packageName is not null, only the events of that package are added.
+     */
+    static void addEvents(EventList events, long beginTime, long endTime, String packageName,
+            List<UsageEvents.Event> eventsOut) {
+        final int size = events.size();
+        for (int i = events.firstIndexOnOrAfter(beginTime); i < size; i++) {
+            final UsageEvents.Event event = events.get(i);
+            if (event.mTimeStamp >= endTime) {
+                return;
+            }
+            if (packageName != null && !packageName.equals(event.mPackage)) {
+                continue;
+            }
+            eventsOut.add(event);
+        }
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            write(fos, stats);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    static void write(OutputStream out, IntervalStats stats) throws IOException {
+        final StringTable strings = new StringTable();
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bodyBytes);
+
+        final int packagesOffset = HEADER_SIZE + body.size();
+        final int packageCount = stats.packageStats.size();
+        for (int i = 0; i < packageCount; i++) {
+            writeUsageStats(body, strings, stats, stats.packageStats.valueAt(i));
+        }
+
+        final int configsOffset = HEADER_SIZE + body.size();
+        final int configCount = stats.configurations.size();
+        for (int i = 0; i < configCount; i++) {
+            final boolean active = stats.configurations.keyAt(i).equals(
+                    stats.activeConfiguration);
+            writeConfigStats(body, strings, stats, stats.configurations.valueAt(i), active);
+        }
+
+        // The index comes before the records it points at, so the records go to their own
+        // buffer until the index is complete.
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int eventIndexOffset = HEADER_SIZE + body.size();
+        final int recordsOffset = eventIndexOffset + eventCount * EVENT_INDEX_ENTRY_SIZE;
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        final DataOutputStream records = new DataOutputStream(recordBytes);
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.events.get(i);
+            body.writeLong(event.mTimeStamp - stats.beginTime);
+            body.writeInt(recordsOffset + records.size());
+            writeEvent(records, strings, event);
+        }
+        recordBytes.writeTo(body);
+
+        final int stringsOffset = HEADER_SIZE + body.size();
+        strings.writeTo(body, stringsOffset);
+        body.flush();
+
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(CURRENT_VERSION);
+        header.writeLong(stats.endTime - stats.beginTime);
+        writeTracker(header, stats.interactiveTracker);
+        writeTracker(header, stats.nonInteractiveTracker);
+        writeTracker(header, stats.keyguardShownTracker);
+        writeTracker(header, stats.keyguardHiddenTracker);
+        header.writeInt(packageCount);
+        header.writeInt(packagesOffset);
+        header.writeInt(configCount);
+        header.writeInt(configsOffset);
+        header.writeInt(eventCount);
+        header.writeInt(eventIndexOffset);
+        header.writeInt(strings.size());
+        header.writeInt(stringsOffset);
+        header.flush();
+        bodyBytes.writeTo(out);
+    }
+
+    /**
+     * Maps the file in memory, or returns null if it is not in the binary format.
+     */
+    private static ByteBuffer mapIfBinary(AtomicFile file) throws IOException {
+        try (FileInputStream in = file.openRead(); FileChannel channel = in.getChannel()) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return buffer.getInt(0) == MAGIC ? buffer : null;
+        }
+    }
+
+    private static void writeTracker(DataOutputStream out, IntervalStats.EventTracker tracker)
+            throws IOException {
+        out.writeInt(tracker.count);
+        out.writeLong(tracker.duration);
+    }
+
+    private static void writeUsageStats(DataOutputStream out, StringTable strings,
+            IntervalStats stats, UsageStats usageStats) throws IOException {
+        out.writeInt(strings.indexOf(usageStats.mPackageName));
+        out.writeLong(usageStats.mLastTimeUsed - stats.beginTime);
+        out.writeLong(usageStats.mTotalTimeInForeground);
+        out.writeInt(usageStats.mLastEvent);
+        out.writeInt(usageStats.mAppLaunchCount);
+
+        final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                usageStats.mChooserCounts;
+        int actionCount = 0;
+        final int chooserCountSize = chooserCounts != null ? chooserCounts.size() : 0;
+        for (int i = 0; i < chooserCountSize; i++) {
+            if (isChooserActionWritten(chooserCounts.keyAt(i), chooserCounts.valueAt(i))) {
+                actionCount++;
+            }
+        }
+        out.writeInt(actionCount);
+        for (int i = 0; i < chooserCountSize; i++) {
+            final String action = chooserCounts.keyAt(i);
+            final ArrayMap<String, Integer> counts = chooserCounts.valueAt(i);
+            if (!isChooserActionWritten(action, counts)) {
+                continue;
+            }
+            out.writeInt(strings.indexOf(action));
+            final int countsSize = counts.size();
+            int categoryCount = 0;
+            for (int j = 0; j < countsSize; j++) {
+                if (counts.valueAt(j) > 0) {
+                    categoryCount++;
+                }
+            }
+            out.writeInt(categoryCount);
+            for (int j = 0; j < countsSize; j++) {
+                final int count = counts.valueAt(j);
+                if (count > 0) {
+                    out.writeInt(strings.indexOf(counts.keyAt(j)));
+                    out.writeInt(count);
+                }
+            }
+        }
+    }
+
+    private static boolean isChooserActionWritten(String action,
+            ArrayMap<String, Integer> counts) {
+        return action != null && counts != null && !counts.isEmpty();
+    }
+
+    private static void writeConfigStats(DataOutputStream out, StringTable strings,
+            IntervalStats stats, ConfigurationStats configStats, boolean isActive)
+            throws IOException {
+        writeConfiguration(out, strings, configStats.mConfiguration);
+        out.writeLong(configStats.mLastTimeActive - stats.beginTime);
+        out.writeLong(configStats.mTotalTimeActive);
+        out.writeInt(configStats.mActivationCount);
+        out.writeBoolean(isActive);
+    }
+
+    /**
+     * Writes the same fields as {@link Configuration#writeXmlAttrs}.
+     */
+    private static void writeConfiguration(DataOutputStream out, StringTable strings,
+            Configuration config) throws IOException {
+        out.writeFloat(config.fontScale);
+        out.writeInt(config.mcc);
+        out.writeInt(config.mnc);
+        final LocaleList locales = config.getLocales();
+        out.writeInt(locales.isEmpty() ? NO_STRING : strings.indexOf(locales.toLanguageTags()));
+        out.writeInt(config.touchscreen);
+        out.writeInt(config.keyboard);
+        out.writeInt(config.keyboardHidden);
+        out.writeInt(config.hardKeyboardHidden);
+        out.writeInt(config.navigation);
+        out.writeInt(config.navigationHidden);
+        out.writeInt(config.orientation);
+        out.writeInt(config.screenLayout);
+        out.writeInt(config.colorMode);
+        out.writeInt(config.uiMode);
+        out.writeInt(config.screenWidthDp);
+        out.writeInt(config.screenHeightDp);
+        out.writeInt(config.smallestScreenWidthDp);
+        out.writeInt(config.densityDpi);
+    }
+
+    private static void writeEvent(DataOutputStream out, StringTable strings,
+            UsageEvents.Event event) throws IOException {
+        out.writeInt(strings.indexOf(event.mPackage));
+        out.writeInt(strings.indexOf(event.mClass));
+        out.writeInt(event.mFlags);
+        out.writeInt(event.mEventType);
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                out.writeBoolean(event.mConfiguration != null);
+                if (event.mConfiguration != null) {
+                    writeConfiguration(out, strings, event.mConfiguration);
+                }
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                out.writeInt(strings.indexOf(event.mShortcutId));
+                break;
+            case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                out.writeInt(event.mBucketAndReason);
+                break;
+        }
+    }
+
+    /**
+     * Collects the strings of a file as it is written.
+     */
+    private static final class StringTable {
+        private final HashMap<String, Integer> mIndices = new HashMap<>();
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        int indexOf(String str) {
+            if (str == null) {
+                return NO_STRING;
+            }
+            Integer index = mIndices.get(str);
+            if (index == null) {
+                index = mStrings.size();
+                mIndices.put(str, index);
+                mStrings.add(str);
+            }
+            return index;
+        }
+
+        int size() {
+            return mStrings.size();
+        }
+
+        void writeTo(DataOutputStream out, int offset) throws IOException {
+            final int count = mStrings.size();
+            final byte[][] encoded = new byte[count][];
+            int stringOffset = offset + count * 4;
+            for (int i = 0; i < count; i++) {
+                encoded[i] = mStrings.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(stringOffset);
+                stringOffset += 4 + encoded[i].length;
+            }
+            for (byte[] bytes : encoded) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads a mapped file. Strings are only decoded once they are needed.
+     */
+    private static final class MappedStats {
+        final ByteBuffer mBuffer;
+        final long mBeginTime;
+        final int mPackageCount;
+        final int mPackagesOffset;
+        final int mConfigCount;
+        final int mConfigsOffset;
+        final int mEventCount;
+        final int mEventIndexOffset;
+        final int mStringCount;
+        final int mStringsOffset;
+        final String[] mStrings;
+
+        MappedStats(ByteBuffer buffer, long beginTime) throws IOException {
+            mBuffer = buffer;
+            mBeginTime = beginTime;
+            final int version = buffer.getInt(4);
+            if (version < 1 || version > CURRENT_VERSION) {
+                throw new IOException("Unrecognized version " + version);
+            }
+            buffer.position(SECTIONS_OFFSET);
+            mPackageCount = buffer.getInt();
+            mPackagesOffset = buffer.getInt();
+            mConfigCount = buffer.getInt();
+            mConfigsOffset = buffer.getInt();
+            mEventCount = buffer.getInt();
+            mEventIndexOffset = buffer.getInt();
+            mStringCount = buffer.getInt();
+            mStringsOffset = buffer.getInt();
+            mStrings = new String[mStringCount];
+        }
+
+        void read(IntervalStats statsOut) {
+            statsOut.packageStats.clear();
+            statsOut.configurations.clear();
+            statsOut.activeConfiguration = null;
+            if (statsOut.events != null) {
+                statsOut.events.clear();
+            }
+
+            statsOut.endTime = mBeginTime + mBuffer.getLong(TRACKERS_OFFSET - 8);
+            mBuffer.position(TRACKERS_OFFSET);
+            readTracker(statsOut.interactiveTracker);
+            readTracker(statsOut.nonInteractiveTracker);
+            readTracker(statsOut.keyguardShownTracker);
+            readTracker(statsOut.keyguardHiddenTracker);
+
+            mBuffer.position(mPackagesOffset);
+            for (int i = 0; i < mPackageCount; i++) {
+                readUsageStats(statsOut);
+            }
+
+            mBuffer.position(mConfigsOffset);
+            for (int i = 0; i < mConfigCount; i++) {
+                readConfigStats(statsOut);
+            }
+
+            if (mEventCount > 0 && statsOut.events == null) {
+                statsOut.events = new EventList();
+            }
+            for (int i = 0; i < mEventCount; i++) {
+                statsOut.events.insert(readEvent(i));
+            }
+        }
+
+        private void readTracker(IntervalStats.EventTracker tracker) {
+            tracker.count = mBuffer.getInt();
+            tracker.duration = mBuffer.getLong();
+        }
+
+        private void readUsageStats(IntervalStats statsOut) {
+            final UsageStats stats = statsOut.getOrCreateUsageStats(getString(mBuffer.getInt()));
+            stats.mLastTimeUsed = mBeginTime + mBuffer.getLong();
+            stats.mTotalTimeInForeground = mBuffer.getLong();
+            stats.mLastEvent = mBuffer.getInt();
+            stats.mAppLaunchCount = mBuffer.getInt();
+
+            final int actionCount = mBuffer.getInt();
+            if (actionCount > 0 && stats.mChooserCounts == null) {
+                stats.mChooserCounts = new ArrayMap<>(actionCount);
+            }
+            for (int i = 0; i < actionCount; i++) {
+                final String action = getString(mBuffer.getInt());
+                final int categoryCount = mBuffer.getInt();
+                final ArrayMap<String, Integer> counts = new ArrayMap<>(categoryCount);
+                for (int j = 0; j < categoryCount; j++) {
+                    final String category = getString(mBuffer.getInt());
+                    counts.put(category, mBuffer.getInt());
+                }
+                stats.mChooserCounts.put(action, counts);
+            }
+        }
+
+        private void readConfigStats(IntervalStats statsOut) {
+            final ConfigurationStats configStats =
+                    statsOut.getOrCreateConfigurationStats(readConfiguration());
+            configStats.mLastTimeActive = mBeginTime + mBuffer.getLong();
+            configStats.mTotalTimeActive = mBuffer.getLong();
+            configStats.mActivationCount = mBuffer.getInt();
+            if (mBuffer.get() != 0) {
+                statsOut.activeConfiguration = configStats.mConfiguration;
+            }
+        }
+
+        private Configuration readConfiguration() {
+            final Configuration config = new Configuration();
+            config.fontScale = mBuffer.getFloat();
+            config.mcc = mBuffer.getInt();
+            config.mnc = mBuffer.getInt();
+            final String locales = getString(mBuffer.getInt());
+            if (locales != null) {
+                config.setLocales(LocaleList.forLanguageTags(locales));
+            }
+            config.touchscreen = mBuffer.getInt();
+            config.keyboard = mBuffer.getInt();
+            config.keyboardHidden = mBuffer.getInt();
+            config.hardKeyboardHidden = mBuffer.getInt();
+            config.navigation = mBuffer.getInt();
+            config.navigationHidden = mBuffer.getInt();
+            config.orientation = mBuffer.getInt();
+            config.screenLayout = mBuffer.getInt();
+            config.colorMode = mBuffer.getInt();
+            config.uiMode = mBuffer.getInt();
+            config.screenWidthDp = mBuffer.getInt();
+            config.screenHeightDp = mBuffer.getInt();
+            config.smallestScreenWidthDp = mBuffer.getInt();
+            config.densityDpi = mBuffer.getInt();
+            return config;
+        }
+
+        long getEventTime(int index) {
+            return mBeginTime + mBuffer.getLong(mEventIndexOffset + index * EVENT_INDEX_ENTRY_SIZE);
+        }
+
+        int getEventPackage(int index) {
+            return mBuffer.getInt(getEventRecordOffset(index));
+        }
+
+        private int getEventRecordOffset(int index) {
+            return mBuffer.getInt(mEventIndexOffset + index * EVENT_INDEX_ENTRY_SIZE + 8);
+        }
+
+        /**
+         * Returns the index of the first event at or after the given time, or the event count if
+         * there is none.
+         */
+        int firstEventOnOrAfter(long timeStamp) {
+            int result = mEventCount;
+            int lo = 0;
+            int hi = mEventCount - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (getEventTime(mid) >= timeStamp) {
+                    hi = mid - 1;
+                    result = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return result;
+        }
+
+        UsageEvents.Event readEvent(int index) {
+            final UsageEvents.Event event = new UsageEvents.Event();
+            event.mTimeStamp = getEventTime(index);
+            mBuffer.position(getEventRecordOffset(index));
+            event.mPackage = getString(mBuffer.getInt());
+            event.mClass = getString(mBuffer.getInt());
+            event.mFlags = mBuffer.getInt();
+            event.mEventType = mBuffer.getInt();
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    if (mBuffer.get() != 0) {
+                        event.mConfiguration = readConfiguration();
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    final String id = getString(mBuffer.getInt());
+                    event.mShortcutId = (id != null) ? id.intern() : null;
+                    break;
+                case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                    event.mBucketAndReason = mBuffer.getInt();
+                    break;
+            }
+            return event;
+        }
+
+        String getString(int index) {
+            if (index == NO_STRING) {
+                return null;
+            }
+            String str = mStrings[index];
+            if (str == null) {
+                final int offset = getStringOffset(index);
+                final byte[] bytes = new byte[mBuffer.getInt(offset)];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = mBuffer.get(offset + 4 + i);
+                }
+                str = new String(bytes, StandardCharsets.UTF_8);
+                mStrings[index] = str;
+            }
+            return str;
+        }
+
+        /**
+         * Finds a string by comparing its encoded bytes, without decoding the table.
+         */
+        int indexOfString(byte[] utf8) {
+            for (int i = 0; i < mStringCount; i++) {
+                final int offset = getStringOffset(i);
+                if (mBuffer.getInt(offset) != utf8.length) {
+                    continue;
+                }
+                int j = 0;
+                while (j < utf8.length && mBuffer.get(offset + 4 + j) == utf8[j]) {
+                    j++;
+                }
+                if (j == utf8.length) {
+                    return i;
+                }
+            }
+            return NO_STRING;
+        }
+
+        private int getStringOffset(int index) {
+            return mBuffer.getInt(mStringsOffset + index * 4);
+        }
+    }
+
+    private UsageStatsBinary() {
+    }
+}
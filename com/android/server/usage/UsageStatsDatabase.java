@@ -17,6 +17,7 @@
 package com.android.server.usage;
 
 import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.os.Build;
@@ -40,10 +41,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Provides an interface to query for UsageStat data from an XML database.
+ * Provides an interface to query for UsageStat data from a database of binary files, see
+ * {@link UsageStatsBinary}. Databases written before version 4 were XML; their files are
+ * converted on upgrade, and the XML format is still used for backups.
  */
 class UsageStatsDatabase {
-    private static final int CURRENT_VERSION = 3;
+    private static final int CURRENT_VERSION = 4;
 
     // Current version of the backup schema
     static final int BACKUP_VERSION = 1;
@@ -154,7 +157,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    UsageStatsBinary.read(files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -291,6 +294,43 @@ class UsageStatsDatabase {
                 }
             }
         }
+
+        if (thisVersion < 4) {
+            convertToBinaryLocked();
+        }
+    }
+
+    /**
+     * Rewrites the XML files of databases older than version 4 in the binary format. Files that
+     * fail to convert are left as they are, they can still be read.
+     */
+    private void convertToBinaryLocked() {
+        final FilenameFilter backupFileFilter = new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.endsWith(BAK_SUFFIX);
+            }
+        };
+
+        int filesConverted = 0;
+        for (int i = 0; i < mIntervalDirs.length; i++) {
+            final File[] files = mIntervalDirs[i].listFiles(backupFileFilter);
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                final AtomicFile af = new AtomicFile(f);
+                try {
+                    final IntervalStats stats = new IntervalStats();
+                    UsageStatsBinary.read(af, stats);
+                    UsageStatsBinary.write(af, stats);
+                    filesConverted++;
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to convert usage stats file " + f, e);
+                }
+            }
+        }
+        Slog.i(TAG, "Converted " + filesConverted + " usage stats files");
     }
 
     public void onTimeChanged(long timeDiffMillis) {
@@ -357,7 +397,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                UsageStatsBinary.read(f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -405,14 +445,8 @@ class UsageStatsDatabase {
                 return null;
             }
 
-            int startIndex = intervalStats.closestIndexOnOrBefore(beginTime);
-            if (startIndex < 0) {
-                // All the stats available have timestamps after beginTime, which means they all
-                // match.
-                startIndex = 0;
-            }
-
-            int endIndex = intervalStats.closestIndexOnOrBefore(endTime);
+            final int startIndex = getFirstFileIndex(intervalStats, beginTime);
+            final int endIndex = getLastFileIndex(intervalStats, endTime);
             if (endIndex < 0) {
                 // All the stats start after this range ends, so nothing matches.
                 if (DEBUG) {
@@ -421,18 +455,6 @@ class UsageStatsDatabase {
                 return null;
             }
 
-            if (intervalStats.keyAt(endIndex) == endTime) {
-                // The endTime is exclusive, so if we matched exactly take the one before.
-                endIndex--;
-                if (endIndex < 0) {
-                    // All the stats start after this range ends, so nothing matches.
-                    if (DEBUG) {
-                        Slog.d(TAG, "No results for this range. All stats start after.");
-                    }
-                    return null;
-                }
-            }
-
             final IntervalStats stats = new IntervalStats();
             final ArrayList<T> results = new ArrayList<>();
             for (int i = startIndex; i <= endIndex; i++) {
@@ -443,7 +465,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    UsageStatsBinary.read(f, stats);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -457,6 +479,68 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Find the daily events in the given range, optionally only those of one package. The
+     * events are read straight from the mapped files, without building their
+     * {@link IntervalStats}.
+     */
+    public List<UsageEvents.Event> queryEvents(long beginTime, long endTime, String packageName) {
+        synchronized (mLock) {
+            final TimeSparseArray<AtomicFile> files =
+                    mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+            if (endTime <= beginTime) {
+                if (DEBUG) {
+                    Slog.d(TAG, "endTime(" + endTime + ") <= beginTime(" + beginTime + ")");
+                }
+                return null;
+            }
+
+            final int startIndex = getFirstFileIndex(files, beginTime);
+            final int endIndex = getLastFileIndex(files, endTime);
+            if (endIndex < 0) {
+                return null;
+            }
+
+            final ArrayList<UsageEvents.Event> results = new ArrayList<>();
+            for (int i = startIndex; i <= endIndex; i++) {
+                final AtomicFile f = files.valueAt(i);
+                if (DEBUG) {
+                    Slog.d(TAG, "Reading events from " + f.getBaseFile().getAbsolutePath());
+                }
+
+                try {
+                    UsageStatsBinary.queryEvents(f, beginTime, endTime, packageName, results);
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to read usage stats file", e);
+                    // We continue so that we return results that are not
+                    // corrupt.
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns the index of the first file that may hold stats at or after beginTime.
+     */
+    private static int getFirstFileIndex(TimeSparseArray<AtomicFile> files, long beginTime) {
+        final int index = files.closestIndexOnOrBefore(beginTime);
+        // If all the stats available have timestamps after beginTime, they all match.
+        return index < 0 ? 0 : index;
+    }
+
+    /**
+     * Returns the index of the last file that starts before endTime, or -1 if there is none.
+     */
+    private static int getLastFileIndex(TimeSparseArray<AtomicFile> files, long endTime) {
+        int index = files.closestIndexOnOrBefore(endTime);
+        if (index >= 0 && files.keyAt(index) == endTime) {
+            // The endTime is exclusive, so if we matched exactly take the one before.
+            index--;
+        }
+        return index;
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -562,7 +646,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        UsageStatsBinary.read(af, stats);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +654,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        UsageStatsBinary.write(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,7 +680,7 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            UsageStatsBinary.write(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -730,7 +814,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            UsageStatsBinary.read(statsFile, stats);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures querying 90 days of daily usage stats: events read by loading each day's
+ * {@link IntervalStats}, as before the binary format, against events streamed from the mapped
+ * files, and the cost of reading a single day in the XML and binary formats.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class UsageStatsDatabasePerfTest {
+    private static final int DAY_COUNT = 90;
+    private static final int PACKAGE_COUNT = 100;
+    private static final int EVENTS_PER_DAY = 2000;
+    private static final long BEGIN_TIME = 1500000000000L;
+    private static final long END_TIME = BEGIN_TIME + DAY_COUNT * UnixCalendar.DAY_IN_MILLIS;
+    private static final String PACKAGE_PREFIX = "com.android.perftests.usage.package";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private UsageStatsDatabase mDatabase;
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDir = new File(context.getFilesDir(), "usagestats-perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDatabase = new UsageStatsDatabase(mDir);
+        mDatabase.init(END_TIME);
+        for (int day = 0; day < DAY_COUNT; day++) {
+            mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY,
+                    createDailyStats(BEGIN_TIME + day * UnixCalendar.DAY_IN_MILLIS));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeQueryEvents_intervalStats() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, BEGIN_TIME, END_TIME,
+                    (stats, mutable, accumulatedResult) -> {
+                        if (stats.events != null) {
+                            UsageStatsBinary.addEvents(stats.events, BEGIN_TIME, END_TIME, null,
+                                    accumulatedResult);
+                        }
+                    });
+        }
+    }
+
+    @Test
+    public void timeQueryEvents_streaming() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.queryEvents(BEGIN_TIME, END_TIME, null);
+        }
+        assertEquals(DAY_COUNT * EVENTS_PER_DAY,
+                mDatabase.queryEvents(BEGIN_TIME, END_TIME, null).size());
+    }
+
+    @Test
+    public void timeQueryEventsForPackage_streaming() {
+        final String packageName = PACKAGE_PREFIX + 42;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.queryEvents(BEGIN_TIME, END_TIME, packageName);
+        }
+        final List<UsageEvents.Event> events =
+                mDatabase.queryEvents(BEGIN_TIME, END_TIME, packageName);
+        assertEquals(DAY_COUNT * EVENTS_PER_DAY / PACKAGE_COUNT, events.size());
+    }
+
+    @Test
+    public void timeReadDay_xml() throws IOException {
+        final AtomicFile file = new AtomicFile(new File(mDir, Long.toString(BEGIN_TIME)));
+        UsageStatsXml.write(file, createDailyStats(BEGIN_TIME));
+        final IntervalStats stats = new IntervalStats();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            UsageStatsXml.read(file, stats);
+        }
+    }
+
+    @Test
+    public void timeReadDay_binary() throws IOException {
+        final AtomicFile file = new AtomicFile(new File(mDir, Long.toString(BEGIN_TIME)));
+        UsageStatsBinary.write(file, createDailyStats(BEGIN_TIME));
+        final IntervalStats stats = new IntervalStats();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            UsageStatsBinary.read(file, stats);
+        }
+    }
+
+    private static IntervalStats createDailyStats(long beginTime) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = beginTime;
+        stats.endTime = beginTime;
+        stats.events = new EventList();
+        final long eventInterval = UnixCalendar.DAY_IN_MILLIS / EVENTS_PER_DAY;
+        for (int i = 0; i < EVENTS_PER_DAY; i++) {
+            final String packageName = PACKAGE_PREFIX + (i % PACKAGE_COUNT);
+            final UsageEvents.Event event = stats.buildEvent(packageName,
+                    packageName + ".MainActivity");
+            event.mTimeStamp = beginTime + i * eventInterval;
+            event.mEventType = (i / PACKAGE_COUNT) % 2 == 0
+                    ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            stats.update(packageName, event.mTimeStamp, event.mEventType);
+            stats.events.insert(event);
+        }
+        return stats;
+    }
+}
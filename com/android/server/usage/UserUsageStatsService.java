@@ -354,42 +354,57 @@ class UserUsageStatsService {
         return queryStats(bucketType, beginTime, endTime, sEventStatsCombiner);
     }
 
-    UsageEvents queryEvents(final long beginTime, final long endTime,
-            boolean obfuscateInstantApps) {
-        final ArraySet<String> names = new ArraySet<>();
-        List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
+    /**
+     * Finds the events in the given range, optionally only those of one package. Unlike
+     * {@link #queryStats}, the events on disk are read without loading the daily
+     * {@link IntervalStats} they belong to.
+     */
+    private List<UsageEvents.Event> queryEventList(long beginTime, long endTime,
+            String packageName) {
+        final IntervalStats currentStats = mCurrentStats[UsageStatsManager.INTERVAL_DAILY];
+        if (beginTime >= currentStats.endTime) {
+            // Nothing newer available.
+            return null;
+        }
 
-                        final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.get(i).mTimeStamp >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.get(i);
-                            if (obfuscateInstantApps) {
-                                event = event.getObfuscatedIfInstantApp();
-                            }
-                            names.add(event.mPackage);
-                            if (event.mClass != null) {
-                                names.add(event.mClass);
-                            }
-                            accumulatedResult.add(event);
-                        }
-                    }
-                });
+        // Truncate the endTime to just before the in-memory stats, then append the in-memory
+        // events if necessary.
+        final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
+        List<UsageEvents.Event> results = mDatabase.queryEvents(beginTime, truncatedEndTime,
+                packageName);
+
+        if (beginTime < currentStats.endTime && endTime > currentStats.beginTime
+                && currentStats.events != null) {
+            if (results == null) {
+                results = new ArrayList<>();
+            }
+            UsageStatsBinary.addEvents(currentStats.events, beginTime, endTime, packageName,
+                    results);
+        }
+        return results;
+    }
 
+    UsageEvents queryEvents(final long beginTime, final long endTime,
+            boolean obfuscateInstantApps) {
+        final List<UsageEvents.Event> results = queryEventList(beginTime, endTime, null);
         if (results == null || results.isEmpty()) {
             return null;
         }
 
+        final ArraySet<String> names = new ArraySet<>();
+        final int size = results.size();
+        for (int i = 0; i < size; i++) {
+            UsageEvents.Event event = results.get(i);
+            if (obfuscateInstantApps) {
+                event = event.getObfuscatedIfInstantApp();
+                results.set(i, event);
+            }
+            names.add(event.mPackage);
+            if (event.mClass != null) {
+                names.add(event.mClass);
+            }
+        }
+
         String[] table = names.toArray(new String[names.size()]);
         Arrays.sort(table);
         return new UsageEvents(results, table);
@@ -397,36 +412,21 @@ class UserUsageStatsService {
 
     UsageEvents queryEventsForPackage(final long beginTime, final long endTime,
             final String packageName) {
-        final ArraySet<String> names = new ArraySet<>();
-        names.add(packageName);
-        final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
-                    if (stats.events == null) {
-                        return;
-                    }
-
-                    final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                    final int size = stats.events.size();
-                    for (int i = startIndex; i < size; i++) {
-                        if (stats.events.get(i).mTimeStamp >= endTime) {
-                            return;
-                        }
-
-                        final UsageEvents.Event event = stats.events.get(i);
-                        if (!packageName.equals(event.mPackage)) {
-                            continue;
-                        }
-                        if (event.mClass != null) {
-                            names.add(event.mClass);
-                        }
-                        accumulatedResult.add(event);
-                    }
-                });
-
+        final List<UsageEvents.Event> results = queryEventList(beginTime, endTime, packageName);
         if (results == null || results.isEmpty()) {
             return null;
         }
 
+        final ArraySet<String> names = new ArraySet<>();
+        names.add(packageName);
+        final int size = results.size();
+        for (int i = 0; i < size; i++) {
+            final UsageEvents.Event event = results.get(i);
+            if (event.mClass != null) {
+                names.add(event.mClass);
+            }
+        }
+
         final String[] table = names.toArray(new String[names.size()]);
         Arrays.sort(table);
         return new UsageEvents(results, table);
@@ -615,30 +615,7 @@ class UserUsageStatsService {
 
         final long beginTime = yesterday.getTimeInMillis();
 
-        List<UsageEvents.Event> events = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
-
-                        final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.get(i).mTimeStamp >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.get(i);
-                            if (pkg != null && !pkg.equals(event.mPackage)) {
-                                continue;
-                            }
-                            accumulatedResult.add(event);
-                        }
-                    }
-                });
+        List<UsageEvents.Event> events = queryEventList(beginTime, endTime, pkg);
 
         pw.print("Last 24 hour events (");
         if (prettyDates) {